@@ -0,0 +1,69 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header lookups and serialization on a parsed browser request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderModelBenchmark {
+
+    private final HttpRequestInfo request = new HttpRequestInfo();
+    private byte[] target;
+    private byte[] nameBytes;
+
+    @Setup
+    public void setUp() {
+        this.request.parseHttpString(HeaderCorpus.BROWSER_REQUEST.substring(0, HeaderCorpus.BROWSER_REQUEST.length() - 4));
+        this.target = new byte[this.request.getHttpStringLength()];
+        this.nameBytes = HeaderCorpus.bytes("proxy-connection");
+    }
+
+    @Benchmark
+    public String toHttpString() {
+        return this.request.toHttpString();
+    }
+
+    @Benchmark
+    public int writeToArray() {
+        return this.request.writeTo(this.target, 0);
+    }
+
+    @Benchmark
+    public boolean lookupKnownHeader() {
+        return this.request.hasHeaderToken(HttpHeaderName.PROXY_CONNECTION, "keep-alive");
+    }
+
+    @Benchmark
+    public String lookupUnknownHeader() {
+        return this.request.getHeaderFirstValue("Sec-Fetch-Mode");
+    }
+
+    @Benchmark
+    public HttpHeaderName tagHeaderName() {
+        return HttpHeaderName.lookup(this.nameBytes, 0, this.nameBytes.length);
+    }
+
+    @Benchmark
+    public int forwardRequestHeader() {
+        this.request.removeHeader(HttpHeaderName.PROXY_CONNECTION);
+        this.request.setOriginForm(true);
+        return this.request.writeTo(this.target, 0);
+    }
+}
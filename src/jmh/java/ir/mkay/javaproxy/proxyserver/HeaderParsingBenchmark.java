@@ -0,0 +1,92 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading request and response headers the way the handlers do, from a stream that repeats the same
+ * header forever, like a keep-alive connection that never sends a body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderParsingBenchmark {
+
+    @Param({"curl", "browser", "api"})
+    private String request;
+
+    private byte[] requestBytes;
+    private HttpInputStream requestStream;
+    private final HttpRequestInfo requestInfo = new HttpRequestInfo();
+    private final HttpHeaderParser parser = new HttpHeaderParser();
+
+    private HttpInputStream responseStream;
+    private final HttpResponseInfo responseInfo = new HttpResponseInfo();
+
+    @Setup
+    public void setUp() {
+        var bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+        this.requestBytes = HeaderCorpus.bytes(HeaderCorpus.request(this.request));
+        this.requestStream = new HttpInputStream(new RepeatingInputStream(this.requestBytes), bufferPool);
+        this.responseStream = new HttpInputStream(new RepeatingInputStream(HeaderCorpus.bytes(HeaderCorpus.RESPONSE)), bufferPool);
+    }
+
+    @Benchmark
+    public int parseRequest() {
+        this.parser.reset();
+        return this.parser.parse(this.requestBytes, 0, this.requestBytes.length);
+    }
+
+    @Benchmark
+    public HttpRequestInfo readRequestHeader() throws IOException {
+        this.requestStream.readHeader(this.requestInfo);
+        return this.requestInfo;
+    }
+
+    @Benchmark
+    public HttpResponseInfo readResponseHeader() throws IOException {
+        this.responseStream.readHeader(this.responseInfo);
+        return this.responseInfo;
+    }
+
+    private static class RepeatingInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private int position;
+
+        private RepeatingInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            var b = this.bytes[this.position] & 0xff;
+            this.position = (this.position + 1) % this.bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            var count = Math.min(len, this.bytes.length - this.position);
+            System.arraycopy(this.bytes, this.position, b, off, count);
+            this.position = (this.position + count) % this.bytes.length;
+            return count;
+        }
+    }
+}
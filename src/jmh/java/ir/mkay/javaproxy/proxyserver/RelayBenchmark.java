@@ -0,0 +1,116 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The body relay loop, once between in-memory streams to isolate its own cost and once between loopback sockets
+ * fed and drained by background threads, which is closer to what a handler sees.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RelayBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    private BufferPool bufferPool;
+    private ByteArrayInputStream memoryInput;
+
+    private ServerSocket serverSocket;
+    private Socket originSocket;
+    private Socket sinkSocket;
+    private InputStream originInput;
+    private OutputStream sinkOutput;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+        this.memoryInput = new ByteArrayInputStream(new byte[this.size]);
+
+        this.serverSocket = new ServerSocket(0, 2, InetAddress.getLoopbackAddress());
+        var port = this.serverSocket.getLocalPort();
+        this.originSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+        var originPeer = this.serverSocket.accept();
+        this.sinkSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+        var sinkPeer = this.serverSocket.accept();
+        this.originInput = this.originSocket.getInputStream();
+        this.sinkOutput = this.sinkSocket.getOutputStream();
+        startDaemon("origin", () -> {
+            var chunk = new byte[64 * 1024];
+            var out = originPeer.getOutputStream();
+            while (true) out.write(chunk);
+        });
+        startDaemon("sink", () -> {
+            var chunk = new byte[64 * 1024];
+            var in = sinkPeer.getInputStream();
+            while (in.read(chunk) > -1) ;
+        });
+    }
+
+    @Setup(Level.Invocation)
+    public void rewind() {
+        this.memoryInput.reset();
+    }
+
+    @TearDown
+    public void tearDown() {
+        IOUtils.tryToClose(this.originSocket);
+        IOUtils.tryToClose(this.sinkSocket);
+        IOUtils.tryToClose(this.serverSocket);
+    }
+
+    @Benchmark
+    public void copyInMemory() throws IOException {
+        try (var buffer = new AdaptiveBuffer(this.bufferPool)) {
+            HttpBody.copy(this.memoryInput, OutputStream.nullOutputStream(), this.size, buffer);
+        }
+    }
+
+    @Benchmark
+    public void copyLoopback() throws IOException {
+        try (var buffer = new AdaptiveBuffer(this.bufferPool)) {
+            HttpBody.copy(this.originInput, this.sinkOutput, this.size, buffer);
+        }
+    }
+
+    private static void startDaemon(String name, IORunnable runnable) {
+        var thread = new Thread(() -> {
+            try {
+                runnable.run();
+            } catch (IOException ignore) {
+                // Socket closed by tear down
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+}
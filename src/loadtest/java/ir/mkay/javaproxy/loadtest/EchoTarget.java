@@ -0,0 +1,64 @@
+package ir.mkay.javaproxy.loadtest;
+
+import ir.mkay.javaproxy.proxyserver.IOUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stands in for a TLS server behind a CONNECT tunnel: it echoes every byte, so each client flight gets a
+ * same-sized answer the way handshake messages do, without any real cryptography.
+ */
+@Slf4j
+public class EchoTarget implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    public EchoTarget() throws IOException {
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        this.connections.submit(this::accept);
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        IOUtils.tryToClose(this.serverSocket);
+        this.connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                var socket = this.serverSocket.accept();
+                this.connections.submit(() -> this.echo(socket));
+            } catch (IOException e) {
+                if (!this.serverSocket.isClosed()) log.warn("Echo target accept failed", e);
+            }
+        }
+    }
+
+    private void echo(Socket socket) {
+        var buffer = new byte[16 * 1024];
+        try (socket) {
+            var in = socket.getInputStream();
+            var out = socket.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) > -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException ignore) {
+            // Tunnel closed
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ir.mkay.javaproxy.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Raw latency samples of a single thread; merged and sorted once the run is over, so percentiles are exact.
+ */
+public class LatencyRecorder {
+
+    private long[] samples = new long[64 * 1024];
+    private int size;
+
+    public void record(long nanos) {
+        if (this.size == this.samples.length) this.samples = Arrays.copyOf(this.samples, this.size * 2);
+        this.samples[this.size++] = nanos;
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public static long[] merge(Iterable<LatencyRecorder> recorders) {
+        var total = 0;
+        for (var recorder : recorders) total += recorder.size;
+        var merged = new long[total];
+        var offset = 0;
+        for (var recorder : recorders) {
+            System.arraycopy(recorder.samples, 0, merged, offset, recorder.size);
+            offset += recorder.size;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    public static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0;
+        var index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,110 @@
+package ir.mkay.javaproxy.loadtest;
+
+import ir.mkay.javaproxy.proxyserver.BufferPool;
+import ir.mkay.javaproxy.proxyserver.HttpInputStream;
+import ir.mkay.javaproxy.proxyserver.HttpResponseInfo;
+import ir.mkay.javaproxy.proxyserver.IOUtils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One simulated client; plain requests reuse a keep-alive connection to the proxy, tunnels always use a new one.
+ */
+public class LoadClient implements Closeable {
+
+    private final int proxyPort;
+    private final boolean keepAlive;
+    private final BufferPool bufferPool;
+    private final byte[] httpRequest;
+    private final byte[] connectRequest;
+    private final byte[] payload;
+    private final byte[] scratch = new byte[64 * 1024];
+    private final HttpResponseInfo response = new HttpResponseInfo();
+
+    private Socket socket;
+    private HttpInputStream input;
+    private OutputStream output;
+    private boolean reused;
+
+    public LoadClient(LoadTestOptions options, BufferPool bufferPool, int proxyPort, int originPort, int echoPort) {
+        this.proxyPort = proxyPort;
+        this.keepAlive = options.isClientKeepAlive();
+        this.bufferPool = bufferPool;
+        this.httpRequest = ("GET http://127.0.0.1:" + originPort + "/load HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + originPort + "\r\n"
+                + "User-Agent: JavaProxy-LoadTest\r\n"
+                + "Proxy-Connection: " + (this.keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.connectRequest = ("CONNECT 127.0.0.1:" + echoPort + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + echoPort + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.payload = new byte[options.getTunnelPayloadSize()];
+        Arrays.fill(this.payload, (byte) 'p');
+    }
+
+    public void http() throws IOException {
+        if (this.socket == null) this.connect();
+        this.output.write(this.httpRequest);
+        this.output.flush();
+        if (this.input.readHeader(this.response) == 0) {
+            // The proxy may close an idle keep-alive connection right as we reuse it, like a browser we retry once
+            if (!this.reused) throw new EOFException("Proxy closed connection before response");
+            this.close();
+            this.http();
+            return;
+        }
+        if (this.response.getStatus() != 200) throw new IllegalStateException("Unexpected status " + this.response.getStatus());
+        this.skip(this.response.getContentLength());
+        this.reused = true;
+        if (!this.keepAlive || !this.response.isKeepAlive()) this.close();
+    }
+
+    public void tunnel(int roundTrips) throws IOException {
+        try (var tunnel = new Socket(InetAddress.getLoopbackAddress(), this.proxyPort);
+             var tunnelInput = new HttpInputStream(tunnel.getInputStream(), this.bufferPool)) {
+            tunnel.setTcpNoDelay(true);
+            var tunnelOutput = tunnel.getOutputStream();
+            tunnelOutput.write(this.connectRequest);
+            tunnelOutput.flush();
+            if (tunnelInput.readHeader(this.response) == 0) throw new EOFException("Proxy closed tunnel before response");
+            if (this.response.getStatus() != 200) throw new IllegalStateException("Unexpected status " + this.response.getStatus());
+            for (int i = 0; i < roundTrips; i++) {
+                tunnelOutput.write(this.payload);
+                tunnelOutput.flush();
+                if (tunnelInput.readNBytes(this.scratch, 0, this.payload.length) < this.payload.length) {
+                    throw new EOFException("Tunnel closed during round trip " + i);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        IOUtils.tryToClose(this.input);
+        IOUtils.tryToClose(this.output);
+        IOUtils.tryToClose(this.socket);
+        this.socket = null;
+        this.reused = false;
+    }
+
+    private void connect() throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), this.proxyPort);
+        this.socket.setTcpNoDelay(true);
+        this.input = new HttpInputStream(this.socket.getInputStream(), this.bufferPool);
+        this.output = this.socket.getOutputStream();
+    }
+
+    private void skip(long length) throws IOException {
+        var remaining = length;
+        while (remaining > 0) {
+            var read = this.input.read(this.scratch, 0, (int) Math.min(this.scratch.length, remaining));
+            if (read < 0) throw new EOFException("Response ended " + remaining + " bytes early");
+            remaining -= read;
+        }
+    }
+}
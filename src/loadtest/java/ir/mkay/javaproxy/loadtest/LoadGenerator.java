@@ -0,0 +1,131 @@
+package ir.mkay.javaproxy.loadtest;
+
+import ir.mkay.javaproxy.proxyserver.BufferPool;
+import ir.mkay.javaproxy.proxyserver.ProxyServerProperties;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Drives plain HTTP and CONNECT operations through the proxy, either closed loop at a fixed concurrency or
+ * open loop at a fixed rate. Open loop latency starts at the scheduled time, so a stalled proxy shows up in the
+ * percentiles instead of silently lowering the offered load.
+ */
+public class LoadGenerator {
+
+    private final LoadTestOptions options;
+    private final int proxyPort;
+    private final int originPort;
+    private final int echoPort;
+    private final BufferPool bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+
+    private final List<Worker> workers = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<Worker> worker = ThreadLocal.withInitial(this::newWorker);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private volatile boolean recording;
+    private volatile boolean running = true;
+
+    public LoadGenerator(LoadTestOptions options, int proxyPort, int originPort, int echoPort) {
+        this.options = options;
+        this.proxyPort = proxyPort;
+        this.originPort = originPort;
+        this.echoPort = echoPort;
+    }
+
+    public LoadReport run() throws InterruptedException {
+        var threads = ManagementFactory.getThreadMXBean();
+        var executor = Executors.newFixedThreadPool(this.options.getConcurrency());
+        var scheduler = this.options.getRate() > 0 ? new Thread(() -> this.schedule(executor), "load-scheduler") : null;
+        if (scheduler != null) {
+            scheduler.start();
+        } else {
+            for (int i = 0; i < this.options.getConcurrency(); i++) executor.submit(this::closedLoop);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.options.getWarmupSeconds()));
+        threads.resetPeakThreadCount();
+        this.recording = true;
+        var start = nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.options.getDurationSeconds()));
+        this.recording = false;
+        var elapsed = nanoTime() - start;
+        var liveThreads = threads.getThreadCount();
+        var peakThreads = threads.getPeakThreadCount();
+
+        this.running = false;
+        if (scheduler != null) scheduler.join();
+        executor.shutdown();
+        var drained = executor.awaitTermination(10, TimeUnit.SECONDS);
+        executor.shutdownNow();
+        this.workers.forEach(w -> w.client.close());
+
+        List<LatencyRecorder> http = new ArrayList<>();
+        List<LatencyRecorder> connect = new ArrayList<>();
+        for (var w : this.workers) {
+            http.add(w.http);
+            connect.add(w.connect);
+        }
+        return new LoadReport(elapsed, LatencyRecorder.merge(http), LatencyRecorder.merge(connect),
+                new ConcurrentHashMap<>(this.errors), liveThreads, peakThreads, !drained);
+    }
+
+    private void closedLoop() {
+        while (this.running) {
+            this.operate(nanoTime());
+        }
+    }
+
+    private void schedule(ExecutorService executor) {
+        var interval = TimeUnit.SECONDS.toNanos(1) / this.options.getRate();
+        var next = nanoTime();
+        while (this.running) {
+            var wait = next - nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            var scheduled = next;
+            executor.submit(() -> this.operate(scheduled));
+            next += interval;
+        }
+    }
+
+    private void operate(long scheduled) {
+        var w = this.worker.get();
+        var tunnel = this.options.getConnectRatio() > 0 && ThreadLocalRandom.current().nextDouble() < this.options.getConnectRatio();
+        try {
+            if (tunnel) w.client.tunnel(this.options.getTunnelRoundTrips());
+            else w.client.http();
+            if (this.recording) (tunnel ? w.connect : w.http).record(nanoTime() - scheduled);
+        } catch (Exception e) {
+            w.client.close();
+            if (this.recording) this.errors.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+        }
+    }
+
+    private Worker newWorker() {
+        var w = new Worker(new LoadClient(this.options, this.bufferPool, this.proxyPort, this.originPort, this.echoPort));
+        this.workers.add(w);
+        return w;
+    }
+
+    private static class Worker {
+
+        private final LoadClient client;
+        private final LatencyRecorder http = new LatencyRecorder();
+        private final LatencyRecorder connect = new LatencyRecorder();
+
+        private Worker(LoadClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ir.mkay.javaproxy.loadtest;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public record LoadReport(long elapsedNanos, long[] httpLatencies, long[] connectLatencies, Map<String, LongAdder> errors,
+                         int liveThreads, int peakThreads, boolean backlogLeft) {
+
+    public void print(PrintStream out) {
+        var seconds = this.elapsedNanos / 1e9;
+        var completed = this.httpLatencies.length + this.connectLatencies.length;
+        var failed = this.errors.values().stream().mapToLong(LongAdder::sum).sum();
+        out.printf("Throughput: %.1f ops/s (%d completed, %d failed, %.2f%% errors)%n",
+                completed / seconds, completed, failed, completed + failed == 0 ? 0 : 100.0 * failed / (completed + failed));
+        printLatencies(out, "HTTP", this.httpLatencies, seconds);
+        printLatencies(out, "CONNECT", this.connectLatencies, seconds);
+        new TreeMap<>(this.errors).forEach((type, count) -> out.printf("Errors: %s x %d%n", type, count.sum()));
+        out.printf("Threads: %d live at end, %d peak (proxy, stubs and clients share this JVM)%n", this.liveThreads, this.peakThreads);
+        if (this.backlogLeft) out.println("Warning: scheduled operations were still queued at the end; the offered rate was not sustained");
+    }
+
+    private static void printLatencies(PrintStream out, String name, long[] latencies, double seconds) {
+        if (latencies.length == 0) return;
+        out.printf("%-8s %.1f ops/s, latency ms p50=%.3f p99=%.3f p999=%.3f max=%.3f%n", name, latencies.length / seconds,
+                LatencyRecorder.percentileMillis(latencies, 50), LatencyRecorder.percentileMillis(latencies, 99),
+                LatencyRecorder.percentileMillis(latencies, 99.9), LatencyRecorder.percentileMillis(latencies, 100));
+    }
+}
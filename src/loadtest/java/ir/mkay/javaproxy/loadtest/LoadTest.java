@@ -0,0 +1,38 @@
+package ir.mkay.javaproxy.loadtest;
+
+import ir.mkay.javaproxy.proxyserver.ProxyServer;
+import ir.mkay.javaproxy.proxyserver.ProxyServerProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
+
+/**
+ * Starts the proxy next to a stub origin and a CONNECT echo target on loopback, loads it and prints a report.
+ * Everything runs in this JVM without network access, so runs on the same machine are comparable, e.g.
+ * {@code concurrency=64 duration=30 connect-ratio=0.2 server.engine=nio}.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        var options = LoadTestOptions.parse(args);
+        try (var origin = new StubOrigin(options.getResponseSize(), options.getOriginLatencyMillis(), options.isOriginKeepAlive());
+             var echo = new EchoTarget();
+             var proxy = new ProxyServer(proxyProperties(options))) {
+            proxy.start();
+            System.out.println("Load test: " + options);
+            var report = new LoadGenerator(options, proxy.getLocalPort(), origin.getPort(), echo.getPort()).run();
+            report.print(System.out);
+        }
+        System.exit(0);
+    }
+
+    private static ProxyServerProperties proxyProperties(LoadTestOptions options) {
+        var properties = new ProxyServerProperties();
+        properties.setPort(0);
+        properties.getMetrics().setPort(0);
+        properties.getMetrics().setJmx(false);
+        new Binder(new MapConfigurationPropertySource(options.getServerProperties()))
+                .bind("server", Bindable.ofInstance(properties));
+        return properties;
+    }
+}
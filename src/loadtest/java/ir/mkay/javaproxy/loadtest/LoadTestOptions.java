@@ -0,0 +1,81 @@
+package ir.mkay.javaproxy.loadtest;
+
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Command line options as {@code key=value} pairs; {@code server.*} keys are handed to the proxy unchanged.
+ */
+@Getter
+public class LoadTestOptions {
+
+    /**
+     * Closed loop: each worker sends its next request as soon as the previous one completes.
+     */
+    private int concurrency = 32;
+
+    /**
+     * Requests per second; above zero switches to open loop, where latency is measured from the scheduled start.
+     */
+    private int rate = 0;
+
+    private int warmupSeconds = 5;
+    private int durationSeconds = 20;
+
+    /**
+     * Share of operations that open a CONNECT tunnel instead of sending a plain HTTP request.
+     */
+    private double connectRatio = 0;
+
+    private int responseSize = 1024;
+    private int originLatencyMillis = 0;
+    private boolean originKeepAlive = true;
+    private boolean clientKeepAlive = true;
+
+    /**
+     * Request/response round trips made through each tunnel, imitating a TLS handshake plus one exchange.
+     */
+    private int tunnelRoundTrips = 3;
+    private int tunnelPayloadSize = 512;
+
+    private final Map<String, String> serverProperties = new LinkedHashMap<>();
+
+    public static LoadTestOptions parse(String[] args) {
+        var options = new LoadTestOptions();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (separator < 0) throw new IllegalStateException("Expected key=value but got: " + arg);
+            var key = arg.substring(arg.startsWith("--") ? 2 : 0, separator);
+            var value = arg.substring(separator + 1);
+            switch (key) {
+                case "concurrency" -> options.concurrency = Integer.parseInt(value);
+                case "rate" -> options.rate = Integer.parseInt(value);
+                case "warmup" -> options.warmupSeconds = Integer.parseInt(value);
+                case "duration" -> options.durationSeconds = Integer.parseInt(value);
+                case "connect-ratio" -> options.connectRatio = Double.parseDouble(value);
+                case "response-size" -> options.responseSize = Integer.parseInt(value);
+                case "origin-latency" -> options.originLatencyMillis = Integer.parseInt(value);
+                case "origin-keep-alive" -> options.originKeepAlive = Boolean.parseBoolean(value);
+                case "client-keep-alive" -> options.clientKeepAlive = Boolean.parseBoolean(value);
+                case "tunnel-round-trips" -> options.tunnelRoundTrips = Integer.parseInt(value);
+                case "tunnel-payload-size" -> options.tunnelPayloadSize = Integer.parseInt(value);
+                default -> {
+                    if (!key.startsWith("server.")) throw new IllegalStateException("Unknown option: " + key);
+                    options.serverProperties.put(key, value);
+                }
+            }
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "concurrency=" + this.concurrency + ", rate=" + (this.rate > 0 ? this.rate + "/s" : "closed loop")
+                + ", duration=" + this.durationSeconds + "s (+" + this.warmupSeconds + "s warmup)"
+                + ", connect-ratio=" + this.connectRatio + ", response-size=" + this.responseSize
+                + ", origin-latency=" + this.originLatencyMillis + "ms, origin-keep-alive=" + this.originKeepAlive
+                + ", client-keep-alive=" + this.clientKeepAlive + ", server=" + this.serverProperties;
+    }
+}
@@ -0,0 +1,137 @@
+package ir.mkay.javaproxy.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares startup time and resident memory of the Spring application against the Spring-free launcher, with
+ * and without its class data sharing archive. Each start is a fresh JVM on the launcher jar built by the
+ * launcher profile, timed from process start to the "Proxy server started" log line, with the resident set
+ * read from /proc right then, so it only runs on Linux. Options are {@code runs=5}, {@code jar=<launcher jar>}
+ * and {@code archive=<jsa>}, both defaulting to what the launcher profile leaves in target. The JVMs run in the
+ * directory of the jar and name it the way the archive was recorded, since the archive is only used for the
+ * class path it was recorded with.
+ */
+public class StartupBenchmark {
+
+    private static final String READY_LINE = "Proxy server started";
+    private static final List<String> PROXY_ARGS = List.of("--server.port=0", "--server.metrics.port=0", "--server.metrics.jmx=false");
+
+    public static void main(String[] args) throws Exception {
+        var runs = 5;
+        Path jar = null;
+        Path archive = null;
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (separator < 0) throw new IllegalStateException("Expected key=value but got: " + arg);
+            var value = arg.substring(separator + 1);
+            switch (arg.substring(0, separator)) {
+                case "runs" -> runs = Integer.parseInt(value);
+                case "jar" -> jar = Path.of(value);
+                case "archive" -> archive = Path.of(value);
+                default -> throw new IllegalStateException("Unknown option: " + arg);
+            }
+        }
+        if (jar == null) jar = findLauncherJar();
+        if (archive == null) archive = Path.of("target", "JavaProxy-launcher.jsa");
+
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var directory = jar.toAbsolutePath().getParent();
+        var jarName = jar.getFileName().toString();
+        var variants = new ArrayList<Variant>();
+        variants.add(new Variant("spring", directory, List.of(java, "-cp", jarName, "ir.mkay.javaproxy.JavaProxyApplication")));
+        variants.add(new Variant("launcher", directory, List.of(java, "-jar", jarName)));
+        if (Files.isRegularFile(archive)) {
+            // -Xshare:on fails the start instead of quietly going without the archive
+            variants.add(new Variant("launcher+cds", directory, List.of(java, "-XX:SharedArchiveFile=" + archive.toAbsolutePath(), "-Xshare:on", "-jar", jarName)));
+        } else {
+            System.out.println("No archive at " + archive + "; build it with mvn -P launcher package to include launcher+cds");
+        }
+
+        System.out.println("Startup benchmark: runs=" + runs + ", jar=" + jar);
+        // Runs are interleaved, so a machine getting busier or quieter affects every variant alike
+        for (int run = 0; run < runs; run++) {
+            for (var variant : variants) variant.measure();
+        }
+        System.out.printf("%-14s %12s %12s %12s%n", "variant", "p50 start", "min start", "p50 rss");
+        for (var variant : variants) {
+            System.out.printf("%-14s %10dms %10dms %10.1fMB%n", variant.name, median(variant.startMillis), min(variant.startMillis),
+                    median(variant.rssKilobytes) / 1024.0);
+        }
+    }
+
+    private static Path findLauncherJar() throws IOException {
+        try (var files = Files.list(Path.of("target"))) {
+            return files.filter(file -> file.getFileName().toString().endsWith("-launcher.jar")).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No launcher jar in target; build it with mvn -P launcher package"));
+        }
+    }
+
+    private static long median(List<Long> values) {
+        var sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+        return sorted[sorted.length / 2];
+    }
+
+    private static long min(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).min().orElse(0);
+    }
+
+    private static class Variant {
+
+        private final String name;
+        private final Path directory;
+        private final List<String> command;
+        private final List<Long> startMillis = new ArrayList<>();
+        private final List<Long> rssKilobytes = new ArrayList<>();
+
+        Variant(String name, Path directory, List<String> command) {
+            this.name = name;
+            this.directory = directory;
+            this.command = new ArrayList<>(command);
+            this.command.addAll(PROXY_ARGS);
+        }
+
+        void measure() throws Exception {
+            var startedAt = System.nanoTime();
+            var process = new ProcessBuilder(this.command).directory(this.directory.toFile()).redirectErrorStream(true).start();
+            try {
+                var ready = new CompletableFuture<Long>();
+                var reader = new Thread(() -> {
+                    try (var in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.contains(READY_LINE)) ready.complete(System.nanoTime());
+                        }
+                    } catch (IOException e) {
+                        ready.completeExceptionally(e);
+                    }
+                    ready.completeExceptionally(new IllegalStateException(this.name + " exited before it started"));
+                });
+                reader.setDaemon(true);
+                reader.start();
+                var readyAt = ready.get(60, TimeUnit.SECONDS);
+                this.startMillis.add(TimeUnit.NANOSECONDS.toMillis(readyAt - startedAt));
+                this.rssKilobytes.add(readRssKilobytes(process.pid()));
+            } finally {
+                process.destroy();
+                if (!process.waitFor(30, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+            }
+        }
+
+        private static long readRssKilobytes(long pid) throws IOException {
+            for (var line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+            throw new IllegalStateException("No VmRSS for process " + pid);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ir.mkay.javaproxy.loadtest;
+
+import ir.mkay.javaproxy.proxyserver.BufferPool;
+import ir.mkay.javaproxy.proxyserver.HttpInputStream;
+import ir.mkay.javaproxy.proxyserver.HttpRequestInfo;
+import ir.mkay.javaproxy.proxyserver.IOUtils;
+import ir.mkay.javaproxy.proxyserver.ProxyServerProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loopback HTTP/1.1 origin answering every request with the same fixed-size body after an optional delay.
+ */
+@Slf4j
+public class StubOrigin implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final BufferPool bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+    private final byte[] response;
+    private final int latencyMillis;
+    private final boolean keepAlive;
+
+    public StubOrigin(int responseSize, int latencyMillis, boolean keepAlive) throws IOException {
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        this.latencyMillis = latencyMillis;
+        this.keepAlive = keepAlive;
+        var header = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: " + responseSize + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.response = Arrays.copyOf(header, header.length + responseSize);
+        Arrays.fill(this.response, header.length, this.response.length, (byte) 'x');
+        this.connections.submit(this::accept);
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        IOUtils.tryToClose(this.serverSocket);
+        this.connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                var socket = this.serverSocket.accept();
+                this.connections.submit(() -> this.serve(socket));
+            } catch (IOException e) {
+                if (!this.serverSocket.isClosed()) log.warn("Stub origin accept failed", e);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        var request = new HttpRequestInfo();
+        try (socket; var input = new HttpInputStream(socket.getInputStream(), this.bufferPool)) {
+            var output = socket.getOutputStream();
+            while (input.readHeader(request) > 0) {
+                if (this.latencyMillis > 0) Thread.sleep(this.latencyMillis);
+                output.write(this.response);
+                output.flush();
+                if (!this.keepAlive || !request.isKeepAlive()) break;
+            }
+        } catch (IOException | InterruptedException ignore) {
+            // Client went away or the harness is shutting down
+        }
+    }
+}
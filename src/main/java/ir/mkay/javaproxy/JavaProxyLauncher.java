@@ -0,0 +1,100 @@
+package ir.mkay.javaproxy;
+
+import ir.mkay.javaproxy.proxyserver.ProxyServer;
+import ir.mkay.javaproxy.proxyserver.ProxyServerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.bind.PropertySourcesPlaceholdersResolver;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.logging.LogFile;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingInitializationContext;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.boot.logging.LoggingSystemProperties;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.PropertiesPropertySource;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Starts the proxy without a Spring application context, for small instances where the time and memory the
+ * context costs matter. Properties are read under the same names and with the same precedence as
+ * {@link JavaProxyApplication} reads them: {@code --name=value} arguments, then system properties, then
+ * environment variables ({@code SERVER_THREADS}), then application.properties in ./config, in the working
+ * directory, in config/ on the classpath and on the classpath. Only Spring Boot's binder and logging setup are
+ * used, which are cheap next to the context.
+ * <p>
+ * {@code --launcher.exit-after-start=true} stops again right after starting, for recording a class data sharing
+ * archive with {@code -XX:ArchiveClassesAtExit}.
+ */
+@Slf4j
+public class JavaProxyLauncher {
+
+    private static final String[] CONFIG_LOCATIONS = {"config/application.properties", "application.properties"};
+
+    private JavaProxyLauncher() {
+        // Static Utility Class
+    }
+
+    public static void main(String[] args) throws IOException {
+        var environment = createEnvironment(args);
+        var binder = new Binder(ConfigurationPropertySources.from(environment.getPropertySources()),
+                new PropertySourcesPlaceholdersResolver(environment));
+        initializeLogging(environment, binder);
+
+        var properties = binder.bind("server", Bindable.of(ProxyServerProperties.class)).orElseGet(ProxyServerProperties::new);
+        var server = new ProxyServer(properties);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "proxy-shutdown"));
+        server.start();
+        log.info("Started in {}ms", ManagementFactory.getRuntimeMXBean().getUptime());
+
+        if (binder.bind("launcher.exit-after-start", Boolean.class).orElse(false)) System.exit(0);
+    }
+
+    private static ConfigurableEnvironment createEnvironment(String[] args) throws IOException {
+        var environment = new StandardEnvironment();
+        var sources = environment.getPropertySources();
+        sources.addFirst(new SimpleCommandLinePropertySource(args));
+        for (var location : CONFIG_LOCATIONS) {
+            var file = Path.of(location);
+            if (Files.isRegularFile(file)) {
+                try (var in = Files.newInputStream(file)) {
+                    sources.addLast(load("file:" + location, in));
+                }
+            }
+        }
+        for (var location : CONFIG_LOCATIONS) {
+            try (var in = JavaProxyLauncher.class.getClassLoader().getResourceAsStream(location)) {
+                if (in != null) sources.addLast(load("classpath:" + location, in));
+            }
+        }
+        return environment;
+    }
+
+    private static PropertiesPropertySource load(String name, InputStream in) throws IOException {
+        var properties = new Properties();
+        properties.load(in);
+        return new PropertiesPropertySource(name, properties);
+    }
+
+    /**
+     * Sets logging up the way Spring Boot does, honouring logging.file.name and the logging.level properties.
+     */
+    private static void initializeLogging(ConfigurableEnvironment environment, Binder binder) {
+        var loggingSystem = LoggingSystem.get(JavaProxyLauncher.class.getClassLoader());
+        var logFile = LogFile.get(environment);
+        new LoggingSystemProperties(environment).apply(logFile);
+        loggingSystem.beforeInitialize();
+        loggingSystem.initialize(new LoggingInitializationContext(environment), null, logFile);
+        binder.bind("logging.level", Bindable.mapOf(String.class, LogLevel.class)).ifBound(levels -> levels.forEach((name, level) ->
+                loggingSystem.setLogLevel(name.equalsIgnoreCase(LoggingSystem.ROOT_LOGGER_NAME) ? null : name, level)));
+    }
+}
@@ -0,0 +1,296 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allow and block lists of destinations, checked for every request before it goes anywhere. A list file has a
+ * rule per line: a domain as {@link DomainTrie} takes it, or an IPv4 or IPv6 address or CIDR range; {@code #}
+ * starts a comment. Ranges apply to requests addressing a literal IP, in any form the JDK takes, and again to
+ * the addresses a name resolves to right before connecting, through {@link #guard}. The allow lists win over the
+ * block lists and the default action. Files are checked for changes periodically and loaded again on a background
+ * thread; requests keep using the rules they found until the new ones replace them in a single write, so a
+ * reload never holds traffic up. Every rule has a hit counter, in arrays updated with atomic increments.
+ */
+@Slf4j
+public class AccessControl implements Closeable {
+
+    // Lines of the hit report, most hit first
+    private static final int MAX_REPORTED_RULES = 1000;
+
+    private final boolean enabled;
+    private final List<Path> allowFiles;
+    private final List<Path> blockFiles;
+    private final boolean denyByDefault;
+    private final byte[] forbiddenResponse;
+    private final ScheduledExecutorService reloader;
+
+    private volatile Rules rules;
+    private List<Object> fileVersions;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+
+    public AccessControl(ProxyServerProperties.Acl properties) {
+        this.enabled = properties.isEnabled();
+        this.allowFiles = properties.getAllowFiles().stream().map(Path::of).toList();
+        this.blockFiles = properties.getBlockFiles().stream().map(Path::of).toList();
+        this.denyByDefault = properties.getDefaultAction() == ProxyServerProperties.AclAction.DENY;
+        var response = new HttpResponseInfo();
+        response.setProtocolVersion("HTTP/1.1");
+        response.setStatus(403);
+        response.setReasonPhrase("Forbidden");
+        response.addHeader(HttpHeaderName.CONTENT_LENGTH, "0");
+        response.addHeader(HttpHeaderName.CONNECTION, "close");
+        response.addHeader(HttpHeaderName.PROXY_AGENT, "JavaProxy");
+        this.forbiddenResponse = response.toByteArray();
+        if (!this.enabled) {
+            this.reloader = null;
+            return;
+        }
+        try {
+            this.fileVersions = this.getFileVersions();
+            this.rules = this.load();
+        } catch (IOException e) {
+            throw new IllegalStateException("Loading ACL files failed", e);
+        }
+        if (properties.getReloadInterval() > 0) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor();
+            this.reloader.scheduleWithFixedDelay(this::reloadIfChanged, properties.getReloadInterval(), properties.getReloadInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            this.reloader = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Whether requests may go to the host, a name or an IP literal as it appears in a URL; counts the hit of
+     * the rule that decided.
+     */
+    public boolean isAllowed(String host) {
+        if (!this.enabled) return true;
+        var rules = this.rules;
+        var name = host.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        var address = CidrSet.parseAddress(name);
+        if (rules.allow.matches(name, address) || !this.denyByDefault && !rules.block.matches(name, address)) {
+            this.allowed.increment();
+            return true;
+        }
+        this.denied.increment();
+        return false;
+    }
+
+    /**
+     * Whether requests for the host may go to the addresses it resolved to. A literal was decided by the ranges
+     * already and a name a domain allow rule let through may go anywhere; otherwise every address has to pass the
+     * range rules as a literal would. Only denials are counted, since the host was counted as allowed already.
+     */
+    public boolean isAllowed(String host, InetAddress[] addresses) {
+        if (!this.enabled) return true;
+        var rules = this.rules;
+        var name = host.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        if (CidrSet.parseAddress(name) != null || rules.allow.domains.match(name) >= 0) return true;
+        for (var address : addresses) {
+            var bytes = address.getAddress();
+            if (rules.allow.matches(null, bytes)) continue;
+            if (this.denyByDefault || rules.block.matches(null, bytes)) {
+                this.denied.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wraps the resolver used for origins, so every address the proxy connects to has passed the range rules;
+     * a name resolving into a blocked range fails with {@link DeniedAddressException}.
+     */
+    public HostResolver guard(HostResolver resolver) {
+        if (!this.enabled) return resolver;
+        return host -> {
+            var addresses = resolver.resolve(host);
+            if (!this.isAllowed(host, addresses)) throw new DeniedAddressException(host);
+            return addresses;
+        };
+    }
+
+    public byte[] getForbiddenResponse() {
+        return this.forbiddenResponse;
+    }
+
+    /**
+     * Loads the files again now, whether they changed or not.
+     */
+    public synchronized void reload() throws IOException {
+        var versions = this.getFileVersions();
+        var rules = this.load();
+        this.rules = rules;
+        this.fileVersions = versions;
+        this.reloads.increment();
+        log.info("ACL reloaded with {} allow and {} block rules", rules.allow.size(), rules.block.size());
+    }
+
+    /**
+     * The rules hit since they were loaded, as lines of hits, list and rule, most hit first.
+     */
+    public void writeRuleHits(StringBuilder out) {
+        if (!this.enabled) return;
+        var rules = this.rules;
+        List<RuleHits> hits = new ArrayList<>();
+        rules.allow.collectHits("allow", hits);
+        rules.block.collectHits("block", hits);
+        hits.sort((a, b) -> Long.compare(b.hits, a.hits));
+        for (var hit : hits.subList(0, Math.min(hits.size(), MAX_REPORTED_RULES))) {
+            out.append(hit.hits).append(' ').append(hit.list).append(' ').append(hit.rule).append('\n');
+        }
+    }
+
+    public int getRuleCount() {
+        var rules = this.rules;
+        return rules == null ? 0 : rules.allow.size() + rules.block.size();
+    }
+
+    public long getAllowed() {
+        return this.allowed.sum();
+    }
+
+    public long getDenied() {
+        return this.denied.sum();
+    }
+
+    public long getReloads() {
+        return this.reloads.sum();
+    }
+
+    public long getReloadFailures() {
+        return this.reloadFailures.sum();
+    }
+
+    @Override
+    public void close() {
+        if (this.reloader != null) this.reloader.shutdownNow();
+    }
+
+    private void reloadIfChanged() {
+        try {
+            if (this.getFileVersions().equals(this.fileVersions)) return;
+            this.reload();
+        } catch (Exception e) {
+            // The rules loaded last stay in place
+            this.reloadFailures.increment();
+            log.warn("Reloading ACL files failed", e);
+        }
+    }
+
+    private List<Object> getFileVersions() throws IOException {
+        List<Object> versions = new ArrayList<>();
+        for (var file : this.allowFiles) versions.add(List.of(Files.getLastModifiedTime(file), Files.size(file)));
+        for (var file : this.blockFiles) versions.add(List.of(Files.getLastModifiedTime(file), Files.size(file)));
+        return versions;
+    }
+
+    private Rules load() throws IOException {
+        return new Rules(RuleList.load(this.allowFiles), RuleList.load(this.blockFiles));
+    }
+
+    /**
+     * A lookup refused because the name resolved to an address the lists deny; answered with 403.
+     */
+    public static class DeniedAddressException extends UnknownHostException {
+
+        private static final long serialVersionUID = 1L;
+
+        public DeniedAddressException(String host) {
+            super(host + " resolves to a denied address");
+        }
+    }
+
+    private record Rules(RuleList allow, RuleList block) {
+    }
+
+    private record RuleHits(long hits, String list, String rule) {
+    }
+
+    private static class RuleList {
+
+        private final DomainTrie domains;
+        private final CidrSet ranges;
+        private final AtomicLongArray domainHits;
+        private final AtomicLongArray rangeHits;
+
+        private RuleList(DomainTrie domains, CidrSet ranges) {
+            this.domains = domains;
+            this.ranges = ranges;
+            this.domainHits = new AtomicLongArray(domains.getMatchLimit());
+            this.rangeHits = new AtomicLongArray(ranges.size());
+        }
+
+        static RuleList load(List<Path> files) throws IOException {
+            var domains = DomainTrie.builder();
+            var ranges = CidrSet.builder();
+            for (var file : files) {
+                try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+                    var lineNumber = new int[1];
+                    lines.forEachOrdered(line -> {
+                        lineNumber[0]++;
+                        var comment = line.indexOf('#');
+                        var rule = (comment > -1 ? line.substring(0, comment) : line).trim();
+                        if (rule.isEmpty()) return;
+                        var added = rule.indexOf(':') > -1 || rule.indexOf('/') > -1 || CidrSet.parseAddress(rule) != null
+                                ? ranges.add(rule)
+                                : domains.add(rule);
+                        if (!added) log.warn("Ignoring invalid ACL rule at {}:{}: {}", file, lineNumber[0], rule);
+                    });
+                }
+            }
+            return new RuleList(domains.build(), ranges.build());
+        }
+
+        /**
+         * Matches the address against the ranges if there is one, the name against the domains otherwise.
+         */
+        boolean matches(String name, byte[] address) {
+            var match = address != null ? this.ranges.match(address) : this.domains.match(name);
+            if (match < 0) return false;
+            (address != null ? this.rangeHits : this.domainHits).incrementAndGet(match);
+            return true;
+        }
+
+        int size() {
+            return this.domains.getRuleCount() + this.ranges.size();
+        }
+
+        void collectHits(String list, List<RuleHits> hits) {
+            for (int i = 0; i < this.domainHits.length(); i++) {
+                var count = this.domainHits.get(i);
+                if (count > 0) hits.add(new RuleHits(count, list, this.domains.getRule(i)));
+            }
+            for (int i = 0; i < this.rangeHits.length(); i++) {
+                var count = this.rangeHits.get(i);
+                if (count > 0) hits.add(new RuleHits(count, list, this.ranges.getRule(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Binary access log. Connections copy their {@link AccessLogEntry} into a bounded lock-free ring and carry on;
+ * a single writer thread drains the ring into memory-mapped segment files of fixed size, starting a new one when
+ * the current one is full and deleting the oldest beyond the configured count. When the writer falls behind,
+ * entries are dropped and counted rather than making connections wait.
+ * Segments are laid out as {@link AccessLogSegment} describes; {@link AccessLogReader} turns them into text or CSV.
+ */
+@Slf4j
+public class AccessLog implements Closeable {
+
+    private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final DateTimeFormatter SEGMENT_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long forceInterval;
+
+    // Vyukov style bounded queue: a slot is free for the producer at position p when its sequence is p and
+    // holds a complete entry for the consumer when its sequence is p + 1
+    private final int mask;
+    private final ByteBuffer slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private MappedByteBuffer segment;
+    private long lastForce = currentTimeMillis();
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public AccessLog(ProxyServerProperties.AccessLog properties) {
+        this.enabled = properties.isEnabled();
+        this.directory = Path.of(properties.getDirectory());
+        this.maxSegments = properties.getMaxSegments();
+        this.forceInterval = properties.getForceInterval();
+        this.segmentSize = AccessLogSegment.HEADER_SIZE + Math.max(1, (properties.getSegmentSize() - AccessLogSegment.HEADER_SIZE) / AccessLogEntry.SIZE) * AccessLogEntry.SIZE;
+        // Rounded up to a power of two so positions map to slots with a mask
+        var capacity = this.enabled ? Integer.highestOneBit(Math.max(2, properties.getRingSize()) - 1) << 1 : 1;
+        this.mask = capacity - 1;
+        this.slots = ByteBuffer.allocate(capacity * AccessLogEntry.SIZE);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) this.sequences.set(i, i);
+        if (this.enabled) {
+            try {
+                Files.createDirectories(this.directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Access log directory cannot be created: " + this.directory, e);
+            }
+            this.writer = new Thread(this::writeLoop, "access-log-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        } else {
+            this.writer = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Copies the entry into the ring; returns false and counts it as dropped if the ring is full.
+     */
+    public boolean append(AccessLogEntry entry) {
+        while (true) {
+            var position = this.tail.get();
+            var index = (int) (position & this.mask);
+            var sequence = this.sequences.get(index);
+            if (sequence < position) {
+                this.dropped.increment();
+                return false;
+            }
+            if (sequence == position && this.tail.compareAndSet(position, position + 1)) {
+                entry.writeTo(this.slots, index * AccessLogEntry.SIZE);
+                this.sequences.set(index, position + 1);
+                return true;
+            }
+        }
+    }
+
+    public long getWritten() {
+        return this.written.sum();
+    }
+
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Stops the writer after it has drained what is in the ring.
+     */
+    @Override
+    public void close() {
+        if (this.writer == null) return;
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (this.running) {
+                if (this.drain() == 0) LockSupport.parkNanos(IDLE_PARK);
+                if (this.segment != null && this.forceInterval > 0 && currentTimeMillis() - this.lastForce >= this.forceInterval) {
+                    this.segment.force();
+                    this.lastForce = currentTimeMillis();
+                }
+            }
+            this.drain();
+            if (this.segment != null) this.segment.force();
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Access log writer stopped; entries are dropped from now on", e);
+        }
+    }
+
+    private int drain() throws IOException {
+        var drained = 0;
+        while (true) {
+            var index = (int) (this.head & this.mask);
+            if (this.sequences.get(index) != this.head + 1) return drained;
+            if (this.segment == null || this.segment.remaining() < AccessLogEntry.SIZE) this.rotate();
+            this.segment.put(this.segment.position(), this.slots, index * AccessLogEntry.SIZE, AccessLogEntry.SIZE);
+            this.segment.position(this.segment.position() + AccessLogEntry.SIZE);
+            this.sequences.set(index, this.head + this.mask + 1);
+            this.head++;
+            this.written.increment();
+            drained++;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (this.segment != null) this.segment.force();
+        var path = this.createSegmentFile();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping outlives the channel and unused space reads back as zeros
+            this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+        }
+        this.segment.putInt(AccessLogSegment.MAGIC).putShort(AccessLogSegment.VERSION).putShort((short) AccessLogEntry.SIZE).putLong(currentTimeMillis());
+        if (log.isDebugEnabled()) log.debug("Access log segment {} started", path);
+        this.deleteOldSegments();
+    }
+
+    /**
+     * Names sort in creation order; a clash within the same millisecond moves on to the next one.
+     */
+    private Path createSegmentFile() throws IOException {
+        for (var millis = currentTimeMillis(); ; millis++) {
+            var path = this.directory.resolve(AccessLogSegment.PREFIX + SEGMENT_NAME_FORMAT.format(Instant.ofEpochMilli(millis)) + AccessLogSegment.SUFFIX);
+            try {
+                return Files.createFile(path);
+            } catch (FileAlreadyExistsException ignore) {
+            }
+        }
+    }
+
+    private void deleteOldSegments() throws IOException {
+        if (this.maxSegments <= 0) return;
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            segments = files.filter(AccessLogSegment::isSegment).sorted().toList();
+        }
+        for (int i = 0; i < segments.size() - this.maxSegments; i++) Files.deleteIfExists(segments.get(i));
+    }
+}
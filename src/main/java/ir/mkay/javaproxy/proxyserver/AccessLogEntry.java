@@ -0,0 +1,190 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * One exchange in the access log, kept by its connection and reused for every exchange on it so recording
+ * allocates nothing. It is stored as a fixed {@link #SIZE} byte record:
+ * <pre>
+ *   0  long   timestamp, epoch millis of the request header
+ *   8  long   bytes received from the client
+ *  16  long   bytes sent to the client
+ *  24  int[5] phase timings in microseconds, in {@link ProxyMetrics.Phase} order, -1 if not reached
+ *  44  short  status, 0 when no response header was seen
+ *  46  char   port
+ *  48  byte   flags, {@link #HTTPS}, {@link #PARENT} and {@link #HTTP2}
+ *  49  byte   client address length, then 16 bytes of address
+ *  66  byte   method length, then 8 bytes of method
+ *  75  byte   host length, then 52 bytes of host
+ * </pre>
+ * Longer methods and hosts are cut off.
+ */
+@Getter
+@Setter
+public class AccessLogEntry {
+
+    public static final int SIZE = 128;
+    public static final int HTTPS = 1;
+    public static final int PARENT = 2;
+    public static final int HTTP2 = 4;
+
+    private static final int PHASES = ProxyMetrics.Phase.values().length;
+    private static final int ADDRESS_OFFSET = 49;
+    private static final int ADDRESS_SIZE = 16;
+    private static final int METHOD_OFFSET = 66;
+    private static final int METHOD_SIZE = 8;
+    private static final int HOST_OFFSET = 75;
+    private static final int HOST_SIZE = SIZE - HOST_OFFSET - 1;
+
+    private long timestamp;
+    private long bytesReceived;
+    private long bytesSent;
+    private final int[] phaseMicros = new int[PHASES];
+    private int status;
+    private int port;
+    private int flags;
+    private byte[] clientAddress = new byte[0];
+    private String method = "";
+    private String host = "";
+
+    public AccessLogEntry() {
+        this.reset();
+    }
+
+    public void reset() {
+        this.timestamp = 0;
+        this.bytesReceived = 0;
+        this.bytesSent = 0;
+        Arrays.fill(this.phaseMicros, -1);
+        this.status = 0;
+        this.port = 0;
+        this.flags = 0;
+        this.method = "";
+        this.host = "";
+    }
+
+    public void setPhase(ProxyMetrics.Phase phase, long nanos) {
+        this.phaseMicros[phase.ordinal()] = (int) Math.min(Integer.MAX_VALUE, nanos / 1000);
+    }
+
+    /**
+     * Microseconds spent in the phase, or -1 if the exchange did not get there.
+     */
+    public int getPhaseMicros(ProxyMetrics.Phase phase) {
+        return this.phaseMicros[phase.ordinal()];
+    }
+
+    public void addFlag(int flag) {
+        this.flags |= flag;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (this.flags & flag) != 0;
+    }
+
+    /**
+     * Writes the record at {@code offset} with absolute puts, so writers of different slots can share the buffer.
+     */
+    public void writeTo(ByteBuffer buffer, int offset) {
+        buffer.putLong(offset, this.timestamp);
+        buffer.putLong(offset + 8, this.bytesReceived);
+        buffer.putLong(offset + 16, this.bytesSent);
+        for (int i = 0; i < PHASES; i++) buffer.putInt(offset + 24 + i * 4, this.phaseMicros[i]);
+        buffer.putShort(offset + 44, (short) this.status);
+        buffer.putChar(offset + 46, (char) this.port);
+        buffer.put(offset + 48, (byte) this.flags);
+        var addressLength = Math.min(this.clientAddress.length, ADDRESS_SIZE);
+        buffer.put(offset + ADDRESS_OFFSET, (byte) addressLength);
+        buffer.put(offset + ADDRESS_OFFSET + 1, this.clientAddress, 0, addressLength);
+        putAscii(buffer, offset + METHOD_OFFSET, this.method, METHOD_SIZE);
+        putAscii(buffer, offset + HOST_OFFSET, this.host, HOST_SIZE);
+    }
+
+    public void readFrom(ByteBuffer buffer, int offset) {
+        this.timestamp = buffer.getLong(offset);
+        this.bytesReceived = buffer.getLong(offset + 8);
+        this.bytesSent = buffer.getLong(offset + 16);
+        for (int i = 0; i < PHASES; i++) this.phaseMicros[i] = buffer.getInt(offset + 24 + i * 4);
+        this.status = buffer.getShort(offset + 44);
+        this.port = buffer.getChar(offset + 46);
+        this.flags = buffer.get(offset + 48);
+        this.clientAddress = new byte[Math.min(buffer.get(offset + ADDRESS_OFFSET), ADDRESS_SIZE)];
+        buffer.get(offset + ADDRESS_OFFSET + 1, this.clientAddress);
+        this.method = getAscii(buffer, offset + METHOD_OFFSET, METHOD_SIZE);
+        this.host = getAscii(buffer, offset + HOST_OFFSET, HOST_SIZE);
+    }
+
+    public String getClientAddressAsString() {
+        try {
+            return this.clientAddress.length > 0 ? InetAddress.getByAddress(this.clientAddress).getHostAddress() : "-";
+        } catch (UnknownHostException e) {
+            return "-";
+        }
+    }
+
+    /**
+     * {@code 2021-10-17T03:33:37.734Z 127.0.0.1 GET example.com:80 200 in=120 out=5120 client_header_read=0.1ms ...}
+     */
+    public String toText() {
+        var text = new StringBuilder(160);
+        text.append(Instant.ofEpochMilli(this.timestamp)).append(' ')
+                .append(this.getClientAddressAsString()).append(' ')
+                .append(this.method).append(' ')
+                .append(this.host).append(':').append(this.port).append(' ')
+                .append(this.status);
+        if (this.hasFlag(PARENT)) text.append(" parent");
+        if (this.hasFlag(HTTP2)) text.append(" http2");
+        text.append(" in=").append(this.bytesReceived).append(" out=").append(this.bytesSent);
+        for (var phase : ProxyMetrics.Phase.values()) {
+            var micros = this.getPhaseMicros(phase);
+            if (micros >= 0) text.append(' ').append(phase.getLabel()).append('=').append(micros / 1000.0).append("ms");
+        }
+        return text.toString();
+    }
+
+    public static String getCsvHeader() {
+        var header = new StringBuilder("timestamp,client,method,host,port,status,https,parent,bytes_in,bytes_out");
+        for (var phase : ProxyMetrics.Phase.values()) header.append(',').append(phase.getLabel()).append("_us");
+        return header.toString();
+    }
+
+    public String toCsv() {
+        var csv = new StringBuilder(128);
+        csv.append(Instant.ofEpochMilli(this.timestamp)).append(',')
+                .append(this.getClientAddressAsString()).append(',')
+                .append(this.method).append(',')
+                .append(this.host).append(',')
+                .append(this.port).append(',')
+                .append(this.status).append(',')
+                .append(this.hasFlag(HTTPS)).append(',')
+                .append(this.hasFlag(PARENT)).append(',')
+                .append(this.bytesReceived).append(',')
+                .append(this.bytesSent);
+        for (var phase : ProxyMetrics.Phase.values()) {
+            var micros = this.getPhaseMicros(phase);
+            csv.append(',');
+            if (micros >= 0) csv.append(micros);
+        }
+        return csv.toString();
+    }
+
+    private static void putAscii(ByteBuffer buffer, int offset, String value, int size) {
+        var length = Math.min(value.length(), size);
+        buffer.put(offset, (byte) length);
+        for (int i = 0; i < length; i++) buffer.put(offset + 1 + i, (byte) value.charAt(i));
+    }
+
+    private static String getAscii(ByteBuffer buffer, int offset, int size) {
+        var length = Math.min(buffer.get(offset), size);
+        var chars = new char[Math.max(length, 0)];
+        for (int i = 0; i < chars.length; i++) chars[i] = (char) (buffer.get(offset + 1 + i) & 0xFF);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,73 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Prints access log segments as text or CSV, oldest first:
+ * {@code java -cp target/classes ir.mkay.javaproxy.proxyserver.AccessLogReader [--csv] <segment or directory>...}
+ * or, from the packaged jar, through the Spring Boot launcher:
+ * {@code java -cp target/JavaProxy-0.0.1-SNAPSHOT.jar -Dloader.main=ir.mkay.javaproxy.proxyserver.AccessLogReader org.springframework.boot.loader.PropertiesLauncher ...}
+ */
+public class AccessLogReader {
+
+    private AccessLogReader() {
+        // Static Utility Class
+    }
+
+    public static void main(String[] args) throws IOException {
+        var csv = false;
+        List<Path> segments = new ArrayList<>();
+        for (var arg : args) {
+            if (arg.equals("--csv")) csv = true;
+            else segments.addAll(findSegments(Path.of(arg)));
+        }
+        if (segments.isEmpty()) {
+            System.err.println("Usage: AccessLogReader [--csv] <segment or directory>...");
+            System.exit(2);
+        }
+        if (csv) System.out.println(AccessLogEntry.getCsvHeader());
+        for (var segment : segments) print(segment, csv, System.out);
+        System.out.flush();
+    }
+
+    static List<Path> findSegments(Path path) throws IOException {
+        if (!Files.isDirectory(path)) return List.of(path);
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(AccessLogSegment::isSegment).sorted().toList();
+        }
+    }
+
+    /**
+     * Prints every entry of the segment and returns how many there were.
+     */
+    static int print(Path segment, boolean csv, PrintStream out) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(segment)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < AccessLogSegment.HEADER_SIZE || buffer.getInt(0) != AccessLogSegment.MAGIC) {
+            throw new IllegalStateException("Not an access log segment: " + segment);
+        }
+        if (buffer.getShort(4) != AccessLogSegment.VERSION || buffer.getShort(6) != AccessLogEntry.SIZE) {
+            throw new IllegalStateException("Unsupported access log segment version: " + segment);
+        }
+        var entry = new AccessLogEntry();
+        var count = 0;
+        for (var offset = AccessLogSegment.HEADER_SIZE; offset + AccessLogEntry.SIZE <= buffer.limit(); offset += AccessLogEntry.SIZE) {
+            // Space the writer has not reached yet is still zero
+            if (buffer.getLong(offset) == 0) break;
+            entry.readFrom(buffer, offset);
+            out.println(csv ? entry.toCsv() : entry.toText());
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,27 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.nio.file.Path;
+
+/**
+ * File format shared by {@link AccessLog} and {@link AccessLogReader}, without anything that needs the proxy's
+ * classpath so the reader runs on its own. A segment starts with a {@link #HEADER_SIZE} byte header, magic,
+ * version, entry size and creation time in epoch millis, followed by {@link AccessLogEntry} records up to the
+ * first one with a zero timestamp.
+ */
+public class AccessLogSegment {
+
+    static final int MAGIC = 0x4A50414C;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final String PREFIX = "access-";
+    static final String SUFFIX = ".bin";
+
+    private AccessLogSegment() {
+        // Static Utility Class
+    }
+
+    static boolean isSegment(Path path) {
+        var name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+}
@@ -0,0 +1,53 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.Closeable;
+
+/**
+ * Pooled buffer for a copy loop. It starts small, which suits interactive traffic, and moves to a large buffer
+ * while reads keep filling it (a bulk transfer), then back once reads stay small again.
+ */
+public class AdaptiveBuffer implements Closeable {
+
+    private static final int GROW_AFTER_FULL_READS = 4;
+    private static final int SHRINK_AFTER_SMALL_READS = 16;
+
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int streak;
+
+    public AdaptiveBuffer(BufferPool pool) {
+        this.pool = pool;
+        this.buffer = pool.acquire(pool.getSmallSize());
+    }
+
+    public byte[] get() {
+        return this.buffer;
+    }
+
+    /**
+     * Reports how many bytes the last read into {@link #get()} returned; may swap the buffer for the next read.
+     */
+    public void record(int read) {
+        if (this.buffer.length < this.pool.getLargeSize()) {
+            this.streak = read == this.buffer.length ? this.streak + 1 : 0;
+            if (this.streak >= GROW_AFTER_FULL_READS) this.swap(this.pool.getLargeSize());
+        } else {
+            this.streak = read < this.pool.getSmallSize() ? this.streak + 1 : 0;
+            if (this.streak >= SHRINK_AFTER_SMALL_READS) this.swap(this.pool.getSmallSize());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.buffer != null) {
+            this.pool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    private void swap(int size) {
+        this.pool.release(this.buffer);
+        this.buffer = this.pool.acquire(size);
+        this.streak = 0;
+    }
+}
@@ -0,0 +1,216 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Decides which connections and tunnels the proxy takes on, so overload turns into quick rejections instead of
+ * every client waiting in an unbounded queue.
+ * The connection limit adapts AIMD style to how long accepted connections wait before a thread or event loop
+ * picks them up: it backs off multiplicatively while that delay is above target and creeps back up by one
+ * while the limit is actually being used.
+ */
+@Slf4j
+public class AdmissionController {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final boolean enabled;
+    @Getter
+    private volatile int minLimit;
+    @Getter
+    private volatile int maxLimit;
+    private volatile int maxTunnels;
+    private volatile long targetDelayNanos;
+    private final long acceptPauseNanos;
+    private final ProxyServerProperties.OverloadAction overloadAction;
+    private final byte[] overloadResponse;
+
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger tunnels = new AtomicInteger();
+    private final AtomicLong lastBackoff;
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rejectedTunnels = new LongAdder();
+
+    public AdmissionController(ProxyServerProperties.Admission properties, int defaultMaxConnections) {
+        this.enabled = properties.isEnabled();
+        this.maxLimit = properties.getMaxConnections() > 0 ? properties.getMaxConnections() : defaultMaxConnections;
+        this.minLimit = Math.min(properties.getMinConnections(), this.maxLimit);
+        this.maxTunnels = properties.getMaxTunnels();
+        this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(properties.getTargetDelay());
+        this.acceptPauseNanos = TimeUnit.MILLISECONDS.toNanos(properties.getAcceptPause());
+        this.overloadAction = properties.getOverloadAction();
+        this.limit = new AtomicInteger(this.maxLimit);
+        this.lastBackoff = new AtomicLong(nanoTime() - this.targetDelayNanos - 1);
+        var response = new HttpResponseInfo();
+        response.setProtocolVersion("HTTP/1.1");
+        response.setStatus(503);
+        response.setReasonPhrase("Service Unavailable");
+        response.addHeader(HttpHeaderName.RETRY_AFTER, String.valueOf(properties.getRetryAfter()));
+        response.addHeader(HttpHeaderName.CONTENT_LENGTH, "0");
+        response.addHeader(HttpHeaderName.CONNECTION, "close");
+        response.addHeader(HttpHeaderName.PROXY_AGENT, "JavaProxy");
+        this.overloadResponse = response.toByteArray();
+    }
+
+    /**
+     * Takes on reloaded limits. A raised maximum raises the current limit by as much, a lowered one caps it;
+     * connections and tunnels already admitted are never turned out.
+     */
+    public synchronized void reconfigure(ProxyServerProperties.Admission properties, int defaultMaxConnections) {
+        var previousMax = this.maxLimit;
+        this.maxLimit = properties.getMaxConnections() > 0 ? properties.getMaxConnections() : defaultMaxConnections;
+        this.minLimit = Math.min(properties.getMinConnections(), this.maxLimit);
+        this.maxTunnels = properties.getMaxTunnels();
+        this.targetDelayNanos = TimeUnit.MILLISECONDS.toNanos(properties.getTargetDelay());
+        var raise = Math.max(0, this.maxLimit - previousMax);
+        this.limit.updateAndGet(l -> Math.max(this.minLimit, Math.min(this.maxLimit, l + raise)));
+    }
+
+    /**
+     * Blocks the accept loop for up to the accept pause while the proxy is at its limit, leaving new clients in
+     * the listen backlog; returns false if there is still no room, in which case the next client gets rejected.
+     */
+    public boolean awaitCapacity() {
+        if (!this.enabled || this.inFlight.get() < this.limit.get()) return true;
+        var deadline = nanoTime() + this.acceptPauseNanos;
+        while (nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            if (this.inFlight.get() < this.limit.get()) return true;
+        }
+        return false;
+    }
+
+    public boolean tryAdmitConnection() {
+        if (!this.enabled) {
+            this.inFlight.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            var current = this.inFlight.get();
+            if (current >= this.limit.get()) {
+                this.rejectedConnections.increment();
+                return false;
+            }
+            if (this.inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    public void connectionFinished() {
+        this.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Feeds the limit with how long an admitted connection waited before being served.
+     */
+    public void recordSchedulingDelay(long nanos) {
+        if (!this.enabled) return;
+        if (nanos > this.targetDelayNanos) {
+            var now = nanoTime();
+            var last = this.lastBackoff.get();
+            // Back off at most once per target delay, so a single burst of slow samples counts once
+            if (now - last > this.targetDelayNanos && this.lastBackoff.compareAndSet(last, now)) {
+                var backedOff = this.limit.updateAndGet(l -> Math.max(this.minLimit, (int) (l * BACKOFF_RATIO)));
+                if (log.isDebugEnabled()) {
+                    log.debug("Scheduling delay {}ms above target; connection limit lowered to {}", nanos / 1_000_000, backedOff);
+                }
+            }
+        } else if (this.inFlight.get() * 2 >= this.limit.get()) {
+            this.limit.updateAndGet(l -> Math.min(this.maxLimit, l + 1));
+        }
+    }
+
+    public boolean tryOpenTunnel() {
+        if (!this.enabled || this.maxTunnels <= 0) {
+            this.tunnels.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            var current = this.tunnels.get();
+            if (current >= this.maxTunnels) {
+                this.rejectedTunnels.increment();
+                return false;
+            }
+            if (this.tunnels.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    public void tunnelClosed() {
+        this.tunnels.decrementAndGet();
+    }
+
+    /**
+     * The 503 sent to rejected clients; it asks them to close and come back after Retry-After seconds.
+     */
+    public byte[] getOverloadResponse() {
+        return this.overloadResponse;
+    }
+
+    /**
+     * Turns away a connection that was accepted but not admitted, without reading anything from it.
+     */
+    public void reject(Socket socket) {
+        try {
+            if (this.overloadAction == ProxyServerProperties.OverloadAction.RESET) {
+                socket.setSoLinger(true, 0);
+            } else {
+                socket.getOutputStream().write(this.overloadResponse);
+                socket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            log.debug("Rejecting connection failed", e);
+        } finally {
+            IOUtils.tryToClose(socket);
+        }
+    }
+
+    public void reject(SocketChannel channel) {
+        try {
+            if (this.overloadAction == ProxyServerProperties.OverloadAction.RESET) {
+                channel.socket().setSoLinger(true, 0);
+            } else {
+                // A fresh socket's send buffer always has room for this, so a single non-blocking write is enough
+                channel.configureBlocking(false);
+                channel.write(ByteBuffer.wrap(this.overloadResponse));
+                channel.shutdownOutput();
+            }
+        } catch (IOException e) {
+            log.debug("Rejecting connection failed", e);
+        } finally {
+            IOUtils.tryToClose(channel);
+        }
+    }
+
+    public int getLimit() {
+        return this.limit.get();
+    }
+
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    public int getTunnels() {
+        return this.tunnels.get();
+    }
+
+    public long getRejectedConnections() {
+        return this.rejectedConnections.sum();
+    }
+
+    public long getRejectedTunnels() {
+        return this.rejectedTunnels.sum();
+    }
+}
@@ -0,0 +1,155 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
+public class BlockingProxyEngine implements ProxyEngine {
+
+    private final ExecutorService executorService;
+    // One pool per acceptor, so the accepting threads never contend over a queue
+    private final ThreadPoolExecutor[] requestHandlers;
+    private final ThreadPoolExecutor requestCopyClientToProxyHandlers;
+    private final ProxyContext context;
+    private final ListenSockets listenSockets;
+    private final TunnelReaper tunnelReaper;
+    private final Set<ProxyRequestHandler> handlers = ConcurrentHashMap.newKeySet();
+
+    public BlockingProxyEngine(ProxyContext context) throws IOException {
+        var properties = context.getProperties();
+        this.context = context;
+        // Channels, so accepted sockets have one too, which cached files are transferred to
+        this.listenSockets = new ListenSockets(properties, context.getMetrics());
+        var shards = this.listenSockets.size();
+        this.executorService = Executors.newFixedThreadPool(shards);
+        // Admission keeps in-flight connections within threads plus accept queue, so the queues are never overrun
+        // as long as the kernel spreads connections evenly over the acceptors
+        var threads = ceilDiv(properties.getThreads(), shards);
+        var acceptQueue = ceilDiv(Math.max(1, properties.getAdmission().getAcceptQueue()), shards);
+        this.requestHandlers = new ThreadPoolExecutor[shards];
+        for (int i = 0; i < shards; i++) {
+            this.requestHandlers[i] = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(acceptQueue));
+        }
+        this.requestCopyClientToProxyHandlers = (ThreadPoolExecutor) Executors.newFixedThreadPool(properties.getThreads());
+        this.tunnelReaper = new TunnelReaper(properties.getTunnels());
+        context.getMetrics().registerGauge("request_handlers_queued", "Accepted connections waiting for a handler thread.",
+                () -> Arrays.stream(this.requestHandlers).mapToInt(handlers -> handlers.getQueue().size()).sum());
+        context.getMetrics().registerGauge("copy_handlers_queued", "Tunnels waiting for a client to proxy copy thread.",
+                () -> this.requestCopyClientToProxyHandlers.getQueue().size());
+        context.getMetrics().registerCounter("tunnels_idle_closed_total", "Tunnels closed after the idle timeout.",
+                this.tunnelReaper::getIdleReaped);
+        context.getMetrics().registerCounter("tunnels_expired_total", "Tunnels closed at the maximum lifetime.",
+                this.tunnelReaper::getLifetimeReaped);
+    }
+
+    @Override
+    public void start() {
+        for (int i = 0; i < this.listenSockets.size(); i++) {
+            var shard = i;
+            var serverSocket = this.listenSockets.get(shard).socket();
+            this.executorService.submit(() -> {
+                while (!Thread.interrupted() && !serverSocket.isClosed()) {
+                    this.accept(shard);
+                }
+            });
+        }
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.listenSockets.getLocalPort();
+    }
+
+    /**
+     * Resizes the handler pools; threads above a lowered size finish the connection they serve before they go.
+     * The accept queues keep their startup length.
+     */
+    @Override
+    public void reconfigure() {
+        var properties = this.context.getProperties();
+        var threads = ceilDiv(properties.getThreads(), this.requestHandlers.length);
+        for (var handlers : this.requestHandlers) resize(handlers, threads);
+        resize(this.requestCopyClientToProxyHandlers, properties.getThreads());
+        this.tunnelReaper.reconfigure(properties.getTunnels());
+    }
+
+    @Override
+    public void stopAccepting() {
+        this.listenSockets.close();
+        this.executorService.shutdown();
+    }
+
+    @Override
+    public void closeIdleConnections() {
+        for (var handler : this.handlers) handler.closeIfIdle();
+    }
+
+    @Override
+    public void close() {
+        for (var handler : this.handlers) handler.abort();
+        this.executorService.shutdown();
+        for (var handlers : this.requestHandlers) handlers.shutdown();
+        this.requestCopyClientToProxyHandlers.shutdown();
+        this.tunnelReaper.close();
+        this.listenSockets.close();
+    }
+
+    private void accept(int shard) {
+        var admission = this.context.getAdmission();
+        var serverSocket = this.listenSockets.get(shard).socket();
+        try {
+            // Pausing leaves new clients in the listen backlog while handlers catch up
+            admission.awaitCapacity();
+            var socket = serverSocket.accept();
+            this.listenSockets.recordAccepted(shard);
+            if (!admission.tryAdmitConnection()) {
+                admission.reject(socket);
+                return;
+            }
+            var handler = new ProxyRequestHandler(socket, this.context, this.requestCopyClientToProxyHandlers, this.tunnelReaper);
+            this.handlers.add(handler);
+            try {
+                this.requestHandlers[shard].execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        this.handlers.remove(handler);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                this.handlers.remove(handler);
+                admission.connectionFinished();
+                admission.reject(socket);
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) log.warn("Error accepting socket", e);
+        }
+    }
+
+    /**
+     * The maximum may never drop below the core size, so which goes first depends on the direction.
+     */
+    private static void resize(ThreadPoolExecutor pool, int threads) {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+}
@@ -0,0 +1,195 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of I/O buffers in two size classes, shared by both engines.
+ * Each thread keeps a few released buffers to itself, so event loops and request threads that release what they
+ * acquired rarely touch the shared deques. Requests above the large size are allocated and dropped as usual.
+ */
+@Slf4j
+public class BufferPool implements Closeable {
+
+    @Getter
+    private final int smallSize;
+    @Getter
+    private final int largeSize;
+    private final boolean direct;
+    private final boolean leakDetection;
+    private final Bucket<byte[]> smallArrays;
+    private final Bucket<byte[]> largeArrays;
+    private final Bucket<ByteBuffer> smallDirectBuffers;
+    private final Bucket<ByteBuffer> largeDirectBuffers;
+    private final Map<Object, Throwable> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder reuses = new LongAdder();
+
+    public BufferPool(ProxyServerProperties.Buffers properties) {
+        this.smallSize = properties.getSmallSize();
+        this.largeSize = Math.max(properties.getLargeSize(), this.smallSize);
+        this.direct = properties.isDirect();
+        this.leakDetection = properties.isLeakDetection() || log.isDebugEnabled();
+        var threadCacheSize = properties.getThreadCacheSize();
+        var maxPooledBytes = properties.getMaxPooledBytes();
+        this.smallArrays = new Bucket<>(this.smallSize, maxPooledBytes, threadCacheSize);
+        this.largeArrays = new Bucket<>(this.largeSize, maxPooledBytes, threadCacheSize);
+        this.smallDirectBuffers = new Bucket<>(this.smallSize, maxPooledBytes, threadCacheSize);
+        this.largeDirectBuffers = new Bucket<>(this.largeSize, maxPooledBytes, threadCacheSize);
+    }
+
+    /**
+     * Returns an array of at least {@code size} bytes; pass it back to {@link #release(byte[])} when done.
+     */
+    public byte[] acquire(int size) {
+        var bucket = size <= this.smallSize ? this.smallArrays : size <= this.largeSize ? this.largeArrays : null;
+        if (bucket == null) return new byte[size];
+        var buffer = bucket.poll();
+        if (buffer == null) {
+            this.allocations.increment();
+            buffer = new byte[bucket.size];
+        } else {
+            this.reuses.increment();
+        }
+        this.track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Arrays that are not one of the pooled sizes are left to the garbage collector.
+     */
+    public void release(byte[] buffer) {
+        var bucket = buffer.length == this.smallSize ? this.smallArrays : buffer.length == this.largeSize ? this.largeArrays : null;
+        if (bucket == null) return;
+        this.untrack(buffer);
+        bucket.offer(buffer);
+    }
+
+    /**
+     * A buffer for channel I/O; direct if so configured, otherwise backed by a pooled array.
+     */
+    public ByteBuffer acquireBuffer(int size) {
+        if (!this.direct) return this.acquireHeapBuffer(size);
+        var bucket = size <= this.smallSize ? this.smallDirectBuffers : size <= this.largeSize ? this.largeDirectBuffers : null;
+        if (bucket == null) return ByteBuffer.allocateDirect(size);
+        var buffer = bucket.poll();
+        if (buffer == null) {
+            this.allocations.increment();
+            buffer = ByteBuffer.allocateDirect(bucket.size);
+        } else {
+            this.reuses.increment();
+        }
+        this.track(buffer);
+        return buffer;
+    }
+
+    /**
+     * A buffer whose {@link ByteBuffer#array()} is accessible, for bytes that are parsed in place.
+     */
+    public ByteBuffer acquireHeapBuffer(int size) {
+        return ByteBuffer.wrap(this.acquire(size));
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            this.release(buffer.array());
+            return;
+        }
+        var capacity = buffer.capacity();
+        var bucket = capacity == this.smallSize ? this.smallDirectBuffers : capacity == this.largeSize ? this.largeDirectBuffers : null;
+        if (bucket == null) return;
+        this.untrack(buffer);
+        buffer.clear();
+        bucket.offer(buffer);
+    }
+
+    public long getAllocations() {
+        return this.allocations.sum();
+    }
+
+    public long getReuses() {
+        return this.reuses.sum();
+    }
+
+    /**
+     * Buffers currently handed out; only counted while leak detection is on.
+     */
+    public int getLeased() {
+        return this.leases.size();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.leases) {
+            for (var acquisition : this.leases.values()) {
+                log.warn("Buffer was never released", acquisition);
+            }
+            this.leases.clear();
+        }
+    }
+
+    private void track(Object buffer) {
+        if (this.leakDetection) {
+            this.leases.put(buffer, new Throwable("Acquired by " + Thread.currentThread().getName()));
+        }
+    }
+
+    private void untrack(Object buffer) {
+        if (this.leakDetection && this.leases.remove(buffer) == null) {
+            log.error("Buffer released twice or not acquired from this pool", new Throwable("Released by " + Thread.currentThread().getName()));
+        }
+    }
+
+    private static class Bucket<T> {
+
+        private final int size;
+        private final int maxPooled;
+        private final int threadCacheSize;
+        private final Deque<T> pooled = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger pooledCount = new AtomicInteger();
+        private final ThreadLocal<Deque<T>> threadCache = ThreadLocal.withInitial(ArrayDeque::new);
+
+        private Bucket(int size, long maxPooledBytes, int threadCacheSize) {
+            this.size = size;
+            this.maxPooled = (int) Math.min(Integer.MAX_VALUE, maxPooledBytes / size);
+            this.threadCacheSize = threadCacheSize;
+        }
+
+        private T poll() {
+            if (this.threadCacheSize > 0) {
+                var buffer = this.threadCache.get().pollFirst();
+                if (buffer != null) return buffer;
+            }
+            var buffer = this.pooled.pollFirst();
+            if (buffer != null) this.pooledCount.decrementAndGet();
+            return buffer;
+        }
+
+        private void offer(T buffer) {
+            if (this.threadCacheSize > 0) {
+                var cache = this.threadCache.get();
+                if (cache.size() < this.threadCacheSize) {
+                    cache.addFirst(buffer);
+                    return;
+                }
+            }
+            if (this.pooledCount.incrementAndGet() > this.maxPooled) {
+                this.pooledCount.decrementAndGet();
+                return;
+            }
+            this.pooled.addFirst(buffer);
+        }
+    }
+}
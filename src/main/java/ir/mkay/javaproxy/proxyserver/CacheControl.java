@@ -0,0 +1,65 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+
+import java.util.Locale;
+
+/**
+ * The Cache-Control directives (RFC 9111 section 5.2) the cache acts on, from every Cache-Control header of a
+ * message; {@code Pragma: no-cache} counts as no-cache for requests without Cache-Control.
+ */
+@Getter
+public class CacheControl {
+
+    private boolean noStore;
+    private boolean noCache;
+    private boolean isPrivate;
+    private boolean isPublic;
+    private boolean mustRevalidate;
+    private long maxAge = -1;
+    private long sMaxAge = -1;
+
+    public static CacheControl parse(HttpExchangeInfo message) {
+        var cacheControl = new CacheControl();
+        var values = message.getHeaderValues(HttpHeaderName.CACHE_CONTROL);
+        if (values == null) {
+            cacheControl.noCache = message.hasHeaderToken(HttpHeaderName.PRAGMA, "no-cache");
+            return cacheControl;
+        }
+        for (var value : values) {
+            for (var directive : value.split(",")) cacheControl.apply(directive.trim().toLowerCase(Locale.ROOT));
+        }
+        return cacheControl;
+    }
+
+    private void apply(String directive) {
+        var separator = directive.indexOf('=');
+        var name = separator < 0 ? directive : directive.substring(0, separator).trim();
+        switch (name) {
+            case "no-store" -> this.noStore = true;
+            // Field-specific no-cache and private are treated as applying to the whole response
+            case "no-cache" -> this.noCache = true;
+            case "private" -> this.isPrivate = true;
+            case "public" -> this.isPublic = true;
+            case "must-revalidate", "proxy-revalidate" -> this.mustRevalidate = true;
+            case "max-age" -> this.maxAge = parseSeconds(directive, separator);
+            case "s-maxage" -> this.sMaxAge = parseSeconds(directive, separator);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * An invalid delta-seconds is taken as zero, so the response is stale rather than fresh forever.
+     */
+    private static long parseSeconds(String directive, int separator) {
+        if (separator < 0) return 0;
+        var value = directive.substring(separator + 1).trim();
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return value.chars().allMatch(Character::isDigit) && !value.isEmpty() ? Integer.MAX_VALUE : 0;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Cached responses bounded by their total size, least recently used first out. A new entry that does not fit
+ * only gets in if the {@link FrequencySketch} has seen it asked for at least as often as each entry it would
+ * push out (TinyLFU admission), so one pass over many cold URLs cannot flush the hot ones.
+ */
+public class CacheTier {
+
+    private final long maxBytes;
+    private final FrequencySketch sketch;
+    private final Consumer<CachedResponse> onRemoved;
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long evictions;
+
+    /**
+     * {@code onRemoved} is called, under the tier's lock, for every entry that leaves it, rejected ones included.
+     */
+    public CacheTier(long maxBytes, FrequencySketch sketch, Consumer<CachedResponse> onRemoved) {
+        this.maxBytes = maxBytes;
+        this.sketch = sketch;
+        this.onRemoved = onRemoved;
+    }
+
+    public synchronized CachedResponse get(String key) {
+        return this.entries.get(key);
+    }
+
+    /**
+     * Adds or replaces the entry; returns false if it was not admitted.
+     */
+    public synchronized boolean put(CachedResponse entry) {
+        var size = entry.getSize();
+        if (size > this.maxBytes) {
+            this.onRemoved.accept(entry);
+            return false;
+        }
+        this.remove(entry.getKey(), entry);
+        var iterator = this.entries.values().iterator();
+        while (this.bytes + size > this.maxBytes) {
+            var victim = iterator.next();
+            if (this.frequency(entry.getKey()) < this.frequency(victim.getKey())) {
+                this.onRemoved.accept(entry);
+                return false;
+            }
+            iterator.remove();
+            this.bytes -= victim.getSize();
+            this.evictions++;
+            this.onRemoved.accept(victim);
+        }
+        this.entries.put(entry.getKey(), entry);
+        this.bytes += size;
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        this.remove(key, null);
+    }
+
+    public synchronized void clear() {
+        this.entries.values().forEach(this.onRemoved);
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    public synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * A replacement sharing the old entry's body, as after revalidation, keeps the body.
+     */
+    private void remove(String key, CachedResponse replacement) {
+        var old = this.entries.remove(key);
+        if (old == null) return;
+        this.bytes -= old.getSize();
+        if (replacement == null || old.getBodyFile() == null || !old.getBodyFile().equals(replacement.getBodyFile())) {
+            this.onRemoved.accept(old);
+        }
+    }
+
+    private int frequency(String key) {
+        synchronized (this.sketch) {
+            return this.sketch.frequency(key);
+        }
+    }
+}
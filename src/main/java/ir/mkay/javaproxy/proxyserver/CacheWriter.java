@@ -0,0 +1,118 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Passes a response body on to the client and keeps a copy of it, in memory or in a file of the disk tier, which
+ * {@link #commit()} turns into a cache entry once the whole body went through. A failure to keep the copy only
+ * drops the copy; the client is still served.
+ */
+@Slf4j
+public class CacheWriter extends FilterOutputStream {
+
+    private final HttpCache cache;
+    private final String key;
+    private final HttpRequestInfo request;
+    private final HttpResponseInfo response;
+    private final long requestTime;
+    private final long responseTime;
+    private final long bodyLength;
+    private byte[] body;
+    private Path bodyFile;
+    private FileChannel bodyChannel;
+    private long captured;
+    private boolean failed;
+    private boolean finished;
+
+    CacheWriter(OutputStream out, HttpCache cache, String key, HttpRequestInfo request, HttpResponseInfo response,
+                long requestTime, long responseTime, long bodyLength, Path bodyFile) throws IOException {
+        super(out);
+        this.cache = cache;
+        this.key = key;
+        this.request = request;
+        this.response = response;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.bodyLength = bodyLength;
+        if (bodyFile == null) {
+            this.body = new byte[(int) bodyLength];
+        } else {
+            this.bodyFile = bodyFile;
+            this.bodyChannel = FileChannel.open(bodyFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.out.write(b, off, len);
+        if (this.failed) return;
+        if (this.captured + len > this.bodyLength) {
+            this.failed = true;
+            return;
+        }
+        if (this.body != null) {
+            System.arraycopy(b, off, this.body, (int) this.captured, len);
+        } else {
+            try {
+                var source = ByteBuffer.wrap(b, off, len);
+                while (source.hasRemaining()) this.bodyChannel.write(source);
+            } catch (IOException e) {
+                log.warn("Failed to write cache file {}; {}", this.bodyFile, e.getMessage());
+                this.failed = true;
+            }
+        }
+        this.captured += len;
+    }
+
+    /**
+     * Stores the copy if it is complete; the stream stays open, it belongs to the client connection.
+     */
+    public void commit() {
+        if (this.finished) return;
+        this.finished = true;
+        this.closeBodyChannel();
+        if (this.failed || this.captured != this.bodyLength) {
+            this.deleteBodyFile();
+            return;
+        }
+        var entry = CachedResponse.create(this.key, this.request, this.response, this.requestTime, this.responseTime,
+                this.bodyFile == null ? this.body : null, this.bodyFile, this.bodyLength);
+        this.cache.store(entry);
+    }
+
+    /**
+     * Drops the copy, for a body that did not go through in full.
+     */
+    public void abort() {
+        if (this.finished) return;
+        this.finished = true;
+        this.closeBodyChannel();
+        this.deleteBodyFile();
+    }
+
+    @Override
+    public void close() {
+        this.abort();
+    }
+
+    private void closeBodyChannel() {
+        IOUtils.tryToClose(this.bodyChannel);
+    }
+
+    private void deleteBodyFile() {
+        if (this.bodyFile != null) HttpCache.deleteBodyFile(this.bodyFile);
+    }
+}
@@ -0,0 +1,190 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A stored response with what is needed to decide whether it may be served: its age and freshness lifetime as
+ * RFC 9111 section 4.2 computes them, its validators and the request header values it varies on. The body is
+ * either in memory or in a file of the disk tier. Instances never change; revalidation replaces them.
+ */
+@Getter
+public class CachedResponse {
+
+    private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000L;
+    private static final HttpHeaderName[] HOP_BY_HOP = {
+            HttpHeaderName.CONNECTION, HttpHeaderName.KEEP_ALIVE, HttpHeaderName.PROXY_CONNECTION,
+            HttpHeaderName.TRANSFER_ENCODING, HttpHeaderName.TE, HttpHeaderName.TRAILER, HttpHeaderName.UPGRADE, HttpHeaderName.AGE
+    };
+    private static final HttpHeaderName[] UPDATED_BY_304 = {
+            HttpHeaderName.CACHE_CONTROL, HttpHeaderName.DATE, HttpHeaderName.ETAG, HttpHeaderName.EXPIRES, HttpHeaderName.LAST_MODIFIED
+    };
+
+    private final String key;
+    private final byte[] header;
+    private final int status;
+    private final long bodyLength;
+    private final byte[] body;
+    private final Path bodyFile;
+    private final String[] varyNames;
+    private final String[] varyValues;
+    private final String etag;
+    private final String lastModified;
+    private final long freshnessLifetime;
+    private final long responseTime;
+    private final long correctedInitialAge;
+
+    private CachedResponse(String key, HttpRequestInfo request, HttpResponseInfo response, long requestTime, long responseTime,
+                           byte[] body, Path bodyFile, long bodyLength) {
+        this.key = key;
+        var stored = copy(response);
+        for (var name : HOP_BY_HOP) stored.removeHeader(name);
+        this.header = stored.toByteArray();
+        this.status = response.getStatus();
+        this.body = body;
+        this.bodyFile = bodyFile;
+        this.bodyLength = bodyLength;
+        this.varyNames = getVaryNames(response);
+        this.varyValues = new String[this.varyNames.length];
+        for (int i = 0; i < this.varyNames.length; i++) this.varyValues[i] = getJoinedValues(request, this.varyNames[i]);
+        this.etag = response.getHeaderFirstValue(HttpHeaderName.ETAG);
+        this.lastModified = response.getHeaderFirstValue(HttpHeaderName.LAST_MODIFIED);
+
+        this.responseTime = responseTime;
+        var date = parseDate(response.getHeaderFirstValue(HttpHeaderName.DATE));
+        var dateValue = date > -1 ? date : responseTime;
+        var apparentAge = Math.max(0, responseTime - dateValue);
+        var ageValue = parseAge(response.getHeaderFirstValue(HttpHeaderName.AGE));
+        this.correctedInitialAge = Math.max(apparentAge, ageValue + (responseTime - requestTime));
+        this.freshnessLifetime = getFreshnessLifetime(response, dateValue);
+    }
+
+    public static CachedResponse create(String key, HttpRequestInfo request, HttpResponseInfo response, long requestTime,
+                                        long responseTime, byte[] body, Path bodyFile, long bodyLength) {
+        return new CachedResponse(key, request, response, requestTime, responseTime, body, bodyFile, bodyLength);
+    }
+
+    /**
+     * The same body with the header fields a 304 Not Modified carries brought up to date (section 4.3.4).
+     */
+    public CachedResponse revalidated(HttpRequestInfo request, HttpResponseInfo notModified, long requestTime, long responseTime) {
+        var merged = this.toResponseInfo(new HttpResponseInfo());
+        for (var name : UPDATED_BY_304) {
+            var values = notModified.getHeaderValues(name);
+            if (values == null) continue;
+            merged.removeHeader(name);
+            for (var value : values) merged.addHeader(name, value);
+        }
+        return new CachedResponse(this.key, request, merged, requestTime, responseTime, this.body, this.bodyFile, this.bodyLength);
+    }
+
+    public long getCurrentAge(long now) {
+        return this.correctedInitialAge + Math.max(0, now - this.responseTime);
+    }
+
+    public boolean isFresh(long now) {
+        return this.freshnessLifetime > this.getCurrentAge(now);
+    }
+
+    public boolean hasValidator() {
+        return this.etag != null || this.lastModified != null;
+    }
+
+    public boolean isOnDisk() {
+        return this.bodyFile != null;
+    }
+
+    /**
+     * Bytes the entry takes in its tier, roughly; the header counts too since small responses are mostly header.
+     */
+    public long getSize() {
+        return this.header.length + this.bodyLength;
+    }
+
+    /**
+     * Whether the request has the same values as the one that got this response for every header it varies on.
+     */
+    public boolean matchesVary(HttpRequestInfo request) {
+        for (int i = 0; i < this.varyNames.length; i++) {
+            if (!Objects.equals(this.varyValues[i], getJoinedValues(request, this.varyNames[i]))) return false;
+        }
+        return true;
+    }
+
+    public HttpResponseInfo toResponseInfo(HttpResponseInfo target) {
+        var parser = new HttpHeaderParser();
+        var length = parser.parse(this.header, 0, this.header.length);
+        target.load(this.header, 0, length, parser);
+        return target;
+    }
+
+    static boolean isVaryingOnEverything(HttpResponseInfo response) {
+        return response.hasHeaderToken(HttpHeaderName.VARY, "*");
+    }
+
+    private static HttpResponseInfo copy(HttpResponseInfo response) {
+        var bytes = response.toByteArray();
+        var parser = new HttpHeaderParser();
+        var copy = new HttpResponseInfo();
+        copy.load(bytes, 0, parser.parse(bytes, 0, bytes.length), parser);
+        return copy;
+    }
+
+    private static long getFreshnessLifetime(HttpResponseInfo response, long dateValue) {
+        var cacheControl = CacheControl.parse(response);
+        if (cacheControl.isNoCache()) return 0;
+        if (cacheControl.getSMaxAge() > -1) return cacheControl.getSMaxAge() * 1000;
+        if (cacheControl.getMaxAge() > -1) return cacheControl.getMaxAge() * 1000;
+        var expires = response.getHeaderFirstValue(HttpHeaderName.EXPIRES);
+        // An invalid Expires means already expired
+        if (expires != null) return Math.max(0, parseDate(expires) - dateValue);
+        var lastModified = parseDate(response.getHeaderFirstValue(HttpHeaderName.LAST_MODIFIED));
+        if (lastModified > -1 && HttpCache.isHeuristicallyCacheable(response.getStatus())) {
+            return Math.min(MAX_HEURISTIC_FRESHNESS, Math.max(0, dateValue - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    private static String[] getVaryNames(HttpResponseInfo response) {
+        var values = response.getHeaderValues(HttpHeaderName.VARY);
+        if (values == null) return new String[0];
+        return values.stream()
+                .flatMap(value -> java.util.Arrays.stream(value.split(",")))
+                .map(name -> name.trim().toLowerCase(Locale.ROOT))
+                .filter(name -> !name.isEmpty())
+                .distinct()
+                .toArray(String[]::new);
+    }
+
+    private static String getJoinedValues(HttpRequestInfo request, String name) {
+        var values = request.getHeaderValues(name);
+        return values != null ? String.join(",", values) : null;
+    }
+
+    /**
+     * Epoch millis of an HTTP-date, or -1 if it is missing or invalid.
+     */
+    static long parseDate(String value) {
+        if (value == null) return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static long parseAge(String value) {
+        if (value == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Gzip-compresses what is written and sends it on as the chunks of a chunked body. Each chunk is assembled in
+ * one pooled buffer, size line and CRLF included, and goes out in a single write. {@link #flush()} pushes out
+ * what was compressed so far, so a slow origin still reaches the client as it sends; {@link #finish()} ends the
+ * gzip member and the body. Closing returns the {@link Deflater} to its pool and leaves the underlying stream
+ * open, it belongs to the connection.
+ */
+public class ChunkedGzipOutputStream extends FilterOutputStream {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // Chunk sizes are written with leading zeros, so the size line always takes the same room
+    private static final int SIZE_LINE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    private final ResponseCompressor compressor;
+    private final BufferPool bufferPool;
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private byte[] buffer;
+    private final int limit;
+    private int position = SIZE_LINE;
+    private long bytesIn;
+    private long bytesOut;
+    private long nanos;
+    private boolean pendingFlush;
+
+    ChunkedGzipOutputStream(OutputStream out, ResponseCompressor compressor, Deflater deflater, BufferPool bufferPool) {
+        super(out);
+        this.compressor = compressor;
+        this.deflater = deflater;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(bufferPool.getLargeSize());
+        this.limit = this.buffer.length - 2;
+        System.arraycopy(GZIP_HEADER, 0, this.buffer, this.position, GZIP_HEADER.length);
+        this.position += GZIP_HEADER.length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        var start = nanoTime();
+        this.crc.update(b, off, len);
+        this.deflater.setInput(b, off, len);
+        while (!this.deflater.needsInput()) this.deflate(Deflater.NO_FLUSH);
+        this.nanos += nanoTime() - start;
+        this.bytesIn += len;
+        this.pendingFlush = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (this.pendingFlush) {
+            var start = nanoTime();
+            // Output that exactly fills the buffer may have more behind it
+            while (this.deflate(Deflater.SYNC_FLUSH)) ;
+            this.nanos += nanoTime() - start;
+            this.writeChunk();
+            this.pendingFlush = false;
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Writes the rest of the compressed data, the gzip trailer and the last chunk.
+     */
+    public void finish() throws IOException {
+        var start = nanoTime();
+        this.deflater.finish();
+        while (!this.deflater.finished()) this.deflate(Deflater.NO_FLUSH);
+        this.nanos += nanoTime() - start;
+        if (this.limit - this.position < TRAILER_SIZE) this.writeChunk();
+        this.putIntLE((int) this.crc.getValue());
+        this.putIntLE((int) this.bytesIn);
+        this.writeChunk();
+        this.out.write(LAST_CHUNK);
+        this.out.flush();
+    }
+
+    @Override
+    public void close() {
+        if (this.deflater == null) return;
+        this.compressor.release(this.deflater, this.bytesIn, this.bytesOut, this.nanos);
+        this.bufferPool.release(this.buffer);
+        this.deflater = null;
+        this.buffer = null;
+    }
+
+    /**
+     * Compresses into the buffer, sending it as a chunk when full, and returns whether it filled the buffer.
+     */
+    private boolean deflate(int flush) throws IOException {
+        var space = this.limit - this.position;
+        var written = this.deflater.deflate(this.buffer, this.position, space, flush);
+        this.position += written;
+        if (written < space) return false;
+        this.writeChunk();
+        return true;
+    }
+
+    private void writeChunk() throws IOException {
+        var size = this.position - SIZE_LINE;
+        if (size == 0) return;
+        for (int i = 7; i >= 0; i--) this.buffer[7 - i] = HEX[(size >>> (i * 4)) & 0xf];
+        this.buffer[8] = '\r';
+        this.buffer[9] = '\n';
+        this.buffer[this.position] = '\r';
+        this.buffer[this.position + 1] = '\n';
+        this.out.write(this.buffer, 0, this.position + 2);
+        this.bytesOut += size;
+        this.position = SIZE_LINE;
+    }
+
+    private void putIntLE(int value) {
+        for (int i = 0; i < 4; i++) this.buffer[this.position++] = (byte) (value >>> (i * 8));
+    }
+}
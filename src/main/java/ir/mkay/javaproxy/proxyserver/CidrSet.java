@@ -0,0 +1,229 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Immutable set of IPv4 and IPv6 address ranges. IPv4 is kept as IPv4-mapped IPv6, so every range is a prefix
+ * of a 128-bit key. The trie over those keys is stored level by level: for each prefix length present there is
+ * a sorted array of the prefixes of that length, 16 bytes each, and a lookup masks the address to each length,
+ * longest first, and binary searches its level. Lists use a handful of lengths, so that is a few searches.
+ * Matches are indexes into the concatenated levels, which {@link #getRule} turns back into the range.
+ */
+public class CidrSet {
+
+    private static final long IPV4_MAPPED = 0xffff00000000L;
+
+    // Prefix lengths present, longest first, and for each its keys as high, low pairs sorted unsigned
+    private final int[] lengths;
+    private final long[][] keys;
+    private final int[] firstMatch;
+    private final int size;
+
+    private CidrSet(int[] lengths, long[][] keys) {
+        this.lengths = lengths;
+        this.keys = keys;
+        this.firstMatch = new int[lengths.length];
+        int size = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            this.firstMatch[i] = size;
+            size += keys[i].length / 2;
+        }
+        this.size = size;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The longest range containing the address, 4 or 16 bytes, or -1.
+     */
+    public int match(byte[] address) {
+        long high;
+        long low;
+        if (address.length == 4) {
+            high = 0;
+            low = IPV4_MAPPED | (toLong(address, 0, 4) & 0xffffffffL);
+        } else {
+            high = toLong(address, 0, 8);
+            low = toLong(address, 8, 8);
+        }
+        for (int i = 0; i < this.lengths.length; i++) {
+            var length = this.lengths[i];
+            var index = search(this.keys[i], high & mask(length), low & mask(length - 64));
+            if (index >= 0) return this.firstMatch[i] + index;
+        }
+        return -1;
+    }
+
+    public String getRule(int match) {
+        var level = 0;
+        while (level + 1 < this.lengths.length && this.firstMatch[level + 1] <= match) level++;
+        var index = (match - this.firstMatch[level]) * 2;
+        var high = this.keys[level][index];
+        var low = this.keys[level][index + 1];
+        var length = this.lengths[level];
+        var bytes = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+        }
+        try {
+            if (high == 0 && (low & ~0xffffffffL) == IPV4_MAPPED && length >= 96) {
+                return InetAddress.getByAddress(Arrays.copyOfRange(bytes, 12, 16)).getHostAddress() + "/" + (length - 96);
+            }
+            return InetAddress.getByAddress(bytes).getHostAddress() + "/" + length;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * The address of an IPv4 or IPv6 literal, brackets allowed, or null if the string is something else; never
+     * does a name lookup. IPv4 is taken in every form {@link InetAddress} takes without a lookup, so the forms
+     * that address the same host, such as {@code 127.1} and {@code 2130706433}, match the same ranges.
+     */
+    public static byte[] parseAddress(String literal) {
+        if (literal.startsWith("[") && literal.endsWith("]")) literal = literal.substring(1, literal.length() - 1);
+        if (literal.indexOf(':') > -1) {
+            try {
+                // With a colon in it, the string can only be taken as a literal
+                return InetAddress.getByName(literal).getAddress();
+            } catch (UnknownHostException | SecurityException e) {
+                return null;
+            }
+        }
+        return parseIpv4(literal);
+    }
+
+    /**
+     * One to four decimal parts, where the last part fills the bytes the others leave, as {@code 10.258} is
+     * {@code 10.0.1.2}.
+     */
+    private static byte[] parseIpv4(String literal) {
+        var parts = new long[4];
+        int count = 0;
+        long value = -1;
+        for (int i = 0; i <= literal.length(); i++) {
+            var c = i < literal.length() ? literal.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || count == 4) return null;
+                parts[count++] = value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = value < 0 ? c - '0' : value * 10 + c - '0';
+                if (value > 0xffffffffL) return null;
+            } else {
+                return null;
+            }
+        }
+        long address = 0;
+        for (int i = 0; i < count - 1; i++) {
+            if (parts[i] > 255) return null;
+            address |= parts[i] << (24 - i * 8);
+        }
+        var last = parts[count - 1];
+        if (last >= 1L << (8 * (5 - count))) return null;
+        address |= last;
+        return new byte[]{(byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address};
+    }
+
+    private static int search(long[] keys, long high, long low) {
+        int lowIndex = 0;
+        int highIndex = keys.length / 2 - 1;
+        while (lowIndex <= highIndex) {
+            var middle = (lowIndex + highIndex) >>> 1;
+            var compared = compare(keys[middle * 2], keys[middle * 2 + 1], high, low);
+            if (compared < 0) {
+                lowIndex = middle + 1;
+            } else if (compared > 0) {
+                highIndex = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2) {
+        var compared = Long.compareUnsigned(high1, high2);
+        return compared != 0 ? compared : Long.compareUnsigned(low1, low2);
+    }
+
+    /**
+     * The first {@code bits} bits of a long set, none for zero or less.
+     */
+    private static long mask(int bits) {
+        return bits <= 0 ? 0 : bits >= 64 ? -1L : -1L << (64 - bits);
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) value = value << 8 | (bytes[i] & 0xff);
+        return value;
+    }
+
+    public static class Builder {
+
+        private final TreeMap<Integer, List<long[]>> levels = new TreeMap<>(Comparator.reverseOrder());
+
+        /**
+         * Adds an address or {@code address/length} range and returns false if it is not one.
+         */
+        public boolean add(String range) {
+            range = range.trim();
+            var slash = range.indexOf('/');
+            var address = parseAddress(slash > -1 ? range.substring(0, slash) : range);
+            if (address == null) return false;
+            int length;
+            try {
+                length = slash > -1 ? Integer.parseInt(range.substring(slash + 1)) : address.length * 8;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (length < 0 || length > address.length * 8) return false;
+            long high;
+            long low;
+            if (address.length == 4) {
+                length += 96;
+                high = 0;
+                low = IPV4_MAPPED | (toLong(address, 0, 4) & 0xffffffffL);
+            } else {
+                high = toLong(address, 0, 8);
+                low = toLong(address, 8, 8);
+            }
+            this.levels.computeIfAbsent(length, l -> new ArrayList<>()).add(new long[]{high & mask(length), low & mask(length - 64)});
+            return true;
+        }
+
+        public CidrSet build() {
+            var lengths = new int[this.levels.size()];
+            var keys = new long[this.levels.size()][];
+            int level = 0;
+            for (var entry : this.levels.entrySet()) {
+                var prefixes = entry.getValue();
+                prefixes.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+                var flat = new long[prefixes.size() * 2];
+                int size = 0;
+                for (var prefix : prefixes) {
+                    if (size > 0 && flat[size - 2] == prefix[0] && flat[size - 1] == prefix[1]) continue;
+                    flat[size++] = prefix[0];
+                    flat[size++] = prefix[1];
+                }
+                lengths[level] = entry.getKey();
+                keys[level++] = Arrays.copyOf(flat, size);
+            }
+            return new CidrSet(lengths, keys);
+        }
+    }
+}
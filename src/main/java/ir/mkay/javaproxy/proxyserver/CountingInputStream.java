@@ -0,0 +1,56 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds every byte read to a shared counter.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private final LongAdder counter;
+    // Only ever updated by the one thread using the stream at a time
+    private long count;
+
+    public CountingInputStream(InputStream in, LongAdder counter) {
+        super(in);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = this.in.read();
+        if (b > -1) {
+            this.counter.increment();
+            this.count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        var read = this.in.read(b, off, len);
+        if (read > 0) {
+            this.counter.add(read);
+            this.count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var skipped = this.in.skip(n);
+        this.counter.add(skipped);
+        this.count += skipped;
+        return skipped;
+    }
+
+    /**
+     * Bytes read through this stream alone.
+     */
+    public long getCount() {
+        return this.count;
+    }
+}
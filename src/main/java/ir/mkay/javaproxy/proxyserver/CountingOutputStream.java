@@ -0,0 +1,51 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adds every byte written to a shared counter.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private final LongAdder counter;
+    // Only ever updated by the one thread using the stream at a time
+    private long count;
+
+    public CountingOutputStream(OutputStream out, LongAdder counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.out.write(b);
+        this.counter.increment();
+        this.count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would write byte by byte
+        this.out.write(b, off, len);
+        this.counter.add(len);
+        this.count += len;
+    }
+
+    /**
+     * Counts bytes written to the underlying socket some other way, such as a file transfer.
+     */
+    public void count(long bytes) {
+        this.counter.add(bytes);
+        this.count += bytes;
+    }
+
+    /**
+     * Bytes written through this stream alone.
+     */
+    public long getCount() {
+        return this.count;
+    }
+}
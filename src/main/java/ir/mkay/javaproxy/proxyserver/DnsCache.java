@@ -0,0 +1,230 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+
+/**
+ * Caches results of a {@link HostResolver}, failures included.
+ * Concurrent misses for the same host share a single lookup, and entries that are still being used
+ * shortly before they expire are refreshed in the background so hot hosts never wait on DNS.
+ */
+@Slf4j
+public class DnsCache implements HostResolver, Closeable {
+
+    private final HostResolver resolver;
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final long refreshAhead;
+    private final int maxSize;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+    private final ExecutorService refreshers;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+
+    public DnsCache(HostResolver resolver, ProxyServerProperties.Dns properties) {
+        this.resolver = resolver;
+        this.positiveTtl = properties.getPositiveTtl();
+        this.negativeTtl = properties.getNegativeTtl();
+        this.refreshAhead = properties.getRefreshAhead();
+        this.maxSize = properties.getMaxSize();
+        this.refreshers = Executors.newFixedThreadPool(properties.getRefreshThreads());
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        var key = host.toLowerCase(Locale.ROOT);
+        var now = currentTimeMillis();
+        var entry = this.entries.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            entry.lastAccess = now;
+            if (entry.addresses == null) {
+                this.negativeHits.increment();
+            } else {
+                this.hits.increment();
+                if (entry.expiresAt - now < this.refreshAhead) this.refreshInBackground(key, entry);
+            }
+            return entry.get(host);
+        }
+        this.misses.increment();
+        return this.lookup(key).get(host);
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return this.negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getRefreshes() {
+        return this.refreshes.sum();
+    }
+
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    public int getSize() {
+        return this.entries.size();
+    }
+
+    /**
+     * Time the resolver took, refreshes included; answers from the cache are not in it.
+     */
+    public LatencyHistogram getLookupLatency() {
+        return this.lookupLatency;
+    }
+
+    @Override
+    public void close() {
+        this.refreshers.shutdownNow();
+    }
+
+    /**
+     * Only the first caller for a host queries the resolver, everyone else waits for its result.
+     */
+    private Entry lookup(String key) throws UnknownHostException {
+        var lookup = new CompletableFuture<Entry>();
+        var inFlight = this.lookups.putIfAbsent(key, lookup);
+        if (inFlight != null) return this.await(inFlight);
+        try {
+            var entry = this.query(key);
+            lookup.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.lookups.remove(key, lookup);
+        }
+    }
+
+    private Entry await(CompletableFuture<Entry> lookup) throws UnknownHostException {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while waiting for lookup");
+        } catch (ExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    private Entry query(String key) {
+        var entry = this.fetch(key);
+        this.publish(key, entry);
+        return entry;
+    }
+
+    private Entry fetch(String key) {
+        var start = nanoTime();
+        Entry entry;
+        try {
+            entry = new Entry(this.resolver.resolve(key), currentTimeMillis() + this.positiveTtl);
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, currentTimeMillis() + this.negativeTtl);
+        }
+        this.lookupLatency.record(nanoTime() - start);
+        return entry;
+    }
+
+    private void publish(String key, Entry entry) {
+        if (this.entries.put(key, entry) == null && this.entries.size() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    /**
+     * Only a successful refresh replaces the entry; after a failed one the last good answer is served until it
+     * expires, and the next hit tries again.
+     */
+    private void refreshInBackground(String key, Entry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) return;
+        try {
+            this.refreshers.execute(() -> {
+                try {
+                    this.refreshes.increment();
+                    var refreshed = this.fetch(key);
+                    if (refreshed.addresses != null) this.publish(key, refreshed);
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Drops expired entries, then the least recently used ones, down to 90% of the limit so eviction stays rare.
+     */
+    private synchronized void evict() {
+        if (this.entries.size() <= this.maxSize) return;
+        var now = currentTimeMillis();
+        this.entries.entrySet().removeIf(e -> {
+            if (now < e.getValue().expiresAt) return false;
+            this.evictions.increment();
+            return true;
+        });
+        var excess = this.entries.size() - this.maxSize * 9 / 10;
+        if (excess <= 0) return;
+        this.entries.entrySet().stream()
+                .sorted(Comparator.comparingLong(e -> e.getValue().lastAccess))
+                .limit(excess)
+                .map(Map.Entry::getKey)
+                .toList()
+                .forEach(key -> {
+                    this.entries.remove(key);
+                    this.evictions.increment();
+                });
+        if (log.isDebugEnabled()) {
+            log.debug("DNS cache evicted down to {} entries", this.entries.size());
+        }
+    }
+
+    private static class Entry {
+
+        private final InetAddress[] addresses;
+        private final long expiresAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile long lastAccess = currentTimeMillis();
+
+        private Entry(InetAddress[] addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+
+        private InetAddress[] get(String host) throws UnknownHostException {
+            if (this.addresses == null) throw new UnknownHostException(host);
+            return this.addresses.clone();
+        }
+    }
+}
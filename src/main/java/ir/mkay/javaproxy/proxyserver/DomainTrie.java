@@ -0,0 +1,242 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable set of domain rules, a trie over reversed labels: {@code www.example.com} is looked up as com,
+ * example, www. A rule matches the name itself ({@code example.com}), only its subdomains ({@code *.example.com})
+ * or both ({@code .example.com}); {@code *} alone matches every name. The trie is built with maps and then
+ * flattened into arrays: labels are interned to ints, their text packed into one byte array and found through an
+ * open addressing table hashed straight from the looked up name, and the children of a node are consecutive
+ * nodes sorted by label, found by binary search. A node costs 13 bytes and a distinct label its length plus 12,
+ * wherever maps and strings would cost over a hundred.
+ * Matches are node * 2, plus one for a subdomain rule, which {@link #getRule} turns back into the rule.
+ */
+public class DomainTrie {
+
+    private static final byte EXACT = 1;
+    private static final byte SUBDOMAINS = 2;
+
+    // Text of label i is labelText from labelStart[i] to labelStart[i + 1]; slots hold label + 1, 0 when empty
+    private final byte[] labelText;
+    private final int[] labelStart;
+    private final int[] labelSlots;
+    private final int[] label;
+    private final int[] parent;
+    // Children of node i are the nodes from firstChild[i] to firstChild[i + 1], exclusive
+    private final int[] firstChild;
+    private final byte[] kinds;
+    private final int ruleCount;
+
+    private DomainTrie(List<String> labels, int[] label, int[] parent, int[] firstChild, byte[] kinds, int ruleCount) {
+        this.labelStart = new int[labels.size() + 1];
+        var length = 0;
+        for (int i = 0; i < labels.size(); i++) {
+            this.labelStart[i] = length;
+            length += labels.get(i).length();
+        }
+        this.labelStart[labels.size()] = length;
+        this.labelText = new byte[length];
+        this.labelSlots = new int[Integer.highestOneBit(Math.max(1, labels.size())) * 4];
+        for (int i = 0; i < labels.size(); i++) {
+            var text = labels.get(i);
+            for (int j = 0; j < text.length(); j++) this.labelText[this.labelStart[i] + j] = (byte) text.charAt(j);
+            var slot = hash(text, 0, text.length()) & (this.labelSlots.length - 1);
+            while (this.labelSlots[slot] != 0) slot = (slot + 1) & (this.labelSlots.length - 1);
+            this.labelSlots[slot] = i + 1;
+        }
+        this.label = label;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.kinds = kinds;
+        this.ruleCount = ruleCount;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The most specific rule matching the lower case name, or -1.
+     */
+    public int match(String name) {
+        int node = 0;
+        int match = -1;
+        int end = name.length();
+        while (end > 0) {
+            if ((this.kinds[node] & SUBDOMAINS) != 0) match = node << 1 | 1;
+            var start = name.lastIndexOf('.', end - 1) + 1;
+            var id = this.findLabel(name, start, end);
+            if (id < 0) return match;
+            node = this.findChild(node, id);
+            if (node < 0) return match;
+            end = start - 1;
+        }
+        if ((this.kinds[node] & EXACT) != 0) match = node << 1;
+        return match;
+    }
+
+    public String getRule(int match) {
+        var node = match >>> 1;
+        var rule = new StringBuilder((match & 1) != 0 ? "*" : "");
+        for (; node > 0; node = this.parent[node]) {
+            if (!rule.isEmpty()) rule.append('.');
+            var id = this.label[node];
+            for (int i = this.labelStart[id]; i < this.labelStart[id + 1]; i++) rule.append((char) this.labelText[i]);
+        }
+        return rule.toString();
+    }
+
+    /**
+     * Upper bound of the matches returned, for sizing counters indexed by them.
+     */
+    public int getMatchLimit() {
+        return this.kinds.length * 2;
+    }
+
+    public int getRuleCount() {
+        return this.ruleCount;
+    }
+
+    private int findLabel(String name, int start, int end) {
+        var mask = this.labelSlots.length - 1;
+        for (int slot = hash(name, start, end) & mask; this.labelSlots[slot] != 0; slot = (slot + 1) & mask) {
+            var id = this.labelSlots[slot] - 1;
+            var from = this.labelStart[id];
+            if (this.labelStart[id + 1] - from != end - start) continue;
+            int i = 0;
+            while (i < end - start && this.labelText[from + i] == name.charAt(start + i)) i++;
+            if (i == end - start) return id;
+        }
+        return -1;
+    }
+
+    private static int hash(String name, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + name.charAt(i);
+        return hash ^ hash >>> 16;
+    }
+
+    private int findChild(int node, int id) {
+        int low = this.firstChild[node];
+        int high = this.firstChild[node + 1] - 1;
+        while (low <= high) {
+            var middle = (low + high) >>> 1;
+            var label = this.label[middle];
+            if (label < id) {
+                low = middle + 1;
+            } else if (label > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    public static class Builder {
+
+        private final Map<String, Integer> labelIds = new HashMap<>();
+        private final List<String> labels = new ArrayList<>();
+        private final Node root = new Node(-1);
+        private int nodeCount = 1;
+        private int ruleCount;
+
+        /**
+         * Adds a rule and returns false if it is not a valid domain pattern.
+         */
+        public boolean add(String pattern) {
+            var name = pattern.trim().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+            byte kind = EXACT;
+            if (name.equals("*")) {
+                name = "";
+                kind = SUBDOMAINS;
+            } else if (name.startsWith("*.")) {
+                name = name.substring(2);
+                kind = SUBDOMAINS;
+            } else if (name.startsWith(".")) {
+                name = name.substring(1);
+                kind = EXACT | SUBDOMAINS;
+            }
+            if (name.isEmpty() && kind != SUBDOMAINS || !isValidName(name)) return false;
+            var node = this.root;
+            for (int end = name.length(); end > 0; ) {
+                var start = name.lastIndexOf('.', end - 1) + 1;
+                var id = this.labelIds.computeIfAbsent(name.substring(start, end), label -> {
+                    this.labels.add(label);
+                    return this.labels.size() - 1;
+                });
+                var child = node.children.get(id);
+                if (child == null) {
+                    child = new Node(id);
+                    node.children.put(id, child);
+                    this.nodeCount++;
+                }
+                node = child;
+                end = start - 1;
+            }
+            if ((node.kind | kind) != node.kind) this.ruleCount++;
+            node.kind |= kind;
+            return true;
+        }
+
+        /**
+         * Numbers the nodes breadth first, so the children of each node come out next to each other.
+         */
+        public DomainTrie build() {
+            var label = new int[this.nodeCount];
+            var parent = new int[this.nodeCount];
+            var firstChild = new int[this.nodeCount + 1];
+            var kinds = new byte[this.nodeCount];
+            var queue = new ArrayDeque<Node>();
+            this.root.index = 0;
+            queue.add(this.root);
+            int next = 1;
+            while (!queue.isEmpty()) {
+                var node = queue.poll();
+                label[node.index] = node.label;
+                kinds[node.index] = node.kind;
+                firstChild[node.index] = next;
+                var children = new ArrayList<>(node.children.values());
+                children.sort((a, b) -> Integer.compare(a.label, b.label));
+                for (var child : children) {
+                    child.index = next++;
+                    parent[child.index] = node.index;
+                    queue.add(child);
+                }
+                // Only what the flat arrays need is kept
+                node.children = null;
+            }
+            firstChild[this.nodeCount] = next;
+            return new DomainTrie(this.labels, label, parent, firstChild, kinds, this.ruleCount);
+        }
+
+        private static boolean isValidName(String name) {
+            for (int i = 0; i < name.length(); i++) {
+                var c = name.charAt(i);
+                if (c == '.' ? i == 0 || i == name.length() - 1 || name.charAt(i - 1) == '.' : !(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Node {
+
+        private final int label;
+        private Map<Integer, Node> children = new HashMap<>();
+        private byte kind;
+        private int index;
+
+        Node(int label) {
+            this.label = label;
+        }
+    }
+}
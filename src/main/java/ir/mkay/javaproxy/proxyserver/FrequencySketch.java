@@ -0,0 +1,61 @@
+package ir.mkay.javaproxy.proxyserver;
+
+/**
+ * Approximate access counts for TinyLFU admission: a count-min sketch of small saturating counters that are all
+ * halved every so many increments, so popularity fades and a formerly hot key cannot hold its place forever.
+ * Not thread safe; the owner serializes access.
+ */
+public class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final byte[] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    public FrequencySketch(int expectedKeys) {
+        var width = Integer.highestOneBit(Math.max(64, expectedKeys) - 1) << 1;
+        this.counters = new byte[width * DEPTH];
+        this.mask = width - 1;
+        this.sampleSize = width * 10;
+    }
+
+    public void increment(Object key) {
+        var hash = spread(key.hashCode());
+        var added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            var index = this.indexOf(hash, i);
+            if (this.counters[index] < MAX_COUNT) {
+                this.counters[index]++;
+                added = true;
+            }
+        }
+        if (added && ++this.additions >= this.sampleSize) this.halve();
+    }
+
+    public int frequency(Object key) {
+        var hash = spread(key.hashCode());
+        var frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) frequency = Math.min(frequency, this.counters[this.indexOf(hash, i)]);
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        var h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        return row * (this.mask + 1) + ((h ^ (h >>> 16)) & this.mask);
+    }
+
+    private void halve() {
+        for (int i = 0; i < this.counters.length; i++) this.counters[i] >>= 1;
+        this.additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        return hash ^ (hash >>> 11);
+    }
+}
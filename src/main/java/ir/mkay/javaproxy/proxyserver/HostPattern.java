@@ -0,0 +1,24 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.util.Locale;
+
+/**
+ * A configured host name pattern: an exact name, {@code *.example.com} for any subdomain of example.com, or
+ * {@code *} for all. Hosts are matched as given, so callers lowercase them first.
+ */
+public record HostPattern(String pattern) {
+
+    public static HostPattern parse(String pattern) {
+        return new HostPattern(pattern.trim().toLowerCase(Locale.ROOT));
+    }
+
+    public boolean matches(String host) {
+        if (this.pattern.equals("*") || this.pattern.equals(host)) return true;
+        return this.pattern.startsWith("*.") && host.endsWith(this.pattern.substring(1));
+    }
+
+    @Override
+    public String toString() {
+        return this.pattern;
+    }
+}
@@ -0,0 +1,17 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Name resolution used when connecting to origins; replaceable so tests can resolve without a DNS server.
+ */
+public interface HostResolver {
+
+    HostResolver SYSTEM = InetAddress::getAllByName;
+
+    /**
+     * Returns every address of {@code host}, in the order the proxy should try them.
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,300 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for HTTP/2 upstream connections. Requests are encoded without touching
+ * the dynamic table, as indexed static entries or literals never added to it, so the encoder has no state to
+ * keep in step with the origin; responses are decoded in full, Huffman-coded strings and the dynamic table
+ * included, which needs a {@link Decoder} per connection.
+ */
+public class Hpack {
+
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    // Index of the first static entry of each name, and of each name and value pair
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    // RFC 7541 Appendix B; the end of string code is never decoded as a symbol
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    // Binary tree of the codes: node i has children at 2 * i and 2 * i + 1 of HUFFMAN_TREE, negative for symbols
+    private static final int[] HUFFMAN_TREE;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+        var tree = new int[2 * 512];
+        int nodes = 1;
+        for (int symbol = 0; symbol < 256; symbol++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                var slot = 2 * node + (HUFFMAN_CODES[symbol] >>> bit & 1);
+                if (bit == 0) {
+                    tree[slot] = -1 - symbol;
+                } else {
+                    if (tree[slot] == 0) tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+            }
+        }
+        HUFFMAN_TREE = tree;
+    }
+
+    private Hpack() {
+        // Static Utility Class
+    }
+
+    public record Field(String name, String value) {
+    }
+
+    /**
+     * Appends the header block of the fields, names already in lower case.
+     */
+    public static void encode(List<Field> fields, ByteArrayOutputStream out) {
+        for (var field : fields) {
+            var index = STATIC_FIELDS.get(field.name + '\0' + field.value);
+            if (index != null) {
+                writeInteger(out, 0x80, 7, index);
+                continue;
+            }
+            // Literal header field without indexing
+            var nameIndex = STATIC_NAMES.get(field.name);
+            if (nameIndex != null) {
+                writeInteger(out, 0, 4, nameIndex);
+            } else {
+                out.write(0);
+                writeString(out, field.name);
+            }
+            writeString(out, field.value);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        var bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInteger(out, 0, 7, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        var max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        for (value -= max; value >= 0x80; value >>>= 7) out.write(value & 0x7f | 0x80);
+        out.write(value);
+    }
+
+    /**
+     * Decodes the header blocks of one connection, in the order they arrive, against its dynamic table.
+     */
+    public static class Decoder {
+
+        // Newest entry first, as the dynamic table is indexed
+        private final ArrayDeque<Field> table = new ArrayDeque<>();
+        private final int maxTableSizeLimit;
+        private int maxTableSize;
+        private int tableSize;
+        private byte[] block;
+        private int position;
+        private int end;
+
+        public Decoder(int maxTableSize) {
+            this.maxTableSizeLimit = maxTableSize;
+            this.maxTableSize = maxTableSize;
+        }
+
+        public List<Field> decode(byte[] block, int offset, int length) throws IOException {
+            this.block = block;
+            this.position = offset;
+            this.end = offset + length;
+            List<Field> fields = new ArrayList<>();
+            while (this.position < this.end) {
+                var first = block[this.position] & 0xff;
+                if ((first & 0x80) != 0) {
+                    fields.add(this.getEntry(this.readInteger(7)));
+                } else if ((first & 0x40) != 0) {
+                    var field = this.readLiteral(6);
+                    fields.add(field);
+                    this.addEntry(field);
+                } else if ((first & 0x20) != 0) {
+                    var size = this.readInteger(5);
+                    if (size > this.maxTableSizeLimit) throw new IOException("HPACK table size " + size + " over the limit");
+                    this.maxTableSize = size;
+                    this.evict(0);
+                } else {
+                    // Without indexing or never indexed; to a proxy passing the field on, the same
+                    fields.add(this.readLiteral(4));
+                }
+            }
+            this.block = null;
+            return fields;
+        }
+
+        private Field readLiteral(int prefixBits) throws IOException {
+            var nameIndex = this.readInteger(prefixBits);
+            var name = nameIndex > 0 ? this.getEntry(nameIndex).name : this.readString();
+            return new Field(name, this.readString());
+        }
+
+        private Field getEntry(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return new Field(STATIC_TABLE[index - 1][0], STATIC_TABLE[index - 1][1]);
+            }
+            var dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex < 0 || dynamicIndex >= this.table.size()) throw new IOException("HPACK index " + index + " out of range");
+            var iterator = this.table.iterator();
+            for (int i = 0; i < dynamicIndex; i++) iterator.next();
+            return iterator.next();
+        }
+
+        private void addEntry(Field field) {
+            var size = entrySize(field);
+            this.evict(size);
+            if (size > this.maxTableSize) return;
+            this.table.addFirst(field);
+            this.tableSize += size;
+        }
+
+        private void evict(int room) {
+            while (!this.table.isEmpty() && this.tableSize + room > this.maxTableSize) {
+                this.tableSize -= entrySize(this.table.removeLast());
+            }
+        }
+
+        private static int entrySize(Field field) {
+            return field.name.length() + field.value.length() + 32;
+        }
+
+        private int readInteger(int prefixBits) throws IOException {
+            var max = (1 << prefixBits) - 1;
+            var value = this.readByte() & max;
+            if (value < max) return value;
+            for (int shift = 0; ; shift += 7) {
+                var next = this.readByte();
+                if (shift > 21) throw new IOException("HPACK integer too large");
+                value += (next & 0x7f) << shift;
+                if ((next & 0x80) == 0) return value;
+            }
+        }
+
+        private String readString() throws IOException {
+            var huffman = this.position < this.end && (this.block[this.position] & 0x80) != 0;
+            var length = this.readInteger(7);
+            if (length > this.end - this.position) throw new IOException("HPACK string runs past the header block");
+            var start = this.position;
+            this.position += length;
+            return huffman ? decodeHuffman(this.block, start, length) : new String(this.block, start, length, StandardCharsets.ISO_8859_1);
+        }
+
+        private int readByte() throws IOException {
+            if (this.position >= this.end) throw new IOException("HPACK header block ends in the middle of a field");
+            return this.block[this.position++] & 0xff;
+        }
+    }
+
+    static String decodeHuffman(byte[] bytes, int offset, int length) throws IOException {
+        var out = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        // Bits since the last symbol, which at the end must be at most 7 bits of padding, all ones
+        int pending = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                var one = (bytes[i] >>> bit & 1) == 1;
+                var next = HUFFMAN_TREE[2 * node + (one ? 1 : 0)];
+                pending++;
+                allOnes &= one;
+                if (next < 0) {
+                    out.append((char) (-1 - next));
+                    node = 0;
+                    pending = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new IOException("Invalid Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (pending > 7 || !allOnes) throw new IOException("Invalid Huffman padding");
+        return out.toString();
+    }
+}
@@ -0,0 +1,510 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * An HTTP/2 connection to an origin that speaks it over plain TCP with prior knowledge (h2c), carrying the
+ * requests of many client connections as streams. Streams write their frames under one lock; a reader thread
+ * per connection takes incoming frames apart and hands them to their streams. Each stream may have a window of
+ * response data buffered that its client has not taken yet, and only gets more as the client reads, so a slow
+ * client holds up its own stream and nothing else; the connection window is handed back as data arrives.
+ */
+@Slf4j
+public class Http2Connection implements Closeable {
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY_FLAG = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int CANCEL = 0x8;
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_STREAM_ID = Integer.MAX_VALUE;
+    // A block is never larger than the HTTP/1.1 header it decodes to, and a bigger header could not be relayed
+    private static final int MAX_HEADER_BLOCK_SIZE = ProxyRequestHandler.MAX_HTTP_STRING_SIZE;
+
+    private final String key;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final Object writeLock = new Object();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private final Runnable onStreamClosed;
+    private final int streamWindow;
+    private final int connectionWindow;
+    private final int maxStreams;
+    private final int timeout;
+
+    // Guarded by this
+    private int nextStreamId = 1;
+    private int reservedStreams;
+    private int peerMaxStreams = Integer.MAX_VALUE;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW;
+    private boolean goingAway;
+    private boolean closed;
+    private long idleSince = currentTimeMillis();
+
+    // Only touched by the reader thread
+    private int unacknowledgedBytes;
+    private int continuedStream;
+    private int continuedFlags;
+    private final ByteArrayOutputStream continuedBlock = new ByteArrayOutputStream();
+
+    Http2Connection(String key, Socket socket, ProxyServerProperties.Http2Upstream properties, int timeout, Runnable onStreamClosed) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+        this.output = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        this.streamWindow = Math.max(DEFAULT_WINDOW, properties.getStreamWindow());
+        this.connectionWindow = Math.max(DEFAULT_WINDOW, properties.getConnectionWindow());
+        this.maxStreams = Math.max(1, properties.getMaxConcurrentStreams());
+        this.timeout = timeout;
+        this.onStreamClosed = onStreamClosed;
+    }
+
+    /**
+     * Sends the preface and waits for the origin's settings, which tells an origin that speaks HTTP/2 from one
+     * that does not before any request is trusted to the connection.
+     */
+    void start(Executor readers) throws IOException {
+        synchronized (this.writeLock) {
+            this.output.write(PREFACE);
+            var settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, this.streamWindow);
+            this.writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            if (this.connectionWindow > DEFAULT_WINDOW) this.writeWindowUpdate(0, this.connectionWindow - DEFAULT_WINDOW);
+            this.output.flush();
+        }
+        readers.execute(this::readFrames);
+        try {
+            this.ready.get(this.timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            this.close();
+            throw new SocketTimeoutException("No HTTP/2 settings from " + this.key + " within " + this.timeout + "ms");
+        } catch (ExecutionException e) {
+            this.close();
+            throw new IOException("HTTP/2 preface to " + this.key + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.close();
+            throw new IOException("Interrupted waiting for HTTP/2 settings of " + this.key);
+        }
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Takes one of the streams the connection may still open, counting it until the stream is closed.
+     */
+    synchronized Http2Stream tryReserveStream() {
+        if (this.closed || this.goingAway || this.reservedStreams >= Math.min(this.maxStreams, this.peerMaxStreams)) return null;
+        this.reservedStreams++;
+        return new Http2Stream(this, this.streamWindow, this.timeout);
+    }
+
+    public synchronized boolean isUsable() {
+        return !this.closed && !this.goingAway;
+    }
+
+    public synchronized int getActiveStreams() {
+        return this.reservedStreams;
+    }
+
+    /**
+     * Milliseconds since the last stream closed, or 0 while there are streams.
+     */
+    synchronized long getIdleTime(long now) {
+        return this.reservedStreams > 0 ? 0 : now - this.idleSince;
+    }
+
+    /**
+     * Opens the stream with its header block; ids have to go out in increasing order, so they are handed out
+     * under the write lock too.
+     */
+    void writeHeaders(Http2Stream stream, List<Hpack.Field> fields, boolean endStream) throws IOException {
+        var block = new ByteArrayOutputStream(256);
+        Hpack.encode(fields, block);
+        var bytes = block.toByteArray();
+        synchronized (this.writeLock) {
+            int id;
+            int maxFrameSize;
+            synchronized (this) {
+                if (this.closed || this.nextStreamId > MAX_STREAM_ID - 2) throw new IOException("HTTP/2 connection to " + this.key + " is closed");
+                id = this.nextStreamId;
+                this.nextStreamId += 2;
+                if (this.nextStreamId > MAX_STREAM_ID - 2) this.goingAway = true;
+                stream.open(id, this.peerInitialWindow);
+                this.streams.put(id, stream);
+                maxFrameSize = this.peerMaxFrameSize;
+            }
+            var flags = endStream ? END_STREAM : 0;
+            var length = Math.min(bytes.length, maxFrameSize);
+            this.writeFrame(HEADERS, flags | (length == bytes.length ? END_HEADERS : 0), id, bytes, 0, length);
+            for (int offset = length; offset < bytes.length; offset += length) {
+                length = Math.min(bytes.length - offset, maxFrameSize);
+                this.writeFrame(CONTINUATION, offset + length == bytes.length ? END_HEADERS : 0, id, bytes, offset, length);
+            }
+            this.output.flush();
+        }
+    }
+
+    /**
+     * Sends request body bytes as fast as the stream's and the connection's send windows allow.
+     */
+    void writeData(Http2Stream stream, byte[] b, int off, int len, boolean endStream) throws IOException {
+        do {
+            int length;
+            synchronized (this) {
+                var deadline = currentTimeMillis() + this.timeout;
+                while (len > 0 && !this.closed && !stream.isDone() && (stream.getSendWindow() <= 0 || this.sendWindow <= 0)) {
+                    var left = deadline - currentTimeMillis();
+                    if (left <= 0) throw new SocketTimeoutException("HTTP/2 stream " + stream.getId() + " to " + this.key + " got no send window");
+                    this.waitUninterruptibly(left);
+                }
+                if (this.closed) throw new EOFException("HTTP/2 connection to " + this.key + " closed");
+                if (stream.isDone()) throw new IOException("HTTP/2 stream " + stream.getId() + " was reset");
+                length = (int) Math.min(Math.min(len, this.peerMaxFrameSize), Math.min(stream.getSendWindow(), this.sendWindow));
+                stream.consumeSendWindow(length);
+                this.sendWindow -= length;
+            }
+            synchronized (this.writeLock) {
+                this.writeFrame(DATA, endStream && length == len ? END_STREAM : 0, stream.getId(), b, off, length);
+                this.output.flush();
+            }
+            off += length;
+            len -= length;
+        } while (len > 0);
+    }
+
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        var payload = new byte[4];
+        putInt(payload, 0, increment);
+        synchronized (this.writeLock) {
+            this.writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+            this.output.flush();
+        }
+    }
+
+    void writeReset(int streamId, int errorCode) {
+        var payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        try {
+            synchronized (this.writeLock) {
+                this.writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+                this.output.flush();
+            }
+        } catch (IOException e) {
+            log.debug("Resetting HTTP/2 stream {} of {} failed", streamId, this.key, e);
+        }
+    }
+
+    /**
+     * Called once a stream is done in both directions or reset, giving its place back.
+     */
+    void streamClosed(Http2Stream stream) {
+        if (stream.getId() > 0) this.streams.remove(stream.getId(), stream);
+        synchronized (this) {
+            this.reservedStreams--;
+            if (this.reservedStreams == 0) this.idleSince = currentTimeMillis();
+        }
+        this.onStreamClosed.run();
+    }
+
+    synchronized void notifyWindow() {
+        this.notifyAll();
+    }
+
+    /**
+     * Tells the origin no more streams are coming and closes right away, failing the streams still open. The pool
+     * waits for a connection's streams to be done before closing it, except when the proxy shuts down.
+     */
+    public void close() {
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            this.notifyAll();
+        }
+        var goAway = new byte[8];
+        putInt(goAway, 4, NO_ERROR);
+        try {
+            synchronized (this.writeLock) {
+                this.writeFrame(GOAWAY, 0, 0, goAway, 0, goAway.length);
+                this.output.flush();
+            }
+        } catch (IOException ignore) {
+            // Closing anyway
+        }
+        IOUtils.tryToClose(this.socket);
+        this.failStreams(new EOFException("HTTP/2 connection to " + this.key + " closed"), 0);
+        this.ready.completeExceptionally(new EOFException("Closed"));
+        this.onStreamClosed.run();
+    }
+
+    private void readFrames() {
+        Thread.currentThread().setName("h2-reader " + this.key);
+        var header = new byte[9];
+        var payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+        try {
+            while (true) {
+                this.input.readFully(header);
+                var length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+                var type = header[3] & 0xff;
+                var flags = header[4] & 0xff;
+                var streamId = getInt(header, 5) & MAX_STREAM_ID;
+                // The origin has to keep to the default frame size, which is all that was announced
+                if (length > DEFAULT_MAX_FRAME_SIZE) throw new IOException("HTTP/2 frame of " + length + " bytes from " + this.key);
+                this.input.readFully(payload, 0, length);
+                if (!this.ready.isDone() && type != SETTINGS) throw new IOException("HTTP/2 origin " + this.key + " did not start with settings");
+                if (this.continuedStream != 0 && type != CONTINUATION) throw new IOException("HTTP/2 header block of " + this.key + " interrupted");
+                switch (type) {
+                    case DATA -> this.readData(streamId, flags, payload, length);
+                    case HEADERS -> this.readHeaders(streamId, flags, payload, length);
+                    case CONTINUATION -> this.readContinuation(streamId, flags, payload, length);
+                    case RST_STREAM -> this.readReset(streamId, payload, length);
+                    case SETTINGS -> this.readSettings(flags, payload, length);
+                    case PING -> this.readPing(flags, payload, length);
+                    case GOAWAY -> this.readGoAway(payload, length);
+                    case WINDOW_UPDATE -> this.readWindowUpdate(streamId, payload, length);
+                    case PUSH_PROMISE -> throw new IOException("HTTP/2 push from " + this.key + " although it was disabled");
+                    default -> {
+                        // PRIORITY and unknown types are ignored
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (!this.isClosed()) {
+                log.debug("HTTP/2 connection to {} ended", this.key, e);
+                this.ready.completeExceptionally(e);
+            }
+        } finally {
+            this.close();
+        }
+    }
+
+    private void readData(int streamId, int flags, byte[] payload, int length) throws IOException {
+        var padding = (flags & PADDED) != 0 ? (payload[0] & 0xff) + 1 : 0;
+        if (padding > length) throw new IOException("HTTP/2 padding longer than its frame from " + this.key);
+        var stream = this.streams.get(streamId);
+        if (stream != null) stream.receiveData(payload, padding > 0 ? 1 : 0, length - padding, (flags & END_STREAM) != 0, length);
+        // Streams have windows of their own, so the connection's is handed back as data arrives
+        this.unacknowledgedBytes += length;
+        if (this.unacknowledgedBytes >= this.connectionWindow / 2) {
+            this.writeWindowUpdate(0, this.unacknowledgedBytes);
+            this.unacknowledgedBytes = 0;
+        }
+    }
+
+    private void readHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+        var offset = 0;
+        var padding = 0;
+        if ((flags & PADDED) != 0) {
+            padding = payload[0] & 0xff;
+            offset++;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) offset += 5;
+        if (offset + padding > length) throw new IOException("HTTP/2 headers frame too short from " + this.key);
+        this.continuedBlock.reset();
+        this.continuedBlock.write(payload, offset, length - offset - padding);
+        this.continuedFlags = flags;
+        if ((flags & END_HEADERS) != 0) {
+            this.finishHeaderBlock(streamId);
+        } else {
+            this.continuedStream = streamId;
+        }
+    }
+
+    private void readContinuation(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId != this.continuedStream) throw new IOException("Unexpected HTTP/2 continuation from " + this.key);
+        // The block has to be decoded whole to keep the dynamic table in step, so the connection goes with it
+        if (this.continuedBlock.size() + length > MAX_HEADER_BLOCK_SIZE) {
+            throw new IOException("HTTP/2 header block over " + MAX_HEADER_BLOCK_SIZE + " bytes from " + this.key);
+        }
+        this.continuedBlock.write(payload, 0, length);
+        if ((flags & END_HEADERS) != 0) {
+            this.continuedStream = 0;
+            this.finishHeaderBlock(streamId);
+        }
+    }
+
+    /**
+     * Every header block is decoded, even for streams already gone, to keep the dynamic table in step.
+     */
+    private void finishHeaderBlock(int streamId) throws IOException {
+        var block = this.continuedBlock.toByteArray();
+        var fields = this.decoder.decode(block, 0, block.length);
+        var stream = this.streams.get(streamId);
+        if (stream != null) stream.receiveHeaders(fields, (this.continuedFlags & END_STREAM) != 0);
+    }
+
+    private void readReset(int streamId, byte[] payload, int length) throws IOException {
+        if (length != 4) throw new IOException("HTTP/2 reset frame of " + length + " bytes from " + this.key);
+        var stream = this.streams.get(streamId);
+        if (stream != null) stream.receiveReset(getInt(payload, 0));
+    }
+
+    private void readSettings(int flags, byte[] payload, int length) throws IOException {
+        if ((flags & ACK) != 0) return;
+        if (length % 6 != 0) throw new IOException("HTTP/2 settings frame of " + length + " bytes from " + this.key);
+        synchronized (this) {
+            for (int i = 0; i < length; i += 6) {
+                var identifier = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+                var value = getInt(payload, i + 2);
+                switch (identifier) {
+                    case SETTINGS_MAX_CONCURRENT_STREAMS -> this.peerMaxStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                        if (value < 0) throw new IOException("HTTP/2 initial window over the maximum from " + this.key);
+                        var delta = value - this.peerInitialWindow;
+                        this.peerInitialWindow = value;
+                        for (var stream : this.streams.values()) stream.addSendWindow(delta);
+                    }
+                    case SETTINGS_MAX_FRAME_SIZE -> this.peerMaxFrameSize = Math.max(DEFAULT_MAX_FRAME_SIZE, Math.min(value, (1 << 24) - 1));
+                    default -> {
+                        // The header table size only matters to an encoder that indexes, which this one does not
+                    }
+                }
+            }
+            this.notifyAll();
+        }
+        synchronized (this.writeLock) {
+            this.writeFrame(SETTINGS, ACK, 0, payload, 0, 0);
+            this.output.flush();
+        }
+        this.ready.complete(null);
+        this.onStreamClosed.run();
+    }
+
+    private void readPing(int flags, byte[] payload, int length) throws IOException {
+        if (length != 8) throw new IOException("HTTP/2 ping of " + length + " bytes from " + this.key);
+        if ((flags & ACK) != 0) return;
+        synchronized (this.writeLock) {
+            this.writeFrame(PING, ACK, 0, payload, 0, 8);
+            this.output.flush();
+        }
+    }
+
+    /**
+     * Streams above the last one the origin took were never processed and fail; the rest may finish.
+     */
+    private void readGoAway(byte[] payload, int length) throws IOException {
+        if (length < 8) throw new IOException("HTTP/2 goaway of " + length + " bytes from " + this.key);
+        var lastStreamId = getInt(payload, 0) & MAX_STREAM_ID;
+        synchronized (this) {
+            this.goingAway = true;
+        }
+        this.failStreams(new IOException("HTTP/2 origin " + this.key + " went away with error " + getInt(payload, 4)), lastStreamId);
+    }
+
+    private void readWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+        if (length != 4) throw new IOException("HTTP/2 window update of " + length + " bytes from " + this.key);
+        var increment = getInt(payload, 0) & MAX_STREAM_ID;
+        synchronized (this) {
+            if (streamId == 0) {
+                this.sendWindow += increment;
+            } else {
+                var stream = this.streams.get(streamId);
+                if (stream != null) stream.addSendWindow(increment);
+            }
+            this.notifyAll();
+        }
+    }
+
+    private void failStreams(IOException e, int lastStreamId) {
+        for (var stream : this.streams.values()) {
+            if (stream.getId() > lastStreamId) stream.fail(e);
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        var header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        this.output.write(header);
+        this.output.write(payload, offset, length);
+    }
+
+    private void waitUninterruptibly(long millis) throws IOException {
+        try {
+            this.wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for HTTP/2 send window");
+        }
+    }
+
+    private static void putSetting(byte[] bytes, int offset, int identifier, int value) {
+        bytes[offset] = (byte) (identifier >>> 8);
+        bytes[offset + 1] = (byte) identifier;
+        putInt(bytes, offset + 2, value);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | bytes[offset + 3] & 0xff;
+    }
+}
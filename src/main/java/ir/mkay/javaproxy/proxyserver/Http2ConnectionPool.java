@@ -0,0 +1,256 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Shared HTTP/2 connections to the origins configured to take them, keyed by host:port like
+ * {@link UpstreamConnectionPool}. A stream goes on the first connection of its origin with room under both the
+ * configured and the origin's stream limit; when all are full another connection is opened, up to the per-origin
+ * maximum, beyond which requests wait for a stream to close. An origin that does not answer the HTTP/2 preface
+ * is left to HTTP/1.1 for a while.
+ */
+@Slf4j
+public class Http2ConnectionPool implements Closeable {
+
+    private final List<Origin> origins = new ArrayList<>();
+    private final ProxyServerProperties.Http2Upstream properties;
+    private final HostResolver hostResolver;
+    private final OriginConnector originConnector;
+    private final int timeout;
+    private final ExecutorService readers;
+    private final ScheduledExecutorService reaper;
+
+    // Guarded by this
+    private final Map<String, List<Http2Connection>> connections = new HashMap<>();
+    private final Map<String, Integer> connecting = new HashMap<>();
+    private final Map<String, Long> fallbackUntil = new ConcurrentHashMap<>();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder streamsOpened = new LongAdder();
+    private final LongAdder streamWaits = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    public Http2ConnectionPool(ProxyServerProperties.Http2Upstream properties, HostResolver hostResolver, OriginConnector originConnector, int timeout) {
+        this.properties = properties;
+        this.hostResolver = hostResolver;
+        this.originConnector = originConnector;
+        this.timeout = timeout;
+        for (var origin : properties.getOrigins()) {
+            var parsed = Origin.parse(origin);
+            if (parsed == null) throw new IllegalStateException("Invalid HTTP/2 upstream origin: " + origin);
+            this.origins.add(parsed);
+        }
+        this.readers = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper = Executors.newSingleThreadScheduledExecutor();
+        var reapPeriod = Math.max(properties.getIdleTimeout() / 2, 100);
+        this.reaper.scheduleWithFixedDelay(this::closeIdle, reapPeriod, reapPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether requests for the origin go over HTTP/2 right now.
+     */
+    public boolean isHttp2Origin(String host, int port) {
+        var normalized = host.toLowerCase(Locale.ROOT);
+        var matched = false;
+        for (var origin : this.origins) {
+            if (origin.matches(normalized, port)) {
+                matched = true;
+                break;
+            }
+        }
+        if (!matched) return false;
+        var until = this.fallbackUntil.get(UpstreamConnectionPool.key(host, port));
+        return until == null || until < currentTimeMillis();
+    }
+
+    /**
+     * A stream on a connection to the origin, opening one if needed, or null if the origin turned out not to
+     * speak HTTP/2 and the request should go out as HTTP/1.1.
+     */
+    public Http2Stream openStream(String host, int port) throws IOException {
+        var key = UpstreamConnectionPool.key(host, port);
+        var deadline = currentTimeMillis() + this.timeout;
+        while (true) {
+            synchronized (this) {
+                var waited = false;
+                while (true) {
+                    var stream = this.tryReserveStream(key);
+                    if (stream != null) {
+                        this.streamsOpened.increment();
+                        return stream;
+                    }
+                    var open = this.connections.getOrDefault(key, List.of()).stream().filter(Http2Connection::isUsable).count()
+                            + this.connecting.getOrDefault(key, 0);
+                    if (open < this.properties.getMaxConnectionsPerOrigin()) break;
+                    var left = deadline - currentTimeMillis();
+                    if (left <= 0) throw new SocketTimeoutException("No HTTP/2 stream to " + key + " free within " + this.timeout + "ms");
+                    if (!waited) this.streamWaits.increment();
+                    waited = true;
+                    try {
+                        this.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for an HTTP/2 stream to " + key);
+                    }
+                }
+                this.connecting.merge(key, 1, Integer::sum);
+            }
+            Http2Connection connection;
+            try {
+                connection = this.connect(key, host, port);
+            } finally {
+                synchronized (this) {
+                    this.connecting.merge(key, -1, Integer::sum);
+                    this.notifyAll();
+                }
+            }
+            if (connection == null) return null;
+        }
+    }
+
+    public synchronized int getConnectionCount() {
+        return this.connections.values().stream().mapToInt(List::size).sum();
+    }
+
+    public synchronized int getActiveStreams() {
+        return this.connections.values().stream().flatMap(List::stream).mapToInt(Http2Connection::getActiveStreams).sum();
+    }
+
+    public long getConnectionsOpened() {
+        return this.connectionsOpened.sum();
+    }
+
+    public long getStreamsOpened() {
+        return this.streamsOpened.sum();
+    }
+
+    /**
+     * Requests that found every connection of their origin at its stream limit.
+     */
+    public long getStreamWaits() {
+        return this.streamWaits.sum();
+    }
+
+    public long getFallbacks() {
+        return this.fallbacks.sum();
+    }
+
+    @Override
+    public void close() {
+        this.reaper.shutdownNow();
+        List<Http2Connection> all;
+        synchronized (this) {
+            all = this.connections.values().stream().flatMap(List::stream).toList();
+            this.connections.clear();
+        }
+        all.forEach(Http2Connection::close);
+        this.readers.shutdownNow();
+    }
+
+    private Http2Stream tryReserveStream(String key) {
+        var list = this.connections.get(key);
+        if (list == null) return null;
+        for (var connection : list) {
+            var stream = connection.tryReserveStream();
+            if (stream != null) return stream;
+        }
+        return null;
+    }
+
+    /**
+     * Opens a connection and adds it to the pool; returns null if the origin did not answer as HTTP/2.
+     */
+    private Http2Connection connect(String key, String host, int port) throws IOException {
+        var socket = this.originConnector.connect(this.hostResolver.resolve(host), port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(0);
+        var connection = new Http2Connection(key, socket, this.properties, this.timeout, this::streamClosed);
+        try {
+            connection.start(this.readers);
+        } catch (IOException e) {
+            this.fallbacks.increment();
+            this.fallbackUntil.put(key, currentTimeMillis() + this.properties.getFallbackPeriod());
+            log.warn("Origin {} did not answer as HTTP/2; sending it HTTP/1.1 for {}ms; {}", key, this.properties.getFallbackPeriod(), e.toString());
+            return null;
+        }
+        this.connectionsOpened.increment();
+        synchronized (this) {
+            this.connections.computeIfAbsent(key, k -> new ArrayList<>()).add(connection);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Opened HTTP/2 connection to {}", key);
+        }
+        return connection;
+    }
+
+    private synchronized void streamClosed() {
+        this.notifyAll();
+    }
+
+    private void closeIdle() {
+        var now = currentTimeMillis();
+        List<Http2Connection> idle = new ArrayList<>();
+        synchronized (this) {
+            for (var list : this.connections.values()) {
+                for (var iterator = list.iterator(); iterator.hasNext(); ) {
+                    var connection = iterator.next();
+                    var unusable = !connection.isUsable() && connection.getActiveStreams() == 0;
+                    if (unusable || connection.getIdleTime(now) > this.properties.getIdleTimeout()) {
+                        iterator.remove();
+                        idle.add(connection);
+                    }
+                }
+            }
+            this.connections.values().removeIf(List::isEmpty);
+        }
+        // A connection the origin is going away from is kept until its last stream is done
+        idle.forEach(Http2Connection::close);
+    }
+
+    /**
+     * A {@link HostPattern} with the port it applies to, 80 unless given.
+     */
+    private record Origin(HostPattern host, int port) {
+
+        static Origin parse(String origin) {
+            var value = origin.trim().toLowerCase(Locale.ROOT);
+            var colon = value.lastIndexOf(':');
+            var port = 80;
+            if (colon > -1) {
+                try {
+                    port = Integer.parseInt(value.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                value = value.substring(0, colon);
+            }
+            if (value.isEmpty() || port <= 0 || port > 65535) return null;
+            return new Origin(new HostPattern(value), port);
+        }
+
+        boolean matches(String host, int port) {
+            return port == this.port && this.host.matches(host);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * One request and response on an {@link Http2Connection}, translated from and to HTTP/1.1 so the handler relays
+ * it like any other exchange. The request header becomes a header block without the connection-specific fields
+ * HTTP/2 forbids, and its body DATA frames. The response comes out of {@link #getResponseInput()} as HTTP/1.1
+ * bytes: a status line and the header fields, then the body as it is, with a length if the origin gave one and
+ * chunked otherwise; interim responses come first and trailers are dropped.
+ */
+public class Http2Stream {
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway\r\ncontent-length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade", "host", "te", "http2-settings");
+
+    private final Http2Connection connection;
+    private final int receiveWindow;
+    private final int timeout;
+    private final InputStream responseInput = new ResponseInput();
+    private final OutputStream requestOutput = new RequestOutput();
+
+    // Guarded by the connection
+    private int id;
+    private long sendWindow;
+
+    // Guarded by this; chunks of the response not read yet, each with the flow-controlled bytes it stands for
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+    private final ArrayDeque<Integer> chunkCredits = new ArrayDeque<>();
+    private int chunkPosition;
+    private int pendingCredit;
+    private boolean headRequest;
+    private boolean headersReceived;
+    private boolean chunked;
+    private boolean responseEnded;
+    private boolean requestEnded;
+    private IOException failure;
+    private boolean closed;
+
+    private volatile boolean done;
+
+    Http2Stream(Http2Connection connection, int receiveWindow, int timeout) {
+        this.connection = connection;
+        this.receiveWindow = receiveWindow;
+        this.timeout = timeout;
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    public Http2Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Sends the request header, ending the stream's request side if there is no body.
+     */
+    public void sendRequest(HttpRequestInfo request, URL targetUrl, boolean endStream) throws IOException {
+        List<Hpack.Field> fields = new ArrayList<>(request.getHeaderCount() + 4);
+        var authority = request.getHeaderFirstValue(HttpHeaderName.HOST);
+        if (authority == null) authority = targetUrl.getPort() > -1 ? targetUrl.getHost() + ":" + targetUrl.getPort() : targetUrl.getHost();
+        var path = targetUrl.getFile();
+        fields.add(new Hpack.Field(":method", request.getMethod()));
+        fields.add(new Hpack.Field(":scheme", "http"));
+        fields.add(new Hpack.Field(":authority", authority));
+        fields.add(new Hpack.Field(":path", path.isEmpty() ? "/" : path));
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            var name = request.getHeaderName(i).toLowerCase(Locale.ROOT);
+            var value = request.getHeaderValue(i);
+            if (CONNECTION_HEADERS.contains(name) && !(name.equals("te") && value.trim().equalsIgnoreCase("trailers"))) continue;
+            if (request.hasHeaderToken(HttpHeaderName.CONNECTION, name)) continue;
+            fields.add(new Hpack.Field(name, value));
+        }
+        synchronized (this) {
+            this.headRequest = request.getMethod().equals("HEAD");
+            this.requestEnded = endStream;
+        }
+        this.connection.writeHeaders(this, fields, endStream);
+    }
+
+    /**
+     * The request body, sent as DATA frames within the windows the origin gives; closing it ends the request.
+     */
+    public OutputStream getRequestOutput() {
+        return this.requestOutput;
+    }
+
+    public InputStream getResponseInput() {
+        return this.responseInput;
+    }
+
+    /**
+     * Gives the stream's place on the connection back, resetting it first if either side is not done, as when
+     * the client went away or the origin answered before the whole request body was sent.
+     */
+    public void close() {
+        boolean reset;
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+            reset = this.id > 0 && !this.done && !(this.requestEnded && this.responseEnded);
+            this.done = true;
+            this.chunks.clear();
+            this.chunkCredits.clear();
+        }
+        if (reset) this.connection.writeReset(this.id, Http2Connection.CANCEL);
+        this.connection.notifyWindow();
+        this.connection.streamClosed(this);
+    }
+
+    boolean isDone() {
+        return this.done;
+    }
+
+    void open(int id, int initialWindow) {
+        this.id = id;
+        this.sendWindow = initialWindow;
+    }
+
+    long getSendWindow() {
+        return this.sendWindow;
+    }
+
+    void consumeSendWindow(int length) {
+        this.sendWindow -= length;
+    }
+
+    void addSendWindow(long increment) {
+        this.sendWindow += increment;
+    }
+
+    /**
+     * A block with a malformed field (RFC 9113 section 8.2.1) resets the stream; the client gets a 502 in place
+     * of a response that would otherwise carry the field into the HTTP/1.1 header as it is.
+     */
+    void receiveHeaders(List<Hpack.Field> fields, boolean endStream) {
+        for (var field : fields) {
+            if (!isWellFormed(field)) {
+                this.connection.writeReset(this.id, Http2Connection.PROTOCOL_ERROR);
+                this.rejectHeaders(field);
+                return;
+            }
+        }
+        this.acceptHeaders(fields, endStream);
+    }
+
+    private synchronized void rejectHeaders(Hpack.Field field) {
+        if (this.closed || this.done) return;
+        if (this.headersReceived) {
+            this.fail(new IOException("HTTP/2 trailer field " + field.name() + " on stream " + this.id + " is malformed"));
+            return;
+        }
+        this.chunks.add(BAD_GATEWAY);
+        this.chunkCredits.add(0);
+        this.headersReceived = true;
+        this.responseEnded = true;
+        this.done = true;
+        this.notifyAll();
+        this.connection.notifyWindow();
+    }
+
+    private synchronized void acceptHeaders(List<Hpack.Field> fields, boolean endStream) {
+        if (this.closed || this.done) return;
+        if (this.headersReceived) {
+            // Trailers, which the chunked body could carry but clients rarely expect from a proxy
+            if (endStream) this.endResponse();
+            return;
+        }
+        var status = 0;
+        var hasLength = false;
+        for (var field : fields) {
+            if (field.name().equals(":status")) status = parseStatus(field.value());
+            if (field.name().equals("content-length")) hasLength = true;
+        }
+        if (status < 100) {
+            this.fail(new IOException("HTTP/2 response of stream " + this.id + " has no valid status"));
+            return;
+        }
+        var header = new StringBuilder(256);
+        header.append("HTTP/1.1 ").append(status).append(' ').append(getReasonPhrase(status)).append("\r\n");
+        for (var field : fields) {
+            if (field.name().startsWith(":") || CONNECTION_HEADERS.contains(field.name())) continue;
+            header.append(field.name()).append(": ").append(field.value()).append("\r\n");
+        }
+        var interim = status < 200;
+        var noBody = this.headRequest || status == 204 || status == 304;
+        if (!interim && !hasLength && !noBody) {
+            if (endStream) {
+                header.append("content-length: 0\r\n");
+            } else {
+                header.append("transfer-encoding: chunked\r\n");
+                this.chunked = true;
+            }
+        }
+        header.append("\r\n");
+        this.chunks.add(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+        this.chunkCredits.add(0);
+        if (!interim) this.headersReceived = true;
+        if (endStream) this.endResponse();
+        this.notifyAll();
+    }
+
+    synchronized void receiveData(byte[] payload, int offset, int length, boolean endStream, int flowLength) {
+        if (this.closed || this.done) return;
+        if (!this.headersReceived) {
+            this.fail(new IOException("HTTP/2 data before the response header on stream " + this.id));
+            return;
+        }
+        if (length > 0 || flowLength > 0) {
+            byte[] chunk;
+            if (this.chunked && length > 0) {
+                var size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                chunk = new byte[size.length + length + 2];
+                System.arraycopy(size, 0, chunk, 0, size.length);
+                System.arraycopy(payload, offset, chunk, size.length, length);
+                chunk[chunk.length - 2] = '\r';
+                chunk[chunk.length - 1] = '\n';
+            } else {
+                chunk = new byte[length];
+                System.arraycopy(payload, offset, chunk, 0, length);
+            }
+            this.chunks.add(chunk);
+            this.chunkCredits.add(flowLength);
+        }
+        if (endStream) this.endResponse();
+        this.notifyAll();
+    }
+
+    synchronized void receiveReset(int errorCode) {
+        this.fail(new IOException("HTTP/2 stream " + this.id + " reset by origin with error " + errorCode));
+    }
+
+    synchronized void fail(IOException e) {
+        if (this.failure == null) this.failure = e;
+        this.done = true;
+        this.notifyAll();
+        this.connection.notifyWindow();
+    }
+
+    private void endResponse() {
+        if (this.responseEnded) return;
+        if (this.chunked) {
+            this.chunks.add(LAST_CHUNK);
+            this.chunkCredits.add(0);
+        }
+        this.responseEnded = true;
+    }
+
+    /**
+     * Waits for response bytes; the stream window is handed back once half of it was read.
+     */
+    private int read(byte[] b, int off, int len) throws IOException {
+        int length;
+        var credit = 0;
+        synchronized (this) {
+            var deadline = currentTimeMillis() + this.timeout;
+            while (this.chunks.isEmpty()) {
+                if (this.responseEnded) return -1;
+                if (this.failure != null) throw this.failure;
+                if (this.closed) throw new EOFException("HTTP/2 stream " + this.id + " closed");
+                var left = deadline - currentTimeMillis();
+                if (left <= 0) throw new SocketTimeoutException("No HTTP/2 response data on stream " + this.id + " within " + this.timeout + "ms");
+                try {
+                    this.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for HTTP/2 response data");
+                }
+            }
+            var chunk = this.chunks.peek();
+            length = Math.min(len, chunk.length - this.chunkPosition);
+            System.arraycopy(chunk, this.chunkPosition, b, off, length);
+            this.chunkPosition += length;
+            if (this.chunkPosition == chunk.length) {
+                this.chunks.poll();
+                this.chunkPosition = 0;
+                this.pendingCredit += this.chunkCredits.poll();
+                if (this.pendingCredit >= this.receiveWindow / 2 && !this.responseEnded && !this.done) {
+                    credit = this.pendingCredit;
+                    this.pendingCredit = 0;
+                }
+            }
+        }
+        // Written outside the lock, which the connection's reader needs to hand over more data
+        if (credit > 0) this.connection.writeWindowUpdate(this.id, credit);
+        return length;
+    }
+
+    private synchronized int available() {
+        var chunk = this.chunks.peek();
+        return chunk == null ? 0 : chunk.length - this.chunkPosition;
+    }
+
+    private void endRequest() throws IOException {
+        synchronized (this) {
+            if (this.requestEnded) return;
+            this.requestEnded = true;
+        }
+        this.connection.writeData(this, new byte[0], 0, 0, true);
+    }
+
+    /**
+     * Names have to be lowercase tokens, with a colon only to start a pseudo-header; values may not hold
+     * CR, LF or NUL, nor start or end with whitespace.
+     */
+    static boolean isWellFormed(Hpack.Field field) {
+        var name = field.name();
+        if (name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || (c >= 'A' && c <= 'Z') || (c == ':' && i > 0)) return false;
+        }
+        var value = field.value();
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0) return false;
+        }
+        return value.isEmpty() || !(isWhitespace(value.charAt(0)) || isWhitespace(value.charAt(value.length() - 1)));
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static int parseStatus(String value) {
+        if (value.length() != 3) return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * HTTP/2 has no reason phrases; HTTP/1.1 clients get the usual ones.
+     */
+    static String getReasonPhrase(int status) {
+        return switch (status) {
+            case 100 -> "Continue";
+            case 103 -> "Early Hints";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 410 -> "Gone";
+            case 412 -> "Precondition Failed";
+            case 413 -> "Payload Too Large";
+            case 429 -> "Too Many Requests";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            default -> status < 200 ? "Informational" : status < 300 ? "Success" : status < 400 ? "Redirection"
+                    : status < 500 ? "Client Error" : "Server Error";
+        };
+    }
+
+    private class ResponseInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            return Http2Stream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return Http2Stream.this.available();
+        }
+    }
+
+    private class RequestOutput extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) Http2Stream.this.connection.writeData(Http2Stream.this, b, off, len, false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            Http2Stream.this.endRequest();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * HTTP/1.1 message body framing (RFC 7230 section 3.3.3).
+ */
+public class HttpBody {
+
+    public static final long CHUNKED = -2;
+    public static final long UNTIL_EOF = -1;
+
+    private static final int MAX_CHUNK_LINE_SIZE = 8 * 1024;
+    // Far beyond any real chunk, and small enough that adding its CRLF cannot overflow
+    private static final long MAX_CHUNK_SIZE = 1L << 40;
+    private static final int MAX_CHUNK_SIZE_DIGITS = 16;
+
+    private HttpBody() {
+        // Static Utility Class
+    }
+
+    /**
+     * Whether the request body can only be framed one way: a final chunked coding without Content-Length, or a
+     * single valid Content-Length. A request that another hop could frame differently would have the rest of its
+     * body read as a further request on the same origin connection, which is shared between clients (request
+     * smuggling), so it must be refused (RFC 7230 section 3.3.3).
+     */
+    public static boolean hasValidFraming(HttpRequestInfo request) {
+        var contentLengths = request.getHeaderValues(HttpHeaderName.CONTENT_LENGTH);
+        if (request.hasHeader(HttpHeaderName.TRANSFER_ENCODING)) {
+            return request.isChunked() && contentLengths == null;
+        }
+        if (contentLengths == null) return true;
+        if (contentLengths.size() > 1) return false;
+        try {
+            return request.getContentLength() >= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the body length, or {@link #CHUNKED}; a request without framing headers has no body. The framing
+     * is expected to have been checked with {@link #hasValidFraming}.
+     */
+    public static long getRequestBodyLength(HttpRequestInfo request) {
+        if (request.hasHeader(HttpHeaderName.TRANSFER_ENCODING)) {
+            if (!request.isChunked()) {
+                throw new IllegalStateException("Unsupported request transfer-encoding: " + request.getHeaderFirstValue(HttpHeaderName.TRANSFER_ENCODING));
+            }
+            return CHUNKED;
+        }
+        var contentLength = request.getContentLength();
+        return contentLength > 0 ? contentLength : 0;
+    }
+
+    /**
+     * Returns the body length, {@link #CHUNKED}, or {@link #UNTIL_EOF} when only closing the connection ends the body.
+     */
+    public static long getResponseBodyLength(HttpRequestInfo request, HttpResponseInfo response) {
+        var status = response.getStatus();
+        if (request.getMethod().equals("HEAD") || response.isInformational() || status == 204 || status == 304) return 0;
+        if (response.hasHeader(HttpHeaderName.TRANSFER_ENCODING)) {
+            return response.isChunked() ? CHUNKED : UNTIL_EOF;
+        }
+        var contentLength = response.getContentLength();
+        return contentLength > -1 ? contentLength : UNTIL_EOF;
+    }
+
+    public static void copy(InputStream in, OutputStream out, long length, AdaptiveBuffer buffer) throws IOException {
+        var remaining = length;
+        while (remaining > 0) {
+            var bytes = buffer.get();
+            var read = in.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Stream ended " + remaining + " bytes before end of message");
+            }
+            out.write(bytes, 0, read);
+            buffer.record(read);
+            remaining -= read;
+            if (in.available() <= 0) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Copies a chunked body as-is, including chunk extensions and trailers, stopping right after its last CRLF.
+     */
+    public static void copyChunked(InputStream in, OutputStream out, AdaptiveBuffer buffer) throws IOException {
+        while (true) {
+            var chunkSize = parseChunkSize(copyLine(in, out));
+            if (chunkSize == 0) break;
+            copy(in, out, chunkSize + 2, buffer);
+        }
+        // Trailer section ends with an empty line
+        while (!copyLine(in, out).isEmpty()) ;
+        out.flush();
+    }
+
+    /**
+     * Copies only the data of a chunked body, dropping its framing and trailers.
+     */
+    public static void copyDechunked(InputStream in, OutputStream out, AdaptiveBuffer buffer) throws IOException {
+        var framing = OutputStream.nullOutputStream();
+        while (true) {
+            var chunkSize = parseChunkSize(copyLine(in, framing));
+            if (chunkSize == 0) break;
+            copy(in, out, chunkSize, buffer);
+            copyLine(in, framing);
+        }
+        while (!copyLine(in, framing).isEmpty()) ;
+        out.flush();
+    }
+
+    /**
+     * Finds the end of a chunked body in bytes that arrive piece by piece, for relaying it from buffers where
+     * {@link #copyChunked} would need a stream. Chunk lines are checked the same way.
+     */
+    public static class ChunkedScanner {
+
+        private final StringBuilder line = new StringBuilder();
+        private long dataRemaining;
+        private boolean inTrailer;
+
+        /**
+         * Scans {@code bytes[start, end)} and returns the index right after the body's last byte, or -1 if the
+         * body goes on after {@code end}.
+         */
+        public int scan(byte[] bytes, int start, int end) {
+            var i = start;
+            while (i < end) {
+                if (this.dataRemaining > 0) {
+                    var skipped = (int) Math.min(this.dataRemaining, end - i);
+                    this.dataRemaining -= skipped;
+                    i += skipped;
+                    continue;
+                }
+                var b = bytes[i++];
+                if (b != '\n') {
+                    if (b != '\r') this.line.append((char) (b & 0xff));
+                    if (this.line.length() > MAX_CHUNK_LINE_SIZE) throw new IllegalStateException("Chunk line size exceeded");
+                    continue;
+                }
+                if (this.inTrailer) {
+                    // Trailer section ends with an empty line
+                    if (this.line.isEmpty()) return i;
+                } else {
+                    var chunkSize = parseChunkSize(this.line.toString());
+                    if (chunkSize == 0) {
+                        this.inTrailer = true;
+                    } else {
+                        this.dataRemaining = chunkSize + 2;
+                    }
+                }
+                this.line.setLength(0);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Only bare hex digits are taken, as {@link Long#parseLong} would also take a sign and sizes that overflow.
+     */
+    static long parseChunkSize(String line) {
+        var extensionIndex = line.indexOf(';');
+        var size = (extensionIndex > -1 ? line.substring(0, extensionIndex) : line).trim();
+        if (size.isEmpty() || size.length() > MAX_CHUNK_SIZE_DIGITS) {
+            throw new IllegalStateException("Invalid chunk size: " + size);
+        }
+        long result = 0;
+        for (int i = 0; i < size.length(); i++) {
+            var c = size.charAt(i);
+            var digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+            if (digit < 0) throw new IllegalStateException("Invalid chunk size: " + size);
+            result = result << 4 | digit;
+            if (result > MAX_CHUNK_SIZE) throw new IllegalStateException("Chunk size too large: " + size);
+        }
+        return result;
+    }
+
+    /**
+     * Copies one line including its line terminator and returns it without the terminator.
+     */
+    private static String copyLine(InputStream in, OutputStream out) throws IOException {
+        var line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new EOFException("Stream ended in the middle of chunked body");
+            out.write(b);
+            if (b != '\r') line.append((char) b);
+            if (line.length() > MAX_CHUNK_LINE_SIZE) throw new IllegalStateException("Chunk line size exceeded");
+        }
+        out.write(b);
+        return line.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for reading HTTP tokens straight out of ISO-8859-1 byte ranges without materializing strings.
+ */
+public class HttpBytes {
+
+    private HttpBytes() {
+        // Static Utility Class
+    }
+
+    public static boolean equalsIgnoreCase(byte[] bytes, int start, int end, String value) {
+        if (end - start != value.length()) return false;
+        for (int i = start; i < end; i++) {
+            if (toLowerCase(bytes[i]) != toLowerCase(value.charAt(i - start))) return false;
+        }
+        return true;
+    }
+
+    public static boolean equals(byte[] bytes, int start, int end, String value) {
+        if (end - start != value.length()) return false;
+        for (int i = start; i < end; i++) {
+            if ((bytes[i] & 0xff) != value.charAt(i - start)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the candidate equal to the range, so well known values are shared instead of allocated per message.
+     */
+    public static String intern(byte[] bytes, int start, int end, String... candidates) {
+        for (var candidate : candidates) {
+            if (equals(bytes, start, end, candidate)) return candidate;
+        }
+        return toString(bytes, start, end);
+    }
+
+    public static String toString(byte[] bytes, int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses a non-negative decimal number surrounded by optional whitespace.
+     */
+    public static long parseLong(byte[] bytes, int start, int end) {
+        start = skipWhitespace(bytes, start, end);
+        end = trimWhitespace(bytes, start, end);
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException("Invalid number: " + toString(bytes, start, end));
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            var digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Invalid number: " + toString(bytes, start, end));
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Whether a comma separated list value such as {@code keep-alive, Upgrade} contains the token.
+     */
+    public static boolean containsToken(byte[] bytes, int start, int end, String token) {
+        var tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || bytes[i] == ',') {
+                var s = skipWhitespace(bytes, tokenStart, i);
+                var e = trimWhitespace(bytes, s, i);
+                if (equalsIgnoreCase(bytes, s, e, token)) return true;
+                tokenStart = i + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the ISO-8859-1 encoding of {@code value} and returns the offset after it.
+     */
+    public static int put(byte[] target, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            target[offset++] = (byte) value.charAt(i);
+        }
+        return offset;
+    }
+
+    public static int put(byte[] target, int offset, byte[] source, int start, int end) {
+        System.arraycopy(source, start, target, offset, end - start);
+        return offset + end - start;
+    }
+
+    public static int putDecimal(byte[] target, int offset, int value) {
+        var end = offset + decimalLength(value);
+        for (int i = end - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    public static int decimalLength(int value) {
+        var length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    public static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    public static int skipWhitespace(byte[] bytes, int start, int end) {
+        while (start < end && isWhitespace(bytes[start])) start++;
+        return start;
+    }
+
+    public static int trimWhitespace(byte[] bytes, int start, int end) {
+        while (end > start && isWhitespace(bytes[end - 1])) end--;
+        return end;
+    }
+
+    private static int toLowerCase(int c) {
+        c &= 0xff;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
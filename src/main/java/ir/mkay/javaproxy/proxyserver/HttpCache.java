@@ -0,0 +1,305 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Shared HTTP cache (RFC 9111) for plain HTTP GET responses. Bodies up to the memory object size are kept in
+ * memory, larger ones in files of the disk tier if one is configured, which are sent to clients with
+ * {@link java.nio.channels.FileChannel#transferTo} so they never pass through the Java heap. Stale entries with a
+ * validator are revalidated with a conditional request. One variant is kept per URL; a request with other values
+ * for the headers it varies on goes to the origin and its response replaces the stored one.
+ * Only responses with a Content-Length are stored.
+ * <p>
+ * Concurrent misses for the same URL share one origin fetch, see {@link SharedFetch}, as long as its response
+ * may go to all of them.
+ */
+@Slf4j
+public class HttpCache implements Closeable {
+
+    private static final Set<Integer> CACHEABLE_STATUSES = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
+    private static final String BODY_FILE_SUFFIX = ".cache";
+
+    private final boolean enabled;
+    private final long memoryMaxObjectSize;
+    private final long diskMaxObjectSize;
+    private final Path diskDirectory;
+    private final FrequencySketch sketch;
+    private final CacheTier memory;
+    private final CacheTier disk;
+    private final AtomicLong bodyFileSequence = new AtomicLong();
+    private final boolean collapsedForwarding;
+    private final int collapsedMaxBodySize;
+    private final Map<String, SharedFetch> fetches = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    public HttpCache(ProxyServerProperties.Cache properties) {
+        this.enabled = properties.isEnabled();
+        this.memoryMaxObjectSize = properties.getMemoryMaxObjectSize();
+        this.collapsedForwarding = properties.isCollapsedForwarding();
+        this.collapsedMaxBodySize = properties.getCollapsedMaxBodySize();
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, properties.getMemoryMaxBytes() / 4096)));
+        this.memory = new CacheTier(properties.getMemoryMaxBytes(), this.sketch, entry -> {
+        });
+        if (this.enabled && !properties.getDiskDirectory().isBlank()) {
+            this.diskDirectory = Path.of(properties.getDiskDirectory());
+            this.diskMaxObjectSize = properties.getDiskMaxObjectSize();
+            this.disk = new CacheTier(properties.getDiskMaxBytes(), this.sketch, entry -> deleteBodyFile(entry.getBodyFile()));
+            this.prepareDiskDirectory();
+        } else {
+            this.diskDirectory = null;
+            this.diskMaxObjectSize = 0;
+            this.disk = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public static String key(URL url) {
+        return url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":" + (url.getPort() > -1 ? url.getPort() : url.getDefaultPort()) + url.getFile();
+    }
+
+    /**
+     * Whether the request may be answered from, and its response stored in, the cache: a plain GET without a
+     * body, range, conditional or credentials, that does not forbid storing.
+     */
+    public boolean isCacheable(HttpRequestInfo request) {
+        if (!this.enabled || !request.getMethod().equals("GET")) return false;
+        if (HttpBody.getRequestBodyLength(request) != 0) return false;
+        if (request.hasHeader(HttpHeaderName.RANGE) || request.hasHeader(HttpHeaderName.AUTHORIZATION)) return false;
+        if (request.hasHeader(HttpHeaderName.UPGRADE)) return false;
+        if (request.hasHeader(HttpHeaderName.IF_NONE_MATCH) || request.hasHeader(HttpHeaderName.IF_MODIFIED_SINCE)) return false;
+        return !CacheControl.parse(request).isNoStore();
+    }
+
+    /**
+     * Safe methods change nothing by definition; the rest may, so stored responses for their URL go.
+     */
+    public boolean isInvalidating(HttpRequestInfo request) {
+        return this.enabled && !SAFE_METHODS.contains(request.getMethod()) && !request.getMethod().equals("CONNECT");
+    }
+
+    /**
+     * The stored response for the request, fresh or not, or null if there is none for its variant.
+     */
+    public CachedResponse lookup(String key, HttpRequestInfo request) {
+        synchronized (this.sketch) {
+            this.sketch.increment(key);
+        }
+        var entry = this.memory.get(key);
+        if (entry == null && this.disk != null) entry = this.disk.get(key);
+        return entry != null && entry.matchesVary(request) ? entry : null;
+    }
+
+    /**
+     * Whether the entry may be served as is, given its freshness and what the request allows.
+     */
+    public boolean isServable(CachedResponse entry, HttpRequestInfo request, long now) {
+        if (!entry.isFresh(now)) return false;
+        var cacheControl = CacheControl.parse(request);
+        if (cacheControl.isNoCache()) return false;
+        return cacheControl.getMaxAge() < 0 || entry.getCurrentAge(now) <= cacheControl.getMaxAge() * 1000;
+    }
+
+    public boolean isCollapsedForwarding() {
+        return this.enabled && this.collapsedForwarding;
+    }
+
+    /**
+     * Registers a fetch for the key that later requests can attach to, or returns null if one is in flight.
+     */
+    public SharedFetch leadFetch(String key) {
+        var fetch = new SharedFetch(key, this.fetches);
+        return this.fetches.putIfAbsent(key, fetch) == null ? fetch : null;
+    }
+
+    /**
+     * The fetch in flight for the key, or null.
+     */
+    public SharedFetch joinFetch(String key) {
+        return this.fetches.get(key);
+    }
+
+    /**
+     * Whether a response may go to every request attached to its fetch: not meant for one client alone and
+     * small enough to be held in memory while the slowest of them is served.
+     */
+    public boolean isShareable(HttpResponseInfo response, long bodyLength) {
+        if (bodyLength < 0 || bodyLength > this.collapsedMaxBodySize || response.getStatus() == 206) return false;
+        var cacheControl = CacheControl.parse(response);
+        if (cacheControl.isNoStore() || cacheControl.isPrivate()) return false;
+        return !response.hasHeader(HttpHeaderName.SET_COOKIE) && !CachedResponse.isVaryingOnEverything(response);
+    }
+
+    /**
+     * Starts keeping a copy of the response body as it goes to {@code out}, or returns null if the response may
+     * not be stored. The request must have passed {@link #isCacheable}.
+     */
+    public CacheWriter startStore(String key, HttpRequestInfo request, HttpResponseInfo response, long requestTime,
+                                  long responseTime, long bodyLength, OutputStream out) {
+        if (!this.isStorable(request, response, bodyLength)) return null;
+        Path bodyFile = null;
+        if (bodyLength > this.memoryMaxObjectSize) {
+            if (this.disk == null || bodyLength > this.diskMaxObjectSize) return null;
+            bodyFile = this.diskDirectory.resolve(this.bodyFileSequence.incrementAndGet() + BODY_FILE_SUFFIX);
+        }
+        try {
+            return new CacheWriter(out, this, key, request, response, requestTime, responseTime, bodyLength, bodyFile);
+        } catch (IOException e) {
+            log.warn("Failed to create cache file {}; {}", bodyFile, e.getMessage());
+            return null;
+        }
+    }
+
+    void store(CachedResponse entry) {
+        // A new version may land in the other tier than the old one
+        var tier = entry.isOnDisk() ? this.disk : this.memory;
+        var otherTier = entry.isOnDisk() ? this.memory : this.disk;
+        if (otherTier != null) otherTier.remove(entry.getKey());
+        if (tier.put(entry)) this.stores.increment();
+    }
+
+    /**
+     * Updates the entry from the 304 Not Modified the origin sent for it and returns the updated one.
+     */
+    public CachedResponse revalidated(CachedResponse entry, HttpRequestInfo request, HttpResponseInfo notModified,
+                                      long requestTime, long responseTime) {
+        var updated = entry.revalidated(request, notModified, requestTime, responseTime);
+        this.store(updated);
+        this.revalidations.increment();
+        this.bytesSaved.add(entry.getBodyLength());
+        return updated;
+    }
+
+    public void invalidate(String key) {
+        this.memory.remove(key);
+        if (this.disk != null) this.disk.remove(key);
+    }
+
+    public void recordHit(CachedResponse entry) {
+        this.hits.increment();
+        this.bytesSaved.add(entry.getBodyLength());
+    }
+
+    public void recordMiss() {
+        this.misses.increment();
+    }
+
+    public void recordCollapsed(SharedFetch fetch) {
+        this.collapsed.increment();
+        this.bytesSaved.add(fetch.getBodyLength());
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getRevalidations() {
+        return this.revalidations.sum();
+    }
+
+    public long getStores() {
+        return this.stores.sum();
+    }
+
+    public long getCollapsed() {
+        return this.collapsed.sum();
+    }
+
+    public int getSharedFetches() {
+        return this.fetches.size();
+    }
+
+    public long getBytesSaved() {
+        return this.bytesSaved.sum();
+    }
+
+    public long getEvictions() {
+        return this.memory.getEvictions() + (this.disk != null ? this.disk.getEvictions() : 0);
+    }
+
+    public int getEntries() {
+        return this.memory.getSize() + (this.disk != null ? this.disk.getSize() : 0);
+    }
+
+    public long getMemoryBytes() {
+        return this.memory.getBytes();
+    }
+
+    public long getDiskBytes() {
+        return this.disk != null ? this.disk.getBytes() : 0;
+    }
+
+    @Override
+    public void close() {
+        this.memory.clear();
+        if (this.disk != null) this.disk.clear();
+    }
+
+    static boolean isHeuristicallyCacheable(int status) {
+        return CACHEABLE_STATUSES.contains(status);
+    }
+
+    static void deleteBodyFile(Path bodyFile) {
+        try {
+            // Clients being served from it keep reading their open channel
+            Files.deleteIfExists(bodyFile);
+        } catch (IOException e) {
+            log.warn("Failed to delete cache file {}; {}", bodyFile, e.getMessage());
+        }
+    }
+
+    private boolean isStorable(HttpRequestInfo request, HttpResponseInfo response, long bodyLength) {
+        if (bodyLength < 0 || !CACHEABLE_STATUSES.contains(response.getStatus())) return false;
+        if (CacheControl.parse(request).isNoStore()) return false;
+        var cacheControl = CacheControl.parse(response);
+        if (cacheControl.isNoStore() || cacheControl.isPrivate()) return false;
+        // What one client's cookie got is not for everyone
+        if (response.hasHeader(HttpHeaderName.SET_COOKIE) || CachedResponse.isVaryingOnEverything(response)) return false;
+        return cacheControl.getMaxAge() > -1 || cacheControl.getSMaxAge() > -1 || cacheControl.isPublic()
+                || response.hasHeader(HttpHeaderName.EXPIRES)
+                || response.hasHeader(HttpHeaderName.LAST_MODIFIED)
+                || response.hasHeader(HttpHeaderName.ETAG);
+    }
+
+    /**
+     * Bodies left from a previous run are not indexed anywhere, so they go.
+     */
+    private void prepareDiskDirectory() {
+        try {
+            Files.createDirectories(this.diskDirectory);
+            try (Stream<Path> files = Files.list(this.diskDirectory)) {
+                files.filter(file -> file.getFileName().toString().endsWith(BODY_FILE_SUFFIX)).forEach(HttpCache::deleteBodyFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cache directory cannot be prepared: " + this.diskDirectory, e);
+        }
+    }
+}
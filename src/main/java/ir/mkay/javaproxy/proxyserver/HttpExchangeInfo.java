@@ -1,62 +1,384 @@
 package ir.mkay.javaproxy.proxyserver;
 
-import lombok.Getter;
-
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.function.BiConsumer;
 
-@Getter
+/**
+ * Headers are kept as ISO-8859-1 bytes with a flat table of name and value ranges, in the order and case they were
+ * received; well known names are tagged with their {@link HttpHeaderName} and strings are only created for values
+ * that are actually read.
+ */
 public abstract class HttpExchangeInfo {
 
     public static final String CRLF = "\r\n";
     public static final String END_OF_HTTP_HEADER = CRLF + CRLF;
 
-    protected Map<String, List<String>> headers = new HashMap<>();
+    private static final int INITIAL_HEADER_BYTES = 1024;
+    private static final int INITIAL_HEADERS = 32;
+
+    protected byte[] headerBytes = new byte[INITIAL_HEADER_BYTES];
+    private int headerBytesLength;
+    private int[] headerRanges = new int[INITIAL_HEADERS * 4];
+    private HttpHeaderName[] headerNames = new HttpHeaderName[INITIAL_HEADERS];
+    private int headerCount;
+    private byte[] serialized = new byte[0];
 
-    public void parseHeader(String header) {
-        var parts = header.split("\\s*:\\s*");
-        this.addHeader(parts[0], parts[1]);
+    /**
+     * Copies a header parsed by {@code parser} from {@code bytes[start, start + length)}.
+     */
+    public void load(byte[] bytes, int start, int length, HttpHeaderParser parser) {
+        this.reset();
+        this.ensureHeaderBytesCapacity(length);
+        System.arraycopy(bytes, start, this.headerBytes, 0, length);
+        this.headerBytesLength = length;
+        var count = parser.getHeaderCount();
+        this.ensureHeaderCapacity(count);
+        System.arraycopy(parser.getHeaderRanges(), 0, this.headerRanges, 0, count * 4);
+        for (int i = 0; i < count; i++) {
+            this.headerNames[i] = HttpHeaderName.lookup(this.headerBytes, this.headerRanges[i * 4], this.headerRanges[i * 4 + 1]);
+        }
+        this.headerCount = count;
+        this.loadFirstLine(parser);
+    }
+
+    public void parseHttpString(String httpString) {
+        var bytes = (httpString + END_OF_HTTP_HEADER).getBytes(StandardCharsets.ISO_8859_1);
+        var parser = new HttpHeaderParser();
+        var length = parser.parse(bytes, 0, bytes.length);
+        if (length < 0) throw new IllegalStateException("Incomplete HTTP string");
+        this.load(bytes, 0, length, parser);
+    }
+
+    public void reset() {
+        this.headerBytesLength = 0;
+        this.headerCount = 0;
     }
 
     public void addHeader(String name, String value) {
-        this.headers.computeIfAbsent(name.toLowerCase(), n -> new ArrayList<>()).add(value);
+        var index = this.headerCount;
+        this.ensureHeaderCapacity(index + 1);
+        this.headerRanges[index * 4] = this.headerBytesLength;
+        this.appendHeaderBytes(name);
+        this.headerRanges[index * 4 + 1] = this.headerBytesLength;
+        this.headerRanges[index * 4 + 2] = this.headerBytesLength;
+        this.appendHeaderBytes(value);
+        this.headerRanges[index * 4 + 3] = this.headerBytesLength;
+        this.headerNames[index] = HttpHeaderName.lookup(name);
+        this.headerCount++;
+    }
+
+    public void addHeader(HttpHeaderName name, String value) {
+        this.addHeader(name.getName(), value);
+    }
+
+    /**
+     * Replaces every value of the header with a single one, keeping the position of the first occurrence.
+     */
+    public void setHeader(HttpHeaderName name, String value) {
+        var index = this.indexOfHeader(name, 0);
+        if (index < 0) {
+            this.addHeader(name, value);
+            return;
+        }
+        this.removeHeader(name, index + 1);
+        this.headerRanges[index * 4 + 2] = this.headerBytesLength;
+        this.appendHeaderBytes(value);
+        this.headerRanges[index * 4 + 3] = this.headerBytesLength;
+    }
+
+    public void removeHeader(HttpHeaderName name) {
+        this.removeHeader(name, 0);
+    }
+
+    public void removeHeader(String name) {
+        var knownName = HttpHeaderName.lookup(name);
+        if (knownName != null) {
+            this.removeHeader(knownName, 0);
+            return;
+        }
+        var target = 0;
+        for (int i = 0; i < this.headerCount; i++) {
+            if (this.headerNames[i] == null
+                    && HttpBytes.equalsIgnoreCase(this.headerBytes, this.headerRanges[i * 4], this.headerRanges[i * 4 + 1], name)) {
+                continue;
+            }
+            this.moveHeader(i, target++);
+        }
+        this.headerCount = target;
+    }
+
+    /**
+     * Removes the headers that only concern the connection they came over (RFC 7230 section 6.1): Connection and
+     * every header it names, Keep-Alive, Proxy-Connection, TE, Trailer and Upgrade. A request to switch protocols
+     * keeps its Upgrade header with {@code Connection: upgrade}, since the upgraded connection is relayed. Framing
+     * headers stay even if Connection names them, as the body has been framed by them already.
+     */
+    public void removeHopByHopHeaders() {
+        var upgrade = this.hasHeader(HttpHeaderName.UPGRADE) && this.hasHeaderToken(HttpHeaderName.CONNECTION, "upgrade");
+        var connectionValues = this.getHeaderValues(HttpHeaderName.CONNECTION);
+        if (connectionValues != null) {
+            for (var value : connectionValues) {
+                for (var token : value.split(",")) {
+                    var name = token.trim();
+                    var knownName = HttpHeaderName.lookup(name);
+                    if (name.isEmpty() || knownName == HttpHeaderName.CONTENT_LENGTH || knownName == HttpHeaderName.TRANSFER_ENCODING
+                            || knownName == HttpHeaderName.HOST || knownName == HttpHeaderName.UPGRADE) continue;
+                    this.removeHeader(name);
+                }
+            }
+        }
+        this.removeHeader(HttpHeaderName.CONNECTION);
+        this.removeHeader(HttpHeaderName.KEEP_ALIVE);
+        this.removeHeader(HttpHeaderName.PROXY_CONNECTION);
+        this.removeHeader(HttpHeaderName.TE);
+        this.removeHeader(HttpHeaderName.TRAILER);
+        if (upgrade) {
+            this.addHeader(HttpHeaderName.CONNECTION, "upgrade");
+        } else {
+            this.removeHeader(HttpHeaderName.UPGRADE);
+        }
+    }
+
+    public int getHeaderCount() {
+        return this.headerCount;
+    }
+
+    public String getHeaderName(int index) {
+        var name = this.headerNames[index];
+        var start = this.headerRanges[index * 4];
+        var end = this.headerRanges[index * 4 + 1];
+        if (name != null && HttpBytes.equals(this.headerBytes, start, end, name.getName())) return name.getName();
+        return HttpBytes.toString(this.headerBytes, start, end);
+    }
+
+    public String getHeaderValue(int index) {
+        return HttpBytes.toString(this.headerBytes, this.headerRanges[index * 4 + 2], this.headerRanges[index * 4 + 3]);
     }
 
     public List<String> getHeaderValues(String name) {
-        return this.headers.get(name.toLowerCase());
+        return this.getHeaderValues(this.indexOfHeader(name, 0), name);
+    }
+
+    public List<String> getHeaderValues(HttpHeaderName name) {
+        return this.getHeaderValues(this.indexOfHeader(name, 0), name.getName());
     }
 
     public String getHeaderFirstValue(String name) {
-        var values = this.headers.get(name.toLowerCase());
-        return values != null && values.size() > 0 ? values.get(0) : null;
+        var index = this.indexOfHeader(name, 0);
+        return index > -1 ? this.getHeaderValue(index) : null;
+    }
+
+    public String getHeaderFirstValue(HttpHeaderName name) {
+        var index = this.indexOfHeader(name, 0);
+        return index > -1 ? this.getHeaderValue(index) : null;
+    }
+
+    public boolean hasHeader(HttpHeaderName name) {
+        return this.indexOfHeader(name, 0) > -1;
+    }
+
+    public boolean hasHeaderToken(String name, String token) {
+        var knownName = HttpHeaderName.lookup(name);
+        if (knownName != null) return this.hasHeaderToken(knownName, token);
+        for (int i = this.indexOfHeader(name, 0); i > -1; i = this.indexOfHeader(name, i + 1)) {
+            if (this.valueContainsToken(i, token)) return true;
+        }
+        return false;
+    }
+
+    public boolean hasHeaderToken(HttpHeaderName name, String token) {
+        for (int i = this.indexOfHeader(name, 0); i > -1; i = this.indexOfHeader(name, i + 1)) {
+            if (this.valueContainsToken(i, token)) return true;
+        }
+        return false;
+    }
+
+    public long getContentLength() {
+        var index = this.indexOfHeader(HttpHeaderName.CONTENT_LENGTH, 0);
+        if (index > -1) {
+            return HttpBytes.parseLong(this.headerBytes, this.headerRanges[index * 4 + 2], this.headerRanges[index * 4 + 3]);
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Whether chunked is the final transfer coding, the only place where it frames the body (RFC 7230 section 3.3.1).
+     */
+    public boolean isChunked() {
+        var index = -1;
+        for (int i = this.indexOfHeader(HttpHeaderName.TRANSFER_ENCODING, 0); i > -1; i = this.indexOfHeader(HttpHeaderName.TRANSFER_ENCODING, i + 1)) {
+            index = i;
+        }
+        if (index < 0) return false;
+        var start = this.headerRanges[index * 4 + 2];
+        var end = this.headerRanges[index * 4 + 3];
+        for (int i = start; i < end; i++) {
+            if (this.headerBytes[i] == ',') start = i + 1;
+        }
+        start = HttpBytes.skipWhitespace(this.headerBytes, start, end);
+        end = HttpBytes.trimWhitespace(this.headerBytes, start, end);
+        return HttpBytes.equalsIgnoreCase(this.headerBytes, start, end, "chunked");
+    }
+
+    /**
+     * Whether the sender intends to keep the connection open after this message.
+     */
+    public boolean isKeepAlive() {
+        if (this.hasHeaderToken(HttpHeaderName.CONNECTION, "close")) return false;
+        return "HTTP/1.1".equals(this.getProtocolVersion()) || this.hasHeaderToken(HttpHeaderName.CONNECTION, "keep-alive");
     }
 
     public void forEachHeader(BiConsumer<String, String> headerConsumer) {
-        this.headers.forEach((name, values) -> {
-            values.forEach(value -> {
-                headerConsumer.accept(name, value);
-            });
-        });
+        for (int i = 0; i < this.headerCount; i++) {
+            headerConsumer.accept(this.getHeaderName(i), this.getHeaderValue(i));
+        }
+    }
+
+    /**
+     * Serialized size of the start line and header section, including the final empty line.
+     */
+    public int getHttpStringLength() {
+        var length = this.getHttpExchangeFirstLineLength() + 2 * CRLF.length();
+        for (int i = 0; i < this.headerCount; i++) {
+            length += this.headerRanges[i * 4 + 1] - this.headerRanges[i * 4]
+                    + this.headerRanges[i * 4 + 3] - this.headerRanges[i * 4 + 2] + 2 + CRLF.length();
+        }
+        return length;
+    }
+
+    /**
+     * Serializes into {@code target} starting at {@code offset} and returns the offset after the written bytes;
+     * the array must have room for {@link #getHttpStringLength()} bytes.
+     */
+    public int writeTo(byte[] target, int offset) {
+        offset = this.writeHttpExchangeFirstLine(target, offset);
+        offset = HttpBytes.put(target, offset, CRLF);
+        for (int i = 0; i < this.headerCount; i++) {
+            offset = HttpBytes.put(target, offset, this.headerBytes, this.headerRanges[i * 4], this.headerRanges[i * 4 + 1]);
+            target[offset++] = ':';
+            target[offset++] = ' ';
+            offset = HttpBytes.put(target, offset, this.headerBytes, this.headerRanges[i * 4 + 2], this.headerRanges[i * 4 + 3]);
+            offset = HttpBytes.put(target, offset, CRLF);
+        }
+        return HttpBytes.put(target, offset, CRLF);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        var length = this.getHttpStringLength();
+        if (buffer.remaining() < length) throw new IllegalStateException("Buffer too small for HTTP string");
+        if (buffer.hasArray()) {
+            var end = this.writeTo(buffer.array(), buffer.arrayOffset() + buffer.position());
+            buffer.position(end - buffer.arrayOffset());
+        } else {
+            buffer.put(this.serialize(), 0, length);
+        }
+    }
+
+    /**
+     * Writes the whole header with a single call, so it leaves in as few packets as possible.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(this.serialize(), 0, this.getHttpStringLength());
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.serialize(), this.getHttpStringLength());
     }
 
     public String toHttpString() {
-        StringBuilder result = new StringBuilder();
-        result.append(this.getHttpExchangeFirstLine());
-        result.append(CRLF);
-        this.forEachHeader((name, value) -> {
-            result.append(name);
-            result.append(": ");
-            result.append(value);
-            result.append(CRLF);
-        });
-        result.append(CRLF);
-        return result.toString();
+        return new String(this.serialize(), 0, this.getHttpStringLength(), StandardCharsets.ISO_8859_1);
     }
 
-    public abstract void parseHttpExchangeFirstLine(String line);
+    protected int indexOfHeader(String name, int from) {
+        var knownName = HttpHeaderName.lookup(name);
+        if (knownName != null) return this.indexOfHeader(knownName, from);
+        for (int i = from; i < this.headerCount; i++) {
+            if (this.headerNames[i] == null
+                    && HttpBytes.equalsIgnoreCase(this.headerBytes, this.headerRanges[i * 4], this.headerRanges[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected int indexOfHeader(HttpHeaderName name, int from) {
+        for (int i = from; i < this.headerCount; i++) {
+            if (this.headerNames[i] == name) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reused scratch space, so serializing a header does not allocate once it has grown to its working size.
+     */
+    private byte[] serialize() {
+        var length = this.getHttpStringLength();
+        if (this.serialized.length < length) this.serialized = new byte[Math.max(length, INITIAL_HEADER_BYTES)];
+        this.writeTo(this.serialized, 0);
+        return this.serialized;
+    }
+
+    private List<String> getHeaderValues(int firstIndex, String name) {
+        List<String> values = null;
+        for (int i = firstIndex; i > -1; i = this.indexOfHeader(name, i + 1)) {
+            if (values == null) values = new ArrayList<>();
+            values.add(this.getHeaderValue(i));
+        }
+        return values;
+    }
+
+    private boolean valueContainsToken(int index, String token) {
+        return HttpBytes.containsToken(this.headerBytes, this.headerRanges[index * 4 + 2], this.headerRanges[index * 4 + 3], token);
+    }
+
+    private void removeHeader(HttpHeaderName name, int from) {
+        var target = from;
+        for (int i = from; i < this.headerCount; i++) {
+            if (this.headerNames[i] == name) continue;
+            this.moveHeader(i, target++);
+        }
+        this.headerCount = target;
+    }
+
+    private void moveHeader(int from, int to) {
+        if (from == to) return;
+        System.arraycopy(this.headerRanges, from * 4, this.headerRanges, to * 4, 4);
+        this.headerNames[to] = this.headerNames[from];
+    }
+
+    private void appendHeaderBytes(String value) {
+        this.ensureHeaderBytesCapacity(this.headerBytesLength + value.length());
+        this.headerBytesLength = HttpBytes.put(this.headerBytes, this.headerBytesLength, value);
+    }
+
+    private void ensureHeaderBytesCapacity(int capacity) {
+        if (this.headerBytes.length < capacity) {
+            this.headerBytes = Arrays.copyOf(this.headerBytes, Math.max(capacity, this.headerBytes.length * 2));
+        }
+    }
+
+    private void ensureHeaderCapacity(int count) {
+        if (this.headerNames.length < count) {
+            var capacity = Math.max(count, this.headerNames.length * 2);
+            this.headerRanges = Arrays.copyOf(this.headerRanges, capacity * 4);
+            this.headerNames = Arrays.copyOf(this.headerNames, capacity);
+        }
+    }
+
+    protected abstract void loadFirstLine(HttpHeaderParser parser);
 
     public abstract String getHttpExchangeFirstLine();
+
+    protected abstract int getHttpExchangeFirstLineLength();
+
+    protected abstract int writeHttpExchangeFirstLine(byte[] target, int offset);
+
+    public abstract String getProtocolVersion();
 }
@@ -0,0 +1,88 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Header names the proxy itself looks at; parsed headers are tagged with these once,
+ * so later lookups compare references instead of bytes.
+ */
+@Getter
+public enum HttpHeaderName {
+    ACCEPT("Accept"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    ACCEPT_RANGES("Accept-Ranges"),
+    AGE("Age"),
+    AUTHORIZATION("Authorization"),
+    CACHE_CONTROL("Cache-Control"),
+    CONNECTION("Connection"),
+    CONTENT_ENCODING("Content-Encoding"),
+    CONTENT_LENGTH("Content-Length"),
+    CONTENT_RANGE("Content-Range"),
+    CONTENT_TYPE("Content-Type"),
+    COOKIE("Cookie"),
+    DATE("Date"),
+    ETAG("ETag"),
+    EXPECT("Expect"),
+    EXPIRES("Expires"),
+    HOST("Host"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    IF_NONE_MATCH("If-None-Match"),
+    KEEP_ALIVE("Keep-Alive"),
+    LAST_MODIFIED("Last-Modified"),
+    PRAGMA("Pragma"),
+    PROXY_AGENT("Proxy-Agent"),
+    PROXY_AUTHORIZATION("Proxy-Authorization"),
+    PROXY_CONNECTION("Proxy-Connection"),
+    PROXY_STATUS("Proxy-Status"),
+    RANGE("Range"),
+    RETRY_AFTER("Retry-After"),
+    SET_COOKIE("Set-Cookie"),
+    TE("TE"),
+    TRAILER("Trailer"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    UPGRADE("Upgrade"),
+    USER_AGENT("User-Agent"),
+    VARY("Vary"),
+    VIA("Via");
+
+    private static final HttpHeaderName[][] BY_LENGTH;
+
+    static {
+        var maxLength = 0;
+        for (var name : values()) maxLength = Math.max(maxLength, name.name.length());
+        List<List<HttpHeaderName>> byLength = new ArrayList<>();
+        for (int i = 0; i <= maxLength; i++) byLength.add(new ArrayList<>());
+        for (var name : values()) byLength.get(name.name.length()).add(name);
+        BY_LENGTH = new HttpHeaderName[maxLength + 1][];
+        for (int i = 0; i <= maxLength; i++) BY_LENGTH[i] = byLength.get(i).toArray(HttpHeaderName[]::new);
+    }
+
+    private final String name;
+
+    HttpHeaderName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Case-insensitive lookup of {@code bytes[start, end)}; null for names the proxy does not know.
+     */
+    public static HttpHeaderName lookup(byte[] bytes, int start, int end) {
+        var length = end - start;
+        if (length >= BY_LENGTH.length) return null;
+        for (var candidate : BY_LENGTH[length]) {
+            if (HttpBytes.equalsIgnoreCase(bytes, start, end, candidate.name)) return candidate;
+        }
+        return null;
+    }
+
+    public static HttpHeaderName lookup(String name) {
+        if (name.length() >= BY_LENGTH.length) return null;
+        for (var candidate : BY_LENGTH[name.length()]) {
+            if (candidate.name.equalsIgnoreCase(name)) return candidate;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,201 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.util.Arrays;
+
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandler.MAX_HTTP_STRING_SIZE;
+
+/**
+ * Single pass state machine for an HTTP/1.x start line and header section.
+ * <p>
+ * It only records offsets, relative to the start of the header, of the three start line tokens and of every
+ * header name and (trimmed) value, so the bytes can be moved between calls as long as the header start moves with them.
+ * Parsing is incremental: call {@link #parse(byte[], int, int)} again with more bytes until it returns a length.
+ * Instances are meant to be reused through {@link #reset()}.
+ */
+public class HttpHeaderParser {
+
+    private static final int INITIAL_HEADERS = 32;
+
+    private State state = State.START;
+    private int index;
+    private int tokenStart;
+    private int lastNonWhitespace;
+    private final int[] firstLine = new int[6];
+    private int firstLineTokens;
+    private int[] headers = new int[INITIAL_HEADERS * 4];
+    private int headerCount;
+
+    public void reset() {
+        this.state = State.START;
+        this.index = 0;
+        this.firstLineTokens = 0;
+        this.headerCount = 0;
+    }
+
+    /**
+     * Continues parsing {@code bytes[start, end)} where the header begins at {@code start}.
+     *
+     * @return the header length including the empty line, or -1 if more bytes are needed
+     */
+    public int parse(byte[] bytes, int start, int end) {
+        var limit = Math.min(end - start, MAX_HTTP_STRING_SIZE);
+        while (this.index < limit) {
+            var b = bytes[start + this.index];
+            switch (this.state) {
+                case START -> {
+                    // Empty lines before a request line are ignored (RFC 7230 3.5)
+                    if (b != '\r' && b != '\n') {
+                        this.tokenStart = this.index;
+                        this.state = State.FIRST_LINE_TOKEN;
+                    }
+                }
+                case FIRST_LINE_TOKEN -> {
+                    if (b == '\r' || b == '\n') {
+                        this.endFirstLineToken(this.index);
+                        this.state = b == '\r' ? State.FIRST_LINE_LF : State.HEADER_LINE_START;
+                    } else if (b == ' ' && this.firstLineTokens < 2) {
+                        this.endFirstLineToken(this.index);
+                        this.state = State.FIRST_LINE_SPACE;
+                    }
+                }
+                case FIRST_LINE_SPACE -> {
+                    if (b == '\r' || b == '\n') {
+                        this.state = b == '\r' ? State.FIRST_LINE_LF : State.HEADER_LINE_START;
+                    } else if (b != ' ') {
+                        this.tokenStart = this.index;
+                        this.state = State.FIRST_LINE_TOKEN;
+                    }
+                }
+                case FIRST_LINE_LF -> {
+                    this.expectLf(b);
+                    this.state = State.HEADER_LINE_START;
+                }
+                case HEADER_LINE_START -> {
+                    if (b == '\r') {
+                        this.state = State.END_LF;
+                    } else if (b == '\n') {
+                        return this.complete();
+                    } else if (HttpBytes.isWhitespace(b)) {
+                        throw new IllegalStateException("Obsolete header line folding is not supported");
+                    } else if (b == ':') {
+                        throw new IllegalStateException("Empty header name");
+                    } else {
+                        this.tokenStart = this.index;
+                        this.state = State.HEADER_NAME;
+                    }
+                }
+                case HEADER_NAME -> {
+                    if (b == ':') {
+                        this.addHeaderName(this.tokenStart, this.index);
+                        this.state = State.HEADER_VALUE_START;
+                    } else if (b == '\r' || b == '\n') {
+                        throw new IllegalStateException("Invalid header line");
+                    } else if (HttpBytes.isWhitespace(b)) {
+                        // RFC 9112 section 5.1; trimming it would let "Transfer-Encoding :" frame a body
+                        throw new IllegalStateException("Whitespace in header name");
+                    }
+                }
+                case HEADER_VALUE_START -> {
+                    if (b == '\r' || b == '\n') {
+                        this.endHeaderValue(this.index, this.index);
+                        this.state = b == '\r' ? State.HEADER_LF : State.HEADER_LINE_START;
+                    } else if (!HttpBytes.isWhitespace(b)) {
+                        this.tokenStart = this.index;
+                        this.lastNonWhitespace = this.index + 1;
+                        this.state = State.HEADER_VALUE;
+                    }
+                }
+                case HEADER_VALUE -> {
+                    if (b == '\r' || b == '\n') {
+                        this.endHeaderValue(this.tokenStart, this.lastNonWhitespace);
+                        this.state = b == '\r' ? State.HEADER_LF : State.HEADER_LINE_START;
+                    } else if (!HttpBytes.isWhitespace(b)) {
+                        this.lastNonWhitespace = this.index + 1;
+                    }
+                }
+                case HEADER_LF -> {
+                    this.expectLf(b);
+                    this.state = State.HEADER_LINE_START;
+                }
+                case END_LF -> {
+                    this.expectLf(b);
+                    return this.complete();
+                }
+            }
+            this.index++;
+        }
+        if (this.index >= MAX_HTTP_STRING_SIZE) {
+            throw new IllegalStateException("HTTP string size exceeded");
+        }
+        return -1;
+    }
+
+    public int getFirstLineTokenCount() {
+        return this.firstLineTokens;
+    }
+
+    public int getFirstLineTokenStart(int token) {
+        return this.firstLine[token * 2];
+    }
+
+    public int getFirstLineTokenEnd(int token) {
+        return this.firstLine[token * 2 + 1];
+    }
+
+    public int getHeaderCount() {
+        return this.headerCount;
+    }
+
+    /**
+     * Name start, name end, value start and value end of each header, four ints per header.
+     */
+    public int[] getHeaderRanges() {
+        return this.headers;
+    }
+
+    private int complete() {
+        if (this.firstLineTokens < 2) {
+            throw new IllegalStateException("Invalid HTTP start line");
+        }
+        this.state = State.DONE;
+        return this.index + 1;
+    }
+
+    private void expectLf(byte b) {
+        if (b != '\n') throw new IllegalStateException("Expected LF after CR");
+    }
+
+    private void endFirstLineToken(int end) {
+        this.firstLine[this.firstLineTokens * 2] = this.tokenStart;
+        this.firstLine[this.firstLineTokens * 2 + 1] = end;
+        this.firstLineTokens++;
+    }
+
+    private void addHeaderName(int start, int end) {
+        if (this.headerCount * 4 == this.headers.length) {
+            this.headers = Arrays.copyOf(this.headers, this.headers.length * 2);
+        }
+        this.headers[this.headerCount * 4] = start;
+        this.headers[this.headerCount * 4 + 1] = end;
+    }
+
+    private void endHeaderValue(int start, int end) {
+        this.headers[this.headerCount * 4 + 2] = start;
+        this.headers[this.headerCount * 4 + 3] = end;
+        this.headerCount++;
+    }
+
+    private enum State {
+        START,
+        FIRST_LINE_TOKEN,
+        FIRST_LINE_SPACE,
+        FIRST_LINE_LF,
+        HEADER_LINE_START,
+        HEADER_NAME,
+        HEADER_VALUE_START,
+        HEADER_VALUE,
+        HEADER_LF,
+        END_LF,
+        DONE
+    }
+}
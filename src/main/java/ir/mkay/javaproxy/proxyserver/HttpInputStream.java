@@ -0,0 +1,129 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandler.MAX_HTTP_STRING_SIZE;
+import static java.lang.System.nanoTime;
+
+/**
+ * A buffered stream whose buffer HTTP headers are parsed in place, so header bytes are read exactly once.
+ * The buffer is borrowed from a {@link BufferPool} and returned on {@link #close()}.
+ */
+public class HttpInputStream extends InputStream {
+
+    private final InputStream in;
+    private final BufferPool bufferPool;
+    private final HttpHeaderParser parser = new HttpHeaderParser();
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private long headerStartNanos;
+    private boolean closed;
+
+    public HttpInputStream(InputStream in, BufferPool bufferPool) {
+        this.in = in;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(bufferPool.getSmallSize());
+    }
+
+    /**
+     * Reads and consumes the next header into {@code httpExchangeInfo}.
+     *
+     * @return the header length, or 0 if the stream ended before the header started
+     */
+    public int readHeader(HttpExchangeInfo httpExchangeInfo) throws IOException {
+        this.parser.reset();
+        this.headerStartNanos = this.limit > this.position ? nanoTime() : 0;
+        while (true) {
+            var length = this.parser.parse(this.buffer, this.position, this.limit);
+            if (length > 0) {
+                httpExchangeInfo.load(this.buffer, this.position, length, this.parser);
+                this.position += length;
+                return length;
+            }
+            if (this.limit == this.buffer.length) this.makeRoom();
+            var read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read < 0) {
+                if (this.limit == this.position) return 0;
+                throw new EOFException("Stream ended in the middle of HTTP header");
+            }
+            if (this.headerStartNanos == 0 && read > 0) this.headerStartNanos = nanoTime();
+            this.limit += read;
+        }
+    }
+
+    /**
+     * When the first byte of the last header read became available, so idle time before it is not counted.
+     */
+    public long getHeaderStartNanos() {
+        return this.headerStartNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.position == this.limit && this.fill() < 0) return -1;
+        return this.buffer[this.position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (this.position == this.limit) {
+            // Large reads bypass the buffer instead of copying twice
+            if (len >= this.buffer.length) return this.in.read(b, off, len);
+            if (this.fill() < 0) return -1;
+        }
+        var count = Math.min(len, this.limit - this.position);
+        System.arraycopy(this.buffer, this.position, b, off, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (this.limit - this.position) + this.in.available();
+    }
+
+    /**
+     * Drops whatever is already buffered or immediately available.
+     */
+    public void purge() throws IOException {
+        this.position = this.limit = 0;
+        this.in.skipNBytes(this.in.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+        synchronized (this) {
+            if (this.closed) return;
+            this.closed = true;
+        }
+        this.bufferPool.release(this.buffer);
+    }
+
+    private int fill() throws IOException {
+        this.position = this.limit = 0;
+        var read = this.in.read(this.buffer, 0, this.buffer.length);
+        if (read > 0) this.limit = read;
+        return read;
+    }
+
+    private void makeRoom() {
+        if (this.position > 0) {
+            // Parser offsets are relative to the header start, so the pending header can be moved to the front
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        } else if (this.buffer.length < MAX_HTTP_STRING_SIZE) {
+            var grown = this.bufferPool.acquire(Math.min(this.buffer.length * 2, MAX_HTTP_STRING_SIZE));
+            System.arraycopy(this.buffer, 0, grown, 0, this.limit);
+            this.bufferPool.release(this.buffer);
+            this.buffer = grown;
+        } else {
+            throw new IllegalStateException("HTTP string size exceeded");
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ir.mkay.javaproxy.proxyserver;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -16,30 +17,131 @@ public class HttpRequestInfo extends HttpExchangeInfo {
     private URL targetAsUrl;
     private boolean https;
 
-    public void parseHttpExchangeFirstLine(String line) {
-        var parts = line.split("\\s+");
-        this.method = parts[0];
-        this.target = parts[1];
-        this.protocolVersion = parts[2];
-        try {
-            var target = this.target;
-            if (!target.startsWith("http://")) {
-                target = "http://" + target;
+    /**
+     * Write the target in origin-form ({@code /path?query}), as required when talking to the origin directly.
+     */
+    private boolean originForm;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int targetStart;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int targetEnd;
+
+    @Override
+    protected void loadFirstLine(HttpHeaderParser parser) {
+        if (parser.getFirstLineTokenCount() < 3) {
+            throw new IllegalStateException("Invalid request line");
+        }
+        this.method = HttpBytes.intern(this.headerBytes, parser.getFirstLineTokenStart(0), parser.getFirstLineTokenEnd(0),
+                "GET", "POST", "HEAD", "CONNECT", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE");
+        this.targetStart = parser.getFirstLineTokenStart(1);
+        this.targetEnd = parser.getFirstLineTokenEnd(1);
+        this.protocolVersion = HttpBytes.intern(this.headerBytes, parser.getFirstLineTokenStart(2), parser.getFirstLineTokenEnd(2),
+                "HTTP/1.1", "HTTP/1.0");
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        this.method = null;
+        this.target = null;
+        this.protocolVersion = null;
+        this.targetAsUrl = null;
+        this.https = false;
+        this.originForm = false;
+        this.targetStart = 0;
+        this.targetEnd = 0;
+    }
+
+    public String getTarget() {
+        if (this.target == null && this.targetEnd > this.targetStart) {
+            this.target = HttpBytes.toString(this.headerBytes, this.targetStart, this.targetEnd);
+        }
+        return this.target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+        this.targetAsUrl = null;
+        this.targetStart = 0;
+        this.targetEnd = 0;
+    }
+
+    public URL getTargetAsUrl() {
+        if (this.targetAsUrl == null && this.getTarget() != null) {
+            try {
+                var target = this.getTarget();
+                if (!target.startsWith("http://")) {
+                    target = "http://" + target;
+                }
+                this.targetAsUrl = new URL(target);
+            } catch (MalformedURLException ignore) {
             }
-            this.targetAsUrl = new URL(target);
-        } catch (MalformedURLException ignore) {
         }
+        return this.targetAsUrl;
     }
 
     @Override
     public String getHttpExchangeFirstLine() {
-        return  this.method + " " + this.target + " " + this.protocolVersion;
+        return  this.method + " " + this.getTarget() + " " + this.protocolVersion;
+    }
+
+    @Override
+    protected int getHttpExchangeFirstLineLength() {
+        return this.method.length() + 1 + this.getWrittenTargetLength() + 1 + this.protocolVersion.length();
+    }
+
+    @Override
+    protected int writeHttpExchangeFirstLine(byte[] target, int offset) {
+        offset = HttpBytes.put(target, offset, this.method);
+        target[offset++] = ' ';
+        if (this.targetEnd > this.targetStart) {
+            var start = this.getWrittenTargetStart();
+            if (this.isMissingOriginFormSlash(start)) target[offset++] = '/';
+            offset = HttpBytes.put(target, offset, this.headerBytes, start, this.targetEnd);
+        } else {
+            offset = HttpBytes.put(target, offset, this.target);
+        }
+        target[offset++] = ' ';
+        return HttpBytes.put(target, offset, this.protocolVersion);
+    }
+
+    private int getWrittenTargetLength() {
+        if (this.targetEnd <= this.targetStart) return this.target.length();
+        var start = this.getWrittenTargetStart();
+        return (this.isMissingOriginFormSlash(start) ? 1 : 0) + this.targetEnd - start;
+    }
+
+    /**
+     * {@code http://host} and {@code http://host?query} have an empty path, which origin-form writes as {@code /}.
+     */
+    private boolean isMissingOriginFormSlash(int start) {
+        return start != this.targetStart && (start == this.targetEnd || this.headerBytes[start] != '/');
+    }
+
+    /**
+     * Start of the target bytes to write; for origin-form that is the path after {@code scheme://authority}.
+     */
+    private int getWrittenTargetStart() {
+        if (!this.originForm || !this.isAbsoluteFormTarget()) return this.targetStart;
+        var authorityStart = this.targetStart + "http://".length();
+        for (int i = authorityStart; i < this.targetEnd; i++) {
+            if (this.headerBytes[i] == '/' || this.headerBytes[i] == '?') return i;
+        }
+        return this.targetEnd;
+    }
+
+    private boolean isAbsoluteFormTarget() {
+        var schemeEnd = this.targetStart + "http://".length();
+        return schemeEnd <= this.targetEnd && HttpBytes.equalsIgnoreCase(this.headerBytes, this.targetStart, schemeEnd, "http://");
     }
 
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder("Request Info:\n");
-        result.append(this.method + " " + this.target + " " + this.protocolVersion);
+        result.append(this.method + " " + this.getTarget() + " " + this.protocolVersion);
         result.append("\n");
         forEachHeader((name, value) -> {
             result.append(name);
@@ -1,5 +1,6 @@
 package ir.mkay.javaproxy.proxyserver;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -8,44 +9,95 @@ import lombok.Setter;
 public class HttpResponseInfo extends HttpExchangeInfo {
 
     public static final HttpResponseInfo CONNECTION_ESTABLISHED;
+    public static final HttpResponseInfo BAD_REQUEST;
 
     static {
         CONNECTION_ESTABLISHED = new HttpResponseInfo();
         CONNECTION_ESTABLISHED.setStatus(200);
         CONNECTION_ESTABLISHED.setProtocolVersion("HTTP/1.0");
         CONNECTION_ESTABLISHED.setReasonPhrase("Connection established");
-        CONNECTION_ESTABLISHED.addHeader("proxy-agent", "JavaProxy");
+        CONNECTION_ESTABLISHED.addHeader(HttpHeaderName.PROXY_AGENT, "JavaProxy");
+
+        BAD_REQUEST = new HttpResponseInfo();
+        BAD_REQUEST.setStatus(400);
+        BAD_REQUEST.setProtocolVersion("HTTP/1.1");
+        BAD_REQUEST.setReasonPhrase("Bad Request");
+        BAD_REQUEST.addHeader(HttpHeaderName.CONTENT_LENGTH, "0");
+        BAD_REQUEST.addHeader(HttpHeaderName.CONNECTION, "close");
+        BAD_REQUEST.addHeader(HttpHeaderName.PROXY_AGENT, "JavaProxy");
     }
 
     private String protocolVersion;
     private int status;
     private String reasonPhrase;
 
-    public void parseHttpExchangeFirstLine(String line) {
-        var parts = line.split("\\s+", 3);
-        this.protocolVersion = parts[0];
-        this.status = Integer.parseInt(parts[1]);
-        this.reasonPhrase = parts[2];
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int reasonPhraseStart;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int reasonPhraseEnd;
+
+    @Override
+    protected void loadFirstLine(HttpHeaderParser parser) {
+        this.protocolVersion = HttpBytes.intern(this.headerBytes, parser.getFirstLineTokenStart(0), parser.getFirstLineTokenEnd(0),
+                "HTTP/1.1", "HTTP/1.0");
+        this.status = (int) HttpBytes.parseLong(this.headerBytes, parser.getFirstLineTokenStart(1), parser.getFirstLineTokenEnd(1));
+        if (parser.getFirstLineTokenCount() > 2) {
+            this.reasonPhraseStart = parser.getFirstLineTokenStart(2);
+            this.reasonPhraseEnd = parser.getFirstLineTokenEnd(2);
+        }
     }
 
     @Override
-    public String getHttpExchangeFirstLine() {
-        return this.protocolVersion + " " + this.status + " " + this.reasonPhrase;
+    public void reset() {
+        super.reset();
+        this.protocolVersion = null;
+        this.status = 0;
+        this.reasonPhrase = null;
+        this.reasonPhraseStart = 0;
+        this.reasonPhraseEnd = 0;
     }
 
-    public int getContentLength() {
-        var contentLengthString = this.getHeaderFirstValue("content-length");
-        if (contentLengthString != null) {
-            return Integer.parseInt(contentLengthString);
-        } else {
-            return -1;
+    public String getReasonPhrase() {
+        if (this.reasonPhrase == null) {
+            this.reasonPhrase = HttpBytes.toString(this.headerBytes, this.reasonPhraseStart, this.reasonPhraseEnd);
         }
+        return this.reasonPhrase;
+    }
+
+    public boolean isInformational() {
+        return this.status >= 100 && this.status < 200;
+    }
+
+    @Override
+    public String getHttpExchangeFirstLine() {
+        return this.protocolVersion + " " + this.status + " " + this.getReasonPhrase();
+    }
+
+    @Override
+    protected int getHttpExchangeFirstLineLength() {
+        return this.protocolVersion.length() + 1 + HttpBytes.decimalLength(this.status) + 1 + this.getReasonPhraseLength();
+    }
+
+    @Override
+    protected int writeHttpExchangeFirstLine(byte[] target, int offset) {
+        offset = HttpBytes.put(target, offset, this.protocolVersion);
+        target[offset++] = ' ';
+        offset = HttpBytes.putDecimal(target, offset, this.status);
+        target[offset++] = ' ';
+        if (this.reasonPhrase != null) return HttpBytes.put(target, offset, this.reasonPhrase);
+        return HttpBytes.put(target, offset, this.headerBytes, this.reasonPhraseStart, this.reasonPhraseEnd);
+    }
+
+    private int getReasonPhraseLength() {
+        return this.reasonPhrase != null ? this.reasonPhrase.length() : this.reasonPhraseEnd - this.reasonPhraseStart;
     }
 
     @Override
     public String toString() {
         StringBuilder result = new StringBuilder("Response Info:\n");
-        result.append(this.protocolVersion + " " + this.status + " " + this.reasonPhrase);
+        result.append(this.protocolVersion + " " + this.status + " " + this.getReasonPhrase());
         result.append("\n");
         forEachHeader((name, value) -> {
             result.append(name);
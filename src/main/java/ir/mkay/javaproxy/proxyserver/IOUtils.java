@@ -3,6 +3,7 @@ package ir.mkay.javaproxy.proxyserver;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.Closeable;
+import java.net.Socket;
 
 @Slf4j
 public class IOUtils {
@@ -20,4 +21,16 @@ public class IOUtils {
         }
     }
 
+    /**
+     * Makes a read blocked on another thread return end of stream, without closing the socket under it.
+     */
+    public static void tryToShutdownInput(Socket socket) {
+        if (socket == null || socket.isInputShutdown()) return;
+        try {
+            socket.shutdownInput();
+        } catch (Exception e) {
+            log.debug("Shutting down input of {} failed", socket, e);
+        }
+    }
+
 }
@@ -0,0 +1,72 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed bucket latency histogram; recording is a binary search plus two striped counter increments,
+ * so it never blocks concurrent recorders.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds in seconds, from 100µs for cached lookups up to 5 minutes for long tunnels.
+     */
+    static final double[] BUCKET_BOUNDS = {
+            0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 30, 60, 300
+    };
+
+    private static final long[] BUCKET_BOUNDS_NANOS = Arrays.stream(BUCKET_BOUNDS).mapToLong(b -> (long) (b * 1e9)).toArray();
+
+    // One more than the bounds for +Inf
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < this.buckets.length; i++) this.buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        var index = Arrays.binarySearch(BUCKET_BOUNDS_NANOS, nanos);
+        this.buckets[index < 0 ? -index - 1 : index].increment();
+        this.sumNanos.add(nanos);
+    }
+
+    /**
+     * Cumulative counts in {@link #BUCKET_BOUNDS} order followed by the +Inf bucket, as Prometheus expects them.
+     */
+    public long[] getCumulativeCounts() {
+        var counts = new long[this.buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += this.buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (var bucket : this.buckets) count += bucket.sum();
+        return count;
+    }
+
+    public double getSumSeconds() {
+        return this.sumNanos.sum() / 1e9;
+    }
+
+    /**
+     * Upper bound of the bucket holding the quantile, or 0 when nothing was recorded.
+     */
+    public double getQuantileSeconds(double quantile) {
+        var counts = this.getCumulativeCounts();
+        var total = counts[counts.length - 1];
+        if (total == 0) return 0;
+        var rank = Math.ceil(quantile * total);
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (counts[i] >= rank) return BUCKET_BOUNDS[i];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
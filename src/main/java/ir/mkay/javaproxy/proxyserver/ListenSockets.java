@@ -0,0 +1,79 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The listening sockets of an engine, one per acceptor shard. With a single socket every new connection waits in
+ * one accept queue for one thread, which is what gives out first in a reconnect storm; several sockets bound to
+ * the same port with SO_REUSEPORT each get their own queue, and the kernel hashes connections over them.
+ */
+@Slf4j
+public class ListenSockets implements Closeable {
+
+    private final ServerSocketChannel[] channels;
+    private final LongAdder[] accepted;
+
+    public ListenSockets(ProxyServerProperties properties, ProxyMetrics metrics) throws IOException {
+        var shards = Math.max(1, properties.getAcceptors());
+        if (shards > 1) {
+            try (var probe = ServerSocketChannel.open()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    log.warn("SO_REUSEPORT is not supported here, accepting on a single socket instead of {}", shards);
+                    shards = 1;
+                }
+            }
+        }
+        this.channels = new ServerSocketChannel[shards];
+        this.accepted = new LongAdder[shards];
+        var port = properties.getPort();
+        try {
+            for (int i = 0; i < shards; i++) {
+                var channel = ServerSocketChannel.open();
+                this.channels[i] = channel;
+                if (shards > 1) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port), properties.getBacklog());
+                // With port 0 the first socket picks one and the rest join it
+                port = channel.socket().getLocalPort();
+            }
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+        for (int i = 0; i < shards; i++) {
+            var counter = this.accepted[i] = new LongAdder();
+            metrics.registerCounter("accepted_total", "Connections accepted by each acceptor.", "acceptor", String.valueOf(i), counter::sum);
+        }
+    }
+
+    public int size() {
+        return this.channels.length;
+    }
+
+    public ServerSocketChannel get(int shard) {
+        return this.channels[shard];
+    }
+
+    public void recordAccepted(int shard) {
+        this.accepted[shard].increment();
+    }
+
+    public long getAccepted(int shard) {
+        return this.accepted[shard].sum();
+    }
+
+    public int getLocalPort() {
+        return this.channels[0].socket().getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        for (var channel : this.channels) IOUtils.tryToClose(channel);
+    }
+}
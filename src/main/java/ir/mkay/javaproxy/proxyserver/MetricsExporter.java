@@ -0,0 +1,201 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Publishes {@link ProxyMetrics} as Prometheus text on a small local HTTP server and as a read-only MBean. The
+ * same server takes the admin actions registered with it.
+ */
+@Slf4j
+public class MetricsExporter implements DynamicMBean, Closeable {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ProxyMetrics metrics;
+    private final ProxyServerProperties.Metrics properties;
+    private final Map<String, Consumer<StringBuilder>> pages = new LinkedHashMap<>();
+    private final Map<String, UnaryOperator<String>> actions = new LinkedHashMap<>();
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+    private ObjectName objectName;
+
+    public MetricsExporter(ProxyMetrics metrics, ProxyServerProperties.Metrics properties) {
+        this.metrics = metrics;
+        this.properties = properties;
+    }
+
+    /**
+     * Adds a plain text page next to {@code /metrics}, for reports that do not fit a metric; call before starting.
+     */
+    public void addPage(String path, Consumer<StringBuilder> writer) {
+        this.pages.put(path, writer);
+    }
+
+    /**
+     * Adds a POST endpoint that hands the request body to the action and answers with what it returns, or with
+     * 400 and the message if it throws an IllegalArgumentException; call before starting.
+     */
+    public void addAction(String path, UnaryOperator<String> action) {
+        this.actions.put(path, action);
+    }
+
+    /**
+     * Starts the endpoint and the MBean. A taken port, as with a second instance on the same host, only leaves this
+     * instance without the endpoint; the proxy itself matters more.
+     */
+    public void start() throws IOException {
+        if (this.properties.getPort() > 0) {
+            try {
+                this.httpServer = HttpServer.create(new InetSocketAddress(this.properties.getAddress(), this.properties.getPort()), 0);
+            } catch (BindException e) {
+                log.warn("Metrics endpoint not started; {}:{} is in use", this.properties.getAddress(), this.properties.getPort());
+            }
+        }
+        if (this.httpServer != null) {
+            this.httpServer.createContext("/metrics", this::handle);
+            this.pages.forEach((path, writer) -> this.httpServer.createContext(path, exchange -> this.handlePage(exchange, writer)));
+            this.actions.forEach((path, action) -> this.httpServer.createContext(path, exchange -> this.handleAction(exchange, action)));
+            this.httpExecutor = Executors.newSingleThreadExecutor();
+            this.httpServer.setExecutor(this.httpExecutor);
+            this.httpServer.start();
+            log.info("Metrics available on http://{}:{}/metrics", this.properties.getAddress(), this.httpServer.getAddress().getPort());
+        }
+        if (this.properties.isJmx()) {
+            try {
+                this.objectName = new ObjectName("ir.mkay.javaproxy:type=ProxyMetrics");
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+            } catch (JMException e) {
+                log.warn("Registering metrics MBean failed", e);
+                this.objectName = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.httpServer != null) {
+            this.httpServer.stop(0);
+            this.httpExecutor.shutdown();
+        }
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            } catch (JMException e) {
+                log.debug("Unregistering metrics MBean failed", e);
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var out = new StringBuilder(8 * 1024);
+            this.metrics.writePrometheus(out);
+            var body = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private void handlePage(HttpExchange exchange, Consumer<StringBuilder> writer) throws IOException {
+        try (exchange) {
+            var out = new StringBuilder(8 * 1024);
+            writer.accept(out);
+            var body = out.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private void handleAction(HttpExchange exchange, UnaryOperator<String> action) throws IOException {
+        try (exchange) {
+            int status;
+            String response;
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                status = 405;
+                response = "Use POST\n";
+            } else {
+                try {
+                    response = action.apply(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                    status = 200;
+                } catch (IllegalArgumentException e) {
+                    status = 400;
+                    response = e.getMessage() + "\n";
+                }
+            }
+            var body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        var value = this.metrics.snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        var snapshot = this.metrics.snapshot();
+        var list = new AttributeList();
+        for (var attribute : attributes) {
+            var value = snapshot.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("Metrics have no operations");
+    }
+
+    /**
+     * Built on every call since error types and gauges only appear once they are first recorded or registered.
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        var attributes = this.metrics.snapshot().entrySet().stream()
+                .map(e -> new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(this.getClass().getName(), "JavaProxy metrics", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,184 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+
+/**
+ * A single selector thread; every channel registered here is only ever touched from this thread,
+ * other threads hand work over through {@link #execute(Runnable)}.
+ */
+@Slf4j
+public class NioEventLoop implements Runnable, Closeable {
+
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<NioProxyConnection> connections = new HashSet<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+    private volatile boolean running = true;
+    private long lastTimeoutCheck = currentTimeMillis();
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    public SelectionKey register(SelectableChannel channel, int interestOps, Handler handler) throws IOException {
+        return channel.register(this.selector, interestOps, handler);
+    }
+
+    /**
+     * Runs the task on this loop after the delay; only to be called from this loop. There is no cancelling,
+     * so a task has to check for itself whether it is still wanted.
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        this.timers.add(new Timer(nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task));
+    }
+
+    void addConnection(NioProxyConnection connection) {
+        this.connections.add(connection);
+    }
+
+    void removeConnection(NioProxyConnection connection) {
+        this.connections.remove(connection);
+    }
+
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.selector.select(this.getSelectTimeout());
+                this.runTasks();
+                this.runTimers();
+                this.processSelectedKeys();
+                this.checkTimeouts();
+            } catch (Exception e) {
+                log.warn("Error in event loop", e);
+            }
+        }
+        this.closeAll();
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.warn("Error running event loop task", e);
+            }
+        }
+    }
+
+    private long getSelectTimeout() {
+        var next = this.timers.peek();
+        if (next == null) return SELECT_TIMEOUT;
+        var wait = TimeUnit.NANOSECONDS.toMillis(next.deadline() - nanoTime());
+        // select(0) would block without a limit, so a timer that is due still waits a millisecond at most
+        return Math.max(1, Math.min(SELECT_TIMEOUT, wait));
+    }
+
+    private void runTimers() {
+        var now = nanoTime();
+        Timer timer;
+        while ((timer = this.timers.peek()) != null && now - timer.deadline() >= 0) {
+            this.timers.poll();
+            try {
+                timer.task().run();
+            } catch (Exception e) {
+                log.warn("Error running event loop timer", e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        var selectedKeys = this.selector.selectedKeys();
+        for (var key : selectedKeys) {
+            var handler = (Handler) key.attachment();
+            try {
+                handler.handle(key);
+            } catch (CancelledKeyException ignore) {
+                // Channel was closed while handling another key of the same connection
+            } catch (Exception e) {
+                handler.failed(e);
+            }
+        }
+        selectedKeys.clear();
+    }
+
+    private void checkTimeouts() {
+        var now = currentTimeMillis();
+        if (now - this.lastTimeoutCheck < SELECT_TIMEOUT) return;
+        this.lastTimeoutCheck = now;
+        for (var connection : Set.copyOf(this.connections)) {
+            connection.checkTimeout(now);
+        }
+    }
+
+    void closeIdleConnections() {
+        for (var connection : Set.copyOf(this.connections)) {
+            connection.closeIfIdle();
+        }
+    }
+
+    private void closeAll() {
+        for (var connection : Set.copyOf(this.connections)) {
+            connection.close();
+        }
+        for (var key : this.selector.keys()) {
+            IOUtils.tryToClose(key.channel());
+        }
+        IOUtils.tryToClose(this.selector);
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    public interface Handler {
+
+        void handle(SelectionKey key) throws IOException;
+
+        void failed(Exception e);
+    }
+}
@@ -0,0 +1,723 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandler.BAD_REQUEST_RESPONSE;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandler.CONNECTION_ESTABLISHED_RESPONSE;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandler.MAX_HTTP_STRING_SIZE;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+
+/**
+ * Non-blocking counterpart of {@link ProxyRequestHandler}; all methods run on the owning {@link NioEventLoop}.
+ * Past the request header bytes are relayed as they are, so a connection carries a single plain request: the
+ * origin is asked to close after answering, and whatever the client sends after the request body is dropped.
+ * A client wanting another request opens another connection, which goes through every check again.
+ */
+@Slf4j
+public class NioProxyConnection implements NioEventLoop.Handler {
+
+    private static final Logger exchangeInfoLog = LoggerFactory.getLogger(ProxyRequestHandler.class.getName() + "-EXCHANGE_INFO");
+    private static final long MIN_THROTTLE_NANOS = 1_000_000;
+
+    private final long startTime = currentTimeMillis();
+    private final NioProxyEngine engine;
+    private final NioEventLoop eventLoop;
+    private final BufferPool bufferPool;
+    private final ProxyMetrics metrics;
+    private final AdmissionController admission;
+    private final OriginConnector originConnector;
+    private final RateLimiter rateLimiter;
+    private final AccessControl accessControl;
+    private final AccessLog accessLog;
+    private final AccessLogEntry accessLogEntry;
+    private final NioProxyEngine.Timeouts timeouts;
+
+    private final HttpRequestInfo clientRequestInfo = new HttpRequestInfo();
+    private final HttpHeaderParser clientRequestParser = new HttpHeaderParser();
+    private final SocketChannel clientChannel;
+    private SelectionKey clientKey;
+    private ByteBuffer clientToProxy;
+    private boolean clientEof;
+    private boolean requestBodyBounded;
+    private long requestBodyRemaining;
+    private HttpBody.ChunkedScanner requestBodyScanner;
+    private boolean requestComplete;
+
+    private final List<ConnectAttempt> connectAttempts = new ArrayList<>(2);
+    private List<InetAddress> connectCandidates;
+    private int nextCandidate;
+    private int proxyPort;
+    private IOException lastConnectFailure;
+    private ParentProxy parentProxy;
+    private boolean parentFailedOver;
+
+    private SocketChannel proxyChannel;
+    private SelectionKey proxyKey;
+    private final ByteBuffer proxyToClient;
+    private boolean proxyEof;
+    private boolean proxyOutputShutdown;
+    private boolean clientOutputShutdown;
+
+    private State state = State.READING_REQUEST;
+    private long lastActivity = startTime;
+    private long headerStartNanos;
+    private long connectStartNanos;
+    private long relayStartNanos;
+    private boolean proxyResponded;
+    private long clientBytesReceived;
+    private long clientBytesSent;
+    private boolean tunnelOpened;
+    private TokenBucket byteBucket;
+    private boolean readsThrottled;
+    private long readsThrottledUntil;
+
+    public NioProxyConnection(NioProxyEngine engine, NioEventLoop eventLoop, SocketChannel clientChannel) {
+        this.engine = engine;
+        this.eventLoop = eventLoop;
+        this.clientChannel = clientChannel;
+        this.bufferPool = engine.getContext().getBufferPool();
+        this.metrics = engine.getContext().getMetrics();
+        this.admission = engine.getContext().getAdmission();
+        this.originConnector = engine.getContext().getOriginConnector();
+        this.rateLimiter = engine.getContext().getRateLimiter();
+        this.accessControl = engine.getContext().getAccessControl();
+        this.accessLog = engine.getContext().getAccessLog();
+        this.accessLogEntry = this.accessLog.isEnabled() ? new AccessLogEntry() : null;
+        this.timeouts = engine.getTimeouts();
+        this.metrics.connectionOpened();
+        // Request headers are parsed straight out of this buffer, so it needs an accessible array
+        this.clientToProxy = this.bufferPool.acquireHeapBuffer(this.bufferPool.getSmallSize());
+        this.proxyToClient = this.bufferPool.acquireBuffer(this.bufferPool.getSmallSize());
+    }
+
+    public void register() {
+        try {
+            this.clientChannel.configureBlocking(false);
+            this.clientChannel.socket().setTcpNoDelay(true);
+            if (this.accessLogEntry != null) this.accessLogEntry.setClientAddress(this.clientChannel.socket().getInetAddress().getAddress());
+            this.clientKey = this.eventLoop.register(this.clientChannel, SelectionKey.OP_READ, this);
+            this.eventLoop.addConnection(this);
+        } catch (IOException e) {
+            this.failed(e);
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key == this.clientKey) {
+            if (key.isReadable()) this.readClient();
+            if (this.state != State.CLOSED && key.isWritable()) {
+                var written = this.flush(this.proxyToClient, this.clientChannel);
+                this.metrics.getClientBytesSent().add(written);
+                this.clientBytesSent += written;
+            }
+        } else if (key == this.proxyKey) {
+            if (key.isReadable()) this.readProxy();
+            if (this.state != State.CLOSED && key.isWritable()) this.flush(this.clientToProxy, this.proxyChannel);
+        } else if (this.state == State.CONNECTING) {
+            this.finishConnectAttempt(key);
+        }
+        this.updateInterestOps();
+    }
+
+    @Override
+    public void failed(Exception e) {
+        if (this.state == State.CONNECTING && this.parentProxy != null) {
+            this.parentProxy.recordFailure();
+            if (this.failOverToAnotherParent()) return;
+        }
+        this.metrics.recordError(e);
+        if (e instanceof UnknownHostException) {
+            log.warn("Error on handling client request; UnknownHostException: {}", e.getMessage());
+        } else if (e instanceof SocketTimeoutException) {
+            log.warn("Error on handling client request; SocketTimeoutException: {}", e.getMessage());
+        } else {
+            log.warn("Error on handling client request", e);
+        }
+        this.close();
+    }
+
+    public void checkTimeout(long now) {
+        // A held back request always has its timer, which is at most the max request delay away
+        if (this.state == State.HELD_BACK) return;
+        // Connecting has its own timer once the addresses are known
+        if (this.state == State.CONNECTING && this.connectCandidates != null && this.originConnector.getTimeout() > 0) return;
+        // Quiet tunnels are normal, so they get their own limits instead of the proxy timeout
+        if (this.state == State.RELAYING && this.isTunnel()) {
+            this.checkTunnelTimeout(now);
+            return;
+        }
+        var timeout = this.state == State.READING_REQUEST ? this.timeouts.client() : this.timeouts.proxy();
+        if (timeout > 0 && now - this.lastActivity > timeout) {
+            this.failed(new SocketTimeoutException("Idle for " + (now - this.lastActivity) + "ms in " + this.state));
+        }
+    }
+
+    private void checkTunnelTimeout(long now) {
+        var maxLifetime = this.timeouts.tunnelMaxLifetime();
+        var idleTimeout = this.timeouts.tunnelIdle();
+        String reason;
+        if (maxLifetime > 0 && now - this.startTime >= maxLifetime) {
+            this.engine.getTunnelsExpired().increment();
+            reason = "open for " + (now - this.startTime) + "ms";
+        } else if (idleTimeout > 0 && now - this.lastActivity >= idleTimeout) {
+            this.engine.getTunnelsIdleClosed().increment();
+            reason = "idle for " + (now - this.lastActivity) + "ms";
+        } else {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Closing tunnel {}; {}", this.getElapsedTime(), this.clientRequestInfo.getTarget(), reason);
+        }
+        this.close();
+    }
+
+    /**
+     * Closes the connection if the client has not sent anything on it yet; for draining.
+     */
+    public void closeIfIdle() {
+        if (this.state == State.READING_REQUEST && this.clientBytesReceived == 0) this.close();
+    }
+
+    public void close() {
+        if (this.state == State.CLOSED) return;
+        this.state = State.CLOSED;
+        this.eventLoop.removeConnection(this);
+        for (var attempt : this.connectAttempts) IOUtils.tryToClose(attempt.key().channel());
+        IOUtils.tryToClose(this.proxyChannel);
+        IOUtils.tryToClose(this.clientChannel);
+        if (this.relayStartNanos > 0) this.recordPhase(ProxyMetrics.Phase.RELAY, nanoTime() - this.relayStartNanos);
+        this.finishAccessLogEntry();
+        this.metrics.connectionClosed();
+        this.admission.connectionFinished();
+        if (this.parentProxy != null) this.parentProxy.release();
+        if (this.tunnelOpened) this.admission.tunnelClosed();
+        this.bufferPool.release(this.clientToProxy);
+        this.bufferPool.release(this.proxyToClient);
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Cleaned Up", this.getElapsedTime());
+        }
+    }
+
+    private void readClient() throws IOException {
+        var read = this.clientChannel.read(this.clientToProxy);
+        if (read < 0) {
+            this.clientEof = true;
+            if (this.state == State.READING_REQUEST) this.close();
+            return;
+        }
+        this.lastActivity = currentTimeMillis();
+        this.metrics.getClientBytesReceived().add(read);
+        this.clientBytesReceived += read;
+        if (this.state == State.READING_REQUEST) {
+            if (this.headerStartNanos == 0 && read > 0) this.headerStartNanos = nanoTime();
+            this.readClientRequestInfo();
+        } else {
+            this.boundRequestBody(this.clientToProxy.position() - read);
+            this.throttleReads(read);
+        }
+    }
+
+    private void readClientRequestInfo() {
+        int headerLength;
+        try {
+            headerLength = this.clientRequestParser.parse(this.clientToProxy.array(), 0, this.clientToProxy.position());
+        } catch (IllegalStateException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("{}ms - Refusing malformed request header; {}", this.getElapsedTime(), e.getMessage());
+            }
+            this.reject(400, BAD_REQUEST_RESPONSE);
+            return;
+        }
+        if (headerLength < 0) {
+            if (!this.clientToProxy.hasRemaining()) this.growClientToProxy();
+            return;
+        }
+
+        this.clientRequestInfo.load(this.clientToProxy.array(), 0, headerLength, this.clientRequestParser);
+        this.beginAccessLogEntry();
+        this.recordPhase(ProxyMetrics.Phase.CLIENT_HEADER_READ, nanoTime() - this.headerStartNanos);
+        if (exchangeInfoLog.isDebugEnabled()) {
+            exchangeInfoLog.debug("{}ms - Client {}", this.getElapsedTime(), this.clientRequestInfo);
+        }
+
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        if (targetUrl == null || targetUrl.getHost().isEmpty() || !HttpBody.hasValidFraming(this.clientRequestInfo)) {
+            this.reject(400, BAD_REQUEST_RESPONSE);
+            return;
+        }
+        if (!this.accessControl.isAllowed(targetUrl.getHost())) {
+            this.reject(403, this.accessControl.getForbiddenResponse());
+            return;
+        }
+        if (this.rateLimiter.isEnabled()) {
+            var key = this.rateLimiter.getKey(this.clientChannel.socket().getInetAddress().getHostAddress(), targetUrl.getHost());
+            var wait = this.rateLimiter.acquireRequest(key);
+            if (wait < 0) {
+                this.reject(429, this.rateLimiter.getTooManyRequestsResponse());
+                return;
+            }
+            this.byteBucket = this.rateLimiter.getByteBucket(key);
+            if (wait > 0) {
+                if (log.isDebugEnabled()) {
+                    log.debug("{}ms - Holding back request of {} for {}ms", this.getElapsedTime(), key, wait / 1_000_000);
+                }
+                this.state = State.HELD_BACK;
+                this.eventLoop.schedule(() -> {
+                    if (this.state != State.HELD_BACK) return;
+                    try {
+                        this.startRequest(headerLength, targetUrl);
+                        this.updateInterestOps();
+                    } catch (Exception e) {
+                        this.failed(e);
+                    }
+                }, toMillisCeil(wait));
+                return;
+            }
+        }
+        this.startRequest(headerLength, targetUrl);
+    }
+
+    private void startRequest(int headerLength, URL targetUrl) {
+        if ("CONNECT".equals(this.clientRequestInfo.getMethod())) {
+            this.clientRequestInfo.setHttps(true);
+            if (this.accessLogEntry != null) this.accessLogEntry.addFlag(AccessLogEntry.HTTPS);
+            this.tunnelOpened = this.admission.tryOpenTunnel();
+            if (!this.tunnelOpened) {
+                this.reject(503, this.admission.getOverloadResponse());
+                return;
+            }
+        }
+        this.parentProxy = this.engine.getContext().getParentProxies().acquire(targetUrl.getHost());
+        // A parent answers the CONNECT itself, so it gets the request and its answer reaches the client as is
+        if (this.clientRequestInfo.isHttps() && this.parentProxy == null) {
+            this.clientToProxy.clear();
+        } else {
+            this.rewriteClientRequestHeader(headerLength);
+        }
+        this.state = State.CONNECTING;
+        this.resolveProxyAddress(targetUrl);
+    }
+
+    /**
+     * Answers without contacting the origin; closes once the response is flushed, the same way as after the
+     * origin's EOF.
+     */
+    private void reject(int status, byte[] response) {
+        this.setAccessLogStatus(status);
+        this.clientToProxy.clear();
+        this.proxyToClient.put(response);
+        this.proxyEof = true;
+        this.state = State.REJECTED;
+    }
+
+    /**
+     * Replaces the received header with the one the origin should see; body bytes already read stay behind it.
+     */
+    private void rewriteClientRequestHeader(int headerLength) {
+        this.clientRequestInfo.removeHopByHopHeaders();
+        // An upgrade keeps its Connection header and is relayed like a tunnel once switched
+        this.requestBodyBounded = !this.clientRequestInfo.isHttps() && !this.clientRequestInfo.hasHeader(HttpHeaderName.CONNECTION);
+        if (this.requestBodyBounded) {
+            this.clientRequestInfo.setHeader(HttpHeaderName.CONNECTION, "close");
+            var requestBodyLength = HttpBody.getRequestBodyLength(this.clientRequestInfo);
+            if (requestBodyLength == HttpBody.CHUNKED) {
+                this.requestBodyScanner = new HttpBody.ChunkedScanner();
+            } else {
+                this.requestBodyRemaining = requestBodyLength;
+            }
+        }
+        // Parents need the absolute-form target to know where the request goes
+        this.clientRequestInfo.setOriginForm(this.parentProxy == null);
+        var bodyLength = this.clientToProxy.position() - headerLength;
+        var rewrittenHeaderLength = this.clientRequestInfo.getHttpStringLength();
+        var rewritten = this.bufferPool.acquireHeapBuffer(rewrittenHeaderLength + bodyLength);
+        this.clientRequestInfo.writeTo(rewritten);
+        rewritten.put(this.clientToProxy.array(), headerLength, bodyLength);
+        this.bufferPool.release(this.clientToProxy);
+        this.clientToProxy = rewritten;
+        this.boundRequestBody(rewrittenHeaderLength);
+    }
+
+    /**
+     * Looks for the end of a plain request's body in the bytes from {@code from} on; once found, drops what
+     * follows it and stops reading the client.
+     */
+    private void boundRequestBody(int from) {
+        if (!this.requestBodyBounded || this.requestComplete) return;
+        var end = this.clientToProxy.position();
+        int bodyEnd;
+        if (this.requestBodyScanner != null) {
+            bodyEnd = this.requestBodyScanner.scan(this.clientToProxy.array(), from, end);
+        } else {
+            var taken = (int) Math.min(this.requestBodyRemaining, end - from);
+            this.requestBodyRemaining -= taken;
+            bodyEnd = this.requestBodyRemaining == 0 ? from + taken : -1;
+        }
+        if (bodyEnd < 0) return;
+        this.requestComplete = true;
+        if (bodyEnd < end && log.isDebugEnabled()) {
+            log.debug("{}ms - Dropped {} bytes sent after the request", this.getElapsedTime(), end - bodyEnd);
+        }
+        this.clientToProxy.position(bodyEnd);
+    }
+
+    private void growClientToProxy() {
+        var capacity = this.clientToProxy.capacity();
+        if (capacity >= MAX_HTTP_STRING_SIZE) {
+            throw new IllegalStateException("HTTP string size exceeded");
+        }
+        var grown = this.bufferPool.acquireHeapBuffer(Math.min(capacity * 2, MAX_HTTP_STRING_SIZE));
+        this.clientToProxy.flip();
+        grown.put(this.clientToProxy);
+        this.bufferPool.release(this.clientToProxy);
+        this.clientToProxy = grown;
+    }
+
+    private void resolveProxyAddress(URL targetUrl) {
+        var host = this.parentProxy != null ? this.parentProxy.getHost() : targetUrl.getHost();
+        var port = this.parentProxy != null ? this.parentProxy.getPort() : targetUrl.getPort() > -1 ? targetUrl.getPort() : 80;
+        var resolver = this.parentProxy != null ? this.engine.getContext().getHostResolver() : this.engine.getContext().getOriginResolver();
+        this.engine.getResolvers().submit(() -> {
+            try {
+                var resolveStart = nanoTime();
+                var addresses = resolver.resolve(host);
+                this.recordPhase(ProxyMetrics.Phase.DNS, nanoTime() - resolveStart);
+                this.eventLoop.execute(() -> this.connectToProxy(addresses, port));
+            } catch (AccessControl.DeniedAddressException e) {
+                this.eventLoop.execute(() -> this.denyResolved());
+            } catch (Exception e) {
+                this.eventLoop.execute(() -> this.failed(e));
+            }
+        });
+    }
+
+    private void denyResolved() {
+        if (this.state != State.CONNECTING) return;
+        this.reject(403, this.accessControl.getForbiddenResponse());
+        try {
+            this.updateInterestOps();
+        } catch (IOException e) {
+            this.failed(e);
+        }
+    }
+
+    /**
+     * Same race as {@link OriginConnector#connect} without blocking: attempts are staggered with loop timers and
+     * the first channel to connect becomes the proxy channel.
+     */
+    private void connectToProxy(InetAddress[] addresses, int port) {
+        if (this.state == State.CLOSED) return;
+        this.connectStartNanos = nanoTime();
+        var candidates = this.originConnector.order(addresses);
+        this.connectCandidates = candidates;
+        this.proxyPort = port;
+        this.lastActivity = currentTimeMillis();
+        if (this.originConnector.getTimeout() > 0) {
+            this.eventLoop.schedule(() -> {
+                // A parent failover starts a new race with its own timer
+                if (this.state != State.CONNECTING || this.connectCandidates != candidates) return;
+                for (var attempt : this.connectAttempts) this.originConnector.recordFailure(attempt.address());
+                this.failed(new SocketTimeoutException("Connect timed out after " + this.originConnector.getTimeout()
+                        + "ms trying " + this.connectCandidates));
+            }, this.originConnector.getTimeout());
+        }
+        try {
+            this.startNextConnectAttempt();
+            this.updateInterestOps();
+        } catch (Exception e) {
+            this.failed(e);
+        }
+    }
+
+    private void startNextConnectAttempt() throws IOException {
+        while (this.state == State.CONNECTING && this.nextCandidate < this.connectCandidates.size()) {
+            var address = this.connectCandidates.get(this.nextCandidate++);
+            SocketChannel channel = null;
+            try {
+                this.originConnector.recordAttempt();
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                var attempt = new ConnectAttempt(this.eventLoop.register(channel, SelectionKey.OP_CONNECT, this), address);
+                this.connectAttempts.add(attempt);
+                if (channel.connect(new InetSocketAddress(address, this.proxyPort))) {
+                    this.connectedToProxy(attempt);
+                } else if (this.nextCandidate < this.connectCandidates.size()) {
+                    var attemptNumber = this.nextCandidate;
+                    var candidates = this.connectCandidates;
+                    // Skipped when a failed attempt already moved on to the next address
+                    this.eventLoop.schedule(() -> {
+                        if (this.nextCandidate != attemptNumber || this.connectCandidates != candidates) return;
+                        try {
+                            this.startNextConnectAttempt();
+                            this.updateInterestOps();
+                        } catch (Exception e) {
+                            this.failed(e);
+                        }
+                    }, this.originConnector.getAttemptDelay());
+                }
+                return;
+            } catch (IOException e) {
+                this.connectAttempts.removeIf(attempt -> attempt.address() == address);
+                IOUtils.tryToClose(channel);
+                this.originConnector.recordFailure(address);
+                this.lastConnectFailure = e;
+            }
+        }
+        if (this.state == State.CONNECTING && this.connectAttempts.isEmpty()) {
+            throw this.lastConnectFailure != null ? this.lastConnectFailure : new ConnectException("No address to connect to");
+        }
+    }
+
+    /**
+     * Nothing was sent to the failed parent yet, so another parent of its pool can take over once.
+     */
+    private boolean failOverToAnotherParent() {
+        if (this.parentFailedOver) return false;
+        var failover = this.parentProxy.getPool().acquire(this.parentProxy);
+        if (failover == null) return false;
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Parent proxy {} failed; trying {}", this.getElapsedTime(), this.parentProxy, failover);
+        }
+        this.parentFailedOver = true;
+        this.parentProxy.release();
+        this.parentProxy = failover;
+        for (var attempt : this.connectAttempts) IOUtils.tryToClose(attempt.key().channel());
+        this.connectAttempts.clear();
+        this.connectCandidates = null;
+        this.nextCandidate = 0;
+        this.lastConnectFailure = null;
+        this.resolveProxyAddress(this.clientRequestInfo.getTargetAsUrl());
+        return true;
+    }
+
+    private void finishConnectAttempt(SelectionKey key) throws IOException {
+        ConnectAttempt attempt = null;
+        for (var pending : this.connectAttempts) {
+            if (pending.key() == key) attempt = pending;
+        }
+        if (attempt == null) return;
+        try {
+            if (!((SocketChannel) key.channel()).finishConnect()) return;
+        } catch (IOException e) {
+            this.connectAttempts.remove(attempt);
+            IOUtils.tryToClose(key.channel());
+            this.originConnector.recordFailure(attempt.address());
+            this.lastConnectFailure = e;
+            this.startNextConnectAttempt();
+            return;
+        }
+        this.connectedToProxy(attempt);
+    }
+
+    private void connectedToProxy(ConnectAttempt winner) {
+        var outrun = true;
+        for (var attempt : this.connectAttempts) {
+            if (attempt == winner) {
+                outrun = false;
+                continue;
+            }
+            // Attempts started before the winner were still pending after a later address connected
+            if (outrun) this.originConnector.recordFailure(attempt.address());
+            IOUtils.tryToClose(attempt.key().channel());
+        }
+        this.connectAttempts.clear();
+        this.originConnector.recordSuccess(winner.address());
+        this.proxyKey = winner.key();
+        this.proxyKey.interestOps(0);
+        this.proxyChannel = (SocketChannel) this.proxyKey.channel();
+        this.state = State.RELAYING;
+        this.lastActivity = currentTimeMillis();
+        this.relayStartNanos = nanoTime();
+        this.recordPhase(ProxyMetrics.Phase.UPSTREAM_CONNECT, this.relayStartNanos - this.connectStartNanos);
+        if (this.parentProxy != null) {
+            this.parentProxy.recordSuccess(this.relayStartNanos - this.connectStartNanos);
+            if (this.accessLogEntry != null) this.accessLogEntry.addFlag(AccessLogEntry.PARENT);
+        } else if (this.clientRequestInfo.isHttps()) {
+            this.proxyToClient.put(CONNECTION_ESTABLISHED_RESPONSE);
+            this.setAccessLogStatus(200);
+        }
+    }
+
+    private void readProxy() throws IOException {
+        var read = this.proxyChannel.read(this.proxyToClient);
+        if (read < 0) {
+            this.proxyEof = true;
+            return;
+        }
+        this.lastActivity = currentTimeMillis();
+        this.throttleReads(read);
+        if (read > 0 && !this.proxyResponded) {
+            this.proxyResponded = true;
+            // Tunnels carry whatever protocol the client speaks, so only plain requests have a response to wait for
+            if (!this.clientRequestInfo.isHttps()) {
+                this.recordPhase(ProxyMetrics.Phase.FIRST_RESPONSE_BYTE, nanoTime() - this.relayStartNanos);
+                this.setAccessLogStatus(parseStatus(this.proxyToClient));
+            }
+        }
+    }
+
+    /**
+     * Takes relayed bytes from the key's bucket and stops reading both sides while it is in debt, so nothing is
+     * dropped and the senders are slowed down by TCP flow control; debts under a millisecond are only paid with
+     * a later read.
+     */
+    private void throttleReads(int bytes) {
+        if (this.byteBucket == null || bytes <= 0) return;
+        var wait = this.rateLimiter.takeBytes(this.byteBucket, bytes);
+        if (wait < MIN_THROTTLE_NANOS) return;
+        var until = nanoTime() + wait;
+        if (this.readsThrottled) {
+            // The other side's read was already selected when this pause started
+            if (until - this.readsThrottledUntil > 0) {
+                this.rateLimiter.recordThrottled(until - this.readsThrottledUntil);
+                this.readsThrottledUntil = until;
+            }
+            return;
+        }
+        this.rateLimiter.recordThrottled(wait);
+        this.readsThrottled = true;
+        this.readsThrottledUntil = until;
+        this.eventLoop.schedule(this::resumeReads, toMillisCeil(wait));
+    }
+
+    private void resumeReads() {
+        if (this.state == State.CLOSED) return;
+        var left = this.readsThrottledUntil - nanoTime();
+        if (left >= MIN_THROTTLE_NANOS) {
+            this.eventLoop.schedule(this::resumeReads, toMillisCeil(left));
+            return;
+        }
+        this.readsThrottled = false;
+        try {
+            this.updateInterestOps();
+        } catch (IOException e) {
+            this.failed(e);
+        }
+    }
+
+    private void recordPhase(ProxyMetrics.Phase phase, long nanos) {
+        this.metrics.record(phase, nanos);
+        if (this.accessLogEntry != null) this.accessLogEntry.setPhase(phase, nanos);
+    }
+
+    private void beginAccessLogEntry() {
+        if (this.accessLogEntry == null) return;
+        this.accessLogEntry.setTimestamp(currentTimeMillis());
+        this.accessLogEntry.setMethod(this.clientRequestInfo.getMethod());
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        if (targetUrl != null) {
+            this.accessLogEntry.setHost(targetUrl.getHost());
+            this.accessLogEntry.setPort(targetUrl.getPort() > -1 ? targetUrl.getPort() : 80);
+        }
+    }
+
+    private void setAccessLogStatus(int status) {
+        if (this.accessLogEntry != null) this.accessLogEntry.setStatus(status);
+    }
+
+    private void finishAccessLogEntry() {
+        if (this.accessLogEntry == null || this.accessLogEntry.getTimestamp() == 0) return;
+        this.accessLogEntry.setBytesReceived(this.clientBytesReceived);
+        this.accessLogEntry.setBytesSent(this.clientBytesSent);
+        this.accessLog.append(this.accessLogEntry);
+    }
+
+    /**
+     * Status of the response line at the start of the buffer, or 0 if it is not there in full; the response
+     * itself is relayed without being parsed.
+     */
+    static int parseStatus(ByteBuffer buffer) {
+        if (buffer.position() < 12 || buffer.get(0) != 'H' || buffer.get(4) != '/' || buffer.get(8) != ' ') return 0;
+        var status = 0;
+        for (int i = 9; i < 12; i++) {
+            var digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) return 0;
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+
+    private static long toMillisCeil(long nanos) {
+        return (nanos + 999_999) / 1_000_000;
+    }
+
+    private int flush(ByteBuffer buffer, SocketChannel channel) throws IOException {
+        buffer.flip();
+        var written = channel.write(buffer);
+        buffer.compact();
+        return written;
+    }
+
+    private void updateInterestOps() throws IOException {
+        if (this.state == State.CLOSED) return;
+
+        if (this.proxyEof && this.proxyToClient.position() == 0) {
+            // A tunnel's client may still be sending after the origin is done, so it only gets a half-close
+            if (this.state != State.RELAYING || !this.isTunnel() || this.clientEof && this.clientToProxy.position() == 0) {
+                this.close();
+                return;
+            }
+            if (!this.clientOutputShutdown) {
+                this.clientChannel.shutdownOutput();
+                this.clientOutputShutdown = true;
+            }
+        }
+        if (this.clientEof && this.clientToProxy.position() == 0 && this.state == State.RELAYING && !this.proxyOutputShutdown) {
+            this.proxyChannel.shutdownOutput();
+            this.proxyOutputShutdown = true;
+        }
+
+        var clientOps = 0;
+        if (!this.clientEof && !this.requestComplete && !this.readsThrottled && this.clientToProxy.hasRemaining() && (this.state == State.READING_REQUEST || this.state == State.RELAYING)) clientOps |= SelectionKey.OP_READ;
+        if (this.proxyToClient.position() > 0) clientOps |= SelectionKey.OP_WRITE;
+        this.clientKey.interestOps(clientOps);
+
+        if (this.proxyKey == null) return;
+        var proxyOps = 0;
+        if (!this.proxyEof && !this.readsThrottled && this.proxyToClient.hasRemaining()) proxyOps |= SelectionKey.OP_READ;
+        if (this.clientToProxy.position() > 0) proxyOps |= SelectionKey.OP_WRITE;
+        this.proxyKey.interestOps(proxyOps);
+    }
+
+    /**
+     * A CONNECT or an upgrade request leaves both connections to another protocol, so they are relayed as a tunnel
+     * until each direction ends; only meaningful once the request is on its way.
+     */
+    private boolean isTunnel() {
+        return !this.requestBodyBounded;
+    }
+
+    private long getElapsedTime() {
+        return currentTimeMillis() - this.startTime;
+    }
+
+    private record ConnectAttempt(SelectionKey key, InetAddress address) {
+    }
+
+    private enum State {
+        READING_REQUEST,
+        HELD_BACK,
+        CONNECTING,
+        RELAYING,
+        REJECTED,
+        CLOSED
+    }
+}
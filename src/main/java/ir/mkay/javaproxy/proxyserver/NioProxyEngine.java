@@ -0,0 +1,164 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.nanoTime;
+
+@Slf4j
+public class NioProxyEngine implements ProxyEngine {
+
+    private final ListenSockets listenSockets;
+    private final NioEventLoop[] eventLoops;
+    @Getter
+    private final ProxyContext context;
+    @Getter
+    private final ExecutorService resolvers;
+    // Connections take the timeouts in force when they are accepted, so a reload leaves open ones alone
+    @Getter
+    private volatile Timeouts timeouts;
+    @Getter
+    private final LongAdder tunnelsIdleClosed = new LongAdder();
+    @Getter
+    private final LongAdder tunnelsExpired = new LongAdder();
+
+    public NioProxyEngine(ProxyContext context) throws IOException {
+        var properties = context.getProperties();
+        this.context = context;
+        this.listenSockets = new ListenSockets(properties, context.getMetrics());
+        for (int i = 0; i < this.listenSockets.size(); i++) {
+            this.listenSockets.get(i).configureBlocking(false);
+        }
+        this.eventLoops = new NioEventLoop[properties.getEffectiveEventLoops()];
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new NioEventLoop("nio-event-loop-" + i);
+        }
+        // Name resolution is blocking, so it must never run on an event loop
+        this.resolvers = Executors.newFixedThreadPool(Math.max(1, properties.getResolverThreads()));
+        context.getMetrics().registerGauge("resolvers_queued", "Host lookups waiting for a resolver thread.",
+                () -> ((ThreadPoolExecutor) this.resolvers).getQueue().size());
+        this.timeouts = Timeouts.of(properties);
+        context.getMetrics().registerCounter("tunnels_idle_closed_total", "Tunnels closed after the idle timeout.",
+                this.tunnelsIdleClosed::sum);
+        context.getMetrics().registerCounter("tunnels_expired_total", "Tunnels closed at the maximum lifetime.",
+                this.tunnelsExpired::sum);
+    }
+
+    @Override
+    public void start() {
+        for (var eventLoop : this.eventLoops) {
+            eventLoop.start();
+        }
+        // Acceptor i runs on event loop i and hands its connections to the loops congruent to i, so with as
+        // many acceptors as loops a connection is accepted and served on the same loop
+        var shards = Math.min(this.listenSockets.size(), this.eventLoops.length);
+        for (int i = 0; i < this.listenSockets.size(); i++) {
+            var acceptor = new Acceptor(i, i % shards, shards);
+            var eventLoop = this.eventLoops[i % this.eventLoops.length];
+            eventLoop.execute(() -> {
+                try {
+                    eventLoop.register(this.listenSockets.get(acceptor.shard), SelectionKey.OP_ACCEPT, acceptor);
+                } catch (IOException e) {
+                    log.error("Registering server channel failed", e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.listenSockets.getLocalPort();
+    }
+
+    @Override
+    public void reconfigure() {
+        var properties = this.context.getProperties();
+        this.timeouts = Timeouts.of(properties);
+    }
+
+    @Override
+    public void stopAccepting() {
+        this.listenSockets.close();
+    }
+
+    /**
+     * Each connection carries a single request and closes after its response, so only connections the client
+     * opened without sending anything on yet are idle here.
+     */
+    @Override
+    public void closeIdleConnections() {
+        for (var eventLoop : this.eventLoops) {
+            eventLoop.execute(eventLoop::closeIdleConnections);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.listenSockets.close();
+        for (var eventLoop : this.eventLoops) {
+            eventLoop.close();
+        }
+        this.resolvers.shutdown();
+    }
+
+    public record Timeouts(int client, int proxy, long tunnelIdle, long tunnelMaxLifetime) {
+
+        static Timeouts of(ProxyServerProperties properties) {
+            return new Timeouts(properties.getClientTimeout(), properties.getProxyTimeout(),
+                    properties.getTunnels().getIdleTimeout(), properties.getTunnels().getMaxLifetime());
+        }
+    }
+
+    private class Acceptor implements NioEventLoop.Handler {
+
+        private final int shard;
+        private final int firstEventLoop;
+        private final int eventLoopStep;
+        private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+        Acceptor(int shard, int firstEventLoop, int eventLoopStep) {
+            this.shard = shard;
+            this.firstEventLoop = firstEventLoop;
+            this.eventLoopStep = eventLoopStep;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            var channel = NioProxyEngine.this.listenSockets.get(this.shard).accept();
+            if (channel == null) return;
+            NioProxyEngine.this.listenSockets.recordAccepted(this.shard);
+            var admission = NioProxyEngine.this.context.getAdmission();
+            // Turning a client away costs an event loop next to nothing, so there is no pausing here
+            if (!admission.tryAdmitConnection()) {
+                admission.reject(channel);
+                return;
+            }
+            var eventLoop = this.nextEventLoop();
+            var acceptedAt = nanoTime();
+            eventLoop.execute(() -> {
+                admission.recordSchedulingDelay(nanoTime() - acceptedAt);
+                new NioProxyConnection(NioProxyEngine.this, eventLoop, channel).register();
+            });
+        }
+
+        @Override
+        public void failed(Exception e) {
+            log.warn("Error accepting socket", e);
+        }
+
+        private NioEventLoop nextEventLoop() {
+            var eventLoops = NioProxyEngine.this.eventLoops;
+            var count = (eventLoops.length - this.firstEventLoop + this.eventLoopStep - 1) / this.eventLoopStep;
+            var index = this.firstEventLoop + Math.floorMod(this.nextEventLoop.getAndIncrement(), count) * this.eventLoopStep;
+            return eventLoops[index];
+        }
+    }
+}
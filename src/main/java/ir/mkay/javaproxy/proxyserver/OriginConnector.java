@@ -0,0 +1,251 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Opens origin connections the Happy Eyeballs way (RFC 8305): addresses are tried in an order that alternates
+ * between IPv6 and IPv4, a new attempt starts every attempt delay while earlier ones are still pending, and the
+ * first one to connect wins. Addresses that recently failed go to the back of the line for a while, so one dead
+ * record does not cost every request an attempt delay.
+ */
+@Slf4j
+public class OriginConnector {
+
+    private static final int MAX_TRACKED_FAILURES = 4096;
+
+    @Getter
+    private volatile long timeout;
+    @Getter
+    private volatile long attemptDelay;
+    private volatile long failurePenaltyNanos;
+    private final Map<InetAddress, Long> penalizedUntil = new ConcurrentHashMap<>();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public OriginConnector(ProxyServerProperties.Connect properties) {
+        this.reconfigure(properties);
+    }
+
+    /**
+     * Takes on reloaded settings, which apply from the next connect on.
+     */
+    public void reconfigure(ProxyServerProperties.Connect properties) {
+        this.timeout = properties.getTimeout();
+        this.attemptDelay = Math.max(1, properties.getAttemptDelay());
+        this.failurePenaltyNanos = TimeUnit.MILLISECONDS.toNanos(properties.getFailurePenalty());
+    }
+
+    /**
+     * Connects to whichever of the addresses answers first; the returned socket is in blocking mode and always
+     * has a channel, so it can be checked without blocking while pooled.
+     */
+    public Socket connect(InetAddress[] addresses, int port) throws IOException {
+        var candidates = this.order(addresses);
+        if (candidates.size() == 1) {
+            var address = candidates.get(0);
+            var socket = SocketChannel.open().socket();
+            try {
+                this.attempts.increment();
+                socket.connect(new InetSocketAddress(address, port), (int) this.timeout);
+            } catch (IOException e) {
+                IOUtils.tryToClose(socket);
+                this.recordFailure(address);
+                throw e;
+            }
+            this.recordSuccess(address);
+            return socket;
+        }
+        var channel = this.race(candidates, port);
+        channel.configureBlocking(true);
+        return channel.socket();
+    }
+
+    private SocketChannel race(List<InetAddress> candidates, int port) throws IOException {
+        // Read once, so a reload in the middle of the race cannot mix two timeouts
+        var timeout = this.timeout;
+        var deadline = timeout > 0 ? nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        var attemptDelayNanos = TimeUnit.MILLISECONDS.toNanos(this.attemptDelay);
+        var next = 0;
+        // Cancelled keys stay in the key set until the next select, so it cannot tell whether anything is pending
+        var pending = 0;
+        var nextAttemptAt = nanoTime();
+        IOException lastFailure = null;
+        SocketChannel winner = null;
+        var winnerIndex = -1;
+        // Closing the selector deregisters every channel, which the winner needs before it can go back to blocking
+        try (var selector = Selector.open()) {
+            try {
+                while (winner == null) {
+                    var now = nanoTime();
+                    if (next < candidates.size() && (now - nextAttemptAt >= 0 || pending == 0)) {
+                        var address = candidates.get(next++);
+                        nextAttemptAt = now + attemptDelayNanos;
+                        try {
+                            winner = this.startAttempt(selector, address, port);
+                            if (winner != null) winnerIndex = next - 1;
+                            else pending++;
+                        } catch (IOException e) {
+                            lastFailure = e;
+                        }
+                        continue;
+                    }
+                    if (pending == 0) {
+                        throw lastFailure != null ? lastFailure : new ConnectException("No address to connect to");
+                    }
+                    if (now - deadline >= 0) {
+                        for (var key : selector.keys()) {
+                            if (key.isValid()) this.recordFailure((InetAddress) key.attachment());
+                        }
+                        throw new SocketTimeoutException("Connect timed out after " + timeout + "ms trying " + candidates);
+                    }
+                    var wait = next < candidates.size() ? Math.min(deadline - now, nextAttemptAt - now) : deadline - now;
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    for (var key : selector.selectedKeys()) {
+                        var channel = (SocketChannel) key.channel();
+                        var address = (InetAddress) key.attachment();
+                        try {
+                            if (channel.finishConnect()) {
+                                this.recordSuccess(address);
+                                winner = channel;
+                                winnerIndex = candidates.indexOf(address);
+                                break;
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            pending--;
+                            IOUtils.tryToClose(channel);
+                            this.recordFailure(address);
+                            lastFailure = e;
+                            // A refused attempt frees its slot right away instead of after the attempt delay
+                            nextAttemptAt = now;
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } finally {
+                for (var key : selector.keys()) {
+                    if (key.channel() == winner || !key.isValid()) continue;
+                    var address = (InetAddress) key.attachment();
+                    // Still pending after a later address connected, which is as good as failing
+                    if (candidates.indexOf(address) < winnerIndex) this.recordFailure(address);
+                    IOUtils.tryToClose(key.channel());
+                }
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * Returns the channel when it connected immediately, which happens for local origins.
+     */
+    private SocketChannel startAttempt(Selector selector, InetAddress address, int port) throws IOException {
+        this.attempts.increment();
+        var channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(address, port))) {
+                this.recordSuccess(address);
+                return channel;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, address);
+            return null;
+        } catch (IOException e) {
+            IOUtils.tryToClose(channel);
+            this.recordFailure(address);
+            throw e;
+        }
+    }
+
+    /**
+     * Attempt order for the given lookup result: families interleaved starting with the family of the first
+     * address, then the same for addresses still penalized for a recent failure.
+     */
+    public List<InetAddress> order(InetAddress[] addresses) {
+        var now = nanoTime();
+        List<InetAddress> healthy = new ArrayList<>(addresses.length);
+        List<InetAddress> penalized = new ArrayList<>(0);
+        for (var address : addresses) {
+            (this.isPenalized(address, now) ? penalized : healthy).add(address);
+        }
+        var ordered = interleave(healthy);
+        ordered.addAll(interleave(penalized));
+        return ordered;
+    }
+
+    private static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.size() < 2) return addresses;
+        var firstIsV6 = addresses.get(0) instanceof Inet6Address;
+        List<InetAddress> preferred = new ArrayList<>(addresses.size());
+        List<InetAddress> other = new ArrayList<>(addresses.size());
+        for (var address : addresses) {
+            (address instanceof Inet6Address == firstIsV6 ? preferred : other).add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) ordered.add(preferred.get(i));
+            if (i < other.size()) ordered.add(other.get(i));
+        }
+        return ordered;
+    }
+
+    public void recordAttempt() {
+        this.attempts.increment();
+    }
+
+    public void recordFailure(InetAddress address) {
+        this.failures.increment();
+        if (this.failurePenaltyNanos <= 0) return;
+        if (this.penalizedUntil.size() >= MAX_TRACKED_FAILURES) {
+            var now = nanoTime();
+            this.penalizedUntil.values().removeIf(until -> now - until >= 0);
+        }
+        this.penalizedUntil.put(address, nanoTime() + this.failurePenaltyNanos);
+        if (log.isDebugEnabled()) {
+            log.debug("Connecting to {} failed; trying it last for {}ms", address, TimeUnit.NANOSECONDS.toMillis(this.failurePenaltyNanos));
+        }
+    }
+
+    public void recordSuccess(InetAddress address) {
+        this.penalizedUntil.remove(address);
+    }
+
+    private boolean isPenalized(InetAddress address, long now) {
+        var until = this.penalizedUntil.get(address);
+        if (until == null) return false;
+        if (now - until < 0) return true;
+        this.penalizedUntil.remove(address, until);
+        return false;
+    }
+
+    public long getAttempts() {
+        return this.attempts.sum();
+    }
+
+    public long getFailures() {
+        return this.failures.sum();
+    }
+
+    public int getPenalizedCount() {
+        return this.penalizedUntil.size();
+    }
+}
@@ -0,0 +1,117 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Routes requests to parent proxy pools by destination host and keeps the pools' health up to date with a
+ * periodic TCP connect to every member; hosts no route matches are connected to directly.
+ */
+@Slf4j
+public class ParentProxies implements Closeable {
+
+    public static final String DIRECT = "direct";
+
+    private final Map<String, ParentProxyPool> pools = new LinkedHashMap<>();
+    private final List<Route> routes = new ArrayList<>();
+    private final HostResolver hostResolver;
+    private final int healthCheckTimeout;
+    private final ScheduledExecutorService healthChecker;
+    private final LongAdder healthCheckFailures = new LongAdder();
+
+    public ParentProxies(ProxyServerProperties.Parents properties, HostResolver hostResolver) {
+        this.hostResolver = hostResolver;
+        this.healthCheckTimeout = properties.getHealthCheckTimeout();
+        properties.getPools().forEach((name, pool) -> this.pools.put(name, new ParentProxyPool(name, pool, properties)));
+        for (var route : properties.getRoutes()) {
+            var pool = route.getPool() == null || route.getPool().equals(DIRECT) ? null : this.pools.get(route.getPool());
+            if (pool == null && route.getPool() != null && !route.getPool().equals(DIRECT)) {
+                throw new IllegalStateException("Parent proxy route refers to unknown pool: " + route.getPool());
+            }
+            this.routes.add(new Route(route.getHosts().stream().map(HostPattern::parse).toList(), pool));
+        }
+        if (!this.pools.isEmpty() && properties.getHealthCheckInterval() > 0) {
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor();
+            this.healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, properties.getHealthCheckInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.routes.isEmpty();
+    }
+
+    /**
+     * Parent proxy to use for the host, already acquired, or null to connect directly.
+     */
+    public ParentProxy acquire(String host) {
+        if (this.routes.isEmpty()) return null;
+        var normalized = host.toLowerCase(Locale.ROOT);
+        for (var route : this.routes) {
+            if (route.matches(normalized)) return route.pool() != null ? route.pool().acquire() : null;
+        }
+        return null;
+    }
+
+    public int getMemberCount() {
+        return this.pools.values().stream().mapToInt(pool -> pool.getMembers().size()).sum();
+    }
+
+    public int getEjectedCount() {
+        return this.pools.values().stream().mapToInt(ParentProxyPool::getEjectedCount).sum();
+    }
+
+    public long getHealthCheckFailures() {
+        return this.healthCheckFailures.sum();
+    }
+
+    @Override
+    public void close() {
+        if (this.healthChecker != null) this.healthChecker.shutdownNow();
+    }
+
+    private void checkHealth() {
+        for (var pool : this.pools.values()) {
+            for (var member : pool.getMembers()) {
+                var start = nanoTime();
+                try (var socket = new Socket()) {
+                    var address = this.hostResolver.resolve(member.getHost())[0];
+                    socket.connect(new InetSocketAddress(address, member.getPort()), this.healthCheckTimeout);
+                    member.recordSuccess(nanoTime() - start);
+                } catch (IOException e) {
+                    this.healthCheckFailures.increment();
+                    member.recordFailure();
+                    if (log.isDebugEnabled()) {
+                        log.debug("Health check of parent proxy {} in pool {} failed; {}", member, pool.getName(), e.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    private record Route(List<HostPattern> hosts, ParentProxyPool pool) {
+
+        boolean matches(String host) {
+            for (var pattern : this.hosts) {
+                if (pattern.matches(host)) return true;
+            }
+            return false;
+        }
+    }
+}
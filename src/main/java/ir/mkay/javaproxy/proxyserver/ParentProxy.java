@@ -0,0 +1,133 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * One upstream proxy in a {@link ParentProxyPool}, with the load and health figures the pool balances on.
+ * Failures and slowness eject it for a while, whether they were seen on requests or by the active health check;
+ * an ejection always runs its course, since the health check only shows the parent takes connections.
+ */
+@Slf4j
+public class ParentProxy {
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    @Getter
+    private final String host;
+    @Getter
+    private final int port;
+    @Getter
+    private final String key;
+    @Getter
+    private final ParentProxyPool pool;
+    private final ProxyServerProperties.Parents properties;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // Updated without locking; a sample lost to a concurrent update does not matter for an average
+    private volatile double latencyEwmaNanos;
+    private volatile long ejectedUntil;
+    private volatile boolean rejoining;
+
+    public ParentProxy(String member, ParentProxyPool pool, ProxyServerProperties.Parents properties) {
+        var separator = member.lastIndexOf(':');
+        if (separator <= 0) throw new IllegalStateException("Parent proxy must be host:port: " + member);
+        this.host = member.substring(0, separator).trim();
+        try {
+            this.port = Integer.parseInt(member.substring(separator + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Parent proxy must be host:port: " + member);
+        }
+        this.key = UpstreamConnectionPool.key(this.host, this.port);
+        this.pool = pool;
+        this.properties = properties;
+    }
+
+    /**
+     * Counts a connection as using this parent until {@link #release()}.
+     */
+    public void acquire() {
+        this.active.incrementAndGet();
+    }
+
+    public void release() {
+        this.active.decrementAndGet();
+    }
+
+    public int getActive() {
+        return this.active.get();
+    }
+
+    public double getLatencyEwmaNanos() {
+        return this.latencyEwmaNanos;
+    }
+
+    public boolean isEjected(long now) {
+        return now < this.ejectedUntil;
+    }
+
+    public void recordSuccess(long latencyNanos) {
+        this.consecutiveFailures.set(0);
+        if (this.isEjected(currentTimeMillis())) return;
+        // After an ejection the old average describes the problem that caused it, not the parent now
+        var previous = this.latencyEwmaNanos;
+        var ewma = previous == 0 || this.rejoining ? latencyNanos : previous + EWMA_WEIGHT * (latencyNanos - previous);
+        this.latencyEwmaNanos = ewma;
+        if (this.rejoining) {
+            this.rejoining = false;
+            log.info("Parent proxy {} is back", this.key);
+        }
+        var slowThreshold = this.properties.getSlowThreshold();
+        if (slowThreshold > 0 && ewma > slowThreshold * 1_000_000.0) {
+            this.eject(String.format("average latency %.1fms", ewma / 1_000_000));
+        }
+    }
+
+    /**
+     * Gateway errors are what a parent answers when its own egress is broken, but only those it made itself count;
+     * one relayed from an origin says nothing about the parent. Anything else counts as healthy.
+     */
+    public void recordResponse(HttpResponseInfo response) {
+        var status = response.getStatus();
+        if ((status == 502 || status == 503 || status == 504) && isGeneratedByParent(response)) this.recordFailure();
+        else this.consecutiveFailures.set(0);
+    }
+
+    /**
+     * A parent reporting its own error says so in Proxy-Status (RFC 9209); a response without Via was not
+     * forwarded from anywhere.
+     */
+    static boolean isGeneratedByParent(HttpResponseInfo response) {
+        if (!response.hasHeader(HttpHeaderName.VIA)) return true;
+        var proxyStatus = response.getHeaderValues(HttpHeaderName.PROXY_STATUS);
+        if (proxyStatus == null) return false;
+        for (var value : proxyStatus) {
+            if (value.contains("error=")) return true;
+        }
+        return false;
+    }
+
+    public void recordFailure() {
+        if (this.consecutiveFailures.incrementAndGet() >= this.properties.getMaxFailures()) {
+            this.eject(this.consecutiveFailures.get() + " consecutive failures");
+        }
+    }
+
+    private void eject(String reason) {
+        var now = currentTimeMillis();
+        if (!this.isEjected(now)) {
+            log.warn("Ejecting parent proxy {} for {}ms; {}", this.key, this.properties.getEjectDuration(), reason);
+        }
+        this.ejectedUntil = now + this.properties.getEjectDuration();
+        this.rejoining = true;
+    }
+
+    @Override
+    public String toString() {
+        return this.key;
+    }
+}
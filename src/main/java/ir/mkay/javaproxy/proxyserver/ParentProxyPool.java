@@ -0,0 +1,81 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * A named group of interchangeable parent proxies; every pick skips ejected members unless all of them are
+ * ejected, in which case failing over to some parent still beats failing every request.
+ */
+public class ParentProxyPool {
+
+    @Getter
+    private final String name;
+    @Getter
+    private final List<ParentProxy> members;
+    private final ProxyServerProperties.Balancer balancer;
+    // Spreads ties, which are common when the pool is idle, across members
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    public ParentProxyPool(String name, ProxyServerProperties.ParentPool properties, ProxyServerProperties.Parents parents) {
+        if (properties.getMembers().isEmpty()) throw new IllegalStateException("Parent proxy pool has no members: " + name);
+        this.name = name;
+        this.balancer = properties.getBalancer();
+        List<ParentProxy> members = new ArrayList<>(properties.getMembers().size());
+        for (var member : properties.getMembers()) members.add(new ParentProxy(member, this, parents));
+        this.members = List.copyOf(members);
+    }
+
+    /**
+     * Picks a member and counts it as in use; the caller has to {@link ParentProxy#release()} it.
+     */
+    public ParentProxy acquire() {
+        return this.acquire(null);
+    }
+
+    /**
+     * Like {@link #acquire()} but never picks {@code failed}; returns null when it is the only member.
+     */
+    public ParentProxy acquire(ParentProxy failed) {
+        var now = currentTimeMillis();
+        var healthy = false;
+        for (var member : this.members) healthy |= member != failed && !member.isEjected(now);
+        var size = this.members.size();
+        var start = Math.floorMod(this.nextStart.getAndIncrement(), size);
+        ParentProxy best = null;
+        var bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            var member = this.members.get((start + i) % size);
+            if (member == failed || healthy && member.isEjected(now)) continue;
+            var load = this.getLoad(member);
+            if (load < bestLoad) {
+                best = member;
+                bestLoad = load;
+            }
+        }
+        if (best != null) best.acquire();
+        return best;
+    }
+
+    private double getLoad(ParentProxy member) {
+        return switch (this.balancer) {
+            case LEAST_CONNECTIONS -> member.getActive();
+            // Latency weighted by what is already in flight, so a fast parent does not get everything at once
+            case EWMA -> member.getLatencyEwmaNanos() * (member.getActive() + 1);
+        };
+    }
+
+    public int getEjectedCount() {
+        var now = currentTimeMillis();
+        var ejected = 0;
+        for (var member : this.members) {
+            if (member.isEjected(now)) ejected++;
+        }
+        return ejected;
+    }
+}
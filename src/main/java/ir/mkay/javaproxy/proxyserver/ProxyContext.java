@@ -0,0 +1,181 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+
+/**
+ * Services shared by every connection, whichever engine accepted it.
+ */
+@Getter
+public class ProxyContext implements Closeable {
+
+    private static final int NIO_MAX_CONNECTIONS = 10000;
+
+    // Reloads change the same instance in place; writing it back to this volatile publishes the new values to
+    // every thread that reads them through getProperties()
+    private volatile ProxyServerProperties properties;
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    private final BufferPool bufferPool;
+    private final AdmissionController admission;
+    private final HostResolver hostResolver;
+    // Resolves origins, as opposed to parents, checking their addresses against the access control lists
+    private final HostResolver originResolver;
+    private final OriginConnector originConnector;
+    private final ParentProxies parentProxies;
+    private final RateLimiter rateLimiter;
+    private final AccessControl accessControl;
+    private final AccessLog accessLog;
+    private final HttpCache cache;
+    private final ResponseCompressor compressor;
+    private final UpstreamConnectionPool upstreamPool;
+    private final Http2ConnectionPool http2Pool;
+    private volatile boolean draining;
+
+    public ProxyContext(ProxyServerProperties properties) {
+        this(properties, HostResolver.SYSTEM);
+    }
+
+    public ProxyContext(ProxyServerProperties properties, HostResolver hostResolver) {
+        this.properties = properties;
+        this.bufferPool = new BufferPool(properties.getBuffers());
+        this.admission = new AdmissionController(properties.getAdmission(), getDefaultMaxConnections(properties));
+        this.hostResolver = properties.getDns().isEnabled() ? new DnsCache(hostResolver, properties.getDns()) : hostResolver;
+        this.originConnector = new OriginConnector(properties.getConnect());
+        this.parentProxies = new ParentProxies(properties.getParents(), this.hostResolver);
+        this.rateLimiter = new RateLimiter(properties.getRateLimits());
+        this.accessControl = new AccessControl(properties.getAcl());
+        this.originResolver = this.accessControl.guard(this.hostResolver);
+        this.accessLog = new AccessLog(properties.getAccessLog());
+        this.cache = new HttpCache(properties.getCache());
+        this.compressor = new ResponseCompressor(properties.getCompression(), this.bufferPool);
+        this.upstreamPool = properties.getUpstreamPool().isEnabled() ? new UpstreamConnectionPool(properties.getUpstreamPool()) : null;
+        this.http2Pool = properties.getHttp2Upstream().isEnabled()
+                ? new Http2ConnectionPool(properties.getHttp2Upstream(), this.originResolver, this.originConnector, properties.getProxyTimeout())
+                : null;
+        this.registerMetrics();
+    }
+
+    /**
+     * Applies properties reloaded into the instance this context was made with to the shared services. Settings
+     * a connection takes when it starts stay as they were for connections already open.
+     */
+    public void reconfigure() {
+        var properties = this.properties;
+        this.properties = properties;
+        this.admission.reconfigure(properties.getAdmission(), getDefaultMaxConnections(properties));
+        this.originConnector.reconfigure(properties.getConnect());
+        this.rateLimiter.reconfigure(properties.getRateLimits());
+        if (this.upstreamPool != null) this.upstreamPool.reconfigure(properties.getUpstreamPool());
+    }
+
+    /**
+     * From now on connections end after the exchange in hand instead of waiting for another request.
+     */
+    public void startDraining() {
+        this.draining = true;
+    }
+
+    private static int getDefaultMaxConnections(ProxyServerProperties properties) {
+        return switch (properties.getEngine()) {
+            case BLOCKING -> properties.getThreads() + properties.getAdmission().getAcceptQueue();
+            case NIO -> NIO_MAX_CONNECTIONS;
+        };
+    }
+
+    private void registerMetrics() {
+        if (this.hostResolver instanceof DnsCache dnsCache) {
+            this.metrics.registerGauge("dns_cache_entries", "Cached host lookups.", dnsCache::getSize);
+            this.metrics.registerCounter("dns_cache_hits_total", "Lookups answered from the cache.", dnsCache::getHits);
+            this.metrics.registerCounter("dns_cache_negative_hits_total", "Failures answered from the cache.", dnsCache::getNegativeHits);
+            this.metrics.registerCounter("dns_cache_misses_total", "Lookups that queried the resolver.", dnsCache::getMisses);
+            this.metrics.registerCounter("dns_cache_refreshes_total", "Background refreshes.", dnsCache::getRefreshes);
+            this.metrics.registerCounter("dns_cache_evictions_total", "Entries dropped to stay within the size limit.", dnsCache::getEvictions);
+            this.metrics.registerHistogram("dns_lookup_duration_seconds", "Time the resolver took for lookups and refreshes.",
+                    dnsCache.getLookupLatency());
+        }
+        if (this.upstreamPool != null) {
+            var pool = this.upstreamPool;
+            this.metrics.registerGauge("upstream_pool_idle", "Idle origin connections.", pool::getIdleCount);
+            this.metrics.registerCounter("upstream_pool_hits_total", "Requests that reused an origin connection.", pool::getHits);
+            this.metrics.registerCounter("upstream_pool_misses_total", "Requests that opened an origin connection.", pool::getMisses);
+            this.metrics.registerCounter("upstream_pool_stale_total", "Idle connections found closed by the origin.", pool::getStaleEvictions);
+        }
+        if (this.http2Pool != null) {
+            var pool = this.http2Pool;
+            this.metrics.registerGauge("http2_connections", "Open HTTP/2 origin connections.", pool::getConnectionCount);
+            this.metrics.registerGauge("http2_streams", "Streams open on HTTP/2 origin connections.", pool::getActiveStreams);
+            this.metrics.registerCounter("http2_connections_opened_total", "HTTP/2 origin connections opened.", pool::getConnectionsOpened);
+            this.metrics.registerCounter("http2_streams_opened_total", "Requests sent as HTTP/2 streams.", pool::getStreamsOpened);
+            this.metrics.registerCounter("http2_stream_waits_total", "Requests that waited for a stream at the per-origin limits.", pool::getStreamWaits);
+            this.metrics.registerCounter("http2_fallbacks_total", "Origins that did not answer as HTTP/2 and were sent HTTP/1.1.", pool::getFallbacks);
+        }
+        this.metrics.registerCounter("connect_attempts_total", "Origin connection attempts, one per address tried.", this.originConnector::getAttempts);
+        this.metrics.registerCounter("connect_failures_total", "Origin connection attempts that failed or timed out.", this.originConnector::getFailures);
+        this.metrics.registerGauge("connect_penalized_addresses", "Origin addresses tried last after a recent failure.", this.originConnector::getPenalizedCount);
+        if (!this.parentProxies.isEmpty()) {
+            this.metrics.registerGauge("parent_proxies", "Configured parent proxies across all pools.", this.parentProxies::getMemberCount);
+            this.metrics.registerGauge("parent_proxies_ejected", "Parent proxies ejected for failures or slowness.", this.parentProxies::getEjectedCount);
+            this.metrics.registerCounter("parent_health_check_failures_total", "Failed parent proxy health checks.", this.parentProxies::getHealthCheckFailures);
+        }
+        if (this.rateLimiter.isSwitchedOn()) {
+            this.metrics.registerGauge("rate_limit_buckets", "Request and bandwidth buckets of recently active keys.", this.rateLimiter::getBucketCount);
+            this.metrics.registerCounter("rate_limit_delayed_requests_total", "Requests held back over the request rate.", this.rateLimiter::getDelayedRequests);
+            this.metrics.registerCounter("rate_limit_rejected_requests_total", "Requests answered with 429 over the request rate.", this.rateLimiter::getRejectedRequests);
+            this.metrics.registerCounter("rate_limit_request_delay_seconds_total", "Time requests were held back.", this.rateLimiter::getRequestDelaySeconds);
+            this.metrics.registerCounter("rate_limit_throttled_seconds_total", "Time relays stopped reading over the bandwidth limit.", this.rateLimiter::getThrottledSeconds);
+        }
+        if (this.accessControl.isEnabled()) {
+            this.metrics.registerGauge("acl_rules", "Allow and block rules loaded.", this.accessControl::getRuleCount);
+            this.metrics.registerCounter("acl_allowed_total", "Requests the access control lists let through.", this.accessControl::getAllowed);
+            this.metrics.registerCounter("acl_denied_total", "Requests answered with 403 by the access control lists.", this.accessControl::getDenied);
+            this.metrics.registerCounter("acl_reloads_total", "Access control list reloads.", this.accessControl::getReloads);
+            this.metrics.registerCounter("acl_reload_failures_total", "Access control list reloads that failed.", this.accessControl::getReloadFailures);
+        }
+        if (this.accessLog.isEnabled()) {
+            this.metrics.registerCounter("access_log_entries_total", "Access log entries written to segments.", this.accessLog::getWritten);
+            this.metrics.registerCounter("access_log_dropped_total", "Access log entries dropped because the ring was full.", this.accessLog::getDropped);
+        }
+        if (this.cache.isEnabled()) {
+            this.metrics.registerGauge("cache_entries", "Responses in the cache.", this.cache::getEntries);
+            this.metrics.registerGauge("cache_memory_bytes", "Bytes of responses in the memory tier.", this.cache::getMemoryBytes);
+            this.metrics.registerGauge("cache_disk_bytes", "Bytes of responses in the disk tier.", this.cache::getDiskBytes);
+            this.metrics.registerCounter("cache_hits_total", "Requests answered from the cache without asking the origin.", this.cache::getHits);
+            this.metrics.registerCounter("cache_misses_total", "Cacheable requests the cache had no usable response for.", this.cache::getMisses);
+            this.metrics.registerCounter("cache_revalidations_total", "Stale responses the origin confirmed with 304.", this.cache::getRevalidations);
+            this.metrics.registerCounter("cache_stores_total", "Responses stored.", this.cache::getStores);
+            this.metrics.registerCounter("cache_evictions_total", "Responses pushed out to make room.", this.cache::getEvictions);
+            this.metrics.registerGauge("cache_shared_fetches", "Origin fetches other requests can attach to.", this.cache::getSharedFetches);
+            this.metrics.registerCounter("cache_collapsed_total", "Requests served from an origin fetch another request started.", this.cache::getCollapsed);
+            this.metrics.registerCounter("cache_bytes_saved_total", "Body bytes served from the cache instead of the origin.", this.cache::getBytesSaved);
+        }
+        if (this.compressor.isEnabled()) {
+            this.metrics.registerCounter("compression_responses_total", "Responses sent gzip-compressed.", this.compressor::getCompressed);
+            this.metrics.registerCounter("compression_skipped_cpu_total", "Responses sent uncompressed over the CPU budget.", this.compressor::getSkippedOverBudget);
+            this.metrics.registerCounter("compression_bytes_in_total", "Body bytes before compression.", this.compressor::getBytesIn);
+            this.metrics.registerCounter("compression_bytes_out_total", "Body bytes after compression.", this.compressor::getBytesOut);
+            this.metrics.registerCounter("compression_seconds_total", "Time spent compressing.", this.compressor::getCompressionSeconds);
+        }
+        this.metrics.registerGauge("admission_limit", "Current adaptive connection limit.", this.admission::getLimit);
+        this.metrics.registerGauge("admission_in_flight", "Admitted connections not finished yet.", this.admission::getInFlight);
+        this.metrics.registerGauge("tunnels", "Open CONNECT tunnels.", this.admission::getTunnels);
+        this.metrics.registerCounter("admission_rejected_connections_total", "Connections rejected as overload.", this.admission::getRejectedConnections);
+        this.metrics.registerCounter("admission_rejected_tunnels_total", "CONNECT requests rejected over the tunnel limit.", this.admission::getRejectedTunnels);
+        this.metrics.registerCounter("buffer_allocations_total", "Buffers allocated because the pool had none.", this.bufferPool::getAllocations);
+        this.metrics.registerCounter("buffer_reuses_total", "Buffers served from the pool.", this.bufferPool::getReuses);
+    }
+
+    @Override
+    public void close() {
+        IOUtils.tryToClose(this.upstreamPool);
+        IOUtils.tryToClose(this.http2Pool);
+        this.parentProxies.close();
+        this.rateLimiter.close();
+        this.accessControl.close();
+        this.accessLog.close();
+        this.cache.close();
+        this.compressor.close();
+        if (this.hostResolver instanceof Closeable closeable) IOUtils.tryToClose(closeable);
+        this.bufferPool.close();
+    }
+}
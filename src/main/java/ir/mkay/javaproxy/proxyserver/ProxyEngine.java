@@ -0,0 +1,34 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.Closeable;
+
+public interface ProxyEngine extends Closeable {
+
+    void start();
+
+    int getLocalPort();
+
+    /**
+     * Applies reloaded properties of the context to what the engine took from them at startup. Connections
+     * accepted from now on get the new settings, open ones keep theirs.
+     */
+    void reconfigure();
+
+    /**
+     * Closes the listening sockets, leaving open connections alone.
+     */
+    void stopAccepting();
+
+    /**
+     * Ends connections waiting for their next request; called over and over while draining, so connections
+     * that become idle in the meantime are caught as well.
+     */
+    default void closeIdleConnections() {
+    }
+
+    /**
+     * Closes whatever connections are still open.
+     */
+    @Override
+    void close();
+}
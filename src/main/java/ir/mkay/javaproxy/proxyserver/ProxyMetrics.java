@@ -0,0 +1,206 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters and latency histograms recorded by both engines, plus gauges read from the shared services.
+ * Everything recorded on the request path is a striped counter; only exporting walks the whole set.
+ */
+public class ProxyMetrics {
+
+    private static final String PREFIX = "javaproxy_";
+
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+    @Getter
+    private final LongAdder clientBytesReceived = new LongAdder();
+    @Getter
+    private final LongAdder clientBytesSent = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    private final List<Histogram> histograms = new CopyOnWriteArrayList<>();
+
+    public ProxyMetrics() {
+        for (var phase : Phase.values()) this.phases.put(phase, new LatencyHistogram());
+        this.registerGauge("active_connections", "Client connections being handled.", this.activeConnections::sum);
+    }
+
+    public void record(Phase phase, long nanos) {
+        this.phases.get(phase).record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return this.phases.get(phase);
+    }
+
+    public void connectionOpened() {
+        this.connections.increment();
+        this.activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    public void recordError(Throwable e) {
+        this.errors.computeIfAbsent(e.getClass().getSimpleName(), k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Adds a value read at export time; {@code name} gets the common prefix.
+     */
+    public void registerGauge(String name, String help, DoubleSupplier value) {
+        this.gauges.add(new Gauge(PREFIX + name, help, "gauge", value));
+    }
+
+    /**
+     * Like {@link #registerGauge} for a value that only grows, such as a service's own hit count.
+     */
+    public void registerCounter(String name, String help, DoubleSupplier value) {
+        this.gauges.add(new Gauge(PREFIX + name, help, "counter", value));
+    }
+
+    /**
+     * One series of a counter with a label, such as one per acceptor; series of the same name are registered
+     * one after the other.
+     */
+    public void registerCounter(String name, String help, String label, String labelValue, DoubleSupplier value) {
+        this.gauges.add(new Gauge(PREFIX + name, help, "counter", value, label, labelValue));
+    }
+
+    /**
+     * Adds a latency histogram a service records into itself; {@code name} gets the common prefix.
+     */
+    public void registerHistogram(String name, String help, LatencyHistogram histogram) {
+        this.histograms.add(new Histogram(PREFIX + name, help, histogram));
+    }
+
+    /**
+     * Prometheus text exposition format, version 0.0.4.
+     */
+    public void writePrometheus(StringBuilder out) {
+        var histogram = PREFIX + "phase_duration_seconds";
+        writeHeader(out, histogram, "Time spent in each phase of handling a request.", "histogram");
+        for (var entry : this.phases.entrySet()) {
+            writeHistogram(out, histogram, "phase=\"" + entry.getKey().getLabel() + "\",", entry.getValue());
+        }
+        for (var registered : this.histograms) {
+            writeHeader(out, registered.name, registered.help, "histogram");
+            writeHistogram(out, registered.name, "", registered.histogram);
+        }
+
+        writeCounter(out, PREFIX + "connections_total", "Client connections accepted.", this.connections.sum());
+        writeCounter(out, PREFIX + "client_bytes_received_total", "Bytes read from clients.", this.clientBytesReceived.sum());
+        writeCounter(out, PREFIX + "client_bytes_sent_total", "Bytes written to clients.", this.clientBytesSent.sum());
+
+        writeHeader(out, PREFIX + "errors_total", "Failed connections by exception type.", "counter");
+        for (var entry : new TreeMap<>(this.errors).entrySet()) {
+            out.append(PREFIX).append("errors_total{type=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+
+        String previous = null;
+        for (var gauge : this.gauges) {
+            if (!gauge.name.equals(previous)) writeHeader(out, gauge.name, gauge.help, gauge.type);
+            previous = gauge.name;
+            out.append(gauge.name);
+            if (gauge.label != null) out.append('{').append(gauge.label).append("=\"").append(gauge.labelValue).append("\"}");
+            out.append(' ').append(formatDouble(gauge.value.getAsDouble())).append('\n');
+        }
+    }
+
+    /**
+     * Flat name to value view of the same metrics, with p50/p99 in place of histogram buckets, for JMX.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new LinkedHashMap<>();
+        for (var entry : this.phases.entrySet()) {
+            var name = entry.getKey().getLabel();
+            var histogram = entry.getValue();
+            snapshot.put(name + "_count", histogram.getCount());
+            snapshot.put(name + "_sum_seconds", histogram.getSumSeconds());
+            snapshot.put(name + "_p50_seconds", histogram.getQuantileSeconds(0.5));
+            snapshot.put(name + "_p99_seconds", histogram.getQuantileSeconds(0.99));
+        }
+        snapshot.put("connections_total", this.connections.sum());
+        snapshot.put("client_bytes_received_total", this.clientBytesReceived.sum());
+        snapshot.put("client_bytes_sent_total", this.clientBytesSent.sum());
+        for (var entry : new TreeMap<>(this.errors).entrySet()) {
+            snapshot.put("errors_" + entry.getKey(), entry.getValue().sum());
+        }
+        for (var registered : this.histograms) {
+            var name = registered.name.substring(PREFIX.length());
+            snapshot.put(name + "_count", registered.histogram.getCount());
+            snapshot.put(name + "_sum", registered.histogram.getSumSeconds());
+            snapshot.put(name + "_p50", registered.histogram.getQuantileSeconds(0.5));
+            snapshot.put(name + "_p99", registered.histogram.getQuantileSeconds(0.99));
+        }
+        for (var gauge : this.gauges) {
+            var name = gauge.name.substring(PREFIX.length());
+            snapshot.put(gauge.label != null ? name + "_" + gauge.labelValue : name, gauge.value.getAsDouble());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Bucket, sum and count lines of one series; {@code labels} is empty or ends with a comma.
+     */
+    private static void writeHistogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        var counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            var bound = i < LatencyHistogram.BUCKET_BOUNDS.length ? formatDouble(LatencyHistogram.BUCKET_BOUNDS[i]) : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(bound).append("\"} ")
+                    .append(counts[i]).append('\n');
+        }
+        var seriesLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(seriesLabels).append(' ').append(formatDouble(histogram.getSumSeconds())).append('\n');
+        out.append(name).append("_count").append(seriesLabels).append(' ').append(counts[counts.length - 1]).append('\n');
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        writeHeader(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String formatDouble(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    @Getter
+    public enum Phase {
+        CLIENT_HEADER_READ,
+        DNS,
+        UPSTREAM_CONNECT,
+        FIRST_RESPONSE_BYTE,
+        RELAY;
+
+        private final String label = this.name().toLowerCase(Locale.ROOT);
+    }
+
+    private record Histogram(String name, String help, LatencyHistogram histogram) {
+    }
+
+    private record Gauge(String name, String help, String type, DoubleSupplier value, String label, String labelValue) {
+
+        Gauge(String name, String help, String type, DoubleSupplier value) {
+            this(name, help, type, value, null, null);
+        }
+    }
+}
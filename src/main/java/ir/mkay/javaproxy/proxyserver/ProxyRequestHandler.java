@@ -4,51 +4,127 @@ import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.net.URL;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import static ir.mkay.javaproxy.proxyserver.HttpExchangeInfo.CRLF;
-import static ir.mkay.javaproxy.proxyserver.HttpExchangeInfo.END_OF_HTTP_HEADER;
+import static ir.mkay.javaproxy.proxyserver.HttpResponseInfo.BAD_REQUEST;
 import static ir.mkay.javaproxy.proxyserver.HttpResponseInfo.CONNECTION_ESTABLISHED;
 import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
 
 @Slf4j
-public class ProxyRequestHandler implements Runnable {
+public class ProxyRequestHandler implements Runnable, TunnelReaper.Tunnel {
 
     private static final Logger exchangeInfoLog = LoggerFactory.getLogger(ProxyRequestHandler.class.getName() + "-EXCHANGE_INFO");
 
-    private static final byte[] CONNECTION_ESTABLISHED_RESPONSE = CONNECTION_ESTABLISHED.toHttpString().getBytes(StandardCharsets.ISO_8859_1);
-    private static final int BUFFER_SIZE = 4 * 1024;
-    private static final int MAX_HTTP_STRING_SIZE = 16 * 1024;
+    static final byte[] CONNECTION_ESTABLISHED_RESPONSE = CONNECTION_ESTABLISHED.toByteArray();
+    static final byte[] BAD_REQUEST_RESPONSE = BAD_REQUEST.toByteArray();
+    static final int MAX_HTTP_STRING_SIZE = 16 * 1024;
+    private static final Set<String> RETRYABLE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "TRACE");
 
     private final long startTime = currentTimeMillis();
+    private final ProxyContext context;
     private final ExecutorService copyClientToProxyHandlers;
+    private final TunnelReaper tunnelReaper;
+    private final UpstreamConnectionPool upstreamPool;
+    private final Http2ConnectionPool http2Pool;
+    private final HostResolver hostResolver;
+    private final HostResolver originResolver;
+    private final BufferPool bufferPool;
+    private final ProxyMetrics metrics;
+    private final AdmissionController admission;
+    private final OriginConnector originConnector;
+    private final ParentProxies parentProxies;
+    private final RateLimiter rateLimiter;
+    private final AccessControl accessControl;
+    private final Throttle throttle;
+    private final AccessLog accessLog;
+    private final AccessLogEntry accessLogEntry;
+    private final HttpCache cache;
+    private final HttpResponseInfo cachedResponseInfo = new HttpResponseInfo();
+    private final ResponseCompressor compressor;
+    private final HttpResponseInfo compressedResponseInfo = new HttpResponseInfo();
+    private String cacheKey;
+    private CachedResponse revalidating;
+    private SharedFetch sharedFetch;
+    private long cacheRequestTime;
+    private boolean accessLogPending;
+    private long accessLoggedBytesReceived;
+    private long accessLoggedBytesSent;
+    private final long acceptedAt = nanoTime();
+    private boolean tunnelOpened;
 
     private final int clientTimeout;
     private final HttpRequestInfo clientRequestInfo = new HttpRequestInfo();
+    private int clientRequestHeaderLength;
+    private long clientRequestBodyLength;
+    private boolean clientRequestBodySent;
+    private boolean clientKeepAlive;
+    private int exchangeCount;
+    private volatile boolean awaitingNextRequest;
     private final Socket clientSocket;
-    private BufferedInputStream clientInput;
+    private HttpInputStream clientInput;
     private OutputStream clientOutput;
+    private CountingInputStream clientCountingInput;
+    private CountingOutputStream clientCountingOutput;
 
     private final int proxyTimeout;
     private final HttpResponseInfo proxyResponseInfo = new HttpResponseInfo();
+    private int proxyResponseHeaderLength;
+    private UpstreamConnection proxyConnection;
+    private Http2Stream http2Stream;
+    private ParentProxy parentProxy;
+    private boolean proxyConnectionReusable;
     private Socket proxySocket;
-    private BufferedInputStream proxyInput;
+    private HttpInputStream proxyInput;
     private OutputStream proxyOutput;
 
-    public ProxyRequestHandler(Socket socket, int clientTimeout, int proxyTimeout, ExecutorService copyClientToProxyHandlers) {
+    private AdaptiveBuffer buffer;
+
+    private long tunnelOpenedAt;
+    private volatile long tunnelLastActivity;
+    private volatile boolean tunnelClosed;
+    private Future<?> clientToProxyCopier;
+
+    public ProxyRequestHandler(Socket socket, ProxyContext context, ExecutorService copyClientToProxyHandlers, TunnelReaper tunnelReaper) {
         this.clientSocket = socket;
-        this.clientTimeout = clientTimeout;
-        this.proxyTimeout = proxyTimeout;
+        this.context = context;
+        this.clientTimeout = context.getProperties().getClientTimeout();
+        this.proxyTimeout = context.getProperties().getProxyTimeout();
         this.copyClientToProxyHandlers = copyClientToProxyHandlers;
+        this.tunnelReaper = tunnelReaper;
+        this.upstreamPool = context.getUpstreamPool();
+        this.http2Pool = context.getHttp2Pool();
+        this.hostResolver = context.getHostResolver();
+        this.originResolver = context.getOriginResolver();
+        this.bufferPool = context.getBufferPool();
+        this.metrics = context.getMetrics();
+        this.admission = context.getAdmission();
+        this.originConnector = context.getOriginConnector();
+        this.parentProxies = context.getParentProxies();
+        this.rateLimiter = context.getRateLimiter();
+        this.accessControl = context.getAccessControl();
+        this.throttle = this.rateLimiter.isBandwidthLimited() ? new Throttle(this.rateLimiter) : null;
+        this.accessLog = context.getAccessLog();
+        this.accessLogEntry = this.accessLog.isEnabled() ? new AccessLogEntry() : null;
+        this.cache = context.getCache();
+        this.compressor = context.getCompressor();
     }
 
     @Override
@@ -57,22 +133,51 @@ public class ProxyRequestHandler implements Runnable {
     }
 
     private void handleRequest() {
+        this.admission.recordSchedulingDelay(nanoTime() - this.acceptedAt);
+        this.metrics.connectionOpened();
         try {
             this.initializeClient();
-            this.readClientRequestInfo();
-            this.connectToProxy();
-            this.handleHttps();
-            this.copyClientToProxyAsync();
-            this.readProxyResponseInfo();
-            this.copyProxyToClient();
+            do {
+                if (!this.readClientRequestInfo()) break;
+                if (!this.checkFraming()) break;
+                if (!this.checkAccess()) break;
+                if (!this.limitRate()) break;
+                if (!this.admitTunnel()) break;
+                if (this.serveFromCache()) {
+                    this.finishAccessLogEntry();
+                    continue;
+                }
+                try {
+                    this.connectToProxy();
+                } catch (AccessControl.DeniedAddressException e) {
+                    this.deny();
+                    break;
+                }
+                var relayStart = nanoTime();
+                this.handleHttps();
+                if (this.clientRequestInfo.isHttps()) {
+                    this.relayTunnel();
+                } else {
+                    this.exchange();
+                    this.finishExchange();
+                }
+                this.recordPhase(ProxyMetrics.Phase.RELAY, nanoTime() - relayStart);
+                this.finishAccessLogEntry();
+            } while (!this.clientRequestInfo.isHttps() && this.clientKeepAlive && !this.context.isDraining());
         } catch (UnknownHostException e) {
+            this.metrics.recordError(e);
             log.warn("Error on handling client request; UnknownHostException: {}", e.getMessage());
         } catch (SocketTimeoutException e) {
+            this.metrics.recordError(e);
             log.warn("Error on handling client request; SocketTimeoutException: {}", e.getMessage());
         } catch (Exception e) {
+            this.metrics.recordError(e);
             log.warn("Error on handling client request", e);
         } finally {
+            this.finishAccessLogEntry();
             this.cleanUp();
+            this.metrics.connectionClosed();
+            this.admission.connectionFinished();
             if (log.isDebugEnabled()) {
                 log.debug("{}ms - Cleaned Up", this.getElapsedTime());
             }
@@ -81,121 +186,858 @@ public class ProxyRequestHandler implements Runnable {
 
     private void initializeClient() throws IOException {
         this.clientSocket.setSoTimeout(clientTimeout);
-        this.clientInput = new BufferedInputStream(this.clientSocket.getInputStream());
-        this.clientOutput = this.clientSocket.getOutputStream();
+        // A header and body written separately would otherwise wait on the peer's delayed ACK
+        this.clientSocket.setTcpNoDelay(true);
+        this.clientCountingInput = new CountingInputStream(this.clientSocket.getInputStream(), this.metrics.getClientBytesReceived());
+        this.clientCountingOutput = new CountingOutputStream(this.clientSocket.getOutputStream(), this.metrics.getClientBytesSent());
+        InputStream input = this.clientCountingInput;
+        OutputStream output = this.clientCountingOutput;
+        if (this.throttle != null) {
+            input = new ThrottledInputStream(input, this.throttle);
+            output = new ThrottledOutputStream(output, this.throttle);
+        }
+        this.clientInput = new HttpInputStream(input, this.bufferPool);
+        this.clientOutput = output;
+        this.buffer = new AdaptiveBuffer(this.bufferPool);
+        if (this.accessLogEntry != null) this.accessLogEntry.setClientAddress(this.clientSocket.getInetAddress().getAddress());
     }
 
-    private void readClientRequestInfo() throws IOException {
-        this.readExchangeInfo(this.clientInput, this.clientRequestInfo);
+    /**
+     * Returns false when a persistent client goes away or stays idle instead of sending another request.
+     */
+    private boolean readClientRequestInfo() throws IOException {
+        this.awaitingNextRequest = this.exchangeCount > 0;
+        try {
+            this.clientRequestHeaderLength = this.clientInput.readHeader(this.clientRequestInfo);
+        } catch (SocketTimeoutException e) {
+            if (this.exchangeCount > 0) return false;
+            throw e;
+        } catch (IllegalStateException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("{}ms - Refusing malformed request header; {}", this.getElapsedTime(), e.getMessage());
+            }
+            this.refuseBadRequest();
+            return false;
+        } finally {
+            this.awaitingNextRequest = false;
+        }
+        if (this.clientRequestHeaderLength == 0) return false;
+        this.exchangeCount++;
+        this.beginAccessLogEntry();
+        this.recordPhase(ProxyMetrics.Phase.CLIENT_HEADER_READ, nanoTime() - this.clientInput.getHeaderStartNanos());
 
         if (exchangeInfoLog.isDebugEnabled()) {
             exchangeInfoLog.debug("{}ms - Client {}", this.getElapsedTime(), this.clientRequestInfo);
         }
+        return true;
+    }
+
+    /**
+     * Answers 400 to a request whose body could be framed more than one way, instead of relaying it over an
+     * origin connection other clients go on to use.
+     */
+    private boolean checkFraming() throws IOException {
+        if (HttpBody.hasValidFraming(this.clientRequestInfo)) return true;
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Refusing request with ambiguous framing for {}", this.getElapsedTime(), this.clientRequestInfo.getTarget());
+        }
+        this.refuseBadRequest();
+        return false;
+    }
+
+    private void refuseBadRequest() throws IOException {
+        this.setAccessLogStatus(400);
+        this.clientOutput.write(BAD_REQUEST_RESPONSE);
+        this.clientOutput.flush();
+    }
+
+    /**
+     * Answers 403 to requests for destinations the access control lists deny, before anything else is done for them.
+     */
+    private boolean checkAccess() throws IOException {
+        if (!this.accessControl.isEnabled()) return true;
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        if (targetUrl != null && this.accessControl.isAllowed(targetUrl.getHost())) return true;
+        this.deny();
+        return false;
+    }
+
+    private void deny() throws IOException {
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Denying request for {}", this.getElapsedTime(), this.clientRequestInfo.getTarget());
+        }
+        this.setAccessLogStatus(403);
+        this.clientOutput.write(this.accessControl.getForbiddenResponse());
+        this.clientOutput.flush();
+    }
+
+    /**
+     * Holds the request back while its key is over the request rate, or answers 429 if that would take too long,
+     * and points the connection's throttle at the key's byte bucket.
+     */
+    private boolean limitRate() throws IOException {
+        if (!this.rateLimiter.isEnabled()) return true;
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        if (targetUrl == null || targetUrl.getHost().isEmpty()) {
+            // Only an absolute target names a host to limit, and nothing else could be done for the request either
+            this.refuseBadRequest();
+            return false;
+        }
+        var key = this.rateLimiter.getKey(this.clientSocket.getInetAddress().getHostAddress(), targetUrl.getHost());
+        var wait = this.rateLimiter.acquireRequest(key);
+        if (wait < 0) {
+            this.setAccessLogStatus(429);
+            this.clientOutput.write(this.rateLimiter.getTooManyRequestsResponse());
+            this.clientOutput.flush();
+            return false;
+        }
+        if (wait > 0) {
+            if (log.isDebugEnabled()) {
+                log.debug("{}ms - Holding back request of {} for {}ms", this.getElapsedTime(), key, wait / 1_000_000);
+            }
+            RateLimiter.sleep(wait);
+        }
+        if (this.throttle != null) this.throttle.setBucket(this.rateLimiter.getByteBucket(key));
+        return true;
+    }
+
+    /**
+     * Tunnels hold a connection for as long as the client likes, so they are capped separately.
+     */
+    private boolean admitTunnel() throws IOException {
+        if (!this.clientRequestInfo.getMethod().equals("CONNECT")) return true;
+        this.tunnelOpened = this.admission.tryOpenTunnel();
+        if (!this.tunnelOpened) {
+            this.setAccessLogStatus(503);
+            this.clientOutput.write(this.admission.getOverloadResponse());
+            this.clientOutput.flush();
+        }
+        return this.tunnelOpened;
+    }
+
+    /**
+     * Answers a cacheable request with a fresh stored response, or makes it conditional when the stored one is
+     * stale but has a validator, so the origin can confirm it with a 304 instead of sending the body again.
+     */
+    private boolean serveFromCache() throws IOException {
+        this.cacheKey = null;
+        this.revalidating = null;
+        this.abandonSharedFetch();
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        if (!this.cache.isEnabled() || targetUrl == null) return false;
+        if (this.cache.isInvalidating(this.clientRequestInfo)) {
+            this.cache.invalidate(HttpCache.key(targetUrl));
+            return false;
+        }
+        if (!this.cache.isCacheable(this.clientRequestInfo)) return false;
+        this.cacheKey = HttpCache.key(targetUrl);
+        var cached = this.cache.lookup(this.cacheKey, this.clientRequestInfo);
+        if (cached != null && this.serveCached(cached)) return true;
+        if (this.cache.isCollapsedForwarding()) {
+            this.sharedFetch = this.cache.leadFetch(this.cacheKey);
+            if (this.sharedFetch == null) {
+                var fetch = this.cache.joinFetch(this.cacheKey);
+                if (fetch != null && this.serveJoinedFetch(fetch)) return true;
+                // Nothing this request could have, but the response the fetch got may be stored by now
+                cached = this.cache.lookup(this.cacheKey, this.clientRequestInfo);
+                if (cached != null && this.serveCached(cached)) return true;
+            }
+        }
+        // A body evicted from disk since the lookup could not be served after a 304
+        if (cached != null && cached.hasValidator() && (!cached.isOnDisk() || Files.exists(cached.getBodyFile()))) {
+            if (cached.getEtag() != null) this.clientRequestInfo.setHeader(HttpHeaderName.IF_NONE_MATCH, cached.getEtag());
+            if (cached.getLastModified() != null) this.clientRequestInfo.setHeader(HttpHeaderName.IF_MODIFIED_SINCE, cached.getLastModified());
+            this.revalidating = cached;
+        } else {
+            this.cache.recordMiss();
+        }
+        return false;
+    }
+
+    private boolean serveCached(CachedResponse cached) throws IOException {
+        var now = currentTimeMillis();
+        if (!this.cache.isServable(cached, this.clientRequestInfo, now)) return false;
+        try (var body = this.openCachedBody(cached)) {
+            this.clientKeepAlive = this.isClientKeepAlive();
+            this.writeCachedResponse(cached, body, now);
+        } catch (NoSuchFileException e) {
+            // Evicted from disk between the lookup and now
+            return false;
+        }
+        this.cache.recordHit(cached);
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Served {} from cache", this.getElapsedTime(), this.cacheKey);
+        }
+        return true;
+    }
+
+    /**
+     * Serves the request from a fetch another request started, if that brings a response this one may get in time.
+     */
+    private boolean serveJoinedFetch(SharedFetch fetch) throws IOException {
+        try {
+            if (!fetch.awaitHeader(this.proxyTimeout) || !fetch.matchesVary(this.clientRequestInfo)) return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        this.clientKeepAlive = this.isClientKeepAlive();
+        this.setAccessLogStatus(fetch.getStatus());
+        this.writeSharedResponse(fetch);
+        this.cache.recordCollapsed(fetch);
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Served {} from a shared fetch", this.getElapsedTime(), this.cacheKey);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the body on as far as it has arrived, so each client goes at its own pace.
+     */
+    private void writeSharedResponse(SharedFetch fetch) throws IOException {
+        var response = fetch.toResponseInfo(this.cachedResponseInfo);
+        response.setHeader(HttpHeaderName.AGE, String.valueOf(fetch.getCurrentAge(currentTimeMillis()) / 1000));
+        response.setHeader(HttpHeaderName.CONNECTION, this.clientKeepAlive ? "keep-alive" : "close");
+        try (var compressed = this.writeResponseHeader(response, fetch.getBodyLength())) {
+            OutputStream out = compressed != null ? compressed : this.clientOutput;
+            for (int position = 0; position < fetch.getBodyLength(); ) {
+                var available = fetch.awaitBody(position, this.proxyTimeout);
+                out.write(fetch.getBody(), position, available - position);
+                out.flush();
+                position = available;
+            }
+            if (compressed != null) compressed.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for shared fetch of " + fetch.getKey());
+        }
+        this.clientOutput.flush();
+    }
+
+    private void abandonSharedFetch() {
+        if (this.sharedFetch != null) {
+            this.sharedFetch.abandon();
+            this.sharedFetch = null;
+        }
+    }
+
+    private FileChannel openCachedBody(CachedResponse cached) throws IOException {
+        return cached.isOnDisk() ? FileChannel.open(cached.getBodyFile()) : null;
+    }
+
+    /**
+     * Bodies from the disk tier go from the file straight to the client socket where nothing has to see them.
+     */
+    private void writeCachedResponse(CachedResponse cached, FileChannel body, long now) throws IOException {
+        var response = cached.toResponseInfo(this.cachedResponseInfo);
+        response.setHeader(HttpHeaderName.AGE, String.valueOf(cached.getCurrentAge(now) / 1000));
+        response.setHeader(HttpHeaderName.CONNECTION, this.clientKeepAlive ? "keep-alive" : "close");
+        this.setAccessLogStatus(cached.getStatus());
+        try (var compressed = this.writeResponseHeader(response, cached.getBodyLength())) {
+            OutputStream out = compressed != null ? compressed : this.clientOutput;
+            if (body == null) {
+                out.write(cached.getBody());
+            } else if (compressed == null && this.clientSocket.getChannel() != null && this.throttle == null) {
+                this.clientOutput.flush();
+                this.transferToClient(body, cached.getBodyLength());
+            } else {
+                HttpBody.copy(Channels.newInputStream(body), out, cached.getBodyLength(), this.buffer);
+            }
+            if (compressed != null) compressed.finish();
+        }
+        this.clientOutput.flush();
+    }
+
+    private void transferToClient(FileChannel body, long length) throws IOException {
+        if (body.size() < length) throw new EOFException("Cache file is shorter than its response body");
+        var target = this.clientSocket.getChannel();
+        for (long position = 0; position < length; ) {
+            position += body.transferTo(position, length - position, target);
+        }
+        this.clientCountingOutput.count(length);
     }
 
     private void connectToProxy() throws IOException {
-        var proxyAddress = InetAddress.getByName(this.clientRequestInfo.getTargetAsUrl().getHost());
-        var proxyPort = this.clientRequestInfo.getTargetAsUrl().getPort();
-        this.proxySocket = new Socket(proxyAddress, proxyPort > -1 ? proxyPort : 80);
+        var pooled = this.upstreamPool != null && !this.clientRequestInfo.getMethod().equals("CONNECT");
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        this.releaseParentProxy();
+        this.parentProxy = this.parentProxies.acquire(targetUrl.getHost());
+        if (this.parentProxy == null && this.openHttp2Stream(targetUrl)) return;
+        if (pooled) {
+            this.proxyConnection = this.upstreamPool.acquire(this.getProxyKey(targetUrl));
+        }
+        if (this.proxyConnection == null) {
+            try {
+                this.openProxyConnection(targetUrl, pooled);
+            } catch (IOException e) {
+                // Nothing was sent yet, so another parent of the pool can take over
+                var failover = this.parentProxy != null ? this.parentProxy.getPool().acquire(this.parentProxy) : null;
+                if (failover == null) throw e;
+                if (log.isDebugEnabled()) {
+                    log.debug("{}ms - Parent proxy {} failed; trying {}", this.getElapsedTime(), this.parentProxy, failover);
+                }
+                this.releaseParentProxy();
+                this.parentProxy = failover;
+                this.openProxyConnection(targetUrl, pooled);
+            }
+        }
+        this.proxyConnection.markUsed();
+        this.proxySocket = this.proxyConnection.getSocket();
         this.proxySocket.setSoTimeout(this.proxyTimeout);
-        this.proxyInput = new BufferedInputStream(this.proxySocket.getInputStream());
-        this.proxyOutput = this.proxySocket.getOutputStream();
+        this.proxyInput = this.proxyConnection.getInput();
+        this.proxyOutput = this.proxyConnection.getOutput();
+        if (this.accessLogEntry != null && this.parentProxy != null) this.accessLogEntry.addFlag(AccessLogEntry.PARENT);
+
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Connected to {} ({})", this.getElapsedTime(), this.proxyConnection.getKey(), this.proxyConnection.isReused() ? "reused" : "new");
+        }
+    }
+
+    /**
+     * Requests for origins that take HTTP/2 go out as a stream of a shared connection, whose response reads like
+     * an HTTP/1.1 one; returns false to use HTTP/1.1 instead.
+     */
+    private boolean openHttp2Stream(URL targetUrl) throws IOException {
+        if (this.http2Pool == null || this.clientRequestInfo.getMethod().equals("CONNECT")) return false;
+        var port = targetUrl.getPort() > -1 ? targetUrl.getPort() : 80;
+        if (!this.http2Pool.isHttp2Origin(targetUrl.getHost(), port)) return false;
+        this.http2Stream = this.http2Pool.openStream(targetUrl.getHost(), port);
+        if (this.http2Stream == null) return false;
+        this.proxySocket = null;
+        this.proxyInput = new HttpInputStream(this.http2Stream.getResponseInput(), this.bufferPool);
+        this.proxyOutput = this.http2Stream.getRequestOutput();
+        if (this.accessLogEntry != null) this.accessLogEntry.addFlag(AccessLogEntry.HTTP2);
+
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Opened HTTP/2 stream to {}", this.getElapsedTime(), this.http2Stream.getConnection().getKey());
+        }
+        return true;
+    }
+
+    private void closeHttp2Stream() {
+        IOUtils.tryToClose(this.proxyInput);
+        this.http2Stream.close();
+        this.http2Stream = null;
+    }
+
+    /**
+     * A connection to a parent carries requests for any origin, so it is pooled apart from direct ones.
+     */
+    private String getProxyKey(URL targetUrl) {
+        if (this.parentProxy != null) return "parent " + this.parentProxy.getKey();
+        return UpstreamConnectionPool.key(targetUrl.getHost(), targetUrl.getPort() > -1 ? targetUrl.getPort() : 80);
+    }
+
+    private void openProxyConnection(URL targetUrl, boolean pooled) throws IOException {
+        var proxyHost = this.parentProxy != null ? this.parentProxy.getHost() : targetUrl.getHost();
+        var proxyPort = this.parentProxy != null ? this.parentProxy.getPort() : targetUrl.getPort() > -1 ? targetUrl.getPort() : 80;
+        var resolveStart = nanoTime();
+        var connectStart = resolveStart;
+        try {
+            var proxyAddresses = (this.parentProxy != null ? this.hostResolver : this.originResolver).resolve(proxyHost);
+            connectStart = nanoTime();
+            this.recordPhase(ProxyMetrics.Phase.DNS, connectStart - resolveStart);
+            var socket = this.originConnector.connect(proxyAddresses, proxyPort);
+            socket.setTcpNoDelay(true);
+            this.proxyConnection = new UpstreamConnection(this.getProxyKey(targetUrl), socket, this.bufferPool);
+        } catch (IOException e) {
+            if (this.parentProxy != null) this.parentProxy.recordFailure();
+            throw e;
+        }
+        var connectTime = nanoTime() - connectStart;
+        this.recordPhase(ProxyMetrics.Phase.UPSTREAM_CONNECT, connectTime);
+        if (pooled) {
+            this.upstreamPool.recordConnectTime(connectTime);
+        }
+        if (this.parentProxy != null) {
+            this.parentProxy.recordSuccess(connectTime);
+        }
+    }
+
+    private void reconnectToProxy() throws IOException {
+        this.proxyConnection.close();
+        this.proxyConnection = null;
+        this.connectToProxy();
     }
 
     private void handleHttps() throws IOException {
         if (this.clientRequestInfo.getMethod().equals("CONNECT")) {
             this.clientRequestInfo.setHttps(true);
-            this.purge(this.clientInput);
+            if (this.accessLogEntry != null) this.accessLogEntry.addFlag(AccessLogEntry.HTTPS);
+            if (this.parentProxy != null) {
+                // The parent answers the CONNECT itself and its answer reaches the client through the tunnel
+                this.clientRequestInfo.removeHeader(HttpHeaderName.PROXY_CONNECTION);
+                this.clientRequestInfo.writeTo(this.proxyOutput);
+                this.proxyOutput.flush();
+                return;
+            }
+            this.clientInput.purge();
             clientOutput.write(CONNECTION_ESTABLISHED_RESPONSE);
             clientOutput.flush();
+            this.setAccessLogStatus(200);
+        }
+    }
+
+    private void releaseParentProxy() {
+        if (this.parentProxy != null) {
+            this.parentProxy.release();
+            this.parentProxy = null;
+        }
+    }
+
+    /**
+     * Relays both directions until each has seen end of stream, passing every end on as a half-close so the
+     * other side can still finish sending. This thread owns the tunnel and only returns once the copier is done,
+     * so nothing gets closed under it; the reaper ends quiet tunnels instead of per-read socket timeouts.
+     */
+    private void relayTunnel() throws IOException {
+        this.tunnelOpenedAt = currentTimeMillis();
+        this.tunnelLastActivity = this.tunnelOpenedAt;
+        if (this.tunnelReaper.isEnabled()) {
+            this.clientSocket.setSoTimeout(0);
+            this.proxySocket.setSoTimeout(0);
+            this.tunnelReaper.register(this);
+        }
+        try {
+            this.copyClientToProxyAsync();
+            this.copyTunnel(this.proxyInput, this.clientOutput);
+            this.clientSocket.shutdownOutput();
+        } finally {
+            // Stops the copier if this side failed; after a clean end it waits for the client to finish sending
+            if (this.proxySocket.isInputShutdown() || !this.clientSocket.isOutputShutdown()) {
+                IOUtils.tryToShutdownInput(this.clientSocket);
+            }
+            this.awaitClientToProxyCopier();
+            this.tunnelClosed = true;
         }
     }
 
     private void copyClientToProxyAsync() {
-        this.copyClientToProxyHandlers.submit(() -> {
+        this.clientToProxyCopier = this.copyClientToProxyHandlers.submit(() -> {
             try {
-                this.copyClientToProxy();
+                this.copyTunnel(this.clientInput, this.proxyOutput);
+                this.proxySocket.shutdownOutput();
             } catch (Exception e) {
                 log.warn("Failed to copy client to proxy; {}: {}", e.getClass().getName(), e.getMessage());
+                // Ends the other direction too, which is blocked reading the origin
+                IOUtils.tryToShutdownInput(this.proxySocket);
             }
         });
     }
 
-    private void copyClientToProxy() throws IOException {
-        this.copy(this.clientInput, this.proxyOutput);
+    private void awaitClientToProxyCopier() {
+        if (this.clientToProxyCopier == null) return;
+        try {
+            this.clientToProxyCopier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.clientToProxyCopier.cancel(true);
+        } catch (ExecutionException e) {
+            log.debug("Client to proxy copier failed", e);
+        }
+    }
+
+    private void copyTunnel(InputStream in, OutputStream out) throws IOException {
+        try (var buffer = new AdaptiveBuffer(this.bufferPool)) {
+            int read;
+            while ((read = in.read(buffer.get())) > -1) {
+                this.tunnelLastActivity = currentTimeMillis();
+                out.write(buffer.get(), 0, read);
+                buffer.record(read);
+                if (in.available() <= 0) {
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getOpenedAt() {
+        return this.tunnelOpenedAt;
+    }
+
+    @Override
+    public long getLastActivity() {
+        return this.tunnelLastActivity;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.tunnelClosed;
+    }
+
+    @Override
+    public void expire(String reason) {
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Closing tunnel {}; {}", this.getElapsedTime(), this.clientRequestInfo.getTarget(), reason);
+        }
+        IOUtils.tryToShutdownInput(this.proxySocket);
+        IOUtils.tryToShutdownInput(this.clientSocket);
+    }
+
+    /**
+     * Ends a persistent connection waiting for its next request, as if the client had closed it; called from
+     * another thread while draining. A request that has already started coming in is let through, after which
+     * the draining proxy closes the connection anyway.
+     */
+    public void closeIfIdle() {
+        if (!this.awaitingNextRequest) return;
+        try {
+            if (this.clientInput.available() > 0) return;
+        } catch (IOException e) {
+            // Closed already, which ends the wait just the same
+        }
+        IOUtils.tryToShutdownInput(this.clientSocket);
+    }
+
+    /**
+     * Cuts the connection off from another thread, whatever it is in the middle of.
+     */
+    public void abort() {
+        IOUtils.tryToShutdownInput(this.proxySocket);
+        IOUtils.tryToClose(this.clientSocket);
+    }
+
+    /**
+     * Relays one request/response pair with HTTP/1.1 framing so both connections can carry further exchanges.
+     */
+    private void exchange() throws IOException {
+        this.clientRequestBodyLength = HttpBody.getRequestBodyLength(this.clientRequestInfo);
+        this.clientRequestBodySent = false;
+        this.clientKeepAlive = this.isClientKeepAlive();
+        this.proxyConnectionReusable = false;
+
+        this.cacheRequestTime = currentTimeMillis();
+        this.copyClientRequestHeaderToProxy();
+        var requestSent = nanoTime();
+        if (!this.clientRequestInfo.hasHeaderToken(HttpHeaderName.EXPECT, "100-continue")) {
+            this.copyClientRequestBodyToProxy();
+        }
+
+        this.readProxyResponseInfo();
+        this.recordPhase(ProxyMetrics.Phase.FIRST_RESPONSE_BYTE, this.proxyInput.getHeaderStartNanos() - requestSent);
+        while (this.proxyResponseInfo.isInformational() && this.proxyResponseInfo.getStatus() != 101) {
+            this.copyInterimResponseToClient();
+            this.readProxyResponseInfo();
+        }
+
+        if (this.proxyResponseInfo.getStatus() == 101) {
+            this.switchProtocols();
+            return;
+        }
+        if (!this.clientRequestBodySent) {
+            // Origin answered without asking for the body, which the client may still send
+            this.clientKeepAlive = false;
+        }
+        if (this.revalidating != null) {
+            if (this.proxyResponseInfo.getStatus() == 304) {
+                this.serveRevalidated();
+                return;
+            }
+            this.cache.recordMiss();
+        }
+        this.copyProxyResponseToClient();
+    }
+
+    /**
+     * The origin confirmed the stale stored response, which is served with the headers of the 304 merged in.
+     */
+    private void serveRevalidated() throws IOException {
+        // Opened first, since storing the updated entry may evict it
+        try (var body = this.openCachedBody(this.revalidating)) {
+            var now = currentTimeMillis();
+            var updated = this.cache.revalidated(this.revalidating, this.clientRequestInfo, this.proxyResponseInfo, this.cacheRequestTime, now);
+            this.writeCachedResponse(updated, body, now);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Revalidated {} in cache", this.getElapsedTime(), this.cacheKey);
+        }
+        this.proxyConnectionReusable = this.upstreamPool != null
+                && this.clientRequestBodySent
+                && this.clientRequestInfo.isKeepAlive()
+                && this.proxyResponseInfo.isKeepAlive();
+    }
+
+    private boolean isClientKeepAlive() {
+        // A draining proxy answers the request in hand and closes, saying so where it writes the response itself
+        if (this.context.isDraining()) return false;
+        if (this.clientRequestInfo.hasHeaderToken(HttpHeaderName.PROXY_CONNECTION, "close")) return false;
+        return this.clientRequestInfo.isKeepAlive() || this.clientRequestInfo.hasHeaderToken(HttpHeaderName.PROXY_CONNECTION, "keep-alive");
+    }
+
+    /**
+     * Headers go out in their received order and case; only the hop-by-hop and proxy-specific parts are adjusted.
+     */
+    private void copyClientRequestHeaderToProxy() throws IOException {
+        this.clientRequestInfo.removeHopByHopHeaders();
+        // Parents need the absolute-form target to know where the request goes
+        this.clientRequestInfo.setOriginForm(this.parentProxy == null);
+        if (this.http2Stream != null) {
+            this.http2Stream.sendRequest(this.clientRequestInfo, this.clientRequestInfo.getTargetAsUrl(), this.clientRequestBodyLength == 0);
+            return;
+        }
+        this.clientRequestInfo.writeTo(this.proxyOutput);
+        this.proxyOutput.flush();
+    }
+
+    private void copyClientRequestBodyToProxy() throws IOException {
+        if (this.clientRequestBodyLength == HttpBody.CHUNKED && this.http2Stream != null) {
+            // HTTP/2 frames the body itself
+            HttpBody.copyDechunked(this.clientInput, this.proxyOutput, this.buffer);
+        } else if (this.clientRequestBodyLength == HttpBody.CHUNKED) {
+            HttpBody.copyChunked(this.clientInput, this.proxyOutput, this.buffer);
+        } else if (this.clientRequestBodyLength > 0) {
+            HttpBody.copy(this.clientInput, this.proxyOutput, this.clientRequestBodyLength, this.buffer);
+        }
+        // Closing a stream's body ends its request side
+        if (this.http2Stream != null) this.proxyOutput.close();
+        else this.proxyOutput.flush();
+        this.clientRequestBodySent = true;
+    }
+
+    private void copyInterimResponseToClient() throws IOException {
+        this.proxyResponseInfo.writeTo(this.clientOutput);
+        this.clientOutput.flush();
+        if (this.proxyResponseInfo.getStatus() == 100 && !this.clientRequestBodySent) {
+            this.copyClientRequestBodyToProxy();
+        }
+    }
+
+    /**
+     * After 101 both connections belong to the upgraded protocol, so they are relayed as a tunnel until closed,
+     * copier and reaper included.
+     */
+    private void switchProtocols() throws IOException {
+        this.clientKeepAlive = false;
+        this.proxyResponseInfo.writeTo(this.clientOutput);
+        this.clientOutput.flush();
+        this.relayTunnel();
     }
 
     private void readProxyResponseInfo() throws IOException {
-        if (this.clientRequestInfo.isHttps()) return;
+        try {
+            this.proxyResponseHeaderLength = this.proxyInput.readHeader(this.proxyResponseInfo);
+        } catch (SocketException e) {
+            // A reset, unlike a read timeout, says the origin dropped the connection instead of working on the request
+            if (this.proxyInput.getHeaderStartNanos() != 0 || !this.canRetryOnFreshConnection()) throw e;
+            this.proxyResponseHeaderLength = 0;
+        }
 
-        this.readExchangeInfo(this.proxyInput, this.proxyResponseInfo);
+        // The origin may close an idle connection right as we reuse it; a safe body-less request can be resent
+        if (this.proxyResponseHeaderLength == 0 && this.canRetryOnFreshConnection()) {
+            if (log.isDebugEnabled()) {
+                log.debug("{}ms - Reused connection was closed by proxy; retrying", this.getElapsedTime());
+            }
+            this.reconnectToProxy();
+            this.clientRequestInfo.writeTo(this.proxyOutput);
+            this.proxyOutput.flush();
+            this.proxyResponseHeaderLength = this.proxyInput.readHeader(this.proxyResponseInfo);
+        }
+        if (this.proxyResponseHeaderLength == 0) {
+            if (this.parentProxy != null) this.parentProxy.recordFailure();
+            throw new EOFException("Proxy closed connection before sending response header");
+        }
+        if (this.parentProxy != null) {
+            this.parentProxy.recordResponse(this.proxyResponseInfo);
+        }
+        this.setAccessLogStatus(this.proxyResponseInfo.getStatus());
 
         if (exchangeInfoLog.isDebugEnabled()) {
             exchangeInfoLog.debug("{}ms - Proxy {}", this.getElapsedTime(), this.proxyResponseInfo);
         }
     }
 
+    /**
+     * Only safe methods are resent (RFC 9110 section 9.2.2), since the origin may have acted on the request
+     * before dropping the connection.
+     */
+    private boolean canRetryOnFreshConnection() {
+        return this.proxyConnection != null && this.proxyConnection.isReused() && this.clientRequestBodyLength == 0
+                && RETRYABLE_METHODS.contains(this.clientRequestInfo.getMethod());
+    }
+
     private void copyProxyToClient() throws IOException {
         this.copy(this.proxyInput, this.clientOutput);
     }
 
-    private void readExchangeInfo(BufferedInputStream inputStream, HttpExchangeInfo httpExchangeInfo) throws IOException {
-        var headerLines = this.readHttpString(inputStream).split(CRLF);
-        for (int i = 0; i < headerLines.length; i++) {
-            var line = headerLines[i];
-            if (line == null || line.isBlank()) break;
-            if (i == 0) httpExchangeInfo.parseHttpExchangeFirstLine(line);
-            else httpExchangeInfo.parseHeader(line);
+    private void copyProxyResponseToClient() throws IOException {
+        var bodyLength = HttpBody.getResponseBodyLength(this.clientRequestInfo, this.proxyResponseInfo);
+        if (this.sharedFetch != null) {
+            if (this.cache.isShareable(this.proxyResponseInfo, bodyLength)) {
+                this.relaySharedFetch((int) bodyLength);
+                return;
+            }
+            this.abandonSharedFetch();
+        }
+        try (var compressed = this.writeResponseHeader(this.proxyResponseInfo, bodyLength)) {
+            if (bodyLength == HttpBody.UNTIL_EOF) {
+                this.clientKeepAlive = false;
+                this.copyProxyToClient();
+                return;
+            }
+            // A cached copy keeps the origin's encoding
+            OutputStream bodyOutput = compressed != null ? compressed : this.clientOutput;
+            var cacheWriter = this.cacheKey != null && bodyLength >= 0
+                    ? this.cache.startStore(this.cacheKey, this.clientRequestInfo, this.proxyResponseInfo, this.cacheRequestTime, currentTimeMillis(), bodyLength, bodyOutput)
+                    : null;
+            try (cacheWriter) {
+                var out = cacheWriter != null ? cacheWriter : bodyOutput;
+                if (bodyLength == HttpBody.CHUNKED && compressed != null) {
+                    HttpBody.copyDechunked(this.proxyInput, out, this.buffer);
+                } else if (bodyLength == HttpBody.CHUNKED) {
+                    HttpBody.copyChunked(this.proxyInput, out, this.buffer);
+                } else {
+                    HttpBody.copy(this.proxyInput, out, bodyLength, this.buffer);
+                }
+                if (cacheWriter != null) cacheWriter.commit();
+            }
+            if (compressed != null) compressed.finish();
         }
+        this.clientOutput.flush();
+        this.clientKeepAlive = this.clientKeepAlive && this.proxyResponseInfo.isKeepAlive();
+        this.proxyConnectionReusable = this.upstreamPool != null
+                && this.clientRequestBodySent
+                && this.clientRequestInfo.isKeepAlive()
+                && this.proxyResponseInfo.isKeepAlive();
     }
 
-    private String readHttpString(BufferedInputStream input) throws IOException {
-        var buffer = new byte[1024];
-        int read, total = 0;
-        int endOfHttpHeaderIndex = -1;
-        StringBuilder header = new StringBuilder();
-        input.mark(MAX_HTTP_STRING_SIZE);
-        while ((read = input.read(buffer)) > -1) {
-            header.append(new String(buffer, 0, read));
-            endOfHttpHeaderIndex = header.indexOf(END_OF_HTTP_HEADER, Math.max(total - 2, 0));
-            total += read;
-            if (endOfHttpHeaderIndex > 0) {
-                break;
-            }
-            if (total > MAX_HTTP_STRING_SIZE) {
-                throw new IllegalStateException("HTTP string size exceeded");
+    /**
+     * Writes the response header, rewritten for a gzip body if the response is to be compressed, in which case
+     * the body has to go through the returned stream, which is null otherwise.
+     */
+    private ChunkedGzipOutputStream writeResponseHeader(HttpResponseInfo response, long bodyLength) throws IOException {
+        if (!this.compressor.shouldCompress(this.clientRequestInfo, response, bodyLength)) {
+            response.writeTo(this.clientOutput);
+            return null;
+        }
+        this.compressor.rewriteHeader(response, this.compressedResponseInfo).writeTo(this.clientOutput);
+        return this.compressor.compress(this.clientOutput);
+    }
+
+    /**
+     * Reads the body into the shared fetch on a copier thread while this one serves its client from the fetch
+     * like every request attached to it, so no client sets the pace for the others.
+     */
+    private void relaySharedFetch(int bodyLength) throws IOException {
+        var fetch = this.sharedFetch;
+        var responseTime = currentTimeMillis();
+        fetch.publish(this.clientRequestInfo, this.proxyResponseInfo, this.cacheRequestTime, responseTime, bodyLength);
+        var cacheWriter = this.cache.startStore(this.cacheKey, this.clientRequestInfo, this.proxyResponseInfo,
+                this.cacheRequestTime, responseTime, bodyLength, fetch.getBodyOutput());
+        Future<?> reader = this.copyClientToProxyHandlers.submit(() -> {
+            try (cacheWriter) {
+                HttpBody.copy(this.proxyInput, cacheWriter != null ? cacheWriter : fetch.getBodyOutput(), bodyLength, this.buffer);
+                if (cacheWriter != null) cacheWriter.commit();
+            } finally {
+                fetch.abandon();
             }
+            return null;
+        });
+        try {
+            this.writeSharedResponse(fetch);
+        } finally {
+            this.awaitSharedFetchReader(reader);
         }
-        input.reset();
-        if (endOfHttpHeaderIndex <= 0) return "";
-        else return header.substring(0, endOfHttpHeaderIndex);
+        this.proxyConnectionReusable = this.upstreamPool != null
+                && this.clientRequestBodySent
+                && this.clientRequestInfo.isKeepAlive()
+                && this.proxyResponseInfo.isKeepAlive();
     }
 
-    private void purge(InputStream inputStream) throws IOException {
-        inputStream.readNBytes(inputStream.available());
+    private void awaitSharedFetchReader(Future<?> reader) throws IOException {
+        try {
+            reader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reader.cancel(true);
+            throw new InterruptedIOException("Interrupted waiting for shared fetch reader");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) throw cause;
+            throw new IllegalStateException("Shared fetch reader failed", e.getCause());
+        }
+    }
+
+    private void finishExchange() {
+        if (this.http2Stream != null) this.closeHttp2Stream();
+        else if (this.proxyConnectionReusable) this.upstreamPool.release(this.proxyConnection);
+        else this.proxyConnection.close();
+        this.proxyConnection = null;
+        this.proxyConnectionReusable = false;
+        this.releaseParentProxy();
+        // A fetch left unpublished, as after a 304, sends its waiters to the cache
+        this.abandonSharedFetch();
+        if (log.isDebugEnabled()) {
+            log.debug("{}ms - Exchange {} finished", this.getElapsedTime(), this.exchangeCount);
+        }
     }
 
     private void copy(InputStream in, OutputStream out) throws IOException {
-        var buffer = new byte[BUFFER_SIZE];
-        int read;
-        while ((read = in.read(buffer)) > -1) {
-            out.write(buffer, 0, read);
-            if (in.available() <= 0) {
-                out.flush();
+        try (var buffer = new AdaptiveBuffer(this.bufferPool)) {
+            int read;
+            while ((read = in.read(buffer.get())) > -1) {
+                out.write(buffer.get(), 0, read);
+                buffer.record(read);
+                if (in.available() <= 0) {
+                    out.flush();
+                }
             }
         }
     }
 
+    private void recordPhase(ProxyMetrics.Phase phase, long nanos) {
+        this.metrics.record(phase, nanos);
+        if (this.accessLogEntry != null) this.accessLogEntry.setPhase(phase, nanos);
+    }
+
+    private void beginAccessLogEntry() {
+        if (this.accessLogEntry == null) return;
+        this.accessLogEntry.reset();
+        this.accessLogEntry.setTimestamp(currentTimeMillis());
+        this.accessLogEntry.setMethod(this.clientRequestInfo.getMethod());
+        var targetUrl = this.clientRequestInfo.getTargetAsUrl();
+        if (targetUrl != null) {
+            this.accessLogEntry.setHost(targetUrl.getHost());
+            this.accessLogEntry.setPort(targetUrl.getPort() > -1 ? targetUrl.getPort() : 80);
+        }
+        this.accessLogPending = true;
+    }
+
+    private void setAccessLogStatus(int status) {
+        if (this.accessLogEntry != null) this.accessLogEntry.setStatus(status);
+    }
+
+    /**
+     * Bytes are what the client connection carried since the previous entry, read-ahead of a pipelined request
+     * included.
+     */
+    private void finishAccessLogEntry() {
+        if (!this.accessLogPending) return;
+        this.accessLogPending = false;
+        var received = this.clientCountingInput.getCount();
+        var sent = this.clientCountingOutput.getCount();
+        this.accessLogEntry.setBytesReceived(received - this.accessLoggedBytesReceived);
+        this.accessLogEntry.setBytesSent(sent - this.accessLoggedBytesSent);
+        this.accessLoggedBytesReceived = received;
+        this.accessLoggedBytesSent = sent;
+        this.accessLog.append(this.accessLogEntry);
+    }
+
     private long getElapsedTime() {
         return currentTimeMillis() - this.startTime;
     }
 
     private void cleanUp() {
-        IOUtils.tryToClose(this.proxyInput);
-        IOUtils.tryToClose(this.proxyOutput);
-        IOUtils.tryToClose(this.proxySocket);
+        if (this.http2Stream != null) this.closeHttp2Stream();
+        if (this.proxyConnection != null) {
+            if (this.proxyConnectionReusable) this.upstreamPool.release(this.proxyConnection);
+            else this.proxyConnection.close();
+        }
+        this.releaseParentProxy();
+        this.abandonSharedFetch();
         IOUtils.tryToClose(this.clientInput);
         IOUtils.tryToClose(this.clientOutput);
+        IOUtils.tryToClose(this.buffer);
         IOUtils.tryToClose(this.clientSocket);
+        if (this.tunnelOpened) this.admission.tunnelClosed();
     }
 }
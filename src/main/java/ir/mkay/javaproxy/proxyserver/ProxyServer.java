@@ -1,75 +1,193 @@
 package ir.mkay.javaproxy.proxyserver;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.BindException;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.currentTimeMillis;
 
 @Service
 @Slf4j
 public class ProxyServer implements Closeable {
 
-    private final ExecutorService executorService;
-    private final ExecutorService requestHandlers;
-    private final ExecutorService requestCopyClientToProxyHandlers;
-    private final ServerSocket serverSocket;
-    private final int clientTimeout;
-    private final int proxyTimeout;
+    /**
+     * Properties {@link #reload} takes; the rest are read once at startup and need a restart.
+     */
+    public static final Set<String> RELOADABLE_PROPERTIES = Set.of(
+            "server.threads",
+            "server.client-timeout",
+            "server.proxy-timeout",
+            "server.connect.timeout",
+            "server.connect.attempt-delay",
+            "server.connect.failure-penalty",
+            "server.tunnels.idle-timeout",
+            "server.tunnels.max-lifetime",
+            "server.upstream-pool.max-idle",
+            "server.upstream-pool.max-per-host",
+            "server.upstream-pool.idle-ttl",
+            "server.admission.max-connections",
+            "server.admission.min-connections",
+            "server.admission.max-tunnels",
+            "server.admission.target-delay",
+            "server.rate-limits.requests-per-second",
+            "server.rate-limits.request-burst",
+            "server.rate-limits.max-request-delay",
+            "server.rate-limits.bytes-per-second",
+            "server.rate-limits.byte-burst");
+
+    private static final long DRAIN_POLL_INTERVAL = 50;
+
+    @Getter
+    private final ProxyContext context;
+    private final ProxyEngine engine;
+    private final MetricsExporter metricsExporter;
+    private final LongAdder reloads = new LongAdder();
     private boolean started = false;
 
 
-    public ProxyServer(@Value("${server.port}") int port,
-                       @Value("${server.threads}") int threads,
-                       @Value("${server.client-timeout}") int clientTimeout,
-                       @Value("${server.proxy-timeout}") int proxyTimeout) throws IOException {
-        this.executorService = Executors.newSingleThreadExecutor();
-        this.requestHandlers = Executors.newFixedThreadPool(threads);
-        this.requestCopyClientToProxyHandlers = Executors.newFixedThreadPool(threads);
-        this.serverSocket = new ServerSocket(port);
-        this.clientTimeout = clientTimeout;
-        this.proxyTimeout = proxyTimeout;
+    public ProxyServer(ProxyServerProperties properties) throws IOException {
+        this.context = new ProxyContext(properties);
+        this.engine = switch (properties.getEngine()) {
+            case BLOCKING -> new BlockingProxyEngine(this.context);
+            case NIO -> new NioProxyEngine(this.context);
+        };
+        this.metricsExporter = new MetricsExporter(this.context.getMetrics(), properties.getMetrics());
+        if (this.context.getAccessControl().isEnabled()) {
+            this.metricsExporter.addPage("/acl", this.context.getAccessControl()::writeRuleHits);
+        }
+        if (properties.getMetrics().isAdmin()) {
+            this.metricsExporter.addAction("/admin/reload", this::reloadFrom);
+            this.metricsExporter.addAction("/admin/drain", body -> this.drainInBackground());
+        }
+        this.context.getMetrics().registerGauge("draining", "Whether the proxy stopped accepting to drain.",
+                () -> this.context.isDraining() ? 1 : 0);
+        this.context.getMetrics().registerCounter("config_reloads_total", "Reloads of timeouts, pool sizes and limits applied.",
+                this.reloads::sum);
     }
 
     @PostConstruct
-    public void start() {
+    public void start() throws IOException {
         if (!this.started) {
-            this.executorService.submit(() -> {
-               while (!Thread.interrupted()) {
-                   this.accept();
-               }
-            });
+            this.engine.start();
+            this.metricsExporter.start();
 
             this.started = true;
-            log.info("Proxy server started on port {}", this.serverSocket.getLocalPort());
+            log.info("Proxy server started on port {}", this.engine.getLocalPort());
         } else {
             log.warn("Proxy server is already started");
         }
     }
 
+    public int getLocalPort() {
+        return this.engine.getLocalPort();
+    }
+
+    /**
+     * Applies new values of {@link #RELOADABLE_PROPERTIES}, keyed by those names, to the running proxy. Open
+     * connections keep the timeouts they started with and resized pools let busy threads finish, so only what
+     * comes next sees the change. Values are checked before any is applied; a name that is not reloadable or a
+     * value that does not convert fails the whole reload with an IllegalArgumentException.
+     */
+    public synchronized void reload(Map<String, String> values) {
+        for (var name : values.keySet()) {
+            if (!RELOADABLE_PROPERTIES.contains(name)) {
+                throw new IllegalArgumentException("Not a reloadable property: " + name);
+            }
+        }
+        var binder = new Binder(new MapConfigurationPropertySource(values));
+        try {
+            var checked = binder.bind("server", Bindable.of(ProxyServerProperties.class)).orElseGet(ProxyServerProperties::new);
+            if (checked.getThreads() < 1) throw new IllegalArgumentException("server.threads has to be at least 1");
+            binder.bind("server", Bindable.ofInstance(this.context.getProperties()));
+        } catch (BindException e) {
+            var cause = e.getCause() != null ? e.getCause() : e;
+            throw new IllegalArgumentException("Invalid value for " + e.getName() + ": " + cause.getMessage(), e);
+        }
+        this.context.reconfigure();
+        this.engine.reconfigure();
+        this.reloads.increment();
+        log.info("Reloaded {}", values);
+    }
+
+    /**
+     * Stops accepting and waits up to the timeout for open connections to finish the exchange they are in;
+     * keep-alive connections are closed instead of waiting for their next request. Returns how many connections
+     * were still open at the deadline, which {@link #close()} then cuts off.
+     */
+    public int drain(long timeoutMillis) {
+        this.context.startDraining();
+        this.engine.stopAccepting();
+        var admission = this.context.getAdmission();
+        var deadline = currentTimeMillis() + timeoutMillis;
+        while (admission.getInFlight() > 0 && currentTimeMillis() < deadline) {
+            this.engine.closeIdleConnections();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(DRAIN_POLL_INTERVAL));
+        }
+        var remaining = admission.getInFlight();
+        if (remaining > 0) {
+            log.warn("{} connections still open after draining for {}ms", remaining, timeoutMillis);
+        } else {
+            log.info("Proxy server drained");
+        }
+        return remaining;
+    }
+
     @PreDestroy
     public void close() {
         if (this.started) {
-            this.executorService.shutdown();
-            this.requestHandlers.shutdown();
-            this.requestCopyClientToProxyHandlers.shutdown();
-            IOUtils.tryToClose(this.serverSocket);
+            this.drain(this.context.getProperties().getDrainTimeout());
+            this.engine.close();
+            this.metricsExporter.close();
         }
+        this.context.close();
         log.info("Proxy server stopped");
     }
 
-    private void accept() {
+    /**
+     * Takes the body of POST /admin/reload in properties file format and answers with the values applied.
+     */
+    private String reloadFrom(String body) {
+        var properties = new Properties();
         try {
-            var socket = this.serverSocket.accept();
-            this.requestHandlers.submit(new ProxyRequestHandler(socket, this.clientTimeout, this.proxyTimeout, this.requestCopyClientToProxyHandlers));
+            properties.load(new StringReader(body));
         } catch (IOException e) {
-            log.warn("Error accepting socket", e);
+            throw new IllegalArgumentException("Unreadable properties: " + e.getMessage(), e);
         }
+        if (properties.isEmpty()) throw new IllegalArgumentException("No properties to reload");
+        var values = new TreeMap<String, String>();
+        properties.forEach((name, value) -> values.put(name.toString().trim(), value.toString().trim()));
+        this.reload(values);
+        var out = new StringBuilder();
+        values.forEach((name, value) -> out.append(name).append('=').append(value).append('\n'));
+        return out.toString();
+    }
+
+    /**
+     * Starts draining on its own thread, so the admin endpoint answers right away; progress shows in the
+     * draining and admission_in_flight metrics.
+     */
+    private String drainInBackground() {
+        var thread = new Thread(() -> this.drain(this.context.getProperties().getDrainTimeout()), "proxy-drain");
+        thread.setDaemon(true);
+        thread.start();
+        return "Draining " + this.context.getAdmission().getInFlight() + " open connections for up to "
+                + this.context.getProperties().getDrainTimeout() + "ms\n";
     }
 }
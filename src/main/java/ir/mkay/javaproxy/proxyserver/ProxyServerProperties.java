@@ -0,0 +1,626 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "server")
+public class ProxyServerProperties {
+
+    private int port = 8765;
+    private int threads = 500;
+    private int clientTimeout = 3000;
+    private int proxyTimeout = 3000;
+
+    /**
+     * {@link Engine#BLOCKING} uses a thread per connection (plus one for client to proxy copy);
+     * {@link Engine#NIO} multiplexes all connections on a few selector threads.
+     */
+    private Engine engine = Engine.BLOCKING;
+
+    /**
+     * Number of selector threads used by the NIO engine; zero or less means one per available processor.
+     */
+    private int eventLoops = 0;
+
+    /**
+     * Threads the NIO engine looks up host names on, off its event loops; further lookups wait for one. Sized
+     * once at startup.
+     */
+    private int resolverThreads = 16;
+
+    /**
+     * Listening sockets, each with its own accepting thread and its own share of the handler threads or event
+     * loops. More than one binds the port with SO_REUSEPORT, so the kernel spreads connections over them;
+     * where that option is not available a single one is used.
+     */
+    private int acceptors = 1;
+
+    /**
+     * Length of each listening socket's queue of connections not accepted yet; zero or less means the JDK default.
+     */
+    private int backlog = 0;
+
+    /**
+     * Milliseconds a shutdown waits for open connections to finish their exchange after it stops accepting;
+     * whatever is still open then is closed.
+     */
+    private long drainTimeout = 30000;
+
+    private final UpstreamPool upstreamPool = new UpstreamPool();
+
+    private final Dns dns = new Dns();
+
+    private final Buffers buffers = new Buffers();
+
+    private final Metrics metrics = new Metrics();
+
+    private final Admission admission = new Admission();
+
+    private final Connect connect = new Connect();
+
+    private final Tunnels tunnels = new Tunnels();
+
+    private final Parents parents = new Parents();
+
+    private final RateLimits rateLimits = new RateLimits();
+
+    private final AccessLog accessLog = new AccessLog();
+
+    private final Cache cache = new Cache();
+
+    private final Compression compression = new Compression();
+
+    private final Acl acl = new Acl();
+
+    private final Http2Upstream http2Upstream = new Http2Upstream();
+
+    public int getEffectiveEventLoops() {
+        return this.eventLoops > 0 ? this.eventLoops : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Getter
+    @Setter
+    public static class UpstreamPool {
+
+        /**
+         * Reuse keep-alive origin connections for plain HTTP requests.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Idle connections kept across all origins.
+         */
+        private int maxIdle = 500;
+
+        /**
+         * Idle connections kept for a single host:port.
+         */
+        private int maxPerHost = 8;
+
+        /**
+         * Milliseconds an idle connection may stay in the pool.
+         */
+        private long idleTtl = 30000;
+    }
+
+    @Getter
+    @Setter
+    public static class Dns {
+
+        /**
+         * Cache resolved origin addresses in the proxy instead of asking the resolver on every connect.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Milliseconds a successful lookup is cached.
+         */
+        private long positiveTtl = 60000;
+
+        /**
+         * Milliseconds a failed lookup is cached.
+         */
+        private long negativeTtl = 5000;
+
+        /**
+         * Entries used within this many milliseconds of expiring are refreshed in the background.
+         */
+        private long refreshAhead = 10000;
+
+        private int maxSize = 10000;
+
+        private int refreshThreads = 2;
+    }
+
+    @Getter
+    @Setter
+    public static class Buffers {
+
+        /**
+         * Bytes in a small buffer, used for headers and interactive traffic.
+         */
+        private int smallSize = 4 * 1024;
+
+        /**
+         * Bytes in a large buffer, which copy loops switch to during bulk transfers.
+         */
+        private int largeSize = 32 * 1024;
+
+        /**
+         * Bytes kept in the shared pool for each buffer size; released buffers beyond that are garbage collected.
+         */
+        private long maxPooledBytes = 32 * 1024 * 1024;
+
+        /**
+         * Released buffers of each size a thread keeps for its own next acquisition.
+         */
+        private int threadCacheSize = 1;
+
+        /**
+         * Use direct buffers for NIO channel I/O.
+         */
+        private boolean direct = false;
+
+        /**
+         * Record where every buffer was acquired and report the ones never released; always on with debug logging.
+         */
+        private boolean leakDetection = false;
+    }
+
+    @Getter
+    @Setter
+    public static class Metrics {
+
+        /**
+         * Port of the Prometheus text endpoint at /metrics; zero or less disables it, and if it is taken the proxy
+         * starts without the endpoint.
+         */
+        private int port = 9765;
+
+        /**
+         * Address the metrics endpoint listens on; local only by default.
+         */
+        private String address = "127.0.0.1";
+
+        /**
+         * Register the metrics as the ir.mkay.javaproxy:type=ProxyMetrics MBean.
+         */
+        private boolean jmx = true;
+
+        /**
+         * Serve POST /admin/reload, which applies new timeouts, pool sizes and limits, and POST /admin/drain on
+         * the metrics endpoint.
+         */
+        private boolean admin = false;
+    }
+
+    @Getter
+    @Setter
+    public static class Admission {
+
+        /**
+         * Limit connections and tunnels and reject what is over the limit; without it work queues up unbounded.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Accepted connections that may wait for a free handler thread (blocking engine).
+         */
+        private int acceptQueue = 100;
+
+        /**
+         * Upper bound of the adaptive connection limit; zero or less means threads plus accept queue for the
+         * blocking engine and 10000 for the NIO engine.
+         */
+        private int maxConnections = 0;
+
+        /**
+         * The adaptive connection limit never drops below this.
+         */
+        private int minConnections = 16;
+
+        /**
+         * Concurrent CONNECT tunnels; zero or less means no limit besides the connection limit.
+         */
+        private int maxTunnels = 0;
+
+        /**
+         * Milliseconds an accepted connection may wait to be served before the connection limit backs off.
+         */
+        private long targetDelay = 50;
+
+        /**
+         * Milliseconds the accept loop waits for room before accepting and rejecting the next client.
+         */
+        private long acceptPause = 100;
+
+        private OverloadAction overloadAction = OverloadAction.RESPOND;
+
+        /**
+         * Seconds sent in the Retry-After header of the 503 response.
+         */
+        private int retryAfter = 1;
+    }
+
+    @Getter
+    @Setter
+    public static class Connect {
+
+        /**
+         * Milliseconds to connect to an origin, across all of its addresses; zero or less waits as long as the OS does.
+         */
+        private long timeout = 10000;
+
+        /**
+         * Milliseconds to wait on a pending attempt before also trying the origin's next address.
+         */
+        private long attemptDelay = 250;
+
+        /**
+         * Milliseconds an address that failed to connect is tried after the origin's other addresses.
+         */
+        private long failurePenalty = 30000;
+    }
+
+    @Getter
+    @Setter
+    public static class Tunnels {
+
+        /**
+         * Milliseconds without traffic in either direction before a CONNECT tunnel is closed; zero or less never.
+         */
+        private long idleTimeout = 300000;
+
+        /**
+         * Milliseconds a CONNECT tunnel may stay open however busy it is; zero or less means no limit.
+         */
+        private long maxLifetime = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class Parents {
+
+        /**
+         * Upstream proxies by pool name.
+         */
+        private final Map<String, ParentPool> pools = new LinkedHashMap<>();
+
+        /**
+         * Checked in order; the first route matching the request's host decides, and no match means direct.
+         */
+        private final List<ParentRoute> routes = new ArrayList<>();
+
+        /**
+         * Milliseconds between TCP connect checks of every parent; zero or less disables them.
+         */
+        private long healthCheckInterval = 5000;
+
+        /**
+         * Milliseconds a health check connect may take.
+         */
+        private int healthCheckTimeout = 1000;
+
+        /**
+         * Consecutive failures, on requests or health checks, that eject a parent.
+         */
+        private int maxFailures = 3;
+
+        /**
+         * Milliseconds an ejected parent gets no traffic, unless a health check succeeds before that.
+         */
+        private long ejectDuration = 30000;
+
+        /**
+         * Milliseconds of average connect latency above which a parent is ejected as slow; zero or less never.
+         */
+        private long slowThreshold = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class RateLimits {
+
+        /**
+         * Limit requests and bandwidth per key; the limits below only apply with this on.
+         */
+        private boolean enabled = false;
+
+        private RateLimitKey key = RateLimitKey.CLIENT;
+
+        /**
+         * Steady request rate allowed per key; zero or less means requests are not limited.
+         */
+        private double requestsPerSecond = 0;
+
+        /**
+         * Requests a key may make at once, after being quiet, before the rate applies.
+         */
+        private int requestBurst = 10;
+
+        /**
+         * Milliseconds a request over the rate may be held back; beyond that it gets 429 Too Many Requests.
+         */
+        private long maxRequestDelay = 1000;
+
+        /**
+         * Relayed bytes per second per key, both directions together; zero or less means bandwidth is not limited.
+         */
+        private long bytesPerSecond = 0;
+
+        /**
+         * Bytes a key may relay at once, after being quiet, before the rate applies; zero or less means one second worth.
+         */
+        private long byteBurst = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class AccessLog {
+
+        /**
+         * Record every exchange in binary segment files, read them with {@link ir.mkay.javaproxy.proxyserver.AccessLogReader}.
+         */
+        private boolean enabled = false;
+
+        private String directory = "logs/access";
+
+        /**
+         * Entries the in-memory ring holds for the writer thread, rounded up to a power of two; entries that do
+         * not fit are dropped.
+         */
+        private int ringSize = 8192;
+
+        /**
+         * Bytes of each memory-mapped segment file.
+         */
+        private int segmentSize = 64 * 1024 * 1024;
+
+        /**
+         * Segment files kept, oldest deleted first; zero or less keeps them all.
+         */
+        private int maxSegments = 16;
+
+        /**
+         * Milliseconds between forcing the current segment to disk; zero or less leaves it to the OS.
+         */
+        private long forceInterval = 1000;
+    }
+
+    @Getter
+    @Setter
+    public static class Cache {
+
+        /**
+         * Keep cacheable responses to plain HTTP GET requests and answer repeated requests from them.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Bytes of responses kept in memory.
+         */
+        private long memoryMaxBytes = 64 * 1024 * 1024;
+
+        /**
+         * Largest response body kept in memory; larger ones go to the disk tier, if there is one.
+         */
+        private long memoryMaxObjectSize = 1024 * 1024;
+
+        /**
+         * Directory of the disk tier, emptied of cache files at startup; empty means no disk tier.
+         */
+        private String diskDirectory = "";
+
+        /**
+         * Bytes of responses kept on disk.
+         */
+        private long diskMaxBytes = 1024 * 1024 * 1024;
+
+        /**
+         * Largest response body kept on disk.
+         */
+        private long diskMaxObjectSize = 256 * 1024 * 1024;
+
+        /**
+         * Let concurrent cacheable requests for the same URL wait for one origin fetch instead of sending their own.
+         */
+        private boolean collapsedForwarding = true;
+
+        /**
+         * Largest response body a fetch is shared for; it is held in memory until every waiter has it.
+         */
+        private int collapsedMaxBodySize = 16 * 1024 * 1024;
+    }
+
+    @Getter
+    @Setter
+    public static class Compression {
+
+        /**
+         * Gzip relayed responses of the listed types for clients that accept it.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Deflate level, 1 (fastest) to 9 (smallest).
+         */
+        private int level = 6;
+
+        /**
+         * Bytes below which a response with a Content-Length is sent as it is.
+         */
+        private long minSize = 1024;
+
+        /**
+         * Share of all processors' time compression may use, 0.25 being a quarter of it; responses are sent
+         * uncompressed while over it. Zero or less means no limit.
+         */
+        private double cpuBudget = 0.25;
+
+        /**
+         * Content types to compress; {@code type/*} covers every subtype.
+         */
+        private List<String> mimeTypes = new ArrayList<>(List.of(
+                "text/*", "application/json", "application/javascript", "application/x-javascript",
+                "application/xml", "application/xhtml+xml", "application/rss+xml", "image/svg+xml"));
+    }
+
+    @Getter
+    @Setter
+    public static class ParentPool {
+
+        /**
+         * Parent proxies as host:port.
+         */
+        private List<String> members = new ArrayList<>();
+
+        private Balancer balancer = Balancer.LEAST_CONNECTIONS;
+    }
+
+    @Getter
+    @Setter
+    public static class ParentRoute {
+
+        /**
+         * Exact host names, *.example.com for subdomains or * for every host.
+         */
+        private List<String> hosts = new ArrayList<>();
+
+        /**
+         * Name of the pool to use, or direct to connect to the origin itself.
+         */
+        private String pool = ParentProxies.DIRECT;
+    }
+
+    @Getter
+    @Setter
+    public static class Acl {
+
+        /**
+         * Check every request's destination against the allow and block lists before anything is sent out.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Files of destinations allowed even when a block list or the default action would deny them.
+         */
+        private List<String> allowFiles = new ArrayList<>();
+
+        /**
+         * Files of destinations answered with 403 Forbidden.
+         */
+        private List<String> blockFiles = new ArrayList<>();
+
+        /**
+         * What happens to destinations neither list matches.
+         */
+        private AclAction defaultAction = AclAction.ALLOW;
+
+        /**
+         * Milliseconds between checks of the list files for changes, which are then loaded in the background;
+         * zero or less never reloads.
+         */
+        private long reloadInterval = 5000;
+    }
+
+    @Getter
+    @Setter
+    public static class Http2Upstream {
+
+        /**
+         * Send plain HTTP requests for the listed origins as streams of shared HTTP/2 connections.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Origins known to speak HTTP/2 over plain TCP, as {@code host} or {@code host:port} with port 80 by
+         * default; hosts may be {@code *.example.com} for any subdomain or {@code *} for all.
+         */
+        private List<String> origins = new ArrayList<>();
+
+        /**
+         * Connections opened to a single origin once the others have no streams left.
+         */
+        private int maxConnectionsPerOrigin = 4;
+
+        /**
+         * Streams open at once on a connection, lowered to what the origin allows.
+         */
+        private int maxConcurrentStreams = 100;
+
+        /**
+         * Bytes of response a stream may have buffered before its client reads them.
+         */
+        private int streamWindow = 1024 * 1024;
+
+        /**
+         * Bytes of response all streams of a connection may have in flight.
+         */
+        private int connectionWindow = 16 * 1024 * 1024;
+
+        /**
+         * Milliseconds a connection without streams stays open.
+         */
+        private long idleTimeout = 60000;
+
+        /**
+         * Milliseconds an origin that did not answer the HTTP/2 preface is sent HTTP/1.1 before trying again.
+         */
+        private long fallbackPeriod = 60000;
+    }
+
+    public enum AclAction {
+        ALLOW,
+        DENY
+    }
+
+    public enum Balancer {
+        /**
+         * Fewest connections in use.
+         */
+        LEAST_CONNECTIONS,
+        /**
+         * Lowest moving average of connect latency, weighted by connections in use.
+         */
+        EWMA
+    }
+
+    public enum RateLimitKey {
+        /**
+         * Client IP address.
+         */
+        CLIENT,
+        /**
+         * Target host, so a busy destination is protected from all clients together.
+         */
+        DESTINATION,
+        /**
+         * Each client and target host pair.
+         */
+        CLIENT_AND_DESTINATION
+    }
+
+    public enum OverloadAction {
+        /**
+         * Answer with 503 Service Unavailable and Retry-After.
+         */
+        RESPOND,
+        /**
+         * Close with a TCP reset, which costs the proxy nothing but tells the client less.
+         */
+        RESET
+    }
+
+    public enum Engine {
+        BLOCKING,
+        NIO
+    }
+}
@@ -0,0 +1,209 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Per key request rate and bandwidth limits, the key being the client address, the destination host or both.
+ * Requests over the rate are held back up to a limit and answered with 429 beyond it; bytes over the rate are
+ * never dropped, the relay just stops reading until the bucket has caught up, so TCP flow control slows the
+ * sender down. Buckets live in a concurrent map and are dropped again once they are full.
+ */
+@Slf4j
+public class RateLimiter implements Closeable {
+
+    private static final long CLEANUP_INTERVAL = 10000;
+
+    private final boolean switchedOn;
+    private final ProxyServerProperties.RateLimitKey key;
+    private volatile boolean enabled;
+    private volatile double requestsPerSecond;
+    private volatile double requestBurst;
+    private volatile double bytesPerSecond;
+    private volatile double byteBurst;
+    private volatile long maxRequestDelayNanos;
+    private final byte[] tooManyRequestsResponse;
+
+    private final Map<String, TokenBucket> requestBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> byteBuckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cleaner;
+
+    private final LongAdder delayedRequests = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder requestDelayNanos = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    public RateLimiter(ProxyServerProperties.RateLimits properties) {
+        this.switchedOn = properties.isEnabled();
+        this.key = properties.getKey();
+        this.reconfigure(properties);
+        var response = new HttpResponseInfo();
+        response.setProtocolVersion("HTTP/1.1");
+        response.setStatus(429);
+        response.setReasonPhrase("Too Many Requests");
+        response.addHeader(HttpHeaderName.RETRY_AFTER, "1");
+        response.addHeader(HttpHeaderName.CONTENT_LENGTH, "0");
+        response.addHeader(HttpHeaderName.CONNECTION, "close");
+        response.addHeader(HttpHeaderName.PROXY_AGENT, "JavaProxy");
+        this.tooManyRequestsResponse = response.toByteArray();
+        // Started with the switch rather than the rates, which a reload may turn on later
+        if (this.switchedOn) {
+            this.cleaner = Executors.newSingleThreadScheduledExecutor();
+            this.cleaner.scheduleWithFixedDelay(this::removeFullBuckets, CLEANUP_INTERVAL, CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            this.cleaner = null;
+        }
+    }
+
+    /**
+     * Takes on reloaded rates and bursts. The buckets are started over at the new rates, apart from the byte
+     * buckets open connections hold on to, which keep their rate until those connections are done. The switch
+     * and the key stay as they were at startup.
+     */
+    public synchronized void reconfigure(ProxyServerProperties.RateLimits properties) {
+        this.requestsPerSecond = properties.getRequestsPerSecond();
+        this.requestBurst = Math.max(1, properties.getRequestBurst());
+        this.bytesPerSecond = properties.getBytesPerSecond();
+        this.byteBurst = properties.getByteBurst() > 0 ? properties.getByteBurst() : this.bytesPerSecond;
+        this.maxRequestDelayNanos = TimeUnit.MILLISECONDS.toNanos(properties.getMaxRequestDelay());
+        this.enabled = this.switchedOn && (this.isRequestLimited() || this.isBandwidthLimited());
+        this.requestBuckets.clear();
+        this.byteBuckets.clear();
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Whether {@code server.rate-limits.enabled} was set at startup, which rates reloaded later depend on.
+     */
+    public boolean isSwitchedOn() {
+        return this.switchedOn;
+    }
+
+    public boolean isRequestLimited() {
+        return this.requestsPerSecond > 0;
+    }
+
+    public boolean isBandwidthLimited() {
+        return this.bytesPerSecond > 0;
+    }
+
+    public String getKey(String clientAddress, String host) {
+        var destination = host.toLowerCase(Locale.ROOT);
+        return switch (this.key) {
+            case CLIENT -> clientAddress;
+            case DESTINATION -> destination;
+            case CLIENT_AND_DESTINATION -> clientAddress + " " + destination;
+        };
+    }
+
+    /**
+     * Counts a request against the key and returns the nanoseconds it has to be held back, or -1 if that would
+     * be longer than the max request delay, in which case it should get {@link #getTooManyRequestsResponse()}.
+     */
+    public long acquireRequest(String key) {
+        if (!this.enabled || !this.isRequestLimited()) return 0;
+        var bucket = this.requestBuckets.computeIfAbsent(key, k -> new TokenBucket(this.requestsPerSecond, this.requestBurst));
+        var wait = bucket.take(1, this.maxRequestDelayNanos);
+        if (wait < 0) {
+            this.rejectedRequests.increment();
+        } else if (wait > 0) {
+            this.delayedRequests.increment();
+            this.requestDelayNanos.add(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * The bucket relayed bytes of the key are taken from, or null when bandwidth is not limited.
+     */
+    public TokenBucket getByteBucket(String key) {
+        if (!this.enabled || !this.isBandwidthLimited()) return null;
+        return this.byteBuckets.computeIfAbsent(key, k -> new TokenBucket(this.bytesPerSecond, this.byteBurst));
+    }
+
+    /**
+     * Takes relayed bytes from the bucket and returns how long reading should pause for them to fit the rate.
+     */
+    public long takeBytes(TokenBucket bucket, long bytes) {
+        return bucket.take(bytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * Counts time a relay actually paused reading.
+     */
+    public void recordThrottled(long nanos) {
+        this.throttledNanos.add(nanos);
+    }
+
+    /**
+     * Takes the bytes and pauses the calling thread, for the thread per connection engine.
+     */
+    public void throttleBlocking(TokenBucket bucket, long bytes) {
+        var wait = this.takeBytes(bucket, bytes);
+        if (wait > 0) {
+            this.recordThrottled(wait);
+            sleep(wait);
+        }
+    }
+
+    public byte[] getTooManyRequestsResponse() {
+        return this.tooManyRequestsResponse;
+    }
+
+    public int getBucketCount() {
+        return this.requestBuckets.size() + this.byteBuckets.size();
+    }
+
+    public long getDelayedRequests() {
+        return this.delayedRequests.sum();
+    }
+
+    public long getRejectedRequests() {
+        return this.rejectedRequests.sum();
+    }
+
+    public double getRequestDelaySeconds() {
+        return this.requestDelayNanos.sum() / 1e9;
+    }
+
+    public double getThrottledSeconds() {
+        return this.throttledNanos.sum() / 1e9;
+    }
+
+    @Override
+    public void close() {
+        if (this.cleaner != null) this.cleaner.shutdownNow();
+    }
+
+    /**
+     * Parks for the duration, cut short only by an interrupt, whose flag is left set for the relay loop to see.
+     */
+    static void sleep(long nanos) {
+        var deadline = nanoTime() + nanos;
+        for (var left = nanos; left > 0 && !Thread.currentThread().isInterrupted(); left = deadline - nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    private void removeFullBuckets() {
+        var now = nanoTime();
+        // A bucket refilled between the check and the removal is recreated full, which is the same thing
+        this.requestBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        this.byteBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        if (log.isDebugEnabled()) log.debug("Rate limit buckets after cleanup: {}", this.getBucketCount());
+    }
+}
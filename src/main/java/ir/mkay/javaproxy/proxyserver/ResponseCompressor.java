@@ -0,0 +1,205 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Gzip-compresses relayed responses the client accepts gzip for when they are of a compressible type, not
+ * encoded yet and not too small to bother. Deflaters are pooled, since each holds a few hundred kilobytes of
+ * native memory that is slow to set up. Time spent compressing is counted against a budget of processor time
+ * per second; over it, responses go out as they came until the next second.
+ */
+public class ResponseCompressor implements Closeable {
+
+    private static final int MAX_POOLED_DEFLATERS = 64;
+    private static final long BUDGET_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean enabled;
+    private final int level;
+    private final long minSize;
+    private final List<String> mimeTypes;
+    private final long budgetNanos;
+    private final BufferPool bufferPool;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private final AtomicLong windowStart = new AtomicLong(nanoTime());
+    private final LongAdder windowNanos = new LongAdder();
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skippedOverBudget = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    public ResponseCompressor(ProxyServerProperties.Compression properties, BufferPool bufferPool) {
+        this.enabled = properties.isEnabled();
+        this.level = properties.getLevel();
+        this.minSize = properties.getMinSize();
+        this.mimeTypes = properties.getMimeTypes().stream().map(type -> type.trim().toLowerCase(Locale.ROOT)).toList();
+        this.budgetNanos = properties.getCpuBudget() > 0
+                ? (long) (properties.getCpuBudget() * Runtime.getRuntime().availableProcessors() * BUDGET_WINDOW)
+                : Long.MAX_VALUE;
+        this.bufferPool = bufferPool;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Whether the response to the request should be compressed; chunked output needs an HTTP/1.1 client.
+     */
+    public boolean shouldCompress(HttpRequestInfo request, HttpResponseInfo response, long bodyLength) {
+        if (!this.enabled || !"HTTP/1.1".equals(request.getProtocolVersion())) return false;
+        if (bodyLength != HttpBody.CHUNKED && bodyLength < Math.max(1, this.minSize)) return false;
+        if (response.getStatus() == 206 || response.hasHeader(HttpHeaderName.CONTENT_RANGE)) return false;
+        var encoding = response.getHeaderFirstValue(HttpHeaderName.CONTENT_ENCODING);
+        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity")) return false;
+        if (response.hasHeaderToken(HttpHeaderName.CACHE_CONTROL, "no-transform")) return false;
+        if (!this.isCompressibleType(response.getHeaderFirstValue(HttpHeaderName.CONTENT_TYPE))) return false;
+        if (!acceptsGzip(request)) return false;
+        if (!this.isWithinBudget()) {
+            this.skippedOverBudget.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the response header into {@code target} with the fields describing the compressed body.
+     */
+    public HttpResponseInfo rewriteHeader(HttpResponseInfo response, HttpResponseInfo target) {
+        var bytes = response.toByteArray();
+        var parser = new HttpHeaderParser();
+        target.load(bytes, 0, parser.parse(bytes, 0, bytes.length), parser);
+        target.removeHeader(HttpHeaderName.CONTENT_LENGTH);
+        target.removeHeader(HttpHeaderName.ACCEPT_RANGES);
+        target.setHeader(HttpHeaderName.TRANSFER_ENCODING, "chunked");
+        target.setHeader(HttpHeaderName.CONTENT_ENCODING, "gzip");
+        if (!target.hasHeaderToken(HttpHeaderName.VARY, "accept-encoding") && !target.hasHeaderToken(HttpHeaderName.VARY, "*")) {
+            target.addHeader(HttpHeaderName.VARY, "Accept-Encoding");
+        }
+        // The compressed body is another representation, equivalent but not byte for byte the same
+        var etag = target.getHeaderFirstValue(HttpHeaderName.ETAG);
+        if (etag != null && !etag.startsWith("W/")) target.setHeader(HttpHeaderName.ETAG, "W/" + etag);
+        return target;
+    }
+
+    public ChunkedGzipOutputStream compress(OutputStream out) {
+        var deflater = this.deflaters.poll();
+        if (deflater != null) {
+            this.pooledDeflaters.decrementAndGet();
+        } else {
+            deflater = new Deflater(this.level, true);
+        }
+        this.compressed.increment();
+        return new ChunkedGzipOutputStream(out, this, deflater, this.bufferPool);
+    }
+
+    void release(Deflater deflater, long bytesIn, long bytesOut, long nanos) {
+        this.bytesIn.add(bytesIn);
+        this.bytesOut.add(bytesOut);
+        this.compressionNanos.add(nanos);
+        this.windowNanos.add(nanos);
+        if (this.pooledDeflaters.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+            deflater.reset();
+            this.deflaters.offer(deflater);
+        } else {
+            this.pooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    public long getCompressed() {
+        return this.compressed.sum();
+    }
+
+    public long getSkippedOverBudget() {
+        return this.skippedOverBudget.sum();
+    }
+
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    public double getCompressionSeconds() {
+        return this.compressionNanos.sum() / 1e9;
+    }
+
+    @Override
+    public void close() {
+        Deflater deflater;
+        while ((deflater = this.deflaters.poll()) != null) deflater.end();
+    }
+
+    /**
+     * Time is counted when a response is done, so a long one may overrun the window it started in a little.
+     */
+    private boolean isWithinBudget() {
+        var now = nanoTime();
+        var start = this.windowStart.get();
+        if (now - start >= BUDGET_WINDOW && this.windowStart.compareAndSet(start, now)) this.windowNanos.reset();
+        return this.windowNanos.sum() < this.budgetNanos;
+    }
+
+    private boolean isCompressibleType(String contentType) {
+        if (contentType == null) return false;
+        var separator = contentType.indexOf(';');
+        var type = (separator > -1 ? contentType.substring(0, separator) : contentType).trim().toLowerCase(Locale.ROOT);
+        for (var mimeType : this.mimeTypes) {
+            if (mimeType.endsWith("/*") ? type.startsWith(mimeType.substring(0, mimeType.length() - 1)) : type.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gzip is acceptable when listed with a non-zero weight, or covered by a non-zero {@code *} when not listed.
+     */
+    static boolean acceptsGzip(HttpRequestInfo request) {
+        var values = request.getHeaderValues(HttpHeaderName.ACCEPT_ENCODING);
+        if (values == null) return false;
+        Boolean wildcard = null;
+        for (var value : values) {
+            for (var element : value.split(",")) {
+                var parameters = element.split(";");
+                var coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+                var accepted = getWeight(parameters) > 0;
+                if (coding.equals("gzip") || coding.equals("x-gzip")) return accepted;
+                if (coding.equals("*")) wildcard = accepted;
+            }
+        }
+        return Boolean.TRUE.equals(wildcard);
+    }
+
+    private static double getWeight(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            var parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
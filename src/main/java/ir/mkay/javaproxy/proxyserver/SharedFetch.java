@@ -0,0 +1,142 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * An origin fetch that concurrent requests for the same URL attach to instead of each sending their own
+ * (collapsed forwarding). The leader publishes the response header, then the body fills a buffer as it arrives
+ * from the origin; every attached request, the leader's own included, sends it on from its own position at the
+ * pace of its own client. A fetch whose response cannot be shared is abandoned, and so is one that fails before
+ * it is published, which sends waiters back to the cache and then to the origin on their own.
+ */
+public class SharedFetch {
+
+    private enum State {PENDING, STREAMING, COMPLETE, ABANDONED}
+
+    private final String key;
+    private final Map<String, SharedFetch> registry;
+    private State state = State.PENDING;
+    // The response header as stored responses have it, with hop-by-hop fields removed and no body
+    private CachedResponse response;
+    private byte[] body;
+    // Bytes of the body filled in so far; what is below it never changes again
+    private int available;
+
+    SharedFetch(String key, Map<String, SharedFetch> registry) {
+        this.key = key;
+        this.registry = registry;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Makes the response available to waiters; the caller has checked it may be shared.
+     */
+    public synchronized void publish(HttpRequestInfo request, HttpResponseInfo response, long requestTime, long responseTime, int bodyLength) {
+        if (this.state != State.PENDING) return;
+        this.response = CachedResponse.create(this.key, request, response, requestTime, responseTime, null, null, 0);
+        this.body = new byte[bodyLength];
+        this.state = bodyLength > 0 ? State.STREAMING : State.COMPLETE;
+        if (this.state == State.COMPLETE) this.registry.remove(this.key, this);
+        this.notifyAll();
+    }
+
+    /**
+     * The stream the body is copied from the origin into.
+     */
+    public OutputStream getBodyOutput() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                SharedFetch.this.append(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Ends the fetch for waiters that still need something from it; one that completed is left alone.
+     */
+    public synchronized void abandon() {
+        if (this.state == State.COMPLETE || this.state == State.ABANDONED) return;
+        this.state = State.ABANDONED;
+        this.registry.remove(this.key, this);
+        this.notifyAll();
+    }
+
+    /**
+     * Waits for the leader to publish the response and returns false if it did not in time or was abandoned.
+     */
+    public synchronized boolean awaitHeader(long timeoutMillis) throws InterruptedException {
+        var deadline = currentTimeMillis() + timeoutMillis;
+        for (var left = timeoutMillis; this.state == State.PENDING && left > 0; left = deadline - currentTimeMillis()) {
+            this.wait(left);
+        }
+        return this.state == State.STREAMING || this.state == State.COMPLETE;
+    }
+
+    public boolean matchesVary(HttpRequestInfo request) {
+        return this.response.matchesVary(request);
+    }
+
+    public HttpResponseInfo toResponseInfo(HttpResponseInfo target) {
+        return this.response.toResponseInfo(target);
+    }
+
+    public int getStatus() {
+        return this.response.getStatus();
+    }
+
+    public long getCurrentAge(long now) {
+        return this.response.getCurrentAge(now);
+    }
+
+    public int getBodyLength() {
+        return this.body.length;
+    }
+
+    /**
+     * The body buffer; only the part below what {@link #awaitBody} returned may be read.
+     */
+    public byte[] getBody() {
+        return this.body;
+    }
+
+    /**
+     * Waits until the body has more than {@code position} bytes and returns how many it has.
+     */
+    public synchronized int awaitBody(int position, long timeoutMillis) throws IOException, InterruptedException {
+        var deadline = currentTimeMillis() + timeoutMillis;
+        while (this.available <= position && this.state == State.STREAMING) {
+            var left = deadline - currentTimeMillis();
+            if (left <= 0) throw new SocketTimeoutException("Shared fetch of " + this.key + " stalled");
+            this.wait(left);
+        }
+        if (this.available > position) return this.available;
+        throw new EOFException("Shared fetch of " + this.key + " ended " + (this.body.length - position) + " bytes before end of message");
+    }
+
+    private synchronized void append(byte[] b, int off, int len) throws IOException {
+        if (this.state != State.STREAMING) throw new IOException("Shared fetch of " + this.key + " is not streaming");
+        if (len > this.body.length - this.available) throw new IOException("Shared fetch of " + this.key + " got more than its Content-Length");
+        System.arraycopy(b, off, this.body, this.available, len);
+        this.available += len;
+        if (this.available == this.body.length) {
+            this.state = State.COMPLETE;
+            this.registry.remove(this.key, this);
+        }
+        this.notifyAll();
+    }
+}
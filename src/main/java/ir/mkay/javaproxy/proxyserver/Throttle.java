@@ -0,0 +1,27 @@
+package ir.mkay.javaproxy.proxyserver;
+
+/**
+ * A connection's handle on the byte bucket of its current request's key, which can change from one request to
+ * the next on a persistent connection; a connection without a bucket is not throttled.
+ */
+public class Throttle {
+
+    private final RateLimiter rateLimiter;
+    private volatile TokenBucket bucket;
+
+    public Throttle(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public void setBucket(TokenBucket bucket) {
+        this.bucket = bucket;
+    }
+
+    /**
+     * Blocks until the bytes just relayed fit the rate.
+     */
+    public void consume(long bytes) {
+        var bucket = this.bucket;
+        if (bucket != null && bytes > 0) this.rateLimiter.throttleBlocking(bucket, bytes);
+    }
+}
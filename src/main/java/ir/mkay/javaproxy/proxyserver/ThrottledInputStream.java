@@ -0,0 +1,39 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pauses after reads that go over the throttle's rate, so the sender is slowed down by TCP flow control.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final Throttle throttle;
+
+    public ThrottledInputStream(InputStream in, Throttle throttle) {
+        super(in);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public int read() throws IOException {
+        var b = this.in.read();
+        if (b > -1) this.throttle.consume(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        var read = this.in.read(b, off, len);
+        this.throttle.consume(read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        var skipped = this.in.skip(n);
+        this.throttle.consume(skipped);
+        return skipped;
+    }
+}
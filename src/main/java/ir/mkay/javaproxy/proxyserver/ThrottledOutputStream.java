@@ -0,0 +1,31 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Pauses after writes that go over the throttle's rate, which holds up the loop reading what gets written.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+    private final Throttle throttle;
+
+    public ThrottledOutputStream(OutputStream out, Throttle throttle) {
+        super(out);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.out.write(b);
+        this.throttle.consume(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // FilterOutputStream would write byte by byte
+        this.out.write(b, off, len);
+        this.throttle.consume(len);
+    }
+}
@@ -0,0 +1,45 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Token bucket kept as a single theoretical arrival time (the GCRA form), so taking tokens is one CAS and
+ * concurrent relay loops sharing a bucket never lock. Taking more than is available reserves the tokens
+ * anyway and reports how long the caller has to wait for them, which is what shaping needs.
+ */
+public class TokenBucket {
+
+    private final double nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(nanoTime());
+
+    public TokenBucket(double tokensPerSecond, double burst) {
+        this.nanosPerToken = 1e9 / tokensPerSecond;
+        this.burstNanos = (long) (burst * this.nanosPerToken);
+    }
+
+    /**
+     * Takes the tokens and returns the nanoseconds until they are actually available, zero if they are now;
+     * returns -1 and takes nothing if that wait would be longer than {@code maxWaitNanos}.
+     */
+    public long take(long tokens, long maxWaitNanos) {
+        var cost = (long) (tokens * this.nanosPerToken);
+        while (true) {
+            var now = nanoTime();
+            var arrival = this.theoreticalArrival.get();
+            var next = (now - arrival > 0 ? now : arrival) + cost;
+            var wait = next - this.burstNanos - now;
+            if (wait > maxWaitNanos) return -1;
+            if (this.theoreticalArrival.compareAndSet(arrival, next)) return Math.max(0, wait);
+        }
+    }
+
+    /**
+     * A full bucket behaves like a new one, so it can be dropped.
+     */
+    public boolean isFull(long now) {
+        return now - this.theoreticalArrival.get() >= this.burstNanos;
+    }
+}
@@ -0,0 +1,147 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Ends CONNECT tunnels that stay idle or open for too long. All tunnels share one hashed timer wheel, so a quiet
+ * tunnel needs no socket read timeout and costs nothing until the slot holding its deadline comes around; a
+ * tunnel that saw traffic in the meantime just moves on to the slot of its new deadline. Each tunnel keeps the
+ * timeouts in force when it was registered, so a reload only changes them for tunnels opened after it.
+ */
+@Slf4j
+public class TunnelReaper implements Closeable {
+
+    private static final long TICK = 1000;
+    private static final int WHEEL_SIZE = 512;
+
+    private volatile long idleTimeout;
+    private volatile long maxLifetime;
+    private final List<Queue<Entry>> wheel;
+    private final ScheduledExecutorService ticker;
+    private boolean ticking;
+    private volatile long currentTick = currentTimeMillis() / TICK;
+
+    private final LongAdder idleReaped = new LongAdder();
+    private final LongAdder lifetimeReaped = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public TunnelReaper(ProxyServerProperties.Tunnels properties) {
+        this.wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) this.wheel.add(new ConcurrentLinkedQueue<>());
+        this.ticker = Executors.newSingleThreadScheduledExecutor();
+        this.reconfigure(properties);
+    }
+
+    /**
+     * Takes on reloaded timeouts for the tunnels registered from now on.
+     */
+    public synchronized void reconfigure(ProxyServerProperties.Tunnels properties) {
+        this.idleTimeout = properties.getIdleTimeout();
+        this.maxLifetime = properties.getMaxLifetime();
+        if (this.isEnabled() && !this.ticking) {
+            this.ticker.scheduleAtFixedRate(this::advance, TICK, TICK, TimeUnit.MILLISECONDS);
+            this.ticking = true;
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.idleTimeout > 0 || this.maxLifetime > 0;
+    }
+
+    public void register(Tunnel tunnel) {
+        var entry = new Entry(tunnel, this.idleTimeout, this.maxLifetime);
+        if (entry.idleTimeout() > 0 || entry.maxLifetime() > 0) this.schedule(entry, this.getDeadline(entry));
+    }
+
+    public long getIdleReaped() {
+        return this.idleReaped.sum();
+    }
+
+    public long getLifetimeReaped() {
+        return this.lifetimeReaped.sum();
+    }
+
+    @Override
+    public void close() {
+        this.ticker.shutdownNow();
+    }
+
+    private long getDeadline(Entry entry) {
+        var deadline = Long.MAX_VALUE;
+        if (entry.idleTimeout() > 0) deadline = entry.tunnel().getLastActivity() + entry.idleTimeout();
+        if (entry.maxLifetime() > 0) deadline = Math.min(deadline, entry.tunnel().getOpenedAt() + entry.maxLifetime());
+        return deadline;
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        // Never into the slot being processed or one already passed, which would wait a whole turn
+        var tick = Math.max(deadline / TICK, this.currentTick + 1);
+        this.wheel.get((int) (tick % WHEEL_SIZE)).add(entry);
+    }
+
+    private void advance() {
+        var now = currentTimeMillis();
+        var nowTick = now / TICK;
+        // Catches up slot by slot if the ticker thread fell behind
+        while (this.currentTick < nowTick) {
+            var tick = this.currentTick + 1;
+            this.currentTick = tick;
+            this.expire(this.wheel.get((int) (tick % WHEEL_SIZE)), now);
+        }
+    }
+
+    private void expire(Queue<Entry> slot, long now) {
+        // Drained first since deadlines beyond one turn of the wheel land in the same slot again
+        var due = new ArrayList<Entry>(slot.size());
+        Entry polled;
+        while ((polled = slot.poll()) != null) due.add(polled);
+        for (var entry : due) {
+            var tunnel = entry.tunnel();
+            if (tunnel.isClosed()) continue;
+            if (entry.maxLifetime() > 0 && now - tunnel.getOpenedAt() >= entry.maxLifetime()) {
+                this.lifetimeReaped.increment();
+                tunnel.expire("open for " + (now - tunnel.getOpenedAt()) + "ms");
+            } else if (entry.idleTimeout() > 0 && now - tunnel.getLastActivity() >= entry.idleTimeout()) {
+                this.idleReaped.increment();
+                tunnel.expire("idle for " + (now - tunnel.getLastActivity()) + "ms");
+            } else {
+                this.schedule(entry, this.getDeadline(entry));
+            }
+        }
+    }
+
+    private record Entry(Tunnel tunnel, long idleTimeout, long maxLifetime) {
+    }
+
+    public interface Tunnel {
+
+        /**
+         * {@code currentTimeMillis()} when the tunnel was established.
+         */
+        long getOpenedAt();
+
+        /**
+         * {@code currentTimeMillis()} of the last read in either direction.
+         */
+        long getLastActivity();
+
+        boolean isClosed();
+
+        /**
+         * Called on the reaper thread; has to make both relay directions end on their own.
+         */
+        void expire(String reason);
+    }
+}
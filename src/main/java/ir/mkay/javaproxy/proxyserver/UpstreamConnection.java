@@ -0,0 +1,72 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static java.lang.System.currentTimeMillis;
+
+@Getter
+public class UpstreamConnection implements Closeable {
+
+    private final String key;
+    private final Socket socket;
+    private final HttpInputStream input;
+    private final OutputStream output;
+    @Setter
+    private long lastUsed = currentTimeMillis();
+    private int useCount;
+
+    public UpstreamConnection(String key, Socket socket, BufferPool bufferPool) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.input = new HttpInputStream(socket.getInputStream(), bufferPool);
+        this.output = socket.getOutputStream();
+    }
+
+    public void markUsed() {
+        this.useCount++;
+        this.lastUsed = currentTimeMillis();
+    }
+
+    public boolean isReused() {
+        return this.useCount > 1;
+    }
+
+    /**
+     * An idle connection must have nothing to read; EOF means the origin closed it and
+     * unexpected bytes mean the previous exchange was not framed as we thought. The check never waits: the
+     * socket's channel is read in non-blocking mode, and a socket without one can only be checked for bytes.
+     */
+    public boolean isAlive() {
+        if (this.socket.isClosed() || this.socket.isInputShutdown() || this.socket.isOutputShutdown()) return false;
+        try {
+            if (this.input.available() > 0) return false;
+            var channel = this.socket.getChannel();
+            if (channel == null) return true;
+            synchronized (channel.blockingLock()) {
+                channel.configureBlocking(false);
+                try {
+                    // Either EOF or a stray byte; both make the connection unusable
+                    return channel.read(ByteBuffer.allocate(1)) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        IOUtils.tryToClose(this.input);
+        IOUtils.tryToClose(this.output);
+        IOUtils.tryToClose(this.socket);
+    }
+}
@@ -0,0 +1,178 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Idle keep-alive connections to origins, keyed by host:port.
+ * Connections are handed out most-recently-used first so the tail of each deque is what expires.
+ */
+@Slf4j
+public class UpstreamConnectionPool implements Closeable {
+
+    private volatile int maxIdle;
+    private volatile int maxIdlePerHost;
+    private volatile long idleTtl;
+    private final Map<String, HostConnections> idleConnections = new ConcurrentHashMap<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final ScheduledExecutorService reaper;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleEvictions = new LongAdder();
+    private final LongAdder expiredEvictions = new LongAdder();
+    private final LongAdder connectTimeNanos = new LongAdder();
+
+    public UpstreamConnectionPool(ProxyServerProperties.UpstreamPool properties) {
+        this.maxIdle = properties.getMaxIdle();
+        this.maxIdlePerHost = properties.getMaxPerHost();
+        this.idleTtl = properties.getIdleTtl();
+        this.reaper = Executors.newSingleThreadScheduledExecutor();
+        var reapPeriod = Math.max(this.idleTtl / 2, 100);
+        this.reaper.scheduleWithFixedDelay(this::evictExpired, reapPeriod, reapPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes on reloaded limits. A pool over lowered limits shrinks as its connections are handed out or expire
+     * instead of closing them all at once; the reaper keeps the period the startup TTL gave it.
+     */
+    public void reconfigure(ProxyServerProperties.UpstreamPool properties) {
+        this.maxIdle = properties.getMaxIdle();
+        this.maxIdlePerHost = properties.getMaxPerHost();
+        this.idleTtl = properties.getIdleTtl();
+    }
+
+    public static String key(String host, int port) {
+        return host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    public UpstreamConnection acquire(String key) {
+        var connections = this.idleConnections.get(key);
+        UpstreamConnection connection;
+        while (connections != null && (connection = connections.idle.pollFirst()) != null) {
+            connections.count.decrementAndGet();
+            this.idleCount.decrementAndGet();
+            if (this.isExpired(connection, currentTimeMillis())) {
+                this.expiredEvictions.increment();
+                connection.close();
+            } else if (!connection.isAlive()) {
+                this.staleEvictions.increment();
+                connection.close();
+            } else {
+                this.hits.increment();
+                return connection;
+            }
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    public void release(UpstreamConnection connection) {
+        var connections = this.idleConnections.computeIfAbsent(connection.getKey(), k -> new HostConnections());
+        if (connections.count.incrementAndGet() > this.maxIdlePerHost) {
+            connections.count.decrementAndGet();
+            connection.close();
+            return;
+        }
+        if (this.idleCount.incrementAndGet() > this.maxIdle) {
+            this.idleCount.decrementAndGet();
+            connections.count.decrementAndGet();
+            connection.close();
+            return;
+        }
+        connection.setLastUsed(currentTimeMillis());
+        connections.idle.offerFirst(connection);
+    }
+
+    public void recordConnectTime(long nanos) {
+        this.connectTimeNanos.add(nanos);
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getStaleEvictions() {
+        return this.staleEvictions.sum();
+    }
+
+    public long getExpiredEvictions() {
+        return this.expiredEvictions.sum();
+    }
+
+    public int getIdleCount() {
+        return this.idleCount.get();
+    }
+
+    /**
+     * Average cost of opening a new origin connection; roughly what each hit saved.
+     */
+    public double getAverageConnectMillis() {
+        var misses = this.misses.sum();
+        return misses == 0 ? 0 : this.connectTimeNanos.sum() / 1_000_000.0 / misses;
+    }
+
+    @Override
+    public void close() {
+        this.reaper.shutdownNow();
+        this.idleConnections.values().forEach(connections -> {
+            UpstreamConnection connection;
+            while ((connection = connections.idle.pollFirst()) != null) {
+                connections.count.decrementAndGet();
+                connection.close();
+            }
+        });
+        this.idleCount.set(0);
+    }
+
+    private boolean isExpired(UpstreamConnection connection, long now) {
+        return now - connection.getLastUsed() > this.idleTtl;
+    }
+
+    private void evictExpired() {
+        var now = currentTimeMillis();
+        this.idleConnections.values().forEach(connections -> {
+            for (var connection : connections.idle) {
+                // remove() only succeeds if no handler has polled the connection in the meantime
+                if (this.isExpired(connection, now) && connections.idle.remove(connection)) {
+                    connections.count.decrementAndGet();
+                    this.idleCount.decrementAndGet();
+                    this.expiredEvictions.increment();
+                    connection.close();
+                }
+            }
+        });
+        if (log.isDebugEnabled()) {
+            log.debug("Upstream pool: {} idle, {} hits, {} misses, {} stale, {} expired, {}ms average connect",
+                    this.getIdleCount(), this.getHits(), this.getMisses(), this.getStaleEvictions(),
+                    this.getExpiredEvictions(), String.format("%.2f", this.getAverageConnectMillis()));
+        }
+    }
+
+    /**
+     * Idle connections of one host:port, counted apart since {@link ConcurrentLinkedDeque#size()} walks the
+     * whole deque.
+     */
+    private static class HostConnections {
+
+        private final Deque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
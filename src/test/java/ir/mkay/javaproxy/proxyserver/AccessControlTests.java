@@ -0,0 +1,152 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AccessControlTests {
+
+    @Test
+    void matchesTheMostSpecificDomainRule() {
+        var builder = DomainTrie.builder();
+        assertTrue(builder.add("example.com"));
+        assertTrue(builder.add("*.ads.example.com"));
+        assertTrue(builder.add(".Tracker.NET."));
+        assertFalse(builder.add("bad..name"));
+        assertFalse(builder.add("with space.com"));
+        var trie = builder.build();
+        assertEquals(3, trie.getRuleCount());
+
+        assertEquals("example.com", trie.getRule(trie.match("example.com")));
+        assertEquals(-1, trie.match("www.example.com"));
+        assertEquals(-1, trie.match("ads.example.com"));
+        assertEquals("*.ads.example.com", trie.getRule(trie.match("x.y.ads.example.com")));
+        assertEquals("tracker.net", trie.getRule(trie.match("tracker.net")));
+        assertEquals("*.tracker.net", trie.getRule(trie.match("cdn.tracker.net")));
+        assertEquals(-1, trie.match("nottracker.net"));
+        assertEquals(-1, trie.match("com"));
+
+        var everything = DomainTrie.builder();
+        everything.add("*");
+        assertEquals("*", everything.build().getRule(0 << 1 | 1));
+    }
+
+    @Test
+    void matchesTheLongestAddressRange() {
+        var builder = CidrSet.builder();
+        assertTrue(builder.add("10.0.0.0/8"));
+        assertTrue(builder.add("10.1.2.0/24"));
+        assertTrue(builder.add("192.168.1.1"));
+        assertTrue(builder.add("2001:db8::/32"));
+        assertFalse(builder.add("10.0.0.0/33"));
+        assertFalse(builder.add("300.1.1.1"));
+        var ranges = builder.build();
+        assertEquals(4, ranges.size());
+
+        assertEquals("10.1.2.0/24", ranges.getRule(ranges.match(CidrSet.parseAddress("10.1.2.3"))));
+        assertEquals("10.0.0.0/8", ranges.getRule(ranges.match(CidrSet.parseAddress("10.200.0.1"))));
+        assertEquals("192.168.1.1/32", ranges.getRule(ranges.match(CidrSet.parseAddress("192.168.1.1"))));
+        assertEquals(-1, ranges.match(CidrSet.parseAddress("192.168.1.2")));
+        assertEquals("2001:db8:0:0:0:0:0:0/32", ranges.getRule(ranges.match(CidrSet.parseAddress("[2001:db8::1]"))));
+        assertEquals(-1, ranges.match(CidrSet.parseAddress("2001:db9::1")));
+        assertNull(CidrSet.parseAddress("example.com"));
+        assertArrayEquals(new byte[]{1, 2, 0, 3}, CidrSet.parseAddress("1.2.3"));
+    }
+
+    @Test
+    void allowsBlocksAndReloads(@TempDir Path directory) throws Exception {
+        var allow = Files.writeString(directory.resolve("allow.txt"), "good.ads.example.com\n");
+        var block = Files.writeString(directory.resolve("block.txt"), """
+                # Ads
+                *.ads.example.com
+                10.0.0.0/8   # private
+                not a rule
+                """);
+        var properties = new ProxyServerProperties.Acl();
+        properties.setEnabled(true);
+        properties.setAllowFiles(List.of(allow.toString()));
+        properties.setBlockFiles(List.of(block.toString()));
+        properties.setReloadInterval(50);
+        try (var acl = new AccessControl(properties)) {
+            assertEquals(3, acl.getRuleCount());
+            assertFalse(acl.isAllowed("x.ads.example.com"));
+            assertFalse(acl.isAllowed("X.Ads.Example.com."));
+            assertTrue(acl.isAllowed("good.ads.example.com"));
+            assertFalse(acl.isAllowed("10.9.8.7"));
+            assertTrue(acl.isAllowed("example.com"));
+            assertEquals(3, acl.getDenied());
+
+            var report = new StringBuilder();
+            acl.writeRuleHits(report);
+            assertEquals("2 block *.ads.example.com\n1 allow good.ads.example.com\n1 block 10.0.0.0/8\n", report.toString());
+
+            Files.writeString(block, "example.com\n");
+            Files.setLastModifiedTime(block, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+            for (int i = 0; i < 100 && acl.getReloads() == 0; i++) Thread.sleep(20);
+            assertEquals(1, acl.getReloads());
+            assertTrue(acl.isAllowed("x.ads.example.com"));
+            assertFalse(acl.isAllowed("example.com"));
+        }
+
+        properties.setBlockFiles(List.of());
+        properties.setDefaultAction(ProxyServerProperties.AclAction.DENY);
+        try (var acl = new AccessControl(properties)) {
+            assertTrue(acl.isAllowed("good.ads.example.com"));
+            assertFalse(acl.isAllowed("example.com"));
+        }
+    }
+
+    @Test
+    void parsesEveryIpv4LiteralFormTheJdkTakes() throws Exception {
+        for (var literal : List.of("127.1", "2130706433", "127.0.1", "127.000.000.001", "0127.0.0.1")) {
+            assertArrayEquals(InetAddress.getByName(literal).getAddress(), CidrSet.parseAddress(literal), literal);
+        }
+        assertArrayEquals(new byte[]{10, 0, 1, 2}, CidrSet.parseAddress("10.258"));
+        assertArrayEquals(new byte[]{127, 0, 0, 1}, CidrSet.parseAddress("[::ffff:127.0.0.1]"));
+        assertNull(CidrSet.parseAddress("4294967296"));
+        assertNull(CidrSet.parseAddress("1.16777216"));
+        assertNull(CidrSet.parseAddress("256.1"));
+        assertNull(CidrSet.parseAddress("1.2.3.4."));
+        assertNull(CidrSet.parseAddress("0x7f.1"));
+    }
+
+    @Test
+    void checksRangesAgainstLiteralFormsAndResolvedAddresses(@TempDir Path directory) throws Exception {
+        var allow = Files.writeString(directory.resolve("allow.txt"), "internal.example.com\n10.1.0.0/16\n");
+        var block = Files.writeString(directory.resolve("block.txt"), "127.0.0.0/8\n10.0.0.0/8\n");
+        var properties = new ProxyServerProperties.Acl();
+        properties.setEnabled(true);
+        properties.setAllowFiles(List.of(allow.toString()));
+        properties.setBlockFiles(List.of(block.toString()));
+        properties.setReloadInterval(0);
+        try (var acl = new AccessControl(properties)) {
+            assertFalse(acl.isAllowed("127.1"));
+            assertFalse(acl.isAllowed("2130706433"));
+            assertFalse(acl.isAllowed("[::ffff:127.0.0.1]"));
+
+            var loopback = new InetAddress[]{InetAddress.getByName("93.184.216.34"), InetAddress.getByName("127.0.0.1")};
+            var allowedRange = new InetAddress[]{InetAddress.getByName("10.1.2.3")};
+            HostResolver resolver = host -> host.equals("public.example.com")
+                    ? new InetAddress[]{InetAddress.getByName("93.184.216.34")}
+                    : host.startsWith("allowed") ? allowedRange : loopback;
+            var guarded = acl.guard(resolver);
+            assertThrows(AccessControl.DeniedAddressException.class, () -> guarded.resolve("rebound.example.com"));
+            assertEquals(1, guarded.resolve("public.example.com").length);
+            assertEquals(1, guarded.resolve("allowed.example.com").length);
+            // A domain allow rule wins over the block ranges its addresses fall into
+            assertEquals(2, guarded.resolve("internal.example.com").length);
+        }
+    }
+}
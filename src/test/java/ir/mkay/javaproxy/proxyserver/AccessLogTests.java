@@ -0,0 +1,66 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AccessLogTests {
+
+    @Test
+    void writesRotatesAndReadsBackEntries(@TempDir Path directory) throws Exception {
+        var properties = new ProxyServerProperties.AccessLog();
+        properties.setEnabled(true);
+        properties.setDirectory(directory.toString());
+        // Room for 10 entries per segment
+        properties.setSegmentSize(AccessLogSegment.HEADER_SIZE + 10 * AccessLogEntry.SIZE);
+        properties.setMaxSegments(2);
+        var entry = new AccessLogEntry();
+        entry.setClientAddress(new byte[]{127, 0, 0, 1});
+        entry.setMethod("GET");
+        entry.setPort(80);
+        try (var accessLog = new AccessLog(properties)) {
+            for (int i = 1; i <= 25; i++) {
+                entry.setTimestamp(1_600_000_000_000L + i);
+                entry.setHost("host" + i + ".example.com");
+                entry.setStatus(200);
+                entry.setBytesSent(i * 100L);
+                entry.setPhase(ProxyMetrics.Phase.UPSTREAM_CONNECT, 1_500_000);
+                while (!accessLog.append(entry)) Thread.sleep(1);
+            }
+        }
+
+        var segments = AccessLogReader.findSegments(directory);
+        // Three segments were written and the oldest one deleted
+        assertEquals(2, segments.size());
+        var out = new ByteArrayOutputStream();
+        var printed = 0;
+        for (var segment : segments) printed += AccessLogReader.print(segment, true, new PrintStream(out, true, StandardCharsets.UTF_8));
+        assertEquals(15, printed);
+        var lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals("2020-09-13T12:26:40.011Z,127.0.0.1,GET,host11.example.com,80,200,false,false,0,1100,,,1500,,", lines[0]);
+        assertTrue(lines[14].contains("host25.example.com"));
+    }
+
+    @Test
+    void cutsOffLongHostsAndMethods() {
+        var entry = new AccessLogEntry();
+        entry.setTimestamp(1);
+        entry.setMethod("PROPPATCHING");
+        entry.setHost("a".repeat(100));
+        var buffer = ByteBuffer.allocate(AccessLogEntry.SIZE * 2);
+        entry.writeTo(buffer, AccessLogEntry.SIZE);
+        var read = new AccessLogEntry();
+        read.readFrom(buffer, AccessLogEntry.SIZE);
+        assertEquals("PROPPATC", read.getMethod());
+        assertEquals("a".repeat(52), read.getHost());
+        assertEquals(-1, read.getPhaseMicros(ProxyMetrics.Phase.DNS));
+    }
+}
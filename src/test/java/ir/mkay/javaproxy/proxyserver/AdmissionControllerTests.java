@@ -0,0 +1,165 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.properties;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.readToEnd;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.write;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControllerTests {
+
+    @Test
+    void rejectsOverLimitAndBacksOffOnDelay() {
+        var properties = new ProxyServerProperties.Admission();
+        properties.setMinConnections(2);
+        properties.setMaxTunnels(1);
+        var admission = new AdmissionController(properties, 4);
+
+        for (int i = 0; i < 4; i++) assertTrue(admission.tryAdmitConnection());
+        assertFalse(admission.tryAdmitConnection());
+        assertEquals(1, admission.getRejectedConnections());
+
+        assertTrue(admission.tryOpenTunnel());
+        assertFalse(admission.tryOpenTunnel());
+        admission.tunnelClosed();
+        assertTrue(admission.tryOpenTunnel());
+
+        admission.recordSchedulingDelay(Long.MAX_VALUE);
+        assertEquals(3, admission.getLimit());
+        admission.connectionFinished();
+        admission.recordSchedulingDelay(0);
+        assertEquals(4, admission.getLimit());
+        assertTrue(new String(admission.getOverloadResponse(), StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 503"));
+    }
+
+    @Test
+    void backsOffMultiplicativelyOncePerTargetDelay() throws Exception {
+        var properties = new ProxyServerProperties.Admission();
+        properties.setMaxConnections(100);
+        properties.setMinConnections(75);
+        properties.setTargetDelay(200);
+        var admission = new AdmissionController(properties, 500);
+        var aboveTarget = TimeUnit.MILLISECONDS.toNanos(300);
+
+        admission.recordSchedulingDelay(aboveTarget);
+        assertEquals(90, admission.getLimit());
+        // The rest of the same burst counts as the one sample
+        admission.recordSchedulingDelay(aboveTarget);
+        assertEquals(90, admission.getLimit());
+
+        Thread.sleep(250);
+        admission.recordSchedulingDelay(aboveTarget);
+        assertEquals(81, admission.getLimit());
+        Thread.sleep(250);
+        admission.recordSchedulingDelay(aboveTarget);
+        assertEquals(75, admission.getLimit());
+        Thread.sleep(250);
+        admission.recordSchedulingDelay(aboveTarget);
+        assertEquals(75, admission.getLimit());
+    }
+
+    @Test
+    void recoversAdditivelyOnlyWhileTheLimitIsUsed() {
+        var properties = new ProxyServerProperties.Admission();
+        properties.setMaxConnections(20);
+        properties.setMinConnections(2);
+        var admission = new AdmissionController(properties, 500);
+        admission.recordSchedulingDelay(Long.MAX_VALUE);
+        assertEquals(18, admission.getLimit());
+
+        // Under half the limit in use says nothing about whether more would be served in time
+        for (int i = 0; i < 8; i++) assertTrue(admission.tryAdmitConnection());
+        admission.recordSchedulingDelay(0);
+        assertEquals(18, admission.getLimit());
+
+        assertTrue(admission.tryAdmitConnection());
+        admission.recordSchedulingDelay(0);
+        assertEquals(19, admission.getLimit());
+        admission.recordSchedulingDelay(0);
+        assertEquals(19, admission.getLimit());
+        assertTrue(admission.tryAdmitConnection());
+        admission.recordSchedulingDelay(0);
+        assertEquals(20, admission.getLimit());
+        admission.recordSchedulingDelay(0);
+        assertEquals(20, admission.getLimit());
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProxyServerProperties.Engine.class)
+    void answersTunnelsOverTheCapWithRetryAfter(ProxyServerProperties.Engine engine) throws Exception {
+        var properties = properties(engine);
+        properties.getAdmission().setMaxTunnels(1);
+        properties.getAdmission().setRetryAfter(7);
+        try (var origin = new ServerSocket(); var server = new ProxyServer(properties)) {
+            origin.bind(new InetSocketAddress("127.0.0.1", 0));
+            server.start();
+            var connect = "CONNECT 127.0.0.1:" + origin.getLocalPort() + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.getLocalPort() + "\r\n\r\n";
+            try (var open = new Socket("127.0.0.1", server.getLocalPort()); var accepted = acceptAfter(origin, open, connect)) {
+                var established = ProxyRequestHandler.CONNECTION_ESTABLISHED_RESPONSE;
+                assertEquals(new String(established, StandardCharsets.ISO_8859_1),
+                        new String(open.getInputStream().readNBytes(established.length), StandardCharsets.ISO_8859_1));
+
+                try (var rejected = new Socket("127.0.0.1", server.getLocalPort())) {
+                    rejected.setSoTimeout(5000);
+                    write(rejected, connect);
+                    var response = readToEnd(rejected.getInputStream());
+                    assertTrue(response.startsWith("HTTP/1.1 503 "), response);
+                    assertTrue(response.contains("\r\nRetry-After: 7\r\n"), response);
+                }
+            }
+            assertEquals(1, server.getContext().getAdmission().getRejectedTunnels());
+        }
+    }
+
+    @Test
+    void rejectsWithResetOrResponse() throws Exception {
+        var properties = new ProxyServerProperties.Admission();
+        properties.setOverloadAction(ProxyServerProperties.OverloadAction.RESET);
+        var reset = new AdmissionController(properties, 4);
+        properties.setOverloadAction(ProxyServerProperties.OverloadAction.RESPOND);
+        var respond = new AdmissionController(properties, 4);
+        try (var listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            var port = listener.socket().getLocalPort();
+            try (var client = new Socket("127.0.0.1", port)) {
+                client.setSoTimeout(5000);
+                reset.reject(listener.accept().socket());
+                assertThrows(SocketException.class, () -> client.getInputStream().read());
+            }
+            try (var client = new Socket("127.0.0.1", port)) {
+                client.setSoTimeout(5000);
+                reset.reject(listener.accept());
+                assertThrows(SocketException.class, () -> client.getInputStream().read());
+            }
+            try (var client = new Socket("127.0.0.1", port)) {
+                client.setSoTimeout(5000);
+                respond.reject(listener.accept());
+                assertTrue(readToEnd(client.getInputStream()).startsWith("HTTP/1.1 503 "));
+            }
+        }
+    }
+
+    /**
+     * Sends the CONNECT and takes the origin side of the tunnel it opens.
+     */
+    private static Socket acceptAfter(ServerSocket origin, Socket client, String connect) throws IOException {
+        client.setSoTimeout(5000);
+        write(client, connect);
+        return origin.accept();
+    }
+}
@@ -0,0 +1,49 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BufferPoolTests {
+
+    @Test
+    void reusesReleasedBuffers() {
+        try (var pool = new BufferPool(new ProxyServerProperties.Buffers())) {
+            var buffer = pool.acquire(100);
+            assertEquals(pool.getSmallSize(), buffer.length);
+            pool.release(buffer);
+            assertSame(buffer, pool.acquire(pool.getSmallSize()));
+            assertEquals(pool.getLargeSize(), pool.acquire(pool.getSmallSize() + 1).length);
+            assertEquals(1, pool.getReuses());
+        }
+    }
+
+    @Test
+    void tracksLeasesWhenLeakDetectionIsOn() {
+        var properties = new ProxyServerProperties.Buffers();
+        properties.setLeakDetection(true);
+        try (var pool = new BufferPool(properties)) {
+            var buffer = pool.acquireBuffer(10);
+            pool.acquire(10);
+            assertEquals(2, pool.getLeased());
+            pool.release(buffer);
+            assertEquals(1, pool.getLeased());
+        }
+    }
+
+    @Test
+    void adaptiveBufferFollowsTraffic() {
+        try (var pool = new BufferPool(new ProxyServerProperties.Buffers());
+             var buffer = new AdaptiveBuffer(pool)) {
+            var small = buffer.get();
+            assertEquals(pool.getSmallSize(), small.length);
+            for (int i = 0; i < 4; i++) buffer.record(buffer.get().length);
+            assertEquals(pool.getLargeSize(), buffer.get().length);
+            for (int i = 0; i < 16; i++) buffer.record(100);
+            assertEquals(pool.getSmallSize(), buffer.get().length);
+            assertTrue(pool.getAllocations() >= 2);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DnsCacheTests {
+
+    private static final InetAddress[] ADDRESSES = {InetAddress.getLoopbackAddress()};
+
+    @Test
+    void cachesSuccessfulLookups() throws Exception {
+        var lookups = new AtomicInteger();
+        try (var cache = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            return ADDRESSES;
+        }, new ProxyServerProperties.Dns())) {
+            assertArrayEquals(ADDRESSES, cache.resolve("example.com"));
+            assertArrayEquals(ADDRESSES, cache.resolve("EXAMPLE.com"));
+            assertEquals(1, lookups.get());
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+        }
+    }
+
+    @Test
+    void cachesFailedLookups() {
+        var lookups = new AtomicInteger();
+        try (var cache = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            throw new UnknownHostException(host);
+        }, new ProxyServerProperties.Dns())) {
+            assertThrows(UnknownHostException.class, () -> cache.resolve("missing.example"));
+            assertThrows(UnknownHostException.class, () -> cache.resolve("missing.example"));
+            assertEquals(1, lookups.get());
+            assertEquals(1, cache.getNegativeHits());
+        }
+    }
+
+    @Test
+    void sharesConcurrentLookups() throws Exception {
+        var lookups = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(4);
+        try (var cache = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+            return ADDRESSES;
+        }, new ProxyServerProperties.Dns())) {
+            var results = new Future<?>[4];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(() -> cache.resolve("example.com"));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (var result : results) result.get(5, TimeUnit.SECONDS);
+            assertEquals(1, lookups.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void refreshesEntriesAboutToExpire() throws Exception {
+        var lookups = new AtomicInteger();
+        var properties = new ProxyServerProperties.Dns();
+        properties.setRefreshAhead(properties.getPositiveTtl() + 1000);
+        try (var cache = new DnsCache(host -> {
+            lookups.incrementAndGet();
+            return ADDRESSES;
+        }, properties)) {
+            cache.resolve("example.com");
+            cache.resolve("example.com");
+            for (int i = 0; i < 50 && lookups.get() < 2; i++) Thread.sleep(10);
+            assertEquals(2, lookups.get());
+            assertEquals(1, cache.getRefreshes());
+        }
+    }
+
+    @Test
+    void keepsServingTheLastAnswerWhenARefreshFails() throws Exception {
+        var lookups = new AtomicInteger();
+        var properties = new ProxyServerProperties.Dns();
+        properties.setRefreshAhead(properties.getPositiveTtl() + 1000);
+        try (var cache = new DnsCache(host -> {
+            if (lookups.incrementAndGet() > 1) throw new UnknownHostException(host);
+            return ADDRESSES;
+        }, properties)) {
+            cache.resolve("example.com");
+            for (int refreshes = 1; refreshes <= 2; refreshes++) {
+                assertArrayEquals(ADDRESSES, cache.resolve("example.com"));
+                for (int i = 0; i < 50 && lookups.get() <= refreshes; i++) Thread.sleep(10);
+                assertEquals(refreshes + 1, lookups.get());
+                // The next hit may only start another refresh once this one is finished
+                for (int i = 0; i < 50 && cache.getRefreshes() < refreshes; i++) Thread.sleep(10);
+                Thread.sleep(20);
+            }
+            assertEquals(0, cache.getNegativeHits());
+            assertEquals(1, cache.getMisses());
+            assertEquals(3, cache.getLookupLatency().getCount());
+        }
+    }
+}
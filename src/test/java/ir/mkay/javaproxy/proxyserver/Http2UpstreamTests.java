@@ -0,0 +1,431 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Http2UpstreamTests {
+
+    private final BufferPool bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+
+    @Test
+    void decodesHuffmanCodedHeaderBlocks() throws Exception {
+        // RFC 7541 C.4, three requests on one connection sharing the dynamic table
+        var decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(List.of(new Hpack.Field(":method", "GET"), new Hpack.Field(":scheme", "http"),
+                new Hpack.Field(":path", "/"), new Hpack.Field(":authority", "www.example.com")), decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(new Hpack.Field("cache-control", "no-cache"), decode(decoder, "828684be5886a8eb10649cbf").get(4));
+        assertEquals(List.of(new Hpack.Field(":method", "GET"), new Hpack.Field(":scheme", "https"),
+                new Hpack.Field(":path", "/index.html"), new Hpack.Field(":authority", "www.example.com"),
+                new Hpack.Field("custom-key", "custom-value")), decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+
+        var fields = List.of(new Hpack.Field(":status", "200"), new Hpack.Field("content-type", "text/plain"), new Hpack.Field("x-empty", ""));
+        var block = new ByteArrayOutputStream();
+        Hpack.encode(fields, block);
+        assertEquals(fields, new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block.toByteArray(), 0, block.size()));
+    }
+
+    @Test
+    void multiplexesRequestsWithinTheStreamLimits() throws Exception {
+        try (var origin = new H2cOrigin(2); var pool = this.createPool(origin.getPort(), 2)) {
+            assertTrue(pool.isHttp2Origin("127.0.0.1", origin.getPort()));
+            assertFalse(pool.isHttp2Origin("example.com", origin.getPort()));
+
+            // Four streams fill both connections the origin's limit of two streams each allows
+            List<Http2Stream> streams = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                var stream = pool.openStream("127.0.0.1", origin.getPort());
+                assertNotNull(stream);
+                var request = request("GET http://127.0.0.1/bytes/300000 HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+                stream.sendRequest(request, request.getTargetAsUrl(), true);
+                streams.add(stream);
+            }
+            assertEquals(2, pool.getConnectionsOpened());
+            assertEquals(4, pool.getActiveStreams());
+            assertThrows(SocketTimeoutException.class, () -> pool.openStream("127.0.0.1", origin.getPort()));
+
+            // Each body is well over the stream window, which only opens up again as it is read
+            for (var stream : streams) {
+                var response = new HttpResponseInfo();
+                var body = this.readResponse(stream, "GET", response);
+                assertEquals(200, response.getStatus());
+                assertEquals("300000", response.getHeaderFirstValue(HttpHeaderName.CONTENT_LENGTH));
+                assertArrayEquals(H2cOrigin.pattern(300000), body);
+                stream.close();
+            }
+            assertEquals(2, origin.getMaxConcurrentStreams());
+            assertEquals(0, pool.getActiveStreams());
+            assertNotNull(pool.openStream("127.0.0.1", origin.getPort()));
+            assertEquals(2, pool.getConnectionsOpened());
+        }
+    }
+
+    @Test
+    void sendsRequestBodiesAndChunksUnsizedResponses() throws Exception {
+        try (var origin = new H2cOrigin(100); var pool = this.createPool(origin.getPort(), 1)) {
+            var body = H2cOrigin.pattern(200000);
+            var request = request("POST http://127.0.0.1:" + origin.getPort() + "/echo?x=1 HTTP/1.1\r\nHost: 127.0.0.1\r\n"
+                    + "Connection: keep-alive, X-Hop\r\nX-Hop: 1\r\nContent-Length: 200000\r\nTE: trailers\r\n\r\n");
+            var stream = pool.openStream("127.0.0.1", origin.getPort());
+            stream.sendRequest(request, request.getTargetAsUrl(), false);
+            try (var output = stream.getRequestOutput()) {
+                output.write(body);
+            }
+
+            var response = new HttpResponseInfo();
+            assertArrayEquals(body, this.readResponse(stream, "POST", response));
+            assertTrue(response.isChunked());
+            assertEquals("OK", response.getReasonPhrase());
+            stream.close();
+
+            var received = origin.getRequests().get(0);
+            assertEquals("POST", received.get(":method"));
+            assertEquals("/echo?x=1", received.get(":path"));
+            assertEquals("127.0.0.1", received.get(":authority"));
+            assertEquals("trailers", received.get("te"));
+            assertEquals("200000", received.get("content-length"));
+            assertNull(received.get("connection"));
+            assertNull(received.get("x-hop"));
+            assertNull(received.get("host"));
+        }
+    }
+
+    @Test
+    void closesTheConnectionOnAnOversizedHeaderBlock() throws Exception {
+        try (var origin = new H2cOrigin(100); var pool = this.createPool(origin.getPort(), 1)) {
+            var request = request("GET http://127.0.0.1/endless-headers HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+            var stream = pool.openStream("127.0.0.1", origin.getPort());
+            stream.sendRequest(request, request.getTargetAsUrl(), true);
+
+            assertThrows(IOException.class, () -> this.readResponse(stream, "GET", new HttpResponseInfo()));
+            assertFalse(stream.getConnection().isUsable());
+            stream.close();
+        }
+    }
+
+    @Test
+    void answersBadGatewayToMalformedResponseFields() throws Exception {
+        assertFalse(Http2Stream.isWellFormed(new Hpack.Field("X-Upper", "v")));
+        assertFalse(Http2Stream.isWellFormed(new Hpack.Field("x-sp ace", "v")));
+        assertFalse(Http2Stream.isWellFormed(new Hpack.Field("x-nul", "a\0b")));
+        assertFalse(Http2Stream.isWellFormed(new Hpack.Field("x-padded", " v")));
+        assertTrue(Http2Stream.isWellFormed(new Hpack.Field(":status", "200")));
+        assertTrue(Http2Stream.isWellFormed(new Hpack.Field("x-empty", "")));
+
+        try (var origin = new H2cOrigin(100); var pool = this.createPool(origin.getPort(), 1)) {
+            var request = request("GET http://127.0.0.1/injected-header HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+            var stream = pool.openStream("127.0.0.1", origin.getPort());
+            stream.sendRequest(request, request.getTargetAsUrl(), true);
+
+            var response = new HttpResponseInfo();
+            assertEquals(0, this.readResponse(stream, "GET", response).length);
+            assertEquals(502, response.getStatus());
+            assertNull(response.getHeaderFirstValue("x-injected"));
+            stream.close();
+            assertEquals(Http2Connection.PROTOCOL_ERROR, origin.getResets().poll(5, TimeUnit.SECONDS));
+            assertTrue(stream.getConnection().isUsable());
+        }
+    }
+
+    @Test
+    void fallsBackWhenTheOriginDoesNotSpeakHttp2() throws Exception {
+        try (var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            var answering = new Thread(() -> {
+                try (var socket = server.accept()) {
+                    socket.getOutputStream().write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes());
+                } catch (IOException ignore) {
+                    // Test is over
+                }
+            });
+            answering.start();
+            try (var pool = this.createPool(server.getLocalPort(), 1)) {
+                assertNull(pool.openStream("127.0.0.1", server.getLocalPort()));
+                assertEquals(1, pool.getFallbacks());
+                assertFalse(pool.isHttp2Origin("127.0.0.1", server.getLocalPort()));
+            }
+            answering.join();
+        }
+    }
+
+    private Http2ConnectionPool createPool(int port, int maxConnections) {
+        var properties = new ProxyServerProperties.Http2Upstream();
+        properties.setEnabled(true);
+        properties.setOrigins(List.of("127.0.0.1:" + port));
+        properties.setMaxConnectionsPerOrigin(maxConnections);
+        properties.setStreamWindow(65535);
+        properties.setConnectionWindow(65535);
+        return new Http2ConnectionPool(properties, HostResolver.SYSTEM, new OriginConnector(new ProxyServerProperties.Connect()), 1000);
+    }
+
+    private byte[] readResponse(Http2Stream stream, String method, HttpResponseInfo response) throws IOException {
+        var input = new HttpInputStream(stream.getResponseInput(), this.bufferPool);
+        assertTrue(input.readHeader(response) > 0);
+        var body = new ByteArrayOutputStream();
+        var length = HttpBody.getResponseBodyLength(request(method + " / HTTP/1.1\r\n\r\n"), response);
+        try (var buffer = new AdaptiveBuffer(this.bufferPool)) {
+            if (length == HttpBody.CHUNKED) HttpBody.copyDechunked(input, body, buffer);
+            else HttpBody.copy(input, body, length, buffer);
+        }
+        input.close();
+        return body.toByteArray();
+    }
+
+    private static HttpRequestInfo request(String http) {
+        var request = new HttpRequestInfo();
+        request.parseHttpString(http);
+        return request;
+    }
+
+    private static List<Hpack.Field> decode(Hpack.Decoder decoder, String hex) throws IOException {
+        var block = HexFormat.of().parseHex(hex);
+        return decoder.decode(block, 0, block.length);
+    }
+
+    /**
+     * An h2c origin with prior knowledge: {@code /bytes/n} answers n bytes with a length, {@code /injected-header}
+     * a field with a line break, and anything else echoes the request body without one. It keeps to the proxy's flow control windows and counts open streams.
+     */
+    private static class H2cOrigin implements Closeable {
+
+        private final ServerSocket server;
+        private final int maxStreams;
+        private final ExecutorService threads = Executors.newCachedThreadPool();
+        private final List<Map<String, String>> requests = new CopyOnWriteArrayList<>();
+        private final AtomicInteger maxConcurrentStreams = new AtomicInteger();
+        private final LinkedBlockingQueue<Integer> resets = new LinkedBlockingQueue<>();
+
+        H2cOrigin(int maxStreams) throws IOException {
+            this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.maxStreams = maxStreams;
+            this.threads.execute(this::accept);
+        }
+
+        static byte[] pattern(int length) {
+            var bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = (byte) (i * 31 + i / 251);
+            return bytes;
+        }
+
+        int getPort() {
+            return this.server.getLocalPort();
+        }
+
+        int getMaxConcurrentStreams() {
+            return this.maxConcurrentStreams.get();
+        }
+
+        List<Map<String, String>> getRequests() {
+            return this.requests;
+        }
+
+        LinkedBlockingQueue<Integer> getResets() {
+            return this.resets;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.server.close();
+            this.threads.shutdownNow();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    var socket = this.server.accept();
+                    this.threads.execute(() -> this.serve(socket));
+                }
+            } catch (IOException ignore) {
+                // Closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                var input = new DataInputStream(socket.getInputStream());
+                var connection = new OriginConnection(socket.getOutputStream());
+                input.readFully(new byte[24]);
+                var settings = new byte[6];
+                settings[1] = Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS;
+                settings[5] = (byte) this.maxStreams;
+                connection.writeFrame(Http2Connection.SETTINGS, 0, 0, settings, settings.length);
+                var decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+                Map<Integer, Map<String, String>> headers = new HashMap<>();
+                Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+                var header = new byte[9];
+                var payload = new byte[16384];
+                while (true) {
+                    input.readFully(header);
+                    var length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+                    var type = header[3];
+                    var flags = header[4];
+                    var streamId = getInt(header, 5);
+                    input.readFully(payload, 0, length);
+                    switch (type) {
+                        case Http2Connection.SETTINGS -> {
+                            if ((flags & Http2Connection.ACK) != 0) break;
+                            for (int i = 0; i < length; i += 6) {
+                                if (payload[i + 1] == Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE) connection.initialWindow = getInt(payload, i + 2);
+                            }
+                            connection.writeFrame(Http2Connection.SETTINGS, Http2Connection.ACK, 0, payload, 0);
+                        }
+                        case Http2Connection.WINDOW_UPDATE -> connection.addWindow(streamId, getInt(payload, 0));
+                        case Http2Connection.HEADERS -> {
+                            Map<String, String> fields = new HashMap<>();
+                            for (var field : decoder.decode(payload, 0, length)) fields.put(field.name(), field.value());
+                            this.requests.add(fields);
+                            headers.put(streamId, fields);
+                            bodies.put(streamId, new ByteArrayOutputStream());
+                            this.maxConcurrentStreams.accumulateAndGet(connection.openStream(streamId), Math::max);
+                            if ((flags & Http2Connection.END_STREAM) != 0) this.respond(connection, streamId, headers.get(streamId), bodies.get(streamId));
+                        }
+                        case Http2Connection.DATA -> {
+                            bodies.get(streamId).write(payload, 0, length);
+                            if (length > 0) {
+                                connection.writeWindowUpdate(0, length);
+                                connection.writeWindowUpdate(streamId, length);
+                            }
+                            if ((flags & Http2Connection.END_STREAM) != 0) this.respond(connection, streamId, headers.get(streamId), bodies.get(streamId));
+                        }
+                        case Http2Connection.RST_STREAM -> {
+                            this.resets.add(getInt(payload, 0));
+                            connection.closeStream(streamId);
+                        }
+                        case Http2Connection.GOAWAY -> {
+                            return;
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            } catch (IOException ignore) {
+                // Connection closed
+            }
+        }
+
+        private void respond(OriginConnection connection, int streamId, Map<String, String> request, ByteArrayOutputStream requestBody) {
+            this.threads.execute(() -> {
+                try {
+                    var path = request.get(":path");
+                    if (path.equals("/endless-headers")) {
+                        var filler = new byte[16384];
+                        connection.writeFrame(Http2Connection.HEADERS, 0, streamId, filler, filler.length);
+                        for (int i = 0; i < 4; i++) connection.writeFrame(Http2Connection.CONTINUATION, 0, streamId, filler, filler.length);
+                        return;
+                    }
+                    byte[] body;
+                    List<Hpack.Field> fields = new ArrayList<>();
+                    fields.add(new Hpack.Field(":status", "200"));
+                    if (path.startsWith("/bytes/")) {
+                        body = pattern(Integer.parseInt(path.substring(7)));
+                        fields.add(new Hpack.Field("content-length", String.valueOf(body.length)));
+                    } else if (path.equals("/injected-header")) {
+                        body = new byte[0];
+                        fields.add(new Hpack.Field("x-note", "a\r\nx-injected: 1"));
+                    } else {
+                        body = requestBody.toByteArray();
+                    }
+                    var block = new ByteArrayOutputStream();
+                    Hpack.encode(fields, block);
+                    connection.writeFrame(Http2Connection.HEADERS, Http2Connection.END_HEADERS, streamId, block.toByteArray(), block.size());
+                    connection.writeData(streamId, body);
+                } catch (IOException ignore) {
+                    // Connection closed
+                }
+            });
+        }
+
+        private static int getInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0x7f) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | bytes[offset + 3] & 0xff;
+        }
+    }
+
+    private static class OriginConnection {
+
+        private final OutputStream output;
+        private final Map<Integer, Long> windows = new ConcurrentHashMap<>();
+        private long connectionWindow = Http2Connection.DEFAULT_WINDOW;
+        private int initialWindow = Http2Connection.DEFAULT_WINDOW;
+
+        OriginConnection(OutputStream output) {
+            this.output = output;
+        }
+
+        synchronized int openStream(int streamId) {
+            this.windows.put(streamId, (long) this.initialWindow);
+            return this.windows.size();
+        }
+
+        synchronized void closeStream(int streamId) {
+            this.windows.remove(streamId);
+            this.notifyAll();
+        }
+
+        synchronized void addWindow(int streamId, int increment) {
+            if (streamId == 0) this.connectionWindow += increment;
+            else this.windows.computeIfPresent(streamId, (id, window) -> window + increment);
+            this.notifyAll();
+        }
+
+        synchronized void writeFrame(int type, int flags, int streamId, byte[] payload, int length) throws IOException {
+            var header = new byte[]{(byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags,
+                    (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId};
+            this.output.write(header);
+            this.output.write(payload, 0, length);
+            this.output.flush();
+        }
+
+        void writeWindowUpdate(int streamId, int increment) throws IOException {
+            this.writeFrame(Http2Connection.WINDOW_UPDATE, 0, streamId, new byte[]{(byte) (increment >>> 24), (byte) (increment >>> 16), (byte) (increment >>> 8), (byte) increment}, 4);
+        }
+
+        synchronized void writeData(int streamId, byte[] body) throws IOException {
+            var offset = 0;
+            do {
+                while (this.windows.containsKey(streamId) && (this.windows.get(streamId) <= 0 || this.connectionWindow <= 0)) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (!this.windows.containsKey(streamId)) return;
+                var length = (int) Math.min(Math.min(body.length - offset, 16384), Math.min(this.windows.get(streamId), this.connectionWindow));
+                var frame = new byte[length];
+                System.arraycopy(body, offset, frame, 0, length);
+                offset += length;
+                this.windows.computeIfPresent(streamId, (id, window) -> window - frame.length);
+                this.connectionWindow -= length;
+                this.writeFrame(Http2Connection.DATA, offset == body.length ? Http2Connection.END_STREAM : 0, streamId, frame, length);
+            } while (offset < body.length);
+            this.windows.remove(streamId);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpBodyTests {
+
+    @Test
+    void acceptsSingleFraming() {
+        assertTrue(HttpBody.hasValidFraming(request("Content-Length: 5")));
+        assertTrue(HttpBody.hasValidFraming(request("Transfer-Encoding: gzip, chunked")));
+        assertTrue(HttpBody.hasValidFraming(request("Host: example.com")));
+        assertEquals(HttpBody.CHUNKED, HttpBody.getRequestBodyLength(request("Transfer-Encoding: chunked")));
+        assertEquals(5, HttpBody.getRequestBodyLength(request("Content-Length: 5")));
+    }
+
+    @Test
+    void refusesTransferEncodingWithContentLength() {
+        assertFalse(HttpBody.hasValidFraming(request("Transfer-Encoding: chunked\r\nContent-Length: 5")));
+        assertFalse(HttpBody.hasValidFraming(request("Content-Length: 0\r\nTransfer-Encoding: chunked")));
+    }
+
+    @Test
+    void refusesDuplicateOrInvalidContentLength() {
+        assertFalse(HttpBody.hasValidFraming(request("Content-Length: 5\r\nContent-Length: 6")));
+        assertFalse(HttpBody.hasValidFraming(request("Content-Length: 5\r\nContent-Length: 5")));
+        assertFalse(HttpBody.hasValidFraming(request("Content-Length: 5, 6")));
+        assertFalse(HttpBody.hasValidFraming(request("Content-Length: -5")));
+        assertFalse(HttpBody.hasValidFraming(request("Content-Length: 0x5")));
+    }
+
+    @Test
+    void takesChunkedOnlyAsFinalCoding() {
+        assertFalse(request("Transfer-Encoding: chunked, gzip").isChunked());
+        assertFalse(request("Transfer-Encoding: chunked\r\nTransfer-Encoding: gzip").isChunked());
+        assertTrue(request("Transfer-Encoding: gzip\r\nTransfer-Encoding:  Chunked ").isChunked());
+        assertFalse(HttpBody.hasValidFraming(request("Transfer-Encoding: chunked, gzip")));
+        assertFalse(HttpBody.hasValidFraming(request("Transfer-Encoding: xchunked")));
+    }
+
+    @Test
+    void parsesOnlyBareHexChunkSizes() {
+        assertEquals(0x1a, HttpBody.parseChunkSize("1a"));
+        assertEquals(0xff, HttpBody.parseChunkSize("FF ; name=value"));
+        assertEquals(0, HttpBody.parseChunkSize("0000000000000000"));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize("-1"));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize("+a"));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize(""));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize("7fffffffffffffff"));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize("ffffffffffffffff"));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize("00000000000000001"));
+        assertThrows(IllegalStateException.class, () -> HttpBody.parseChunkSize("0x10"));
+    }
+
+    @Test
+    void copiesChunkedBodyUpToItsEnd() throws Exception {
+        var body = "4\r\nWiki\r\n5;ext\r\npedia\r\n0\r\nTrailer: x\r\n\r\n";
+        var in = new ByteArrayInputStream((body + "GET /next HTTP/1.1\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        var out = new ByteArrayOutputStream();
+        try (var pool = new BufferPool(new ProxyServerProperties.Buffers()); var buffer = new AdaptiveBuffer(pool)) {
+            HttpBody.copyChunked(in, out, buffer);
+        }
+
+        assertEquals(body, out.toString(StandardCharsets.ISO_8859_1));
+        assertEquals('G', in.read());
+    }
+
+    @Test
+    void findsChunkedBodyEndAcrossPieces() {
+        var body = "4\r\nWiki\r\n5;ext\r\npedia\r\n0\r\nTrailer: x\r\n\r\n";
+        var bytes = (body + "GET /next HTTP/1.1\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        var scanner = new HttpBody.ChunkedScanner();
+        assertEquals(-1, scanner.scan(bytes, 0, 5));
+        assertEquals(-1, scanner.scan(bytes, 5, 20));
+        assertEquals(body.length(), scanner.scan(bytes, 20, bytes.length));
+
+        var invalid = "-4\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        assertThrows(IllegalStateException.class, () -> new HttpBody.ChunkedScanner().scan(invalid, 0, invalid.length));
+    }
+
+    private static HttpRequestInfo request(String headers) {
+        var request = new HttpRequestInfo();
+        request.parseHttpString("POST http://example.com/ HTTP/1.1\r\n" + headers);
+        return request;
+    }
+}
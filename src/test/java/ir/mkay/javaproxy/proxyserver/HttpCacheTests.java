@@ -0,0 +1,153 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpCacheTests {
+
+    private static final long NOW = 1_600_000_000_000L;
+    private static final String DATE = "Sun, 13 Sep 2020 12:26:40 GMT";
+
+    @Test
+    void computesFreshnessFromCacheControlExpiresAndLastModified() {
+        var request = request("GET http://example.com/ HTTP/1.1\r\nHost: example.com\r\n\r\n");
+        var maxAge = CachedResponse.create("k", request, response("Cache-Control: public, max-age=60\r\nAge: 10\r\n"), NOW, NOW, new byte[0], null, 0);
+        assertEquals(60_000, maxAge.getFreshnessLifetime());
+        assertTrue(maxAge.isFresh(NOW + 49_000));
+        assertFalse(maxAge.isFresh(NOW + 50_000));
+
+        var sMaxAge = CachedResponse.create("k", request, response("Cache-Control: max-age=60, s-maxage=5\r\n"), NOW, NOW, new byte[0], null, 0);
+        assertEquals(5_000, sMaxAge.getFreshnessLifetime());
+
+        var expires = CachedResponse.create("k", request, response("Date: " + DATE + "\r\nExpires: Sun, 13 Sep 2020 12:27:40 GMT\r\n"), NOW, NOW, new byte[0], null, 0);
+        assertEquals(60_000, expires.getFreshnessLifetime());
+        var invalidExpires = CachedResponse.create("k", request, response("Expires: 0\r\n"), NOW, NOW, new byte[0], null, 0);
+        assertFalse(invalidExpires.isFresh(NOW));
+
+        // A tenth of the time since the last modification
+        var heuristic = CachedResponse.create("k", request, response("Date: " + DATE + "\r\nLast-Modified: Sun, 13 Sep 2020 12:16:40 GMT\r\n"), NOW, NOW, new byte[0], null, 0);
+        assertEquals(60_000, heuristic.getFreshnessLifetime());
+
+        var noCache = CachedResponse.create("k", request, response("Cache-Control: no-cache, max-age=60\r\nETag: \"a\"\r\n"), NOW, NOW, new byte[0], null, 0);
+        assertFalse(noCache.isFresh(NOW));
+        assertTrue(noCache.hasValidator());
+    }
+
+    @Test
+    void storesServesAndRevalidatesResponses() throws Exception {
+        var properties = new ProxyServerProperties.Cache();
+        properties.setEnabled(true);
+        try (var cache = new HttpCache(properties)) {
+            var request = request("GET http://Example.com/a HTTP/1.1\r\nHost: example.com\r\nAccept-Encoding: gzip\r\n\r\n");
+            assertTrue(cache.isCacheable(request));
+            var key = HttpCache.key(request.getTargetAsUrl());
+            assertEquals("http://example.com:80/a", key);
+            assertNull(cache.lookup(key, request));
+
+            var response = response("Cache-Control: max-age=60\r\nETag: \"v1\"\r\nVary: Accept-Encoding\r\nConnection: keep-alive\r\nContent-Length: 5\r\n");
+            var client = new ByteArrayOutputStream();
+            var writer = cache.startStore(key, request, response, NOW, NOW, 5, client);
+            assertNotNull(writer);
+            writer.write("hello".getBytes(), 0, 5);
+            writer.commit();
+            assertEquals("hello", client.toString());
+
+            var cached = cache.lookup(key, request);
+            assertNotNull(cached);
+            assertArrayEquals("hello".getBytes(), cached.getBody());
+            assertTrue(cache.isServable(cached, request, NOW + 1000));
+            assertNull(cached.toResponseInfo(new HttpResponseInfo()).getHeaderFirstValue(HttpHeaderName.CONNECTION));
+            assertFalse(cache.isServable(cached, request("GET http://example.com/a HTTP/1.1\r\nAccept-Encoding: gzip\r\nCache-Control: no-cache\r\n\r\n"), NOW));
+            assertNull(cache.lookup(key, request("GET http://example.com/a HTTP/1.1\r\nAccept-Encoding: br\r\n\r\n")));
+
+            assertFalse(cache.isServable(cached, request, NOW + 61_000));
+            var updated = cache.revalidated(cached, request, response("Cache-Control: max-age=120\r\n"), NOW + 61_000, NOW + 61_000);
+            assertTrue(cache.isServable(updated, request, NOW + 62_000));
+            assertEquals("\"v1\"", updated.getEtag());
+            assertEquals(1, cache.getRevalidations());
+
+            cache.invalidate(key);
+            assertNull(cache.lookup(key, request));
+        }
+    }
+
+    @Test
+    void refusesResponsesThatMustNotBeShared() {
+        var properties = new ProxyServerProperties.Cache();
+        properties.setEnabled(true);
+        try (var cache = new HttpCache(properties)) {
+            var request = request("GET http://example.com/ HTTP/1.1\r\n\r\n");
+            var out = new ByteArrayOutputStream();
+            assertNull(cache.startStore("k", request, response("Cache-Control: private, max-age=60\r\n"), NOW, NOW, 0, out));
+            assertNull(cache.startStore("k", request, response("Cache-Control: no-store\r\n"), NOW, NOW, 0, out));
+            assertNull(cache.startStore("k", request, response("Cache-Control: max-age=60\r\nSet-Cookie: a=b\r\n"), NOW, NOW, 0, out));
+            assertNull(cache.startStore("k", request, response("Cache-Control: max-age=60\r\nVary: *\r\n"), NOW, NOW, 0, out));
+            assertNull(cache.startStore("k", request, response("Content-Type: text/plain\r\n"), NOW, NOW, 0, out));
+            assertFalse(cache.isCacheable(request("GET http://example.com/ HTTP/1.1\r\nRange: bytes=0-1\r\n\r\n")));
+            assertFalse(cache.isCacheable(request("POST http://example.com/ HTTP/1.1\r\nContent-Length: 1\r\n\r\n")));
+            assertTrue(cache.isInvalidating(request("POST http://example.com/ HTTP/1.1\r\nContent-Length: 1\r\n\r\n")));
+        }
+    }
+
+    @Test
+    void keepsLargeBodiesOnDiskAndAdmitsByFrequency(@TempDir Path directory) throws Exception {
+        var properties = new ProxyServerProperties.Cache();
+        properties.setEnabled(true);
+        properties.setMemoryMaxObjectSize(10);
+        properties.setDiskDirectory(directory.toString());
+        properties.setDiskMaxBytes(1000);
+        try (var cache = new HttpCache(properties)) {
+            var request = request("GET http://example.com/big HTTP/1.1\r\n\r\n");
+            var response = response("Cache-Control: max-age=60\r\nContent-Length: 400\r\n");
+            var body = new byte[400];
+            for (var i = 0; i < 4; i++) cache.lookup("hot", request);
+            store(cache, "hot", request, response, body);
+            var hot = cache.lookup("hot", request);
+            assertTrue(hot.isOnDisk());
+            assertEquals(400, Files.size(hot.getBodyFile()));
+
+            // The disk tier is full after the second; a third seen less often than both stays out
+            cache.lookup("warm", request);
+            cache.lookup("warm", request);
+            store(cache, "warm", request, response, body);
+            store(cache, "cold", request, response, body);
+            assertNull(cache.lookup("cold", request));
+            assertNotNull(cache.lookup("hot", request));
+            try (var files = Files.list(directory)) {
+                assertEquals(2, files.count());
+            }
+        }
+        try (var files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static void store(HttpCache cache, String key, HttpRequestInfo request, HttpResponseInfo response, byte[] body) throws Exception {
+        var writer = cache.startStore(key, request, response, NOW, NOW, body.length, new ByteArrayOutputStream());
+        writer.write(body, 0, body.length);
+        writer.commit();
+    }
+
+    private static HttpRequestInfo request(String http) {
+        var request = new HttpRequestInfo();
+        request.parseHttpString(http);
+        return request;
+    }
+
+    private static HttpResponseInfo response(String headers) {
+        var response = new HttpResponseInfo();
+        response.parseHttpString("HTTP/1.1 200 OK\r\n" + headers + "\r\n");
+        return response;
+    }
+}
@@ -0,0 +1,94 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HttpExchangeInfoTests {
+
+    @Test
+    void writesHeadersInReceivedOrderAndCase() throws IOException {
+        var request = new HttpRequestInfo();
+        request.parseHttpString("GET http://example.com/a?b=c HTTP/1.1\r\n" +
+                "host: example.com\r\n" +
+                "Proxy-Connection: keep-alive\r\n" +
+                "X-Custom:   value  \r\n" +
+                "ACCEPT: */*");
+        request.removeHeader(HttpHeaderName.PROXY_CONNECTION);
+        request.setOriginForm(true);
+
+        var output = new ByteArrayOutputStream();
+        request.writeTo(output);
+
+        assertEquals("GET /a?b=c HTTP/1.1\r\nhost: example.com\r\nX-Custom: value\r\nACCEPT: */*\r\n\r\n",
+                output.toString(StandardCharsets.ISO_8859_1));
+        assertNull(request.getHeaderFirstValue("proxy-connection"));
+        assertEquals("*/*", request.getHeaderFirstValue(HttpHeaderName.ACCEPT));
+    }
+
+    @Test
+    void writesOriginFormForEmptyPath() {
+        var request = new HttpRequestInfo();
+        request.parseHttpString("GET http://example.com?q HTTP/1.1");
+        request.setOriginForm(true);
+
+        assertEquals("GET /?q HTTP/1.1\r\n\r\n", request.toHttpString());
+        assertEquals("http://example.com?q", request.getTarget());
+    }
+
+    @Test
+    void setsHeaderInPlaceAndWritesToBuffer() {
+        var response = new HttpResponseInfo();
+        response.parseHttpString("HTTP/1.1 200 OK\r\nVary: a\r\nContent-Length: 10\r\nvary: b");
+        response.setHeader(HttpHeaderName.VARY, "Accept-Encoding");
+        var buffer = ByteBuffer.allocate(response.getHttpStringLength());
+
+        response.writeTo(buffer);
+
+        assertEquals(0, buffer.remaining());
+        assertEquals("HTTP/1.1 200 OK\r\nVary: Accept-Encoding\r\nContent-Length: 10\r\n\r\n",
+                new String(buffer.array(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void removesHopByHopHeadersButNotFraming() {
+        var request = new HttpRequestInfo();
+        request.parseHttpString("POST http://example.com/ HTTP/1.1\r\n" +
+                "Host: example.com\r\n" +
+                "Connection: keep-alive, X-Hop, Content-Length, Transfer-Encoding, Host\r\n" +
+                "Keep-Alive: timeout=5\r\n" +
+                "X-Hop: 1\r\n" +
+                "x-hop: 2\r\n" +
+                "TE: trailers\r\n" +
+                "Trailer: X-Checksum\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Proxy-Connection: keep-alive\r\n" +
+                "Content-Length: 3\r\n" +
+                "X-End: end");
+
+        request.removeHopByHopHeaders();
+
+        assertEquals("POST http://example.com/ HTTP/1.1\r\nHost: example.com\r\nContent-Length: 3\r\nX-End: end\r\n\r\n",
+                request.toHttpString());
+    }
+
+    @Test
+    void keepsUpgradeOfProtocolSwitch() {
+        var request = new HttpRequestInfo();
+        request.parseHttpString("GET http://example.com/chat HTTP/1.1\r\n" +
+                "Connection: Upgrade, Keep-Alive\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Sec-WebSocket-Version: 13");
+
+        request.removeHopByHopHeaders();
+
+        assertEquals("GET http://example.com/chat HTTP/1.1\r\nUpgrade: websocket\r\nSec-WebSocket-Version: 13\r\nConnection: upgrade\r\n\r\n",
+                request.toHttpString());
+    }
+}
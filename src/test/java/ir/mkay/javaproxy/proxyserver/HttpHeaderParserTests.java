@@ -0,0 +1,116 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpHeaderParserTests {
+
+    private static final byte[] REQUEST = ("GET http://localhost:9000/index.html HTTP/1.1\r\n" +
+            "Host: localhost:9000\r\n" +
+            "User-Agent: curl/7.79.1\r\n" +
+            "Accept: */*\r\n" +
+            "Content-Length:  42 \r\n" +
+            "Proxy-Connection: Keep-Alive\r\n" +
+            "\r\n" +
+            "body").getBytes(StandardCharsets.ISO_8859_1);
+
+    @Test
+    void parsesRequest() {
+        var parser = new HttpHeaderParser();
+        var request = new HttpRequestInfo();
+
+        var length = parser.parse(REQUEST, 0, REQUEST.length);
+        request.load(REQUEST, 0, length, parser);
+
+        assertEquals(REQUEST.length - 4, length);
+        assertEquals("GET", request.getMethod());
+        assertEquals("http://localhost:9000/index.html", request.getTarget());
+        assertEquals("HTTP/1.1", request.getProtocolVersion());
+        assertEquals(5, request.getHeaderCount());
+        assertEquals("Host", request.getHeaderName(0));
+        assertEquals("localhost:9000", request.getHeaderFirstValue("host"));
+        assertEquals(42, request.getContentLength());
+        assertTrue(request.hasHeaderToken("PROXY-CONNECTION", "keep-alive"));
+        assertTrue(request.isKeepAlive());
+    }
+
+    @Test
+    void parsesIncrementally() {
+        var parser = new HttpHeaderParser();
+        for (int end = 0; end < REQUEST.length - 5; end++) {
+            assertEquals(-1, parser.parse(REQUEST, 0, end));
+        }
+        var length = parser.parse(REQUEST, 0, REQUEST.length);
+        var request = new HttpRequestInfo();
+        request.load(REQUEST, 0, length, parser);
+
+        assertEquals("Keep-Alive", request.getHeaderFirstValue("proxy-connection"));
+    }
+
+    @Test
+    void parsesResponseWithoutReasonPhrase() {
+        var response = new HttpResponseInfo();
+        response.parseHttpString("HTTP/1.0 204\r\nConnection: keep-alive");
+
+        assertEquals(204, response.getStatus());
+        assertEquals("", response.getReasonPhrase());
+        assertTrue(response.isKeepAlive());
+        assertFalse(response.isChunked());
+    }
+
+    @Test
+    void rejectsOversizedHeader() {
+        var bytes = ("GET / HTTP/1.1\r\nX: " + "x".repeat(ProxyRequestHandler.MAX_HTTP_STRING_SIZE)).getBytes(StandardCharsets.ISO_8859_1);
+
+        assertThrows(IllegalStateException.class, () -> new HttpHeaderParser().parse(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void rejectsWhitespaceInHeaderNames() {
+        for (var line : new String[]{"Name : v", "Na me: v", "Name\t: v"}) {
+            var bytes = ("GET / HTTP/1.1\r\n" + line + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            assertThrows(IllegalStateException.class, () -> new HttpHeaderParser().parse(bytes, 0, bytes.length), line);
+        }
+    }
+
+    @Test
+    void parsingAllocatesNearlyNothing() throws IOException {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var parser = new HttpHeaderParser();
+        var request = new HttpRequestInfo();
+        var iterations = 100_000;
+
+        long checksum = this.parse(parser, request, iterations);
+        var allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        checksum += this.parse(parser, request, iterations);
+        var allocatedPerRequest = (threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore) / (double) iterations;
+
+        assertEquals(2L * iterations * 42, checksum);
+        assertTrue(allocatedPerRequest < 8, "Allocated " + allocatedPerRequest + " bytes per request");
+    }
+
+    private long parse(HttpHeaderParser parser, HttpRequestInfo request, int iterations) throws IOException {
+        var output = OutputStream.nullOutputStream();
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            parser.reset();
+            request.load(REQUEST, 0, parser.parse(REQUEST, 0, REQUEST.length), parser);
+            if (request.getMethod().equals("GET") && request.isKeepAlive() && !request.isChunked()) {
+                checksum += request.getContentLength();
+            }
+            request.removeHeader(HttpHeaderName.PROXY_CONNECTION);
+            request.setOriginForm(true);
+            request.writeTo(output);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,46 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ListenSocketsTests {
+
+    @Test
+    void bindsEveryAcceptorToTheSamePort() throws Exception {
+        try (var probe = ServerSocketChannel.open()) {
+            assumeTrue(probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+        }
+        var properties = new ProxyServerProperties();
+        properties.setPort(0);
+        properties.setAcceptors(4);
+        properties.setBacklog(16);
+        var metrics = new ProxyMetrics();
+        try (var sockets = new ListenSockets(properties, metrics)) {
+            assertEquals(4, sockets.size());
+            var port = sockets.getLocalPort();
+            for (int i = 0; i < sockets.size(); i++) {
+                assertEquals(port, sockets.get(i).socket().getLocalPort());
+            }
+
+            try (var client = new Socket()) {
+                client.connect(new InetSocketAddress("127.0.0.1", port));
+            }
+            sockets.recordAccepted(2);
+            var out = new StringBuilder();
+            metrics.writePrometheus(out);
+            var text = out.toString();
+            assertEquals(1, text.split("# TYPE javaproxy_accepted_total counter").length - 1);
+            assertTrue(text.contains("javaproxy_accepted_total{acceptor=\"0\"} 0\n"));
+            assertTrue(text.contains("javaproxy_accepted_total{acceptor=\"2\"} 1\n"));
+            assertEquals(1.0, metrics.snapshot().get("accepted_total_2"));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.properties;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.readToEnd;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.write;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioProxyEngineTests {
+
+    @Test
+    void relaysConnectTunnelBothWays() throws Exception {
+        try (var origin = new EchoOrigin(); var server = new ProxyServer(properties(ProxyServerProperties.Engine.NIO))) {
+            server.start();
+            try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                client.setSoTimeout(5000);
+                write(client, "CONNECT 127.0.0.1:" + origin.getPort() + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.getPort() + "\r\n\r\n");
+                var established = ProxyRequestHandler.CONNECTION_ESTABLISHED_RESPONSE;
+                assertEquals(new String(established, StandardCharsets.ISO_8859_1),
+                        new String(client.getInputStream().readNBytes(established.length), StandardCharsets.ISO_8859_1));
+
+                write(client, "hello");
+                assertEquals("hello", new String(client.getInputStream().readNBytes(5), StandardCharsets.ISO_8859_1));
+                client.shutdownOutput();
+                assertEquals(-1, client.getInputStream().read());
+            }
+        }
+    }
+
+    @Test
+    void carriesOnePlainRequestPerConnection() throws Exception {
+        try (var origin = new KeepAliveOrigin(); var server = new ProxyServer(properties(ProxyServerProperties.Engine.NIO))) {
+            server.start();
+            try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                client.setSoTimeout(5000);
+                var target = "http://127.0.0.1:" + origin.getPort();
+                write(client, "GET " + target + "/first HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: keep-alive\r\n\r\n" +
+                        "GET " + target + "/second HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+
+                var response = readToEnd(client.getInputStream());
+                assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+                assertTrue(response.endsWith("ok"), response);
+            }
+            var forwarded = origin.requests.poll(5, TimeUnit.SECONDS);
+            assertTrue(forwarded.startsWith("GET /first "), forwarded);
+            assertTrue(forwarded.toLowerCase().contains("connection: close"), forwarded);
+            assertNull(origin.requests.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void forwardsRequestBodyUpToItsEnd() throws Exception {
+        try (var origin = new KeepAliveOrigin(); var server = new ProxyServer(properties(ProxyServerProperties.Engine.NIO))) {
+            server.start();
+            var target = "http://127.0.0.1:" + origin.getPort();
+            var pipelined = "GET " + target + "/next HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n";
+            for (var framing : new String[]{"Content-Length: 4\r\n\r\nWiki", "Transfer-Encoding: chunked\r\n\r\n4\r\nWiki\r\n0\r\n\r\n"}) {
+                try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                    client.setSoTimeout(5000);
+                    write(client, "POST " + target + "/ HTTP/1.1\r\nHost: 127.0.0.1\r\n" + framing + pipelined);
+
+                    var response = readToEnd(client.getInputStream());
+                    assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+                }
+                var forwarded = origin.requests.poll(5, TimeUnit.SECONDS);
+                assertTrue(forwarded.endsWith("\r\n\r\n" + framing.substring(framing.indexOf("\r\n\r\n") + 4)), forwarded);
+                assertNull(origin.requests.poll(200, TimeUnit.MILLISECONDS));
+            }
+        }
+    }
+
+    @Test
+    void drainClosesConnectionsWithoutRequest() throws Exception {
+        try (var server = new ProxyServer(properties(ProxyServerProperties.Engine.NIO))) {
+            server.start();
+            try (var idle = new Socket("127.0.0.1", server.getLocalPort())) {
+                idle.setSoTimeout(5000);
+                Thread.sleep(100);
+                assertEquals(0, server.drain(5000));
+                assertEquals(-1, idle.getInputStream().read());
+            }
+        }
+    }
+
+    /**
+     * Origin writing back whatever it gets, and half-closing once the client does.
+     */
+    private static class EchoOrigin implements AutoCloseable {
+
+        private final ServerSocket serverSocket = new ServerSocket();
+
+        EchoOrigin() throws IOException {
+            this.serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            var acceptor = new Thread(() -> {
+                try (var socket = this.serverSocket.accept()) {
+                    socket.getInputStream().transferTo(socket.getOutputStream());
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    // Closed by the test
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+
+    /**
+     * Keep-alive origin queueing every request with its body, and closing only when a request asks for it.
+     */
+    private static class KeepAliveOrigin implements AutoCloseable {
+
+        final LinkedBlockingQueue<String> requests = new LinkedBlockingQueue<>();
+        private final ServerSocket serverSocket = new ServerSocket();
+
+        KeepAliveOrigin() throws IOException {
+            this.serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            var acceptor = new Thread(() -> {
+                while (!this.serverSocket.isClosed()) {
+                    try (var socket = this.serverSocket.accept()) {
+                        socket.setSoTimeout(5000);
+                        this.serve(socket);
+                    } catch (IOException e) {
+                        // Closed by the test, or by the proxy
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket) throws IOException {
+            var in = socket.getInputStream();
+            while (true) {
+                var request = new StringBuilder();
+                String line;
+                do {
+                    line = readLine(in);
+                    if (line == null) return;
+                    request.append(line).append("\r\n");
+                } while (!line.isEmpty());
+                var header = request.toString().toLowerCase();
+                if (header.contains("transfer-encoding: chunked")) {
+                    do {
+                        line = readLine(in);
+                        request.append(line).append("\r\n");
+                        var size = Integer.parseInt(line, 16);
+                        if (size == 0) {
+                            request.append(readLine(in)).append("\r\n");
+                            break;
+                        }
+                        request.append(new String(in.readNBytes(size + 2), StandardCharsets.ISO_8859_1));
+                    } while (true);
+                } else if (header.contains("content-length: ")) {
+                    var start = header.indexOf("content-length: ") + 16;
+                    var length = Integer.parseInt(header.substring(start, header.indexOf("\r\n", start)));
+                    request.append(new String(in.readNBytes(length), StandardCharsets.ISO_8859_1));
+                }
+                this.requests.add(request.toString());
+                socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+                if (header.contains("connection: close")) return;
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            var line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) return null;
+                if (b != '\r') line.write(b);
+            }
+            return line.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OriginConnectorTests {
+
+    @Test
+    void interleavesAddressFamilies() throws Exception {
+        var connector = new OriginConnector(new ProxyServerProperties.Connect());
+        var v6a = InetAddress.getByName("2001:db8::1");
+        var v6b = InetAddress.getByName("2001:db8::2");
+        var v4a = InetAddress.getByName("192.0.2.1");
+        var v4b = InetAddress.getByName("192.0.2.2");
+        assertEquals(List.of(v6a, v4a, v6b, v4b), connector.order(new InetAddress[]{v6a, v6b, v4a, v4b}));
+        assertEquals(List.of(v4a, v6a, v4b, v6b), connector.order(new InetAddress[]{v4a, v4b, v6a, v6b}));
+    }
+
+    @Test
+    void failsOverAndDeprioritizesDeadAddress() throws Exception {
+        var connector = new OriginConnector(new ProxyServerProperties.Connect());
+        var dead = InetAddress.getByName("127.0.0.2");
+        var alive = InetAddress.getByName("127.0.0.1");
+        try (var server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(alive, 0));
+            try (var socket = connector.connect(new InetAddress[]{dead, alive}, server.getLocalPort())) {
+                assertEquals(alive, socket.getInetAddress());
+            }
+        }
+        assertEquals(1, connector.getFailures());
+        assertEquals(List.of(alive, dead), connector.order(new InetAddress[]{dead, alive}));
+    }
+
+    @Test
+    void failsFastWhenEveryAddressRefuses() throws Exception {
+        var properties = new ProxyServerProperties.Connect();
+        properties.setTimeout(5000);
+        var connector = new OriginConnector(properties);
+        int port;
+        try (var server = new ServerSocket(0)) {
+            port = server.getLocalPort();
+        }
+        var started = currentTimeMillis();
+        assertThrows(ConnectException.class, () -> connector.connect(new InetAddress[]{
+                InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.3")}, port));
+        assertTrue(currentTimeMillis() - started < 2000);
+        assertEquals(3, connector.getFailures());
+    }
+
+    @Test
+    void timesOutWhenNoAddressAnswers() throws Exception {
+        var properties = new ProxyServerProperties.Connect();
+        properties.setTimeout(300);
+        var connector = new OriginConnector(properties);
+        List<Socket> backlog = new ArrayList<>();
+        // A listener that never accepts drops connection attempts once its backlog is full
+        try (var server = new ServerSocket(0, 1, InetAddress.getByName("0.0.0.0"))) {
+            for (int i = 0; i < 3; i++) {
+                var socket = new Socket();
+                backlog.add(socket);
+                try {
+                    socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 200);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+            }
+            var started = currentTimeMillis();
+            assertThrows(SocketTimeoutException.class, () -> connector.connect(new InetAddress[]{
+                    InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2")}, server.getLocalPort()));
+            var elapsed = currentTimeMillis() - started;
+            assertTrue(elapsed >= 300 && elapsed < 2000, "Took " + elapsed + "ms");
+            assertEquals(2, connector.getFailures());
+        } finally {
+            for (var socket : backlog) socket.close();
+        }
+    }
+}
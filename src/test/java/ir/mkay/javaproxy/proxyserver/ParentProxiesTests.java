@@ -0,0 +1,85 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParentProxiesTests {
+
+    @Test
+    void routesBalancesAndEjects() {
+        var properties = new ProxyServerProperties.Parents();
+        properties.setHealthCheckInterval(0);
+        properties.setMaxFailures(2);
+        var pool = new ProxyServerProperties.ParentPool();
+        pool.setMembers(List.of("egress-1:3128", "egress-2:3128"));
+        properties.getPools().put("egress", pool);
+        var internal = new ProxyServerProperties.ParentRoute();
+        internal.setHosts(List.of("*.internal"));
+        var everything = new ProxyServerProperties.ParentRoute();
+        everything.setHosts(List.of("*"));
+        everything.setPool("egress");
+        properties.getRoutes().addAll(List.of(internal, everything));
+
+        try (var parents = new ParentProxies(properties, HostResolver.SYSTEM)) {
+            assertNull(parents.acquire("db.internal"));
+
+            var first = parents.acquire("example.com");
+            var second = parents.acquire("Example.org");
+            assertNotEquals(first, second);
+            second.release();
+
+            first.recordFailure();
+            first.recordFailure();
+            assertEquals(1, parents.getEjectedCount());
+            first.release();
+            for (int i = 0; i < 4; i++) {
+                var parent = parents.acquire("example.com");
+                assertEquals(second, parent);
+                parent.release();
+            }
+        }
+    }
+
+    @Test
+    void ejectsOnlyForGatewayErrorsTheParentMadeAndUntilTheEjectionEnds() throws Exception {
+        var properties = new ProxyServerProperties.Parents();
+        properties.setHealthCheckInterval(0);
+        properties.setMaxFailures(1);
+        properties.setEjectDuration(200);
+        var pool = new ProxyServerProperties.ParentPool();
+        pool.setMembers(List.of("egress-1:3128"));
+        properties.getPools().put("egress", pool);
+        var everything = new ProxyServerProperties.ParentRoute();
+        everything.setHosts(List.of("*"));
+        everything.setPool("egress");
+        properties.getRoutes().add(everything);
+
+        try (var parents = new ParentProxies(properties, HostResolver.SYSTEM)) {
+            var parent = parents.acquire("example.com");
+            parent.release();
+            parent.recordResponse(response("HTTP/1.1 502 Bad Gateway\r\nVia: 1.1 egress-1"));
+            assertEquals(0, parents.getEjectedCount());
+            parent.recordResponse(response("HTTP/1.1 502 Bad Gateway\r\nVia: 1.1 egress-1\r\nProxy-Status: egress-1; error=connection_refused"));
+            assertEquals(1, parents.getEjectedCount());
+
+            // A passing health check does not cut the ejection short
+            parent.recordSuccess(1_000_000);
+            assertEquals(1, parents.getEjectedCount());
+            Thread.sleep(250);
+            assertEquals(0, parents.getEjectedCount());
+            assertTrue(ParentProxy.isGeneratedByParent(response("HTTP/1.1 504 Gateway Timeout")));
+        }
+    }
+
+    private static HttpResponseInfo response(String http) {
+        var response = new HttpResponseInfo();
+        response.parseHttpString(http);
+        return response;
+    }
+}
@@ -0,0 +1,58 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProxyMetricsTests {
+
+    @Test
+    void histogramCountsIntoBuckets() {
+        var histogram = new LatencyHistogram();
+        histogram.record(50_000);
+        histogram.record(2_000_000);
+        histogram.record(2_000_000);
+        histogram.record(1_000_000_000_000L);
+        var counts = histogram.getCumulativeCounts();
+        assertEquals(1, counts[0]);
+        assertEquals(4, counts[counts.length - 1]);
+        assertEquals(0.0025, histogram.getQuantileSeconds(0.5));
+        assertEquals(Double.POSITIVE_INFINITY, histogram.getQuantileSeconds(1));
+    }
+
+    @Test
+    void writesPrometheusText() {
+        var metrics = new ProxyMetrics();
+        metrics.record(ProxyMetrics.Phase.DNS, 1_000_000);
+        metrics.recordError(new UnknownHostException("example.invalid"));
+        metrics.getClientBytesSent().add(42);
+        metrics.registerGauge("queued", "Queued tasks.", () -> 3);
+
+        var out = new StringBuilder();
+        metrics.writePrometheus(out);
+        var text = out.toString();
+        assertTrue(text.contains("javaproxy_phase_duration_seconds_bucket{phase=\"dns\",le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("javaproxy_phase_duration_seconds_count{phase=\"dns\"} 1\n"));
+        assertTrue(text.contains("javaproxy_errors_total{type=\"UnknownHostException\"} 1\n"));
+        assertTrue(text.contains("javaproxy_client_bytes_sent_total 42\n"));
+        assertTrue(text.contains("# TYPE javaproxy_queued gauge\njavaproxy_queued 3\n"));
+        assertEquals(3.0, metrics.snapshot().get("queued"));
+    }
+
+    @Test
+    void startsWithoutEndpointWhenItsPortIsTaken() throws Exception {
+        try (var taken = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"))) {
+            var properties = new ProxyServerProperties.Metrics();
+            properties.setPort(taken.getLocalPort());
+            properties.setJmx(false);
+            var exporter = new MetricsExporter(new ProxyMetrics(), properties);
+            exporter.start();
+            exporter.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProxyRequestHandlerTests {
+
+    @ParameterizedTest
+    @EnumSource(ProxyServerProperties.Engine.class)
+    void refusesAmbiguousFramingWithoutContactingOrigin(ProxyServerProperties.Engine engine) throws Exception {
+        try (var origin = new Origin(); var server = new ProxyServer(properties(engine))) {
+            server.start();
+            for (var framing : new String[]{"Transfer-Encoding: chunked\r\nContent-Length: 4", "Transfer-Encoding : chunked"}) {
+                try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                    client.setSoTimeout(5000);
+                    write(client, "POST http://127.0.0.1:" + origin.getPort() + "/ HTTP/1.1\r\nHost: 127.0.0.1\r\n" +
+                            framing + "\r\n\r\n0\r\n\r\n");
+
+                    var response = readToEnd(client.getInputStream());
+                    assertTrue(response.startsWith("HTTP/1.1 400 "), framing + ": " + response);
+                }
+            }
+            assertNull(origin.requests.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProxyServerProperties.Engine.class)
+    void forwardsRequestWithoutHopByHopHeaders(ProxyServerProperties.Engine engine) throws Exception {
+        try (var origin = new Origin(); var server = new ProxyServer(properties(engine))) {
+            server.start();
+            try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                client.setSoTimeout(5000);
+                write(client, "GET http://127.0.0.1:" + origin.getPort() + "/ HTTP/1.1\r\nHost: 127.0.0.1\r\n" +
+                        "Connection: close, X-Secret\r\nX-Secret: 1\r\nKeep-Alive: timeout=5\r\nTE: trailers\r\nX-Kept: 1\r\n\r\n");
+
+                var response = readToEnd(client.getInputStream());
+                assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+            }
+            var forwarded = origin.requests.poll(5, TimeUnit.SECONDS).toLowerCase();
+            assertTrue(forwarded.contains("x-kept: 1"), forwarded);
+            assertFalse(forwarded.contains("x-secret"), forwarded);
+            assertFalse(forwarded.contains("keep-alive"), forwarded);
+            assertFalse(forwarded.contains("te: trailers"), forwarded);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProxyServerProperties.Engine.class)
+    void deniesBlockedRangeByAnyLiteralFormAndByResolvedName(ProxyServerProperties.Engine engine, @TempDir Path directory) throws Exception {
+        var block = Files.writeString(directory.resolve("block.txt"), "127.0.0.0/8\n");
+        var properties = properties(engine);
+        properties.getAcl().setEnabled(true);
+        properties.getAcl().setBlockFiles(List.of(block.toString()));
+        try (var origin = new Origin(); var server = new ProxyServer(properties)) {
+            server.start();
+            for (var host : List.of("127.1", "2130706433", "localhost")) {
+                try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                    client.setSoTimeout(5000);
+                    write(client, "GET http://" + host + ":" + origin.getPort() + "/ HTTP/1.1\r\nHost: " + host + "\r\n\r\n");
+
+                    var response = readToEnd(client.getInputStream());
+                    assertTrue(response.startsWith("HTTP/1.1 403 "), host + ": " + response);
+                }
+            }
+            assertNull(origin.requests.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProxyServerProperties.Engine.class)
+    void refusesOriginFormTargetWhenRateLimiting(ProxyServerProperties.Engine engine) throws Exception {
+        var properties = properties(engine);
+        properties.getRateLimits().setEnabled(true);
+        properties.getRateLimits().setRequestsPerSecond(100);
+        try (var server = new ProxyServer(properties)) {
+            server.start();
+            for (var target : List.of("/index.html", "http://[::1/")) {
+                try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                    client.setSoTimeout(5000);
+                    write(client, "GET " + target + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+
+                    var response = readToEnd(client.getInputStream());
+                    assertTrue(response.startsWith("HTTP/1.1 400 "), target + ": " + response);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ProxyServerProperties.Engine.class)
+    void relaysUpgradedConnectionUntilBothSidesAreDone(ProxyServerProperties.Engine engine) throws Exception {
+        try (var origin = new ServerSocket(); var server = new ProxyServer(properties(engine))) {
+            origin.bind(new InetSocketAddress("127.0.0.1", 0));
+            var received = new LinkedBlockingQueue<String>();
+            var upgrader = new Thread(() -> {
+                try (var socket = origin.accept()) {
+                    Origin.readHeader(socket.getInputStream());
+                    socket.getOutputStream().write("HTTP/1.1 101 Switching Protocols\r\nConnection: upgrade\r\nUpgrade: echo\r\n\r\nbye"
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    // The origin is done sending but still takes what the client has left
+                    socket.shutdownOutput();
+                    received.add(readToEnd(socket.getInputStream()));
+                } catch (IOException e) {
+                    received.add(e.toString());
+                }
+            });
+            upgrader.setDaemon(true);
+            upgrader.start();
+            server.start();
+            try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                client.setSoTimeout(5000);
+                write(client, "GET http://127.0.0.1:" + origin.getLocalPort() + "/ HTTP/1.1\r\nHost: 127.0.0.1\r\n" +
+                        "Connection: upgrade\r\nUpgrade: echo\r\n\r\n");
+
+                var response = readToEnd(client.getInputStream());
+                assertTrue(response.startsWith("HTTP/1.1 101 "), response);
+                assertTrue(response.endsWith("\r\n\r\nbye"), response);
+                write(client, "late");
+                client.shutdownOutput();
+                assertEquals("late", received.poll(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    static ProxyServerProperties properties(ProxyServerProperties.Engine engine) {
+        var properties = new ProxyServerProperties();
+        properties.setPort(0);
+        properties.setEngine(engine);
+        properties.setThreads(4);
+        properties.setClientTimeout(5000);
+        properties.setProxyTimeout(5000);
+        properties.getMetrics().setPort(0);
+        properties.getMetrics().setJmx(false);
+        properties.getDns().setEnabled(false);
+        return properties;
+    }
+
+    static void write(Socket socket, String data) throws IOException {
+        socket.getOutputStream().write(data.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    static String readToEnd(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Origin queueing the header of every request it gets and answering each with a short body before closing.
+     */
+    static class Origin implements AutoCloseable {
+
+        final LinkedBlockingQueue<String> requests = new LinkedBlockingQueue<>();
+        private final ServerSocket serverSocket = new ServerSocket();
+
+        Origin() throws IOException {
+            this.serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            var acceptor = new Thread(() -> {
+                while (!this.serverSocket.isClosed()) {
+                    try (var socket = this.serverSocket.accept()) {
+                        socket.setSoTimeout(5000);
+                        this.requests.add(readHeader(socket.getInputStream()));
+                        socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok"
+                                .getBytes(StandardCharsets.ISO_8859_1));
+                    } catch (IOException e) {
+                        // Closed by the test, or by the proxy
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        static String readHeader(InputStream in) throws IOException {
+            var header = new ByteArrayOutputStream();
+            while (!header.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+                var b = in.read();
+                if (b < 0) break;
+                header.write(b);
+            }
+            return header.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+}
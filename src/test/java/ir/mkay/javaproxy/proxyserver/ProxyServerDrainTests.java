@@ -0,0 +1,159 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProxyServerDrainTests {
+
+    @Test
+    void reloadsOnlyReloadablePropertiesAndAllOrNothing() throws Exception {
+        try (var server = new ProxyServer(properties())) {
+            server.reload(Map.of("server.threads", "20", "server.client-timeout", "5000", "server.admission.max-connections", "50"));
+            var admission = server.getContext().getAdmission();
+            assertEquals(20, server.getContext().getProperties().getThreads());
+            assertEquals(5000, server.getContext().getProperties().getClientTimeout());
+            assertEquals(50, admission.getMaxLimit());
+            assertEquals(50, admission.getLimit());
+
+            assertThrows(IllegalArgumentException.class, () -> server.reload(Map.of("server.port", "1")));
+            assertThrows(IllegalArgumentException.class, () -> server.reload(Map.of("server.client-timeout", "100", "server.threads", "many")));
+            assertThrows(IllegalArgumentException.class, () -> server.reload(Map.of("server.threads", "0")));
+            assertEquals(5000, server.getContext().getProperties().getClientTimeout());
+            assertEquals(20, server.getContext().getProperties().getThreads());
+        }
+    }
+
+    @Test
+    void drainLetsExchangesInHandFinishAndClosesIdleConnections() throws Exception {
+        try (var origin = new Origin(); var server = new ProxyServer(properties())) {
+            server.start();
+            var port = server.getLocalPort();
+            try (var idle = new Socket("127.0.0.1", port); var busy = new Socket("127.0.0.1", port)) {
+                idle.setSoTimeout(5000);
+                busy.setSoTimeout(5000);
+                request(idle, origin, "/fast");
+                assertTrue(readResponse(idle.getInputStream()).endsWith("fast"));
+
+                request(busy, origin, "/slow");
+                Thread.sleep(100);
+                var drained = CompletableFuture.supplyAsync(() -> server.drain(5000));
+
+                // The exchange in hand gets its whole response, then both connections are closed by the proxy
+                var response = readResponse(busy.getInputStream());
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+                assertTrue(response.endsWith("slow"));
+                assertEquals(-1, busy.getInputStream().read());
+                assertEquals(-1, idle.getInputStream().read());
+                assertEquals(0, drained.get());
+                assertTrue(server.getContext().isDraining());
+            }
+            assertThrows(ConnectException.class, () -> new Socket("127.0.0.1", port).close());
+        }
+    }
+
+    private static ProxyServerProperties properties() {
+        var properties = new ProxyServerProperties();
+        properties.setPort(0);
+        properties.setThreads(4);
+        properties.setClientTimeout(5000);
+        properties.setProxyTimeout(5000);
+        properties.getMetrics().setPort(0);
+        properties.getMetrics().setJmx(false);
+        properties.getUpstreamPool().setEnabled(false);
+        properties.getDns().setEnabled(false);
+        return properties;
+    }
+
+    private static void request(Socket socket, Origin origin, String path) throws IOException {
+        var request = "GET http://127.0.0.1:" + origin.getPort() + path + " HTTP/1.1\r\nHost: 127.0.0.1:" + origin.getPort() + "\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Reads one response with a Content-Length body, leaving the connection open.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        var head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            var b = in.read();
+            if (b < 0) throw new IOException("Closed in the header: " + head);
+            head.append((char) b);
+        }
+        var length = 0;
+        for (var line : head.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) length = Integer.parseInt(line.substring(15).trim());
+        }
+        return head + new String(in.readNBytes(length), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Keep-alive origin answering with the request path as body, after half a second for /slow.
+     */
+    private static class Origin implements AutoCloseable {
+
+        private final ServerSocket serverSocket = new ServerSocket();
+
+        Origin() throws IOException {
+            this.serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            var acceptor = new Thread(() -> {
+                while (!this.serverSocket.isClosed()) {
+                    try {
+                        var socket = this.serverSocket.accept();
+                        var thread = new Thread(() -> this.serve(socket));
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = in.readLine()) != null) {
+                    while (!in.readLine().isEmpty()) {
+                        // Headers are not needed
+                    }
+                    var path = requestLine.split(" ")[1];
+                    if (path.equals("/slow")) Thread.sleep(500);
+                    var body = path.substring(1);
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection closed by the proxy
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+}
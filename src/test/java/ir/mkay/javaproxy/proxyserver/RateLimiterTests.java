@@ -0,0 +1,77 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTests {
+
+    @Test
+    void delaysRequestsOverTheBurstAndRejectsBeyondTheMaxDelay() {
+        var properties = new ProxyServerProperties.RateLimits();
+        properties.setEnabled(true);
+        properties.setRequestsPerSecond(10);
+        properties.setRequestBurst(2);
+        properties.setMaxRequestDelay(250);
+        try (var limiter = new RateLimiter(properties)) {
+            assertEquals(0, limiter.acquireRequest("a"));
+            assertEquals(0, limiter.acquireRequest("a"));
+            // Each request beyond the burst waits another 100ms at 10 per second
+            var wait = limiter.acquireRequest("a");
+            assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50) && wait <= TimeUnit.MILLISECONDS.toNanos(100), "wait " + wait);
+            assertTrue(limiter.acquireRequest("a") > wait);
+            assertEquals(-1, limiter.acquireRequest("a"));
+            assertEquals(-1, limiter.acquireRequest("a"));
+            // Keys do not share buckets
+            assertEquals(0, limiter.acquireRequest("b"));
+            assertEquals(2, limiter.getDelayedRequests());
+            assertEquals(2, limiter.getRejectedRequests());
+        }
+    }
+
+    @Test
+    void reportsHowLongBytesOverTheRateHaveToWait() {
+        var properties = new ProxyServerProperties.RateLimits();
+        properties.setEnabled(true);
+        properties.setBytesPerSecond(1000);
+        try (var limiter = new RateLimiter(properties)) {
+            var bucket = limiter.getByteBucket(limiter.getKey("127.0.0.1", "Example.com"));
+            assertSame(bucket, limiter.getByteBucket("127.0.0.1"));
+            // The default burst is one second worth, after that 500 bytes take half a second
+            assertEquals(0, limiter.takeBytes(bucket, 1000));
+            var wait = limiter.takeBytes(bucket, 500);
+            assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(450) && wait <= TimeUnit.MILLISECONDS.toNanos(500), "wait " + wait);
+        }
+    }
+
+    @Test
+    void keysByDestinationOrBoth() {
+        var properties = new ProxyServerProperties.RateLimits();
+        properties.setEnabled(true);
+        properties.setBytesPerSecond(1000);
+        properties.setKey(ProxyServerProperties.RateLimitKey.CLIENT_AND_DESTINATION);
+        try (var limiter = new RateLimiter(properties)) {
+            assertEquals("127.0.0.1 example.com", limiter.getKey("127.0.0.1", "Example.com"));
+            assertNotSame(limiter.getByteBucket("127.0.0.1 example.com"), limiter.getByteBucket("127.0.0.2 example.com"));
+            assertEquals(0, limiter.acquireRequest("127.0.0.1 example.com"));
+        }
+    }
+
+    @Test
+    void disabledLimiterKeepsNoState() {
+        var properties = new ProxyServerProperties.RateLimits();
+        properties.setBytesPerSecond(1000);
+        properties.setRequestsPerSecond(1);
+        try (var limiter = new RateLimiter(properties)) {
+            assertNull(limiter.getByteBucket("a"));
+            for (int i = 0; i < 10; i++) assertEquals(0, limiter.acquireRequest("a"));
+            assertEquals(0, limiter.getBucketCount());
+        }
+    }
+}
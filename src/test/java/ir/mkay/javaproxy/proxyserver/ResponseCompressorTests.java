@@ -0,0 +1,91 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCompressorTests {
+
+    @Test
+    void compressesIntoChunksThatDecodeToTheOriginal() throws Exception {
+        var properties = new ProxyServerProperties.Compression();
+        properties.setEnabled(true);
+        try (var bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+             var compressor = new ResponseCompressor(properties, bufferPool)) {
+            var text = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. ".repeat(5000).getBytes(StandardCharsets.UTF_8);
+            var chunked = new ByteArrayOutputStream();
+            try (var out = compressor.compress(chunked)) {
+                out.write(text, 0, 1000);
+                // What was written so far goes out as a chunk of its own
+                out.flush();
+                var flushed = chunked.size();
+                assertTrue(flushed > 0);
+                out.write(text, 1000, text.length - 1000);
+                out.finish();
+            }
+
+            var decoded = new ByteArrayOutputStream();
+            var buffer = new AdaptiveBuffer(bufferPool);
+            HttpBody.copyDechunked(new ByteArrayInputStream(chunked.toByteArray()), decoded, buffer);
+            buffer.close();
+            assertTrue(decoded.size() < text.length / 10);
+            try (var gunzip = new GZIPInputStream(new ByteArrayInputStream(decoded.toByteArray()))) {
+                assertEquals(new String(text, StandardCharsets.UTF_8), new String(gunzip.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            assertEquals(text.length, compressor.getBytesIn());
+            assertEquals(decoded.size(), compressor.getBytesOut());
+        }
+    }
+
+    @Test
+    void decidesWhatToCompressAndRewritesTheHeader() {
+        var properties = new ProxyServerProperties.Compression();
+        properties.setEnabled(true);
+        try (var bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+             var compressor = new ResponseCompressor(properties, bufferPool)) {
+            var request = request("Accept-Encoding: br;q=1.0, gzip;q=0.5\r\n");
+            var response = response("Content-Type: text/html; charset=utf-8\r\nContent-Length: 5000\r\nETag: \"abc\"\r\nVary: Cookie\r\nAccept-Ranges: bytes\r\n");
+            assertTrue(compressor.shouldCompress(request, response, 5000));
+            assertFalse(compressor.shouldCompress(request, response, 100));
+            assertTrue(compressor.shouldCompress(request, response, HttpBody.CHUNKED));
+            assertFalse(compressor.shouldCompress(request, response, HttpBody.UNTIL_EOF));
+            assertFalse(compressor.shouldCompress(request("Accept-Encoding: gzip;q=0, *\r\n"), response, 5000));
+            assertTrue(compressor.shouldCompress(request("Accept-Encoding: *\r\n"), response, 5000));
+            assertFalse(compressor.shouldCompress(request(""), response, 5000));
+            assertFalse(compressor.shouldCompress(request, response("Content-Type: image/png\r\n"), 5000));
+            assertFalse(compressor.shouldCompress(request, response("Content-Type: application/json\r\nContent-Encoding: br\r\n"), 5000));
+            assertFalse(compressor.shouldCompress(request, response("Content-Type: application/json\r\nCache-Control: no-transform\r\n"), 5000));
+
+            var rewritten = compressor.rewriteHeader(response, new HttpResponseInfo());
+            assertNull(rewritten.getHeaderFirstValue(HttpHeaderName.CONTENT_LENGTH));
+            assertNull(rewritten.getHeaderFirstValue(HttpHeaderName.ACCEPT_RANGES));
+            assertEquals("chunked", rewritten.getHeaderFirstValue(HttpHeaderName.TRANSFER_ENCODING));
+            assertEquals("gzip", rewritten.getHeaderFirstValue(HttpHeaderName.CONTENT_ENCODING));
+            assertEquals("W/\"abc\"", rewritten.getHeaderFirstValue(HttpHeaderName.ETAG));
+            assertTrue(rewritten.hasHeaderToken(HttpHeaderName.VARY, "Cookie"));
+            assertTrue(rewritten.hasHeaderToken(HttpHeaderName.VARY, "Accept-Encoding"));
+            // The original is left as it was for the cache
+            assertEquals(5000, response.getContentLength());
+        }
+    }
+
+    private static HttpRequestInfo request(String headers) {
+        var request = new HttpRequestInfo();
+        request.parseHttpString("GET http://example.com/ HTTP/1.1\r\n" + headers + "\r\n");
+        return request;
+    }
+
+    private static HttpResponseInfo response(String headers) {
+        var response = new HttpResponseInfo();
+        response.parseHttpString("HTTP/1.1 200 OK\r\n" + headers + "\r\n");
+        return response;
+    }
+}
@@ -0,0 +1,88 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SharedFetchTests {
+
+    @Test
+    void streamsTheBodyToWaitersAsItArrives() throws Exception {
+        var properties = new ProxyServerProperties.Cache();
+        properties.setEnabled(true);
+        try (var cache = new HttpCache(properties)) {
+            var leader = cache.leadFetch("k");
+            assertNotNull(leader);
+            assertNull(cache.leadFetch("k"));
+            var joined = cache.joinFetch("k");
+            assertSame(leader, joined);
+
+            var waiter = CompletableFuture.supplyAsync(() -> {
+                try {
+                    assertTrue(joined.awaitHeader(5000));
+                    var body = new ByteArrayOutputStream();
+                    for (int position = 0; position < joined.getBodyLength(); ) {
+                        var available = joined.awaitBody(position, 5000);
+                        body.write(joined.getBody(), position, available - position);
+                        position = available;
+                    }
+                    return body.toString();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            var request = new HttpRequestInfo();
+            request.parseHttpString("GET http://example.com/ HTTP/1.1\r\n\r\n");
+            var response = new HttpResponseInfo();
+            response.parseHttpString("HTTP/1.1 200 OK\r\nContent-Length: 10\r\nConnection: keep-alive\r\n\r\n");
+            assertTrue(cache.isShareable(response, 10));
+            leader.publish(request, response, 0, 0, 10);
+            var output = leader.getBodyOutput();
+            output.write("hello".getBytes(), 0, 5);
+            Thread.sleep(20);
+            output.write("world".getBytes(), 0, 5);
+
+            assertEquals("helloworld", waiter.get());
+            assertNull(joined.toResponseInfo(new HttpResponseInfo()).getHeaderFirstValue(HttpHeaderName.CONNECTION));
+            // A complete fetch takes no more waiters
+            assertNull(cache.joinFetch("k"));
+        }
+    }
+
+    @Test
+    void sendsWaitersBackWhenAbandoned() throws Exception {
+        var properties = new ProxyServerProperties.Cache();
+        properties.setEnabled(true);
+        try (var cache = new HttpCache(properties)) {
+            var response = new HttpResponseInfo();
+            response.parseHttpString("HTTP/1.1 200 OK\r\nContent-Length: 10\r\nSet-Cookie: a=b\r\n\r\n");
+            assertFalse(cache.isShareable(response, 10));
+
+            var unpublished = cache.leadFetch("a");
+            unpublished.abandon();
+            assertFalse(unpublished.awaitHeader(5000));
+            assertNull(cache.joinFetch("a"));
+            assertFalse(cache.leadFetch("b").awaitHeader(10));
+
+            var failed = cache.leadFetch("c");
+            var request = new HttpRequestInfo();
+            request.parseHttpString("GET http://example.com/ HTTP/1.1\r\n\r\n");
+            response.parseHttpString("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n");
+            failed.publish(request, response, 0, 0, 10);
+            failed.getBodyOutput().write(new byte[4], 0, 4);
+            failed.abandon();
+            assertEquals(4, failed.awaitBody(0, 5000));
+            assertThrows(EOFException.class, () -> failed.awaitBody(4, 5000));
+        }
+    }
+}
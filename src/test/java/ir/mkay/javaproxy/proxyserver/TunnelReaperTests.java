@@ -0,0 +1,65 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.currentTimeMillis;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TunnelReaperTests {
+
+    @Test
+    void expiresIdleTunnelsOnly() throws Exception {
+        var properties = new ProxyServerProperties.Tunnels();
+        properties.setIdleTimeout(500);
+        try (var reaper = new TunnelReaper(properties)) {
+            var idle = new TestTunnel(currentTimeMillis());
+            var busy = new TestTunnel(currentTimeMillis());
+            reaper.register(idle);
+            reaper.register(busy);
+            var deadline = currentTimeMillis() + 3000;
+            while (idle.expired.getCount() > 0 && currentTimeMillis() < deadline) {
+                busy.lastActivity = currentTimeMillis();
+                Thread.sleep(50);
+            }
+            assertTrue(idle.expired.await(0, TimeUnit.MILLISECONDS));
+            assertEquals(1, busy.expired.getCount());
+            assertEquals(1, reaper.getIdleReaped());
+        }
+    }
+
+    private static class TestTunnel implements TunnelReaper.Tunnel {
+
+        private final long openedAt;
+        private final CountDownLatch expired = new CountDownLatch(1);
+        private volatile long lastActivity;
+
+        TestTunnel(long openedAt) {
+            this.openedAt = openedAt;
+            this.lastActivity = openedAt;
+        }
+
+        @Override
+        public long getOpenedAt() {
+            return this.openedAt;
+        }
+
+        @Override
+        public long getLastActivity() {
+            return this.lastActivity;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return this.expired.getCount() == 0;
+        }
+
+        @Override
+        public void expire(String reason) {
+            this.expired.countDown();
+        }
+    }
+}
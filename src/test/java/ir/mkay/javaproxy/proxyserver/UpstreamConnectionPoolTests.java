@@ -0,0 +1,218 @@
+package ir.mkay.javaproxy.proxyserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.properties;
+import static ir.mkay.javaproxy.proxyserver.ProxyRequestHandlerTests.write;
+import static java.lang.System.currentTimeMillis;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamConnectionPoolTests {
+
+    @Test
+    void handsOutMostRecentlyReleasedWithinPerHostLimit() throws Exception {
+        var properties = new ProxyServerProperties.UpstreamPool();
+        properties.setMaxPerHost(2);
+        try (var origin = new Sockets(); var bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+             var pool = new UpstreamConnectionPool(properties)) {
+            var first = origin.connect("a:80", bufferPool);
+            var second = origin.connect("a:80", bufferPool);
+            var third = origin.connect("a:80", bufferPool);
+            pool.release(first);
+            pool.release(second);
+            pool.release(third);
+            assertEquals(2, pool.getIdleCount());
+            assertTrue(third.getSocket().isClosed());
+
+            assertNull(pool.acquire("b:80"));
+            assertSame(second, pool.acquire("a:80"));
+            pool.release(second);
+            assertSame(second, pool.acquire("a:80"));
+            assertSame(first, pool.acquire("a:80"));
+            assertNull(pool.acquire("a:80"));
+            assertEquals(0, pool.getIdleCount());
+            assertEquals(3, pool.getHits());
+            assertEquals(2, pool.getMisses());
+        }
+    }
+
+    @Test
+    void evictsConnectionsTheOriginClosedOrWroteTo() throws Exception {
+        try (var origin = new Sockets(); var bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+             var pool = new UpstreamConnectionPool(new ProxyServerProperties.UpstreamPool())) {
+            var closed = origin.connect("a:80", bufferPool);
+            var written = origin.connect("a:80", bufferPool);
+            var alive = origin.connect("a:80", bufferPool);
+            pool.release(alive);
+            pool.release(written);
+            pool.release(closed);
+            origin.accepted.get(0).close();
+            origin.accepted.get(1).getOutputStream().write('x');
+            Thread.sleep(100);
+
+            var started = System.nanoTime();
+            assertSame(alive, pool.acquire("a:80"));
+            assertTrue(System.nanoTime() - started < 100_000_000);
+            assertEquals(2, pool.getStaleEvictions());
+            // The check leaves the connection usable in blocking mode
+            alive.getOutput().write('y');
+            assertEquals('y', origin.accepted.get(2).getInputStream().read());
+        }
+    }
+
+    @Test
+    void expiresIdleConnections() throws Exception {
+        var properties = new ProxyServerProperties.UpstreamPool();
+        properties.setIdleTtl(50);
+        try (var origin = new Sockets(); var bufferPool = new BufferPool(new ProxyServerProperties.Buffers());
+             var pool = new UpstreamConnectionPool(properties)) {
+            var connection = origin.connect("a:80", bufferPool);
+            pool.release(connection);
+            var deadline = currentTimeMillis() + 3000;
+            while (pool.getExpiredEvictions() == 0 && currentTimeMillis() < deadline) Thread.sleep(20);
+            assertEquals(1, pool.getExpiredEvictions());
+            assertEquals(0, pool.getIdleCount());
+            assertTrue(connection.getSocket().isClosed());
+            assertNull(pool.acquire("a:80"));
+        }
+    }
+
+    @Test
+    void retriesOnFreshConnectionWhenReusedOneCloses() throws Exception {
+        try (var origin = new OneRequestOrigin(); var server = new ProxyServer(properties(ProxyServerProperties.Engine.BLOCKING))) {
+            server.start();
+            try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                client.setSoTimeout(5000);
+                var in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+                for (var path : List.of("/first", "/second")) {
+                    write(client, "GET http://127.0.0.1:" + origin.getPort() + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+                    assertEquals("HTTP/1.1 200 OK", in.readLine());
+                    while (!in.readLine().isEmpty()) {
+                        // Headers are not needed
+                    }
+                    assertEquals('o', in.read());
+                    assertEquals('k', in.read());
+                }
+            }
+            assertEquals(2, origin.connections.get());
+            assertEquals(1, server.getContext().getUpstreamPool().getHits());
+        }
+    }
+
+    @Test
+    void doesNotResendUnsafeRequestWhenReusedConnectionCloses() throws Exception {
+        try (var origin = new OneRequestOrigin(); var server = new ProxyServer(properties(ProxyServerProperties.Engine.BLOCKING))) {
+            server.start();
+            try (var client = new Socket("127.0.0.1", server.getLocalPort())) {
+                client.setSoTimeout(5000);
+                var in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+                var target = "http://127.0.0.1:" + origin.getPort();
+                write(client, "GET " + target + "/first HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+                assertEquals("HTTP/1.1 200 OK", in.readLine());
+                while (!in.readLine().isEmpty()) {
+                    // Headers are not needed
+                }
+                assertEquals('o', in.read());
+                assertEquals('k', in.read());
+
+                write(client, "POST " + target + "/second HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 0\r\n\r\n");
+                assertNull(in.readLine());
+            }
+            assertEquals(1, origin.connections.get());
+            assertEquals(1, server.getContext().getUpstreamPool().getHits());
+        }
+    }
+
+    /**
+     * Loopback connections with their origin side kept for the test to act on.
+     */
+    private static class Sockets implements AutoCloseable {
+
+        final List<Socket> accepted = new ArrayList<>();
+        private final ServerSocket serverSocket = new ServerSocket();
+
+        Sockets() throws IOException {
+            this.serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        UpstreamConnection connect(String key, BufferPool bufferPool) throws IOException {
+            var socket = SocketChannel.open(this.serverSocket.getLocalSocketAddress()).socket();
+            this.accepted.add(this.serverSocket.accept());
+            return new UpstreamConnection(key, socket, bufferPool);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var socket : this.accepted) socket.close();
+            this.serverSocket.close();
+        }
+    }
+
+    /**
+     * Keep-alive origin that answers the first request of a connection and closes on the next one without
+     * answering, the way an origin whose keep-alive timeout just passed does.
+     */
+    private static class OneRequestOrigin implements AutoCloseable {
+
+        final AtomicInteger connections = new AtomicInteger();
+        private final ServerSocket serverSocket = new ServerSocket();
+
+        OneRequestOrigin() throws IOException {
+            this.serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            var acceptor = new Thread(() -> {
+                while (!this.serverSocket.isClosed()) {
+                    try {
+                        var socket = this.serverSocket.accept();
+                        this.connections.incrementAndGet();
+                        var thread = new Thread(() -> this.serve(socket));
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                for (int request = 0; in.readLine() != null; request++) {
+                    while (!in.readLine().isEmpty()) {
+                        // Headers are not needed
+                    }
+                    if (request > 0) return;
+                    socket.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.ISO_8859_1));
+                }
+            } catch (IOException e) {
+                // Connection closed by the proxy
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.serverSocket.close();
+        }
+    }
+}